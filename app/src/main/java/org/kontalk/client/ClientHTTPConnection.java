@@ -21,6 +21,7 @@ package org.kontalk.client;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -33,6 +34,9 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,19 +55,26 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
+import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressOutputStreamEntity;
+import org.kontalk.util.TransferThrottle;
 
 import android.content.Context;
 import android.util.Log;
@@ -79,13 +90,22 @@ public class ClientHTTPConnection {
     /** Regex used to parse content-disposition headers */
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
+    /** Regex used to parse content-range headers */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    /** Concurrent requests for large downloads. */
+    private static final int DOWNLOAD_SEGMENTS = 3;
 
     private final Context mContext;
 
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
 
-    private HttpRequestBase currentRequest;
+    /** Requests in progress. */
+    private final Set<HttpRequestBase> mRequests = new HashSet<HttpRequestBase>();
+    private volatile boolean mAborted;
+    private volatile ResumableDownload mDownload;
     private HttpClient mConnection;
 
     public ClientHTTPConnection(Context context, PrivateKey privateKey, X509Certificate bridgeCert) {
@@ -95,8 +115,15 @@ public class ClientHTTPConnection {
     }
 
     public void abort() {
-        if (currentRequest != null)
-            currentRequest.abort();
+        mAborted = true;
+        ResumableDownload download = mDownload;
+        if (download != null)
+            download.abort();
+
+        synchronized (mRequests) {
+            for (HttpRequestBase req : mRequests)
+                req.abort();
+        }
     }
 
     /**
@@ -162,8 +189,12 @@ public class ClientHTTPConnection {
                 // HttpClient bug caused by Lighttpd
                 params.setBooleanParameter("http.protocol.expect-continue", false);
 
+                // allow concurrent ranged requests to the same server
+                ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(DOWNLOAD_SEGMENTS));
+
                 // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
+                ClientConnectionManager connMgr = new ThreadSafeClientConnManager(params, registry);
 
                 mConnection = new DefaultHttpClient(connMgr, params);
             }
@@ -180,42 +211,200 @@ public class ClientHTTPConnection {
     /** Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header. */
     public void downloadAutofilename(String url, File base, DownloadListener listener) throws IOException {
-        _download(url, base, listener);
+        _download(url, base, null, null, listener);
     }
 
-    private void _download(String url, File base, DownloadListener listener) throws IOException {
-        currentRequest = prepareURLDownload(url);
-        HttpResponse response = execute(currentRequest);
-
-        int code = response.getStatusLine().getStatusCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
-            Header disp = response.getFirstHeader("Content-Disposition");
-            if (disp != null) {
-                String name = parseContentDisposition(disp.getValue());
-                // TODO should check for content-disposition parsing here
-                // and choose another filename if necessary
-
-                HttpEntity _entity = response.getEntity();
-                if (name != null && _entity != null) {
-                    // we need to wrap the entity to monitor the download progress
-                    File destination = new File(base, name);
-                    ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity, url, destination, listener);
-                    FileOutputStream out = new FileOutputStream(destination);
-                    entity.writeTo(out);
-                    out.close();
-                    return;
-                }
+    /**
+     * Downloads to a directory represented by a {@link File} object,
+     * determining the file name from the Content-Disposition header and
+     * decrypting data while it's being received.
+     * @param errors will be filled with verification errors
+     */
+    public void downloadAutofilename(String url, File base, Coder decrypter,
+            List<DecryptException> errors, DownloadListener listener) throws IOException {
+        _download(url, base, decrypter, errors, listener);
+    }
+
+    private void _download(String url, File base, Coder decrypter,
+            List<DecryptException> errors, DownloadListener listener) throws IOException {
+        mAborted = false;
+        RangeConnector connector = new RangeConnector(url);
+
+        if (decrypter != null) {
+            downloadDecrypt(connector, url, base, decrypter, errors, listener);
+            return;
+        }
+
+        // partial data is kept for resuming later
+        String partName = ".partial-" + MessageUtils.sha1(url);
+        ResumableDownload download = new ResumableDownload(connector, url,
+            new File(base, partName), new File(base, partName + ".state"), listener);
+        download.setSegments(DOWNLOAD_SEGMENTS);
+        download.setRateLimiter(TransferThrottle.getDownloadLimiter());
+
+        mDownload = download;
+        try {
+            download.start();
+
+            String name = download.getFilename();
+            // TODO should check for content-disposition parsing here
+            // and choose another filename if necessary
+            if (name == null) {
+                download.abort();
+                download.discard();
+                listener.error(url, null, new IOException("invalid response: no filename"));
+                return;
             }
+
+            File destination = new File(base, name);
+            download.download(destination);
+            listener.completed(url, download.getMime(), destination);
+        }
+        catch (IOException e) {
+            if (mAborted)
+                throw new InterruptedIOException("download aborted");
+            throw e;
         }
+        finally {
+            mDownload = null;
+        }
+    }
 
-        Log.d(TAG, "invalid response: " + code);
-        HttpEntity entity = response.getEntity();
-        if (entity != null) {
-            Log.w(TAG, EntityUtils.toString(entity));
-            entity.consumeContent();
+    /**
+     * Downloads and decrypts data while it's being received. Since the
+     * decryption state can't be saved, a dropped connection is resumed only
+     * within this download.
+     */
+    private void downloadDecrypt(RangeConnector connector, String url, File base,
+            Coder decrypter, List<DecryptException> errors, DownloadListener listener)
+                throws IOException {
+
+        ResumableDownload.Response response = connector.open(0, -1, null);
+        if (response.filename == null) {
+            response.close();
+            listener.error(url, null, new IOException("invalid response: no filename"));
+            return;
+        }
+
+        File destination = new File(base, response.filename);
+        InputStreamEntity _entity = new InputStreamEntity(ResumableDownload
+            .openStream(connector, response, ResumableDownload.DEFAULT_MAX_RETRIES,
+                ResumableDownload.DEFAULT_RETRY_DELAY), response.total);
+        _entity.setContentType(response.mime);
+
+        // we need to wrap the entity to monitor the download progress
+        ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity,
+            url, destination, decrypter, errors, listener);
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            entity.writeTo(out);
+        }
+        catch (IOException e) {
+            // partially decrypted data is useless
+            out.close();
+            destination.delete();
+            if (mAborted)
+                throw new InterruptedIOException("download aborted");
+            throw e;
+        }
+        finally {
+            out.close();
+            _entity.getContent().close();
+        }
+    }
+
+    /** Issues (ranged) GET requests for a download. */
+    private final class RangeConnector implements ResumableDownload.Connector {
+        private final String mUrl;
+
+        RangeConnector(String url) {
+            mUrl = url;
+        }
+
+        public ResumableDownload.Response open(long start, long end, String validator)
+                throws IOException {
+            if (mAborted)
+                throw new InterruptedIOException("download aborted");
+
+            final HttpRequestBase req = prepareURLDownload(mUrl);
+            if (start > 0 || end >= 0) {
+                req.addHeader("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+                if (validator != null)
+                    req.addHeader("If-Range", validator);
+            }
+
+            synchronized (mRequests) {
+                mRequests.add(req);
+            }
+            try {
+                HttpResponse response = execute(req);
+                int code = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+
+                if ((code != 200 && code != 206) || entity == null) {
+                    Log.d(TAG, "invalid response: " + code);
+                    if (entity != null) {
+                        Log.w(TAG, EntityUtils.toString(entity));
+                        entity.consumeContent();
+                    }
+                    throw new IOException("invalid response: " + code);
+                }
+
+                long first = 0;
+                long total = entity.getContentLength();
+                long last = total - 1;
+                if (code == 206) {
+                    Header range = response.getFirstHeader("Content-Range");
+                    Matcher m = (range != null) ? CONTENT_RANGE_PATTERN.matcher(range.getValue()) : null;
+                    if (m == null || !m.find()) {
+                        entity.consumeContent();
+                        throw new IOException("invalid content range");
+                    }
+                    first = Long.parseLong(m.group(1));
+                    last = Long.parseLong(m.group(2));
+                    total = "*".equals(m.group(3)) ? -1 : Long.parseLong(m.group(3));
+                }
+
+                // weak entity tags can't be used for ranges
+                String tag = null;
+                Header etag = response.getFirstHeader("ETag");
+                if (etag != null && !etag.getValue().startsWith("W/")) {
+                    tag = etag.getValue();
+                }
+                else {
+                    Header lastModified = response.getFirstHeader("Last-Modified");
+                    if (lastModified != null)
+                        tag = lastModified.getValue();
+                }
+
+                Header ranges = response.getFirstHeader("Accept-Ranges");
+                boolean acceptRanges = (code == 206) ||
+                    (ranges != null && "bytes".equalsIgnoreCase(ranges.getValue()));
+
+                Header disp = response.getFirstHeader("Content-Disposition");
+                String name = (disp != null) ? parseContentDisposition(disp.getValue()) : null;
+                Header type = entity.getContentType();
+                String mime = (type != null) ? type.getValue() : null;
+
+                return new ResumableDownload.Response(code, first, last, total, tag,
+                        acceptRanges, name, mime, entity.getContent()) {
+                    @Override
+                    public void close() throws IOException {
+                        // don't read the rest of the body
+                        req.abort();
+                        synchronized (mRequests) {
+                            mRequests.remove(req);
+                        }
+                    }
+                };
+            }
+            catch (IOException e) {
+                synchronized (mRequests) {
+                    mRequests.remove(req);
+                }
+                throw e;
+            }
         }
-        listener.error(url, null, new IOException("invalid response: " + code));
     }
 
     /*
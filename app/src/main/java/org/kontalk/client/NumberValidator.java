@@ -498,7 +498,16 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
      */
     public static String fixNumber(Context context, String number, String myNumber, int lastResortCc)
             throws NumberParseException {
+        return fixNumber(number, getRegionCode(context, myNumber), lastResortCc);
+    }
 
+    /**
+     * Returns the region code used for numbers without a country code.
+     * Computing it is expensive, so it should be reused when converting
+     * many numbers with {@link #fixNumber(String, String, int)}.
+     * @param myNumber used to take the country code (may be null)
+     */
+    public static String getRegionCode(Context context, String myNumber) {
         final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
         String myRegionCode = tm.getSimCountryIso();
         if (myRegionCode != null)
@@ -516,6 +525,19 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
             // ehm :)
         }
 
+        return myRegionCode;
+    }
+
+    /**
+     * Converts pretty much any phone number into E.164 format.
+     * This method is thread safe.
+     * @param myRegionCode region code from {@link #getRegionCode}
+     * @param lastResortCc manual country code last resort
+     */
+    public static String fixNumber(String number, String myRegionCode, int lastResortCc)
+            throws NumberParseException {
+
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumber parsedNum;
         try {
             parsedNum = util.parse(number, myRegionCode);
@@ -0,0 +1,688 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kontalk.service.DownloadListener;
+import org.kontalk.util.RateLimiter;
+
+
+/**
+ * Resumable download using HTTP ranged requests.
+ * Data is written to a partial file and progress is saved to a state file,
+ * so an interrupted download can be resumed later, even after a restart.
+ * Dropped connections are recovered by requesting the missing range, and
+ * large files can be fetched with several concurrent ranged requests.
+ * @author Daniele Ricci
+ */
+public class ResumableDownload {
+
+    public static final int HTTP_OK = 200;
+    public static final int HTTP_PARTIAL_CONTENT = 206;
+
+    /** Default number of reconnections after a dropped connection. */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    /** Default delay before reconnecting. */
+    public static final long DEFAULT_RETRY_DELAY = 1000;
+    /** Minimum length for fetching a file with concurrent requests. */
+    public static final long PARALLEL_THRESHOLD = 4 * 1024 * 1024;
+    /**
+     * Length of the first request when concurrent requests are enabled,
+     * so the other ranges won't be sent twice.
+     */
+    private static final long FIRST_RANGE_SIZE = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+    /** State is saved every this many bytes for each segment. */
+    private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+    /** A response to a (possibly ranged) request. */
+    public static class Response implements Closeable {
+        /** HTTP status code (200 or 206). */
+        public final int status;
+        /** Offset of the first byte of content. */
+        public final long start;
+        /** Offset of the last byte of content (-1 if unknown). */
+        public final long end;
+        /** Length of the whole resource (-1 if unknown). */
+        public final long total;
+        /** Entity tag or last modified date (null if not available). */
+        public final String validator;
+        /** True if the server accepts ranged requests. */
+        public final boolean acceptRanges;
+        /** File name from Content-Disposition (might be null). */
+        public final String filename;
+        public final String mime;
+        public final InputStream content;
+
+        public Response(int status, long start, long end, long total, String validator,
+                boolean acceptRanges, String filename, String mime, InputStream content) {
+            this.status = status;
+            this.start = start;
+            this.end = end;
+            this.total = total;
+            this.validator = validator;
+            this.acceptRanges = acceptRanges;
+            this.filename = filename;
+            this.mime = mime;
+            this.content = content;
+        }
+
+        /** Discards the rest of the response. */
+        public void close() throws IOException {
+            content.close();
+        }
+    }
+
+    /** Issues requests for the resource. */
+    public interface Connector {
+        /**
+         * Requests the resource.
+         * @param start offset of the first byte
+         * @param end offset of the last byte (inclusive), -1 for the end of the resource
+         * @param validator if not null, the whole resource must be sent if it has changed
+         */
+        Response open(long start, long end, String validator) throws IOException;
+    }
+
+    /** Thrown when a download can't be resumed (e.g. resource changed). */
+    public static class ResumeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ResumeException(String detail) {
+            super(detail);
+        }
+    }
+
+    /** Partial download state. */
+    static final class State {
+        String url;
+        String validator;
+        long total;
+        String filename;
+        String mime;
+        long[] starts;
+        long[] ends;
+        long[] positions;
+
+        State(String url, Response response, int segments) {
+            this.url = url;
+            this.validator = response.validator;
+            this.total = response.total;
+            this.filename = response.filename;
+            this.mime = response.mime;
+
+            starts = new long[segments];
+            ends = new long[segments];
+            positions = new long[segments];
+            if (segments == 1) {
+                ends[0] = total > 0 ? total - 1 : -1;
+            }
+            else {
+                long size = total / segments;
+                for (int i = 0; i < segments; i++) {
+                    starts[i] = positions[i] = i * size;
+                    ends[i] = (i == segments - 1) ? total - 1 : (i + 1) * size - 1;
+                }
+            }
+        }
+
+        private State() {
+        }
+
+        boolean isComplete(int segment) {
+            return ends[segment] >= 0 && positions[segment] > ends[segment];
+        }
+
+        int firstIncomplete() {
+            for (int i = 0; i < positions.length; i++) {
+                if (!isComplete(i))
+                    return i;
+            }
+            return -1;
+        }
+
+        long getDownloaded() {
+            long count = 0;
+            for (int i = 0; i < positions.length; i++)
+                count += positions[i] - starts[i];
+            return count;
+        }
+
+        synchronized void save(File file) throws IOException {
+            Properties p = new Properties();
+            p.setProperty("url", url);
+            if (validator != null)
+                p.setProperty("validator", validator);
+            p.setProperty("total", String.valueOf(total));
+            if (filename != null)
+                p.setProperty("filename", filename);
+            if (mime != null)
+                p.setProperty("mime", mime);
+            p.setProperty("segments", String.valueOf(positions.length));
+            for (int i = 0; i < positions.length; i++) {
+                p.setProperty("start." + i, String.valueOf(starts[i]));
+                p.setProperty("end." + i, String.valueOf(ends[i]));
+                p.setProperty("position." + i, String.valueOf(positions[i]));
+            }
+
+            File temp = new File(file.getPath() + ".new");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                p.store(out, null);
+                out.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+            if (!temp.renameTo(file))
+                throw new IOException("unable to save download state");
+        }
+
+        /** Loads a saved state, returning null if not found or invalid. */
+        static State load(File file) {
+            if (!file.isFile())
+                return null;
+
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                Properties p = new Properties();
+                p.load(in);
+
+                State s = new State();
+                s.url = p.getProperty("url");
+                s.validator = p.getProperty("validator");
+                s.total = Long.parseLong(p.getProperty("total"));
+                s.filename = p.getProperty("filename");
+                s.mime = p.getProperty("mime");
+                int segments = Integer.parseInt(p.getProperty("segments"));
+                s.starts = new long[segments];
+                s.ends = new long[segments];
+                s.positions = new long[segments];
+                for (int i = 0; i < segments; i++) {
+                    s.starts[i] = Long.parseLong(p.getProperty("start." + i));
+                    s.ends[i] = Long.parseLong(p.getProperty("end." + i));
+                    s.positions[i] = Long.parseLong(p.getProperty("position." + i));
+                }
+                return s.url != null ? s : null;
+            }
+            catch (Exception e) {
+                return null;
+            }
+            finally {
+                try {
+                    if (in != null)
+                        in.close();
+                }
+                catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private final Connector mConnector;
+    private final String mUrl;
+    private final File mPartFile;
+    private final File mStateFile;
+    private final DownloadListener mListener;
+
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mRetryDelay = DEFAULT_RETRY_DELAY;
+    private int mSegments = 1;
+    private RateLimiter mLimiter;
+
+    private State mState;
+    /** Response from {@link #start()}, used by the first incomplete segment. */
+    private Response mFirstResponse;
+    private final List<ResumingInputStream> mStreams = new ArrayList<ResumingInputStream>();
+    private final AtomicLong mTransferred = new AtomicLong();
+    private File mDestination;
+
+    /**
+     * Creates a new download.
+     * @param partFile partial data file
+     * @param stateFile partial download state file
+     */
+    public ResumableDownload(Connector connector, String url, File partFile,
+            File stateFile, DownloadListener listener) {
+        mConnector = connector;
+        mUrl = url;
+        mPartFile = partFile;
+        mStateFile = stateFile;
+        mListener = listener;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        mRetryDelay = retryDelay;
+    }
+
+    /** Sets the number of concurrent requests for large files. */
+    public void setSegments(int segments) {
+        mSegments = Math.max(1, segments);
+    }
+
+    /** Limits the transfer rate (shared by all segments). */
+    public void setRateLimiter(RateLimiter limiter) {
+        mLimiter = limiter;
+    }
+
+    /**
+     * Contacts the server, resuming a previous download if possible.
+     * File name, MIME type and length are available after this call.
+     */
+    public void start() throws IOException {
+        Response first = null;
+
+        State state = State.load(mStateFile);
+        if (state != null && mUrl.equals(state.url) && mPartFile.isFile()) {
+            int segment = state.firstIncomplete();
+            if (segment >= 0) {
+                Response response = mConnector.open(state.positions[segment],
+                    state.ends[segment], state.validator);
+                if (response.status == HTTP_PARTIAL_CONTENT &&
+                        response.start == state.positions[segment]) {
+                    mState = state;
+                    mFirstResponse = response;
+                    return;
+                }
+
+                // resource changed or ranges not supported anymore
+                if (response.status == HTTP_OK)
+                    first = response;
+                else
+                    response.close();
+            }
+            else if (mPartFile.length() == state.total) {
+                // all data was downloaded already (e.g. the file could not be moved)
+                mState = state;
+                return;
+            }
+        }
+
+        // start over
+        discard();
+        if (first == null)
+            first = mConnector.open(0, mSegments > 1 ? FIRST_RANGE_SIZE - 1 : -1, null);
+
+        boolean parallel = mSegments > 1 && first.status == HTTP_PARTIAL_CONTENT &&
+            first.validator != null && first.total >= PARALLEL_THRESHOLD;
+        mState = new State(mUrl, first, parallel ? mSegments : 1);
+        mFirstResponse = first;
+    }
+
+    public String getFilename() {
+        return mState.filename;
+    }
+
+    public String getMime() {
+        return mState.mime;
+    }
+
+    public long getLength() {
+        return mState.total;
+    }
+
+    /** Downloads the missing data and moves the complete file to the destination. */
+    public void download(File destination) throws IOException {
+        mDestination = destination;
+        mState.save(mStateFile);
+
+        mListener.start(mUrl, destination, mState.total);
+        mTransferred.set(mState.getDownloaded());
+
+        List<Integer> pending = new ArrayList<Integer>();
+        for (int i = 0; i < mState.positions.length; i++) {
+            if (!mState.isComplete(i))
+                pending.add(i);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+        try {
+            if (mState.positions.length > 1 && file.length() < mState.total)
+                file.setLength(mState.total);
+        }
+        finally {
+            file.close();
+        }
+
+        try {
+            if (pending.size() == 1) {
+                fetch(pending.get(0));
+            }
+            else if (pending.size() > 1) {
+                fetchParallel(pending);
+            }
+        }
+        finally {
+            closeFirstResponse();
+            mState.save(mStateFile);
+        }
+
+        // download completed
+        if (destination.exists())
+            destination.delete();
+        if (!mPartFile.renameTo(destination))
+            throw new IOException("unable to move downloaded file");
+        mStateFile.delete();
+    }
+
+    /** Stops the download, keeping the partial data. */
+    public void abort() {
+        synchronized (mStreams) {
+            for (ResumingInputStream in : mStreams) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+        closeFirstResponse();
+    }
+
+    /** Deletes any partial data. */
+    public void discard() {
+        mPartFile.delete();
+        mStateFile.delete();
+    }
+
+    private void closeFirstResponse() {
+        Response response;
+        synchronized (this) {
+            response = mFirstResponse;
+            mFirstResponse = null;
+        }
+        if (response != null) {
+            try {
+                response.close();
+            }
+            catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private synchronized Response takeFirstResponse(int segment) {
+        Response response = mFirstResponse;
+        if (response != null && response.start == mState.positions[segment]) {
+            mFirstResponse = null;
+            return response;
+        }
+        return null;
+    }
+
+    private void fetchParallel(List<Integer> segments) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(segments.size());
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+        try {
+            for (final Integer segment : segments) {
+                completion.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        fetch(segment);
+                        return null;
+                    }
+                });
+            }
+
+            for (int i = 0; i < segments.size(); i++) {
+                try {
+                    completion.take().get();
+                }
+                catch (ExecutionException e) {
+                    // stop the other requests
+                    abort();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    IOException ie = new IOException("download error");
+                    ie.initCause(cause);
+                    throw ie;
+                }
+                catch (InterruptedException e) {
+                    abort();
+                    throw new InterruptedIOException("download interrupted");
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Downloads the missing part of a segment. */
+    private void fetch(int segment) throws IOException {
+        long position;
+        long end;
+        synchronized (mState) {
+            position = mState.positions[segment];
+            end = mState.ends[segment];
+        }
+
+        ResumingInputStream in = new ResumingInputStream(mConnector, takeFirstResponse(segment),
+            position, end, mState.validator, mMaxRetries, mRetryDelay);
+        synchronized (mStreams) {
+            mStreams.add(in);
+        }
+
+        RandomAccessFile out = new RandomAccessFile(mPartFile, "rw");
+        try {
+            out.seek(position);
+            byte[] buf = new byte[BUFFER_SIZE];
+            long checkpoint = 0;
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                if (mLimiter != null)
+                    mLimiter.acquire(len);
+
+                out.write(buf, 0, len);
+
+                synchronized (mState) {
+                    mState.positions[segment] += len;
+                }
+                checkpoint += len;
+                if (checkpoint >= CHECKPOINT_SIZE) {
+                    // make sure data is on disk before saving state
+                    out.getFD().sync();
+                    mState.save(mStateFile);
+                    checkpoint = 0;
+                }
+
+                publishProgress(len);
+            }
+
+            if (end < 0) {
+                // unknown length: end of data is end of file
+                synchronized (mState) {
+                    mState.ends[segment] = mState.positions[segment] - 1;
+                    mState.total = mState.positions[segment];
+                }
+            }
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+            in.close();
+            synchronized (mStreams) {
+                mStreams.remove(in);
+            }
+        }
+    }
+
+    private void publishProgress(long add) {
+        // segments report progress concurrently: keep it in order
+        synchronized (mListener) {
+            mListener.progress(mUrl, mDestination, mTransferred.addAndGet(add));
+        }
+    }
+
+    /**
+     * Returns a stream reading a resource from the given response, which
+     * reconnects with ranged requests if the connection drops.
+     */
+    public static InputStream openStream(Connector connector, Response response,
+            int maxRetries, long retryDelay) {
+        long end = response.total > 0 ? response.total - 1 : -1;
+        return new ResumingInputStream(connector, response, response.start, end,
+            response.validator, maxRetries, retryDelay);
+    }
+
+    /** An input stream reconnecting with ranged requests when data stops. */
+    static final class ResumingInputStream extends InputStream {
+        private final Connector mConnector;
+        private final long mEnd;
+        private final String mValidator;
+        private final int mMaxRetries;
+        private final long mRetryDelay;
+
+        private volatile Response mResponse;
+        private volatile boolean mClosed;
+        private long mPosition;
+        private int mRetries;
+
+        ResumingInputStream(Connector connector, Response response, long position,
+                long end, String validator, int maxRetries, long retryDelay) {
+            mConnector = connector;
+            mResponse = response;
+            mPosition = position;
+            mEnd = end;
+            mValidator = validator;
+            mMaxRetries = maxRetries;
+            mRetryDelay = retryDelay;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int len = read(b, 0, 1);
+            return (len > 0) ? (b[0] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            while (true) {
+                if (mClosed)
+                    throw new InterruptedIOException("stream closed");
+                if (mEnd >= 0 && mPosition > mEnd)
+                    return -1;
+
+                int max = (mEnd >= 0) ? (int) Math.min(len, mEnd - mPosition + 1) : len;
+                try {
+                    Response response = mResponse;
+                    if (response == null)
+                        response = reconnect();
+
+                    int count = response.content.read(b, off, max);
+                    if (count < 0) {
+                        // unknown length: trust end of data
+                        if (mEnd < 0)
+                            return -1;
+
+                        // requested range was shorter: ask for the rest
+                        if (response.end >= 0 && mPosition > response.end) {
+                            closeResponse();
+                            continue;
+                        }
+
+                        throw new EOFException("premature end of data");
+                    }
+
+                    mPosition += count;
+                    return count;
+                }
+                catch (InterruptedIOException e) {
+                    throw e;
+                }
+                catch (ResumeException e) {
+                    throw e;
+                }
+                catch (IOException e) {
+                    closeResponse();
+                    if (mClosed || ++mRetries > mMaxRetries)
+                        throw e;
+
+                    try {
+                        Thread.sleep(mRetryDelay);
+                    }
+                    catch (InterruptedException ie) {
+                        throw new InterruptedIOException("download interrupted");
+                    }
+                }
+            }
+        }
+
+        private Response reconnect() throws IOException {
+            Response response = mConnector.open(mPosition, mEnd, mValidator);
+            if (response.status != HTTP_PARTIAL_CONTENT || response.start != mPosition) {
+                response.close();
+                throw new ResumeException("unable to resume download at " + mPosition);
+            }
+            mResponse = response;
+            return response;
+        }
+
+        private void closeResponse() {
+            Response response = mResponse;
+            mResponse = null;
+            if (response != null) {
+                try {
+                    response.close();
+                }
+                catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            closeResponse();
+        }
+    }
+
+}
@@ -18,7 +18,6 @@
 
 package org.kontalk.crypto;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,12 +43,14 @@ import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPOnePassSignature;
 import org.spongycastle.openpgp.PGPOnePassSignatureList;
 import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.operator.KeyFingerPrintCalculator;
 import org.spongycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
 import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
@@ -74,6 +75,8 @@ import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_VERIFICATION
 
 /**
  * PGP coder implementation.
+ * Keys, user IDs and signer data are resolved once at construction time, so
+ * instances can be reused for any number of messages (and by any thread).
  * @author Daniele Ricci
  */
 public class PGPCoder extends Coder {
@@ -84,26 +87,147 @@ public class PGPCoder extends Coder {
     /** Buffer size. It should always be a power of 2. */
     private static final int BUFFER_SIZE = 1 << 8;
 
+    /** Shared random generator (seeding is expensive). */
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+
+    /** Encryption buffers, reused by each thread for every message. */
+    private static final class Buffers {
+        final byte[] encrypted = new byte[BUFFER_SIZE];
+        final byte[] compressed = new byte[BUFFER_SIZE];
+        final byte[] literal = new byte[BUFFER_SIZE];
+        final byte[] data = new byte[BUFFER_SIZE];
+        final TextEncoder encoder = new TextEncoder(BUFFER_SIZE);
+    }
+
+    private static final ThreadLocal<Buffers> sBuffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /** Writes literal data while updating the signature. */
+    private static final class SigningOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final PGPSignatureGenerator mSignature;
+
+        public SigningOutputStream(OutputStream out, PGPSignatureGenerator signature) {
+            mOut = out;
+            mSignature = signature;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mSignature.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mSignature.update(b, off, len);
+        }
+    }
+
     private final EndpointServer mServer;
     private final PersonalKey mKey;
 
+    /** Our full user ID. */
+    private final String mUserId;
+
     // either one of these two has a value
 
     private final PGPPublicKeyRing[] mRecipients;
     private final PGPPublicKeyRing mSender;
 
+    /* Encryption data. */
+    private final PGPPublicKey[] mEncryptionKeys;
+    private final String mRecipientsUserId;
+    private final BcPGPDataEncryptorBuilder mEncryptor;
+    private final BcPGPContentSignerBuilder mSignerBuilder;
+    private final PGPSignatureSubpacketVector mSignerSubpackets;
+
+    /* Decryption data. */
+    private final PGPPublicKey mSenderKey;
+    private final String mSenderUserId;
+
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
         mServer = server;
         mKey = key;
+        mUserId = key.getUserId(server.getNetwork());
         mRecipients = recipients;
         mSender = null;
+
+        mEncryptionKeys = new PGPPublicKey[recipients.length];
+        StringBuilder to = new StringBuilder();
+        for (int i = 0; i < recipients.length; i++) {
+            mEncryptionKeys[i] = PGP.getEncryptionKey(recipients[i]);
+            to.append(PGP.getUserId(PGP.getMasterKey(recipients[i]), server.getNetwork()))
+                .append("; ");
+        }
+        mRecipientsUserId = to.toString();
+
+        mEncryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192)
+            .setWithIntegrityPacket(true)
+            .setSecureRandom(sSecureRandom);
+
+        mSignerBuilder = new BcPGPContentSignerBuilder(key.getEncryptKeyPair()
+            .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1)
+            .setSecureRandom(sSecureRandom);
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, mUserId);
+        mSignerSubpackets = spGen.generate();
+
+        mSenderKey = null;
+        mSenderUserId = null;
     }
 
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing sender) {
         mServer = server;
         mKey = key;
+        mUserId = key.getUserId(server.getNetwork());
         mRecipients = null;
         mSender = sender;
+
+        mEncryptionKeys = null;
+        mRecipientsUserId = null;
+        mEncryptor = null;
+        mSignerBuilder = null;
+        mSignerSubpackets = null;
+
+        if (sender != null) {
+            mSenderKey = PGP.getEncryptionKey(sender);
+            mSenderUserId = PGP.getUserId(PGP.getMasterKey(sender), server.getNetwork());
+        }
+        else {
+            mSenderKey = null;
+            mSenderUserId = null;
+        }
+    }
+
+    public PersonalKey getPersonalKey() {
+        return mKey;
+    }
+
+    public EndpointServer getServer() {
+        return mServer;
+    }
+
+    /** Creates the encrypted data generator for a new message. */
+    private PGPEncryptedDataGenerator createEncryptedDataGenerator() {
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(mEncryptor);
+        for (PGPPublicKey key : mEncryptionKeys)
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key));
+        return encGen;
+    }
+
+    /** Creates the signature generator for a new message. */
+    private PGPSignatureGenerator createSignatureGenerator() throws PGPException {
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator(mSignerBuilder);
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getEncryptKeyPair().getPrivateKey());
+        sigGen.setUnhashedSubpackets(mSignerSubpackets);
+        return sigGen;
     }
 
     @Override
@@ -125,13 +249,9 @@ public class PGPCoder extends Coder {
     @Override
     public byte[] encryptStanza(CharSequence xml) throws GeneralSecurityException {
         try {
-            // prepare XML wrapper
-            final String xmlWrapper =
-                "<xmpp xmlns='jabber:client'>" +
-                    xml +
-                "</xmpp>";
-
-            return encryptData(XMPPUtils.XML_XMPP_TYPE, xmlWrapper.toString());
+            // XML wrapper is streamed around the stanza
+            return encryptData(XMPPUtils.XML_XMPP_TYPE,
+                "<xmpp xmlns='jabber:client'>", xml, "</xmpp>");
         }
 
         catch (PGPException e) {
@@ -143,47 +263,43 @@ public class PGPCoder extends Coder {
         }
     }
 
-    private byte[] encryptData(String mime, CharSequence data)
+    /** Encrypts the given parts of text, concatenated, as a Message/CPIM body. */
+    private byte[] encryptData(String mime, CharSequence... body)
             throws PGPException, IOException, SignatureException {
 
-        String from = mKey.getUserId(mServer.getNetwork());
-        StringBuilder to = new StringBuilder();
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            to.append(PGP.getUserId(PGP.getMasterKey(rcpt), mServer.getNetwork()))
-                .append("; ");
-
         // secure the message against the most basic attacks using Message/CPIM
-        CPIMMessage cpim = new CPIMMessage(from, to.toString(), new Date(), mime, data);
-        byte[] plainText = cpim.toByteArray();
+        // the body comes last: only the headers are built here, the body is
+        // streamed after them instead of being copied in the CPIM text
+        String cpimHeaders = new CPIMMessage(mUserId, mRecipientsUserId,
+            new Date(), mime, "").toString();
+
+        int length = cpimHeaders.length();
+        for (CharSequence part : body)
+            length += part.length();
+
+        // compressed data is usually smaller than the text: room for keys
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + BUFFER_SIZE * 4);
+        encryptData(out, cpimHeaders, body);
+        return out.toByteArray();
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
+    /** Encrypts and signs the given headers and body directly into a stream. */
+    private void encryptData(OutputStream out, CharSequence headers, CharSequence[] body)
+            throws PGPException, IOException, SignatureException {
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
+        Buffers buffers = sBuffers.get();
 
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+        // setup data encryptor & generator
+        PGPEncryptedDataGenerator encGen = createEncryptedDataGenerator();
 
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+        OutputStream encryptedOut = encGen.open(out, buffers.encrypted);
 
         // setup compressed data generator
         PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        OutputStream compressedOut = compGen.open(encryptedOut, buffers.compressed);
 
         // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getEncryptKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getEncryptKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
+        PGPSignatureGenerator sigGen = createSignatureGenerator();
 
         sigGen.generateOnePassVersion(false)
             .encode(compressedOut);
@@ -195,26 +311,19 @@ public class PGPCoder extends Coder {
             PGPLiteralData.BINARY,
             "",
             new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
+            buffers.literal);
+
+        // encode text, sign, compress, encrypt and write to the "out" stream
+        OutputStream signingOut = new SigningOutputStream(literalOut, sigGen);
+        buffers.encoder.encode(headers, signingOut);
+        for (CharSequence part : body)
+            buffers.encoder.encode(part, signingOut);
 
-        in.close();
         literalGen.close();
         // Generate the signature, compress, encrypt and write to the "out" stream
         sigGen.generate().encode(compressedOut);
         compGen.close();
         encGen.close();
-
-        return out.toByteArray();
     }
 
     @SuppressWarnings("unchecked")
@@ -277,7 +386,7 @@ public class PGPCoder extends Coder {
                 if (message instanceof PGPOnePassSignatureList) {
                     if (verify && mSender != null) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
-                        ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getEncryptionKey(mSender));
+                        ops.init(new BcPGPContentVerifierBuilderProvider(), mSenderKey);
                     }
 
                     message = pgpFact.nextObject();
@@ -372,8 +481,7 @@ public class PGPCoder extends Coder {
                             }
 
                             // check that the recipient matches the full uid of the personal key
-                            String myUid = mKey.getUserId(mServer.getNetwork());
-                            if (!myUid.equals(msg.getTo()) && errors != null) {
+                            if (!mUserId.equals(msg.getTo()) && errors != null) {
                                 errors.add(new DecryptException(
                                     DECRYPT_EXCEPTION_INVALID_RECIPIENT,
                                     "Destination does not match personal key"));
@@ -381,8 +489,7 @@ public class PGPCoder extends Coder {
 
                             // check that the sender matches the full uid of the sender's key
                             if (mSender != null) {
-                                String otherUid = PGP.getUserId(PGP.getMasterKey(mSender), mServer.getNetwork());
-                                if (!otherUid.equals(msg.getFrom()) && errors != null) {
+                                if (!mSenderUserId.equals(msg.getFrom()) && errors != null) {
                                     errors.add(new DecryptException(
                                         DECRYPT_EXCEPTION_INVALID_SENDER,
                                         "Sender does not match sender's key"));
@@ -460,30 +567,17 @@ public class PGPCoder extends Coder {
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
         try {
             // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
-
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+            PGPEncryptedDataGenerator encGen = createEncryptedDataGenerator();
 
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
+            Buffers buffers = sBuffers.get();
+            OutputStream encryptedOut = encGen.open(output, buffers.encrypted);
 
             // setup compressed data generator
             PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+            OutputStream compressedOut = compGen.open(encryptedOut, buffers.compressed);
 
             // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getEncryptKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getEncryptKeyPair().getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
+            PGPSignatureGenerator sigGen = createSignatureGenerator();
 
             sigGen.generateOnePassVersion(false)
                 .encode(compressedOut);
@@ -495,12 +589,12 @@ public class PGPCoder extends Coder {
                 PGPLiteralData.BINARY,
                 "",
                 new Date(),
-                new byte[BUFFER_SIZE]);
+                buffers.literal);
 
             // read the "in" stream, compress, encrypt and write to the "out" stream
             // this must be done if clear data is bigger than the buffer size
             // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] buf = buffers.data;
             int len;
             while ((len = input.read(buf)) > 0) {
                 literalOut.write(buf, 0, len);
@@ -575,9 +669,9 @@ public class PGPCoder extends Coder {
 
                 PGPOnePassSignature ops = null;
                 if (message instanceof PGPOnePassSignatureList) {
-                    if (verify) {
+                    if (verify && mSender != null) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
-                        ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getEncryptionKey(mSender));
+                        ops.init(new BcPGPContentVerifierBuilderProvider(), mSenderKey);
                     }
 
                     message = pgpFact.nextObject();
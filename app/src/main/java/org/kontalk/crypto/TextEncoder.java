@@ -0,0 +1,90 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * Encodes text to UTF-8 directly into an output stream through a fixed size
+ * buffer, without creating a byte array copy of the whole text.
+ * Instances are not thread-safe but can be reused.
+ * @author Daniele Ricci
+ */
+class TextEncoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final CharsetEncoder mEncoder;
+    private final ByteBuffer mBuffer;
+
+    public TextEncoder(int bufferSize) {
+        mEncoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Writes the given text to the stream.
+     * @return the number of bytes written
+     */
+    public long encode(CharSequence text, OutputStream out) throws IOException {
+        CharBuffer in = CharBuffer.wrap(text);
+        long count = 0;
+
+        mEncoder.reset();
+        CoderResult result;
+        do {
+            result = mEncoder.encode(in, mBuffer, true);
+            checkResult(result);
+            count += drain(out);
+        } while (result.isOverflow());
+
+        do {
+            result = mEncoder.flush(mBuffer);
+            checkResult(result);
+            count += drain(out);
+        } while (result.isOverflow());
+
+        return count;
+    }
+
+    private static void checkResult(CoderResult result) throws CharacterCodingException {
+        if (result.isError())
+            result.throwException();
+    }
+
+    private int drain(OutputStream out) throws IOException {
+        int len = mBuffer.position();
+        if (len > 0)
+            out.write(mBuffer.array(), 0, len);
+        mBuffer.clear();
+        return len;
+    }
+
+}
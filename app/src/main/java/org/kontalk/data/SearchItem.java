@@ -18,11 +18,13 @@
 
 package org.kontalk.data;
 
-import org.kontalk.provider.MyMessages.Messages;
+import java.util.regex.Pattern;
+
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 
 
 /**
@@ -30,27 +32,29 @@ import android.database.Cursor;
  * @author Daniele Ricci
  */
 public class SearchItem {
-    public static final String[] SEARCH_PROJECTION = {
-        Fulltext._ID + " AS " + Messages._ID,
-        Fulltext.THREAD_ID,
-        Fulltext.CONTENT
-    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_THREAD_ID = 1;
+    private static final int COLUMN_PEER = 2;
+    private static final int COLUMN_CONTENT = 3;
+    private static final int COLUMN_SNIPPET = 4;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
 
     protected final long mId;
     protected final long mThreadId;
-    protected String mUserId;
+    protected final String mUserId;
     protected final String mText;
+    protected final String mSnippet;
     protected Contact mContact;
 
-    private SearchItem(Context context, long id, long threadId, String text) {
+    private SearchItem(Context context, long id, long threadId, String userId, String text, String snippet) {
         mId = id;
         mThreadId = threadId;
+        mUserId = userId;
         mText = text;
-        Conversation conv = Conversation.loadFromId(context, threadId);
-        if (conv != null) {
-            mUserId = conv.getRecipient();
-            mContact = conv.getContact();
-        }
+        mSnippet = snippet;
+        if (userId != null)
+            mContact = Contact.findByUserId(context, userId);
     }
 
     public long getMessageId() {
@@ -69,21 +73,57 @@ public class SearchItem {
         return mText;
     }
 
+    /**
+     * Returns the matching part of the text. Matched terms are enclosed in
+     * {@link Fulltext#SNIPPET_START} and {@link Fulltext#SNIPPET_END}.
+     */
+    public String getSnippet() {
+        return mSnippet;
+    }
+
     public Contact getContact() {
         return mContact;
     }
 
     public static SearchItem fromCursor(Context context, Cursor cursor) {
-        long id = cursor.getLong(0);
-        long threadId = cursor.getLong(1);
-        String text = cursor.getString(2);
-        return new SearchItem(context, id, threadId, text);
+        return new SearchItem(context,
+            cursor.getLong(COLUMN_ID),
+            cursor.getLong(COLUMN_THREAD_ID),
+            cursor.getString(COLUMN_PEER),
+            cursor.getString(COLUMN_CONTENT),
+            cursor.getString(COLUMN_SNIPPET));
     }
 
-    public static Cursor query(Context context, String query) {
-        // TODO enhanced queries?
-        return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query + "*").build(),
-                SEARCH_PROJECTION, null, null, null);
+    /**
+     * Queries a page of search results, most relevant first. A page can be
+     * shorter than the requested limit: only an empty page marks the end of
+     * the results.
+     */
+    public static Cursor query(Context context, String query, int limit, int offset) {
+        return context.getContentResolver().query(getUri(query, limit, offset),
+            null, null, null, null);
+    }
+
+    /** Returns the uri of a page of search results (see {@link #query}). */
+    public static Uri getUri(String query, int limit, int offset) {
+        return Fulltext.getSearchUri(buildPattern(query), limit, offset);
+    }
+
+    /** Converts user input to a full text pattern matching all words as prefixes. */
+    static String buildPattern(String query) {
+        StringBuilder pattern = new StringBuilder();
+        for (String word : WHITESPACE.split(query.replace("\"", " ").trim())) {
+            if (word.length() == 0)
+                continue;
+
+            if (pattern.length() > 0)
+                pattern.append(' ');
+            pattern.append('"').append(word);
+            // a single character would match too many words
+            if (word.length() > 1)
+                pattern.append('*');
+            pattern.append('"');
+        }
+        return pattern.toString();
     }
 }
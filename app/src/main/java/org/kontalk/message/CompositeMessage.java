@@ -381,7 +381,22 @@ public class CompositeMessage {
         handler.cancelOperation(token);
         handler.startQuery(token, null,
                 ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId),
-                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+                MESSAGE_LIST_PROJECTION, null, null, Messages.PAGED_SORT_ORDER);
+    }
+
+    /**
+     * Starts a query for a page of messages in a conversation.
+     * @param limit maximum number of messages to load
+     * @param beforeTimestamp timestamp of the oldest message already loaded
+     * @param beforeId id of the oldest message already loaded, 0 to load the most recent messages
+     */
+    public static void startQuery(AsyncQueryHandler handler, int token, long threadId,
+            int limit, long beforeTimestamp, long beforeId) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null,
+                Conversations.getPageUri(threadId, limit, beforeTimestamp, beforeId),
+                MESSAGE_LIST_PROJECTION, null, null, Messages.PAGED_SORT_ORDER);
     }
 
     /** A sample text content from class name and mime type. */
@@ -368,7 +368,7 @@ public abstract class LegacyAbstractMessage<T> {
         handler.cancelOperation(token);
         handler.startQuery(token, null,
                 ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId),
-                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+                MESSAGE_LIST_PROJECTION, null, null, Messages.PAGED_SORT_ORDER);
     }
 
     public static String buildMediaFilename(LegacyAbstractMessage msg) {
@@ -0,0 +1,121 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+
+/**
+ * Coalesces content change notifications.
+ * URIs are collected for a short time window after the first change and
+ * then each distinct URI is notified only once, so a burst of writes (e.g.
+ * a bunch of receipts) triggers a single requery in observers.
+ * @author Daniele Ricci
+ */
+public class ChangeNotifier {
+
+    /** Default coalescing window. */
+    public static final int DEFAULT_WINDOW = 50;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mWindow;
+
+    /** URIs waiting to be notified. */
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+
+    /** Notifications requested by the provider. */
+    private long mRequested;
+    /** Notifications actually sent to the content resolver. */
+    private long mDispatched;
+
+    private final Runnable mFlushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public ChangeNotifier(ContentResolver resolver, Looper looper, long window) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+        mWindow = window;
+    }
+
+    /** Queues a change notification for the given URI. */
+    public void notifyChange(Uri uri) {
+        boolean schedule;
+        synchronized (mPending) {
+            mRequested++;
+            schedule = mPending.isEmpty();
+            mPending.add(uri);
+        }
+
+        // first change in this window: schedule the flush
+        if (schedule)
+            mHandler.postDelayed(mFlushTask, mWindow);
+    }
+
+    /** Sends all pending notifications immediately. */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushTask);
+
+        List<Uri> uris;
+        synchronized (mPending) {
+            if (mPending.isEmpty())
+                return;
+
+            uris = new ArrayList<Uri>(mPending);
+            mPending.clear();
+            mDispatched += uris.size();
+        }
+
+        for (Uri uri : uris)
+            mResolver.notifyChange(uri, null);
+    }
+
+    /** Returns the number of notifications requested so far. */
+    public long getRequestedCount() {
+        synchronized (mPending) {
+            return mRequested;
+        }
+    }
+
+    /** Returns the number of notifications actually dispatched so far. */
+    public long getDispatchedCount() {
+        synchronized (mPending) {
+            return mDispatched;
+        }
+    }
+
+    /** Returns the number of notifications suppressed by coalescing. */
+    public long getSuppressedCount() {
+        synchronized (mPending) {
+            return mRequested - mDispatched - mPending.size();
+        }
+    }
+
+}
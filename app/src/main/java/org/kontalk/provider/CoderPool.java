@@ -0,0 +1,128 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PersonalKey;
+
+
+/**
+ * A bounded pool of ready to use {@link PGPCoder}s.
+ * Coders are pooled by server, personal key and peer key fingerprints, so a
+ * changed key will simply cause a new coder to be created. The pool must be
+ * cleared whenever cached keys are invalidated (e.g. a trust change), since a
+ * pooled coder still holds the keys it was built with.
+ * @author Daniele Ricci
+ */
+class CoderPool {
+
+    /** Default maximum number of coders. */
+    public static final int DEFAULT_SIZE = 32;
+
+    private final int mMaxSize;
+
+    /** Coders by key (access order). */
+    private final LinkedHashMap<String, PGPCoder> mCoders;
+
+    private long mHits;
+    private long mMisses;
+
+    public CoderPool(final int maxSize) {
+        mMaxSize = maxSize;
+        mCoders = new LinkedHashMap<String, PGPCoder>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PGPCoder> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    private static String key(char type, EndpointServer server, PersonalKey key, PGPPublicKeyRing... peers) {
+        StringBuilder b = new StringBuilder()
+            .append(type)
+            .append(':')
+            .append(server.getNetwork())
+            .append(':')
+            .append(key.getFingerprint());
+        for (PGPPublicKeyRing ring : peers) {
+            b.append(':');
+            if (ring != null)
+                b.append(PGP.getFingerprint(PGP.getMasterKey(ring)));
+        }
+        return b.toString();
+    }
+
+    private synchronized PGPCoder get(String key, EndpointServer server, PersonalKey personalKey) {
+        PGPCoder coder = mCoders.get(key);
+        // personal key might have been reloaded
+        if (coder != null && coder.getPersonalKey() == personalKey && server.equals(coder.getServer())) {
+            mHits++;
+            return coder;
+        }
+        mMisses++;
+        return null;
+    }
+
+    private synchronized void put(String key, PGPCoder coder) {
+        mCoders.put(key, coder);
+    }
+
+    /** Returns a coder for encrypting data for the given recipients. */
+    public PGPCoder getEncryptCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
+        String poolKey = key('e', server, key, recipients);
+        PGPCoder coder = get(poolKey, server, key);
+        if (coder == null) {
+            // create outside the lock: key resolution is not cheap
+            coder = new PGPCoder(server, key, recipients);
+            put(poolKey, coder);
+        }
+        return coder;
+    }
+
+    /** Returns a coder for decrypting data from the given sender (null if no key is available). */
+    public PGPCoder getDecryptCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing sender) {
+        String poolKey = key('d', server, key, sender);
+        PGPCoder coder = get(poolKey, server, key);
+        if (coder == null) {
+            coder = new PGPCoder(server, key, sender);
+            put(poolKey, coder);
+        }
+        return coder;
+    }
+
+    public synchronized void clear() {
+        mCoders.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+
+/**
+ * Background full text indexer.
+ * Message writes don't touch the full text table: triggers record the ids
+ * of changed messages in a change log, which is consumed by this indexer in
+ * batches. Each batch is a single operation of the database writer, so
+ * message writes are never delayed by more than one batch. The change log
+ * is persistent: pending work (including a full rebuild) is resumed after
+ * a restart.
+ * @author Daniele Ricci
+ */
+class FulltextIndexer {
+    private static final String TAG = FulltextIndexer.class.getSimpleName();
+
+    /** Default time to wait for more changes before indexing. */
+    public static final int DEFAULT_DELAY = 500;
+
+    /** Maximum number of messages indexed in a single transaction. */
+    static final int BATCH_SIZE = 100;
+
+    static final String TABLE_LOG = "fulltext_log";
+
+    /** Current time in milliseconds, in SQL. */
+    private static final String NOW_MILLIS =
+        "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /** Records a message in the change log (the oldest change is kept). */
+    private static String logChange(String row) {
+        return "INSERT OR IGNORE INTO " + TABLE_LOG + " (message_id, timestamp) " +
+            "VALUES (" + row + "._id, " + NOW_MILLIS + ")";
+    }
+
+    /** Ids of messages whose full text entry must be updated. */
+    static final String SCHEMA_LOG =
+        "CREATE TABLE " + TABLE_LOG + " (" +
+        "message_id INTEGER PRIMARY KEY, " +
+        "timestamp INTEGER NOT NULL" +
+        ")";
+
+    /** Logs new messages with some text. */
+    static final String TRIGGER_LOG_INSERT =
+        "CREATE TRIGGER fulltext_log_on_insert AFTER INSERT ON " + MessagesProvider.TABLE_MESSAGES +
+        " WHEN length(new.body_content) > 0" +
+        " BEGIN " + logChange("new") + "; END";
+
+    /** Logs messages whose text changed or was decrypted. */
+    static final String TRIGGER_LOG_UPDATE =
+        "CREATE TRIGGER fulltext_log_on_update AFTER UPDATE OF body_content, encrypted, thread_id ON " +
+        MessagesProvider.TABLE_MESSAGES +
+        " WHEN new.body_content IS NOT old.body_content OR new.encrypted IS NOT old.encrypted" +
+        " OR new.thread_id IS NOT old.thread_id" +
+        " BEGIN " + logChange("new") + "; END";
+
+    /** Logs deleted messages, so they will be removed from the index. */
+    static final String TRIGGER_LOG_DELETE =
+        "CREATE TRIGGER fulltext_log_on_delete AFTER DELETE ON " + MessagesProvider.TABLE_MESSAGES +
+        " WHEN length(old.body_content) > 0" +
+        " BEGIN " + logChange("old") + "; END";
+
+    /**
+     * Pending changes with the current message data (if it still exists).
+     * Incoming encrypted messages are indexed only after decryption.
+     */
+    static final String QUERY_PENDING =
+        "SELECT l.message_id, m.thread_id, m.body_content, " +
+        "m._id IS NOT NULL AND length(m.body_content) > 0 AND " +
+            "(m.direction = " + Messages.DIRECTION_OUT + " OR m.encrypted = 0) " +
+        "FROM " + TABLE_LOG + " l LEFT JOIN " + MessagesProvider.TABLE_MESSAGES +
+            " m ON m._id = l.message_id " +
+        "ORDER BY l.message_id LIMIT " + BATCH_SIZE;
+
+    /** Statements for a full rebuild (resumable, as it goes through the change log). */
+    static final String[] REBUILD = {
+        // stale entries will be deleted
+        "INSERT OR IGNORE INTO " + TABLE_LOG + " (message_id, timestamp) " +
+            "SELECT rowid, " + NOW_MILLIS + " FROM " + MessagesProvider.TABLE_FULLTEXT,
+        "INSERT OR IGNORE INTO " + TABLE_LOG + " (message_id, timestamp) " +
+            "SELECT _id, " + NOW_MILLIS + " FROM " + MessagesProvider.TABLE_MESSAGES +
+            " WHERE length(body_content) > 0",
+    };
+
+    private final GroupCommitWriter mWriter;
+    private final Handler mHandler;
+    private final long mDelay;
+
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    /** Number of changes indexed so far. */
+    private volatile long mIndexed;
+
+    private final Runnable mIndexTask = new Runnable() {
+        public void run() {
+            mScheduled.set(false);
+            try {
+                // one batch per transaction, so other writes can get through
+                int count;
+                do {
+                    count = indexBatch();
+                } while (count == BATCH_SIZE);
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "full text indexing failed", e);
+            }
+        }
+    };
+
+    public FulltextIndexer(GroupCommitWriter writer, Looper looper, long delay) {
+        mWriter = writer;
+        mHandler = new Handler(looper);
+        mDelay = delay;
+    }
+
+    /**
+     * Schedules indexing of pending changes. Can be called from any thread,
+     * also inside a write transaction: changes will be indexed after commit.
+     */
+    public void schedule() {
+        if (mScheduled.compareAndSet(false, true))
+            mHandler.postDelayed(mIndexTask, mDelay);
+    }
+
+    /** Schedules a full rebuild of the index. */
+    public void rebuild() {
+        mWriter.execute(new GroupCommitWriter.Operation<Void>() {
+            public Void execute(SQLiteDatabase db, List<Uri> notifications) {
+                for (String sql : REBUILD)
+                    db.execSQL(sql);
+                return null;
+            }
+        });
+        schedule();
+    }
+
+    /** Indexes a batch of pending changes. */
+    private int indexBatch() {
+        return mWriter.execute(new GroupCommitWriter.Operation<Integer>() {
+            public Integer execute(SQLiteDatabase db, List<Uri> notifications) {
+                int count = indexBatch(db);
+                if (count > 0) {
+                    mIndexed += count;
+                    notifications.add(Fulltext.CONTENT_URI);
+                }
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Indexes up to {@link #BATCH_SIZE} pending changes inside the current
+     * transaction.
+     * @return the number of processed changes
+     */
+    static int indexBatch(SQLiteDatabase db) {
+        Cursor c = db.rawQuery(QUERY_PENDING, null);
+        if (c.getCount() == 0) {
+            c.close();
+            return 0;
+        }
+
+        SQLiteStatement replace = db.compileStatement("INSERT OR REPLACE INTO " + MessagesProvider.TABLE_FULLTEXT + " " +
+            "(" + Fulltext._ID + ", " + Fulltext.THREAD_ID + ", " + Fulltext.CONTENT + ") VALUES (?, ?, ?)");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + MessagesProvider.TABLE_FULLTEXT + " WHERE " +
+            Fulltext._ID + " = ?");
+
+        long lastId = 0;
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                if (c.getInt(3) != 0) {
+                    replace.bindLong(1, lastId);
+                    replace.bindLong(2, c.getLong(1));
+                    // use the binary content converted to string
+                    replace.bindString(3, new String(c.getBlob(2)));
+                    replace.executeInsert();
+                }
+                else {
+                    delete.bindLong(1, lastId);
+                    delete.execute();
+                }
+                count++;
+            }
+        }
+        finally {
+            c.close();
+            replace.close();
+            delete.close();
+        }
+
+        // batch is ordered by id: everything up to the last id was indexed
+        db.delete(TABLE_LOG, "message_id <= " + lastId, null);
+        return count;
+    }
+
+    /** Returns the number of messages waiting to be indexed. */
+    public static long getPendingCount(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, TABLE_LOG);
+    }
+
+    /**
+     * Returns the age in milliseconds of the oldest change not yet indexed,
+     * or 0 if the index is up to date.
+     */
+    public static long getLag(SQLiteDatabase db) {
+        long oldest = DatabaseUtils.longForQuery(db,
+            "SELECT IFNULL(MIN(timestamp), 0) FROM " + TABLE_LOG, null);
+        return (oldest > 0) ? Math.max(0, System.currentTimeMillis() - oldest) : 0;
+    }
+
+    /** Returns the number of changes indexed so far. */
+    public long getIndexedCount() {
+        return mIndexed;
+    }
+
+}
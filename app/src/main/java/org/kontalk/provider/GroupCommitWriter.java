@@ -0,0 +1,242 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.annotation.TargetApi;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * A single database writer with group commit.
+ * Write operations can be submitted from any thread: they are queued and
+ * executed by a dedicated thread, which runs all operations found in the
+ * queue in a single transaction. If any operation of the group fails, the
+ * group is rolled back and its operations are executed again one by one, so
+ * that only the failing operation reports the error.
+ * Operations submitted from the writer thread itself (e.g. by
+ * {@link android.content.ContentProvider#applyBatch}) are executed inline
+ * in the current transaction.
+ * @author Daniele Ricci
+ */
+class GroupCommitWriter implements Runnable {
+    private static final String TAG = GroupCommitWriter.class.getSimpleName();
+
+    /** Maximum number of operations committed in a single transaction. */
+    private static final int MAX_GROUP_SIZE = 64;
+
+    /** A write operation. */
+    public interface Operation<T> {
+        /**
+         * Executes the operation. A transaction is already open.
+         * @param notifications URIs to be notified after commit
+         */
+        T execute(SQLiteDatabase db, List<Uri> notifications);
+    }
+
+    private static final class Task<T> {
+        private final Operation<T> mOperation;
+        private T mResult;
+        private RuntimeException mError;
+        private boolean mDone;
+
+        Task(Operation<T> operation) {
+            mOperation = operation;
+        }
+
+        void execute(SQLiteDatabase db, List<Uri> notifications) {
+            mResult = mOperation.execute(db, notifications);
+        }
+
+        synchronized void complete(RuntimeException error) {
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized T get() {
+            boolean interrupted = false;
+            while (!mDone) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    // the write can't be aborted anyway
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (mError != null)
+                throw mError;
+            return mResult;
+        }
+    }
+
+    private final SQLiteOpenHelper mHelper;
+    private final ChangeNotifier mNotifier;
+    private final BlockingQueue<Task<?>> mQueue = new LinkedBlockingQueue<Task<?>>();
+    private final Thread mThread;
+
+    /** Notifications of the transaction being executed (writer thread only). */
+    private List<Uri> mNotifications;
+
+    public GroupCommitWriter(SQLiteOpenHelper helper, ChangeNotifier notifier, String name) {
+        mHelper = helper;
+        mNotifier = notifier;
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Executes a write operation, waiting for its transaction to commit.
+     * @return the operation result
+     */
+    public <T> T execute(Operation<T> operation) {
+        // nested operation: run it inside the current transaction
+        if (Thread.currentThread() == mThread)
+            return operation.execute(mHelper.getWritableDatabase(), mNotifications);
+
+        Task<T> task = new Task<T>(operation);
+        mQueue.add(task);
+        return task.get();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        List<Task<?>> group = new ArrayList<Task<?>>(MAX_GROUP_SIZE);
+
+        while (true) {
+            try {
+                group.add(mQueue.take());
+            }
+            catch (InterruptedException e) {
+                // should never happen
+                continue;
+            }
+
+            // take everything that was queued in the meantime
+            mQueue.drainTo(group, MAX_GROUP_SIZE - 1);
+            commit(group);
+            group.clear();
+        }
+    }
+
+    private void commit(List<Task<?>> group) {
+        if (group.size() > 1) {
+            List<Uri> notifications = new ArrayList<Uri>();
+            RuntimeException error = executeGroup(group, notifications);
+            if (error == null) {
+                for (Task<?> task : group)
+                    task.complete(null);
+                dispatch(notifications);
+                return;
+            }
+
+            Log.v(TAG, "group commit failed, executing " + group.size() + " operations separately");
+        }
+
+        for (Task<?> task : group) {
+            List<Uri> notifications = new ArrayList<Uri>();
+            RuntimeException error = executeGroup(Collections.<Task<?>>singletonList(task), notifications);
+            task.complete(error);
+            if (error == null)
+                dispatch(notifications);
+        }
+    }
+
+    /**
+     * Executes the given tasks in a single transaction.
+     * @return the error that caused the rollback, or null on commit
+     */
+    private RuntimeException executeGroup(List<Task<?>> group, List<Uri> notifications) {
+        SQLiteDatabase db = null;
+        boolean success = false;
+        RuntimeException error = null;
+        mNotifications = notifications;
+
+        try {
+            db = mHelper.getWritableDatabase();
+            beginTransaction(db);
+            try {
+                for (Task<?> task : group)
+                    task.execute(db, notifications);
+
+                success = setTransactionSuccessful(db);
+            }
+            finally {
+                endTransaction(db, success);
+            }
+        }
+        catch (RuntimeException e) {
+            error = e;
+        }
+        catch (Error e) {
+            error = new RuntimeException(e);
+        }
+        finally {
+            mNotifications = null;
+        }
+
+        return error;
+    }
+
+    private void dispatch(List<Uri> notifications) {
+        for (Uri uri : notifications)
+            mNotifier.notifyChange(uri);
+    }
+
+    /* Transactions compatibility layer */
+
+    @TargetApi(11)
+    private void beginTransaction(SQLiteDatabase db) {
+        if (android.os.Build.VERSION.SDK_INT >= 11)
+            db.beginTransactionNonExclusive();
+        else
+            // this is because API < 11 doesn't have beginTransactionNonExclusive()
+            db.execSQL("BEGIN IMMEDIATE");
+    }
+
+    private boolean setTransactionSuccessful(SQLiteDatabase db) {
+        if (android.os.Build.VERSION.SDK_INT >= 11)
+            db.setTransactionSuccessful();
+        return true;
+    }
+
+    private void endTransaction(SQLiteDatabase db, boolean success) {
+        if (android.os.Build.VERSION.SDK_INT >= 11)
+            db.endTransaction();
+        else
+            db.execSQL(success ? "COMMIT" : "ROLLBACK");
+    }
+
+}
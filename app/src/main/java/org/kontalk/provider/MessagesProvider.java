@@ -18,9 +18,15 @@
 
 package org.kontalk.provider;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.client.EndpointServer;
@@ -28,6 +34,7 @@ import org.kontalk.client.ServerList;
 import org.kontalk.crypto.Coder;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.provider.MyMessages.CommonColumns;
+import org.kontalk.provider.MyMessages.Media;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
@@ -36,18 +43,25 @@ import org.kontalk.service.ServerListUpdater;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 
@@ -60,9 +74,10 @@ public class MessagesProvider extends ContentProvider {
     private static final String TAG = MessagesProvider.class.getSimpleName();
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".messages";
 
-    private static final String TABLE_MESSAGES = "messages";
-    private static final String TABLE_FULLTEXT = "fulltext";
+    static final String TABLE_MESSAGES = "messages";
+    static final String TABLE_FULLTEXT = "fulltext";
     private static final String TABLE_THREADS = "threads";
+    private static final String TABLE_MEDIA = "media";
 
     private static final int THREADS = 1;
     private static final int THREADS_ID = 2;
@@ -74,15 +89,71 @@ public class MessagesProvider extends ContentProvider {
     private static final int CONVERSATIONS_ALL_ID = 8;
     private static final int FULLTEXT_ID = 9;
     private static final int REQUESTS = 10;
+    private static final int MEDIA = 11;
+
+    /** Unreferenced media files younger than this are not deleted (they are about to be used). */
+    private static final long MEDIA_GRACE_TIME = 600000;
+
+    /**
+     * Search results are ranked in windows of this many matches, most
+     * recent first: ranking all matches of a common term would be too slow.
+     */
+    static final int SEARCH_WINDOW = 1000;
+
+    /** Number of matched terms of a search result (offsets() has four integers per match). */
+    private static final String SEARCH_HITS =
+        "(length(offsets(" + TABLE_FULLTEXT + ")) - " +
+        "length(replace(offsets(" + TABLE_FULLTEXT + "), ' ', '')) + 1) / 4";
+    /** Relevance of a search result: matched terms weighted by text length. */
+    private static final String SEARCH_RANK =
+        "(" + SEARCH_HITS + ") * 1.0 / (length(" + TABLE_FULLTEXT + ".content) + 50)";
+
+    /*
+     * Selections used on the messages table by the provider and its
+     * clients. They are written so that the indexes can be used: the query
+     * plan test checks them against the schema.
+     */
+
+    /** Outgoing messages to be sent again (statuses listed explicitly for the status index). */
+    public static final String SELECTION_PENDING_MESSAGES =
+        Messages.DIRECTION + "=" + Messages.DIRECTION_OUT + " AND " +
+        Messages.STATUS + " IN (" + Messages.STATUS_SENDING + "," +
+        Messages.STATUS_ERROR + "," + Messages.STATUS_NOTACCEPTED + ")";
+    /** Incoming messages whose receipt still has to be sent. */
+    public static final String SELECTION_PENDING_RECEIPTS =
+        Messages.DIRECTION + " = " + Messages.DIRECTION_IN + " AND " +
+        Messages.STATUS + " = " + Messages.STATUS_INCOMING;
+    /** Outgoing messages not delivered yet. */
+    public static final String SELECTION_OUTGOING_UNDELIVERED =
+        Messages.DIRECTION + "=" + Messages.DIRECTION_OUT + " AND " +
+        Messages.STATUS + " NOT IN (" + Messages.STATUS_RECEIVED + "," +
+        Messages.STATUS_NOTDELIVERED + ")";
+    /** New incoming messages (also valid on the threads table). */
+    public static final String SELECTION_NEW_INCOMING =
+        CommonColumns.NEW + " > 0 AND " +
+        CommonColumns.DIRECTION + " = " + Messages.DIRECTION_IN;
+
+    /** Unread incoming messages of a thread (parameter: thread id). */
+    static final String SELECTION_THREAD_UNREAD =
+        Messages.THREAD_ID + " = ? AND " +
+        Messages.UNREAD + " > 0 AND " +
+        Messages.DIRECTION + " = " + Messages.DIRECTION_IN;
+    /** Messages of a thread (parameter: thread id). */
+    static final String SELECTION_THREAD = Messages.THREAD_ID + " = ?";
+    /** A stored message (parameters: message id, direction). */
+    static final String SELECTION_STORED_MESSAGE =
+        Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?";
 
     private DatabaseHelper dbHelper;
+    private ChangeNotifier mNotifier;
+    private GroupCommitWriter mWriter;
+    private FulltextIndexer mIndexer;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
-    private static HashMap<String, String> fulltextProjectionMap;
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 8;
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private static final int DATABASE_VERSION = 13;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -155,13 +226,41 @@ public class MessagesProvider extends ContentProvider {
         private static final String SCHEMA_THREADS =
             "CREATE TABLE " + TABLE_THREADS + " " + _SCHEMA_THREADS;
 
-        /** This table will contain every text message to speed-up full text searches. */
-        private static final String SCHEMA_FULLTEXT =
+        /**
+         * This table will contain every text message to speed-up full text searches.
+         * Prefix indexes speed up type-ahead searches.
+         */
+        static final String SCHEMA_FULLTEXT =
+            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts4 (" +
+            "thread_id INTEGER NOT NULL, " +
+            "content TEXT, " +
+            "prefix=\"2,3\"" +
+            ")";
+
+        /** Full text table for devices without FTS4 prefix indexes. */
+        static final String SCHEMA_FULLTEXT_LEGACY =
             "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts3 (" +
             "thread_id INTEGER NOT NULL, " +
             "content TEXT" +
             ")";
 
+        /** Media files stored by content hash (shared by messages). */
+        private static final String SCHEMA_MEDIA =
+            "CREATE TABLE " + TABLE_MEDIA + " (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "hash TEXT NOT NULL UNIQUE, " +
+            "location TEXT NOT NULL UNIQUE, " +
+            "fetch_url TEXT, " +
+            "length INTEGER NOT NULL DEFAULT 0, " +
+            "refcount INTEGER NOT NULL DEFAULT 0, " +
+            "timestamp INTEGER NOT NULL" +
+            ")";
+
+        /** Media by download URL (already downloaded attachments). */
+        private static final String SCHEMA_MEDIA_URL_IDX =
+            "CREATE INDEX IF NOT EXISTS url_media ON " + TABLE_MEDIA +
+            " (fetch_url)";
+
         private static final String SCHEMA_MESSAGES_INDEX =
             "CREATE UNIQUE INDEX IF NOT EXISTS unique_message ON " + TABLE_MESSAGES +
             " (msg_id, direction)";
@@ -170,79 +269,134 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND unread <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND unread <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread new count. */
-        private static final String UPDATE_NEW_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_NEW_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread status reflected by the latest message. */
-        /*
-        private static final String UPDATE_STATUS_OLD =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = old.thread_id";
-        */
+        /**
+         * Conversation index (also used for keyset paging). Per-thread
+         * queries must sort by (timestamp, _id) to use it.
+         */
+        private static final String SCHEMA_MESSAGES_THREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_message ON " + TABLE_MESSAGES +
+            " (thread_id, timestamp)";
+
+        /** Unread messages of a conversation (mark as read). */
+        private static final String SCHEMA_MESSAGES_UNREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS unread_message ON " + TABLE_MESSAGES +
+            " (thread_id, unread)";
+
+        /** Messages by status (pending messages and receipts). */
+        private static final String SCHEMA_MESSAGES_STATUS_IDX =
+            "CREATE INDEX IF NOT EXISTS status_message ON " + TABLE_MESSAGES +
+            " (direction, status)";
+
+        /** New messages (notifications). */
+        private static final String SCHEMA_MESSAGES_NEW_IDX =
+            "CREATE INDEX IF NOT EXISTS new_message ON " + TABLE_MESSAGES +
+            " (direction, \"new\")";
+
+        /**
+         * Adds the counters of the new message to its thread.
+         * Counters are maintained incrementally from the row values instead
+         * of being recomputed from the whole thread on every change.
+         */
+        private static final String UPDATE_COUNTERS_ADD_NEW =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count + 1, " +
+            "unread = unread + (new.unread <> 0), " +
+            "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+            "WHERE _id = new.thread_id";
+        /** Removes the counters of the old message from its thread. */
+        private static final String UPDATE_COUNTERS_REMOVE_OLD =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count - 1, " +
+            "unread = unread - (old.unread <> 0), " +
+            "\"new\" = \"new\" - (old.\"new\" <> 0) " +
+            "WHERE _id = old.thread_id";
+
+        /**
+         * Updates the thread status reflected by the latest message.
+         * The latest message is the one referenced by the thread itself, which
+         * is kept up to date by {@link MessagesProvider#updateThreads}.
+         */
         private static final String UPDATE_STATUS_NEW =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = new.thread_id";
+            "UPDATE " + TABLE_THREADS + " SET status = new.status " +
+            "WHERE _id = new.thread_id AND msg_id = new.msg_id AND direction = new.direction";
 
         /** This trigger will update the threads table counters on INSERT. */
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
+            UPDATE_COUNTERS_ADD_NEW   + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
-        /** This trigger will update the threads table counters on UPDATE. */
+        /**
+         * This trigger will update the threads table counters on UPDATE.
+         * It fires only if a column affecting the counters actually changed,
+         * so status-only updates don't touch the counters at all.
+         */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
-            "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON " + TABLE_MESSAGES +
+            "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF thread_id, unread, \"new\" ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id <> new.thread_id OR " +
+            "(old.unread <> 0) <> (new.unread <> 0) OR " +
+            "(old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            UPDATE_COUNTERS_REMOVE_OLD + ";" +
+            UPDATE_COUNTERS_ADD_NEW    + ";" +
             "END";
 
+        /** This trigger will update the threads table status on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_STATUS =
+            "CREATE TRIGGER update_thread_status_on_update AFTER UPDATE OF status ON " + TABLE_MESSAGES +
+            " WHEN new.status IS NOT old.status" +
+            " BEGIN " +
+            UPDATE_STATUS_NEW         + ";" +
+            "END";
 
         /** This trigger will update the threads table counters on DELETE. */
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
-            UPDATE_NEW_COUNT_OLD      + ";" +
-            // do not call this here -- UPDATE_STATUS_OLD         + ";" +
+            UPDATE_COUNTERS_REMOVE_OLD + ";" +
+            "END";
+
+        /**
+         * Media files referenced by a message: the preview path and the
+         * local URI (only file URIs can reference stored media).
+         */
+        private static String mediaReferencedBy(String row) {
+            return "location IN (" + row + ".att_preview_path, " +
+                "CASE WHEN " + row + ".att_local_uri LIKE 'file://%' " +
+                "THEN substr(" + row + ".att_local_uri, 8) END)";
+        }
+
+        /** This trigger will reference media files on INSERT. */
+        private static final String TRIGGER_MEDIA_INSERT =
+            "CREATE TRIGGER update_media_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            "UPDATE " + TABLE_MEDIA + " SET refcount = refcount + 1 WHERE " + mediaReferencedBy("new") + ";" +
             "END";
 
+        /** This trigger will move media references on UPDATE. */
+        private static final String TRIGGER_MEDIA_UPDATE =
+            "CREATE TRIGGER update_media_on_update AFTER UPDATE OF att_preview_path, att_local_uri ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            "UPDATE " + TABLE_MEDIA + " SET refcount = refcount - 1 WHERE " + mediaReferencedBy("old") + ";" +
+            "UPDATE " + TABLE_MEDIA + " SET refcount = refcount + 1 WHERE " + mediaReferencedBy("new") + ";" +
+            "END";
+
+        /** This trigger will release media references on DELETE. */
+        private static final String TRIGGER_MEDIA_DELETE =
+            "CREATE TRIGGER update_media_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            "UPDATE " + TABLE_MEDIA + " SET refcount = refcount - 1 WHERE " + mediaReferencedBy("old") + ";" +
+            "END";
+
+        /** Recalculates all thread counters from scratch (used after upgrades). */
+        static final String RECONCILE_THREADS_COUNTERS =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+            "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+            "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0)";
+
         private static final String[] SCHEMA_UPGRADE_V4 = {
             // create temporary messages tables without msg_id UNIQUE constraint
             "CREATE TABLE " + TABLE_MESSAGES + "_new " + _SCHEMA_MESSAGES,
@@ -276,26 +430,118 @@ public class MessagesProvider extends ContentProvider {
             // triggers
             TRIGGER_THREADS_INSERT_COUNT,
             TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
             TRIGGER_THREADS_DELETE_COUNT
         };
 
+        private static final String[] SCHEMA_UPGRADE_V9 = {
+            // replace recalculating triggers with incremental ones
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_status_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            // one-shot reconcile pass so deltas start from exact values
+            RECONCILE_THREADS_COUNTERS,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V10 = {
+            SCHEMA_MESSAGES_THREAD_IDX,
+            SCHEMA_MESSAGES_UNREAD_IDX,
+            SCHEMA_MESSAGES_STATUS_IDX,
+            SCHEMA_MESSAGES_NEW_IDX,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V11 = {
+            SCHEMA_MEDIA,
+            SCHEMA_MEDIA_URL_IDX,
+            TRIGGER_MEDIA_INSERT,
+            TRIGGER_MEDIA_UPDATE,
+            TRIGGER_MEDIA_DELETE,
+        };
+
+        /** The new table will be filled by the indexer (see {@link #SCHEMA_UPGRADE_V13}). */
+        private static final String[] SCHEMA_UPGRADE_V12 = {
+            "DROP TABLE " + TABLE_FULLTEXT,
+            SCHEMA_FULLTEXT,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V13 = {
+            FulltextIndexer.SCHEMA_LOG,
+            FulltextIndexer.TRIGGER_LOG_INSERT,
+            FulltextIndexer.TRIGGER_LOG_UPDATE,
+            FulltextIndexer.TRIGGER_LOG_DELETE,
+            // full rebuild in background
+            FulltextIndexer.REBUILD[0],
+            FulltextIndexer.REBUILD[1],
+        };
+
+        /**
+         * Statements for creating the database from scratch. The full text
+         * table depends on the SQLite version and is created separately.
+         */
+        static final String[] SCHEMA_CREATE = {
+            SCHEMA_MESSAGES,
+            SCHEMA_THREADS,
+            SCHEMA_MESSAGES_INDEX,
+            SCHEMA_MESSAGES_TIMESTAMP_IDX,
+            SCHEMA_MESSAGES_THREAD_IDX,
+            SCHEMA_MESSAGES_UNREAD_IDX,
+            SCHEMA_MESSAGES_STATUS_IDX,
+            SCHEMA_MESSAGES_NEW_IDX,
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            SCHEMA_MEDIA,
+            SCHEMA_MEDIA_URL_IDX,
+            TRIGGER_MEDIA_INSERT,
+            TRIGGER_MEDIA_UPDATE,
+            TRIGGER_MEDIA_DELETE,
+            FulltextIndexer.SCHEMA_LOG,
+            FulltextIndexer.TRIGGER_LOG_INSERT,
+            FulltextIndexer.TRIGGER_LOG_UPDATE,
+            FulltextIndexer.TRIGGER_LOG_DELETE,
+        };
+
         private Context mContext;
 
+        @TargetApi(16)
         protected DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
+
+            // readers won't be blocked by the writer thread
+            if (android.os.Build.VERSION.SDK_INT >= 16)
+                setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        @TargetApi(11)
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // write-ahead logging before API level 16
+            int sdk = android.os.Build.VERSION.SDK_INT;
+            if (sdk >= 11 && sdk < 16 && !db.isReadOnly())
+                db.enableWriteAheadLogging();
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL(SCHEMA_MESSAGES);
-            db.execSQL(SCHEMA_THREADS);
-            db.execSQL(SCHEMA_FULLTEXT);
-            db.execSQL(SCHEMA_MESSAGES_INDEX);
-            db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
-            db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
-            db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
-            db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
+            for (String sql : SCHEMA_CREATE)
+                db.execSQL(sql);
+
+            db.execSQL(isFulltextPrefixSupported() ?
+                SCHEMA_FULLTEXT : SCHEMA_FULLTEXT_LEGACY);
+        }
+
+        /** FTS4 prefix indexes need SQLite 3.7.7. */
+        private static boolean isFulltextPrefixSupported() {
+            return android.os.Build.VERSION.SDK_INT >= 16;
         }
 
         @Override
@@ -323,15 +569,76 @@ public class MessagesProvider extends ContentProvider {
                     }
                 }
             }
+
+            if (oldVersion < 9) {
+                for (String sql : SCHEMA_UPGRADE_V9)
+                    db.execSQL(sql);
+            }
+
+            if (oldVersion < 10) {
+                for (String sql : SCHEMA_UPGRADE_V10)
+                    db.execSQL(sql);
+            }
+
+            if (oldVersion < 11) {
+                for (String sql : SCHEMA_UPGRADE_V11)
+                    db.execSQL(sql);
+            }
+
+            if (oldVersion < 12 && isFulltextPrefixSupported()) {
+                for (String sql : SCHEMA_UPGRADE_V12)
+                    db.execSQL(sql);
+            }
+
+            if (oldVersion < 13) {
+                for (String sql : SCHEMA_UPGRADE_V13)
+                    db.execSQL(sql);
+            }
         }
     }
 
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
+
+        // change notifications are coalesced and sent from a background thread
+        HandlerThread thread = new HandlerThread("MessagesNotifier", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mNotifier = new ChangeNotifier(getContext().getContentResolver(),
+            thread.getLooper(), ChangeNotifier.DEFAULT_WINDOW);
+
+        // all writes go through a single writer thread
+        mWriter = new GroupCommitWriter(dbHelper, mNotifier, "MessagesWriter");
+
+        // full text index is updated in background
+        HandlerThread indexer = new HandlerThread("MessagesIndexer", Process.THREAD_PRIORITY_BACKGROUND);
+        indexer.start();
+        mIndexer = new FulltextIndexer(mWriter, indexer.getLooper(), FulltextIndexer.DEFAULT_DELAY);
+        // resume pending work from a previous run
+        mIndexer.schedule();
         return true;
     }
 
+    /** Returns the change notifier used by this provider (e.g. for statistics). */
+    public ChangeNotifier getChangeNotifier() {
+        return mNotifier;
+    }
+
+    /** Returns the number of messages waiting to be added to the full text index. */
+    public long getFulltextPendingCount() {
+        return FulltextIndexer.getPendingCount(dbHelper.getReadableDatabase());
+    }
+
+    /** Returns the age in milliseconds of the oldest change not yet in the full text index. */
+    public long getFulltextLag() {
+        return FulltextIndexer.getLag(dbHelper.getReadableDatabase());
+    }
+
+    /** Rebuilds the full text index in background. */
+    public void rebuildFulltext() {
+        mIndexer.rebuild();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -372,17 +679,42 @@ public class MessagesProvider extends ContentProvider {
                 qb.appendWhere(Threads.PEER + "='" + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)) + "'");
                 break;
 
-            case CONVERSATIONS_ID:
+            case CONVERSATIONS_ID: {
                 qb.setTables(TABLE_MESSAGES);
                 qb.setProjectionMap(messagesProjectionMap);
-                qb.appendWhere(Messages.THREAD_ID + "=" + uri.getPathSegments().get(1));
+                long threadId = Long.parseLong(uri.getPathSegments().get(1));
+
+                String limit = uri.getQueryParameter(Conversations.QUERY_PARAM_LIMIT);
+                if (limit != null) {
+                    // the page already belongs to the thread
+                    appendPageWhere(qb, threadId, Integer.parseInt(limit),
+                        uri.getQueryParameter(Conversations.QUERY_PARAM_BEFORE_TIMESTAMP),
+                        uri.getQueryParameter(Conversations.QUERY_PARAM_BEFORE_ID));
+                }
+                else {
+                    qb.appendWhere(Messages.THREAD_ID + "=" + threadId);
+                }
+
+                if (sortOrder == null)
+                    sortOrder = Messages.PAGED_SORT_ORDER;
                 break;
+            }
+
+            case FULLTEXT_ID: {
+                String limit = uri.getQueryParameter(Fulltext.QUERY_PARAM_LIMIT);
+                String offset = uri.getQueryParameter(Fulltext.QUERY_PARAM_OFFSET);
+                String sql = buildSearchQuery(
+                    (offset != null) ? Integer.parseInt(offset) : 0,
+                    (limit != null) ? Integer.parseInt(limit) : SEARCH_WINDOW);
+
+                Cursor c = dbHelper.getReadableDatabase().rawQuery(sql,
+                    new String[] { uri.getQueryParameter(Fulltext.QUERY_PARAM_PATTERN) });
+                c.setNotificationUri(getContext().getContentResolver(), uri);
+                return c;
+            }
 
-            case FULLTEXT_ID:
-                qb.setTables(TABLE_FULLTEXT);
-                qb.setProjectionMap(fulltextProjectionMap);
-                qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
-                selectionArgs = new String[] { uri.getQueryParameter("pattern") };
+            case MEDIA:
+                qb.setTables(TABLE_MEDIA);
                 break;
 
             default:
@@ -396,121 +728,396 @@ public class MessagesProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Restricts a conversation query to a page of messages using the
+     * (timestamp, _id) keyset: the <code>limit</code> most recent messages
+     * older than the given key are selected. Messages are selected by id
+     * only: a thread condition on the outer query would make SQLite walk
+     * the whole thread.
+     */
+    private void appendPageWhere(SQLiteQueryBuilder qb, long threadId, int limit,
+            String beforeTimestamp, String beforeId) {
+        qb.appendWhere(buildPageWhere(threadId, limit, beforeTimestamp, beforeId));
+    }
+
+    /** Builds the page condition appended by {@link #appendPageWhere}. */
+    static String buildPageWhere(long threadId, int limit,
+            String beforeTimestamp, String beforeId) {
+        StringBuilder where = new StringBuilder(Messages._ID + " IN (SELECT " +
+            Messages._ID + " FROM " + TABLE_MESSAGES + " WHERE " +
+            Messages.THREAD_ID + "=" + threadId);
+
+        if (beforeTimestamp != null && beforeId != null) {
+            long timestamp = Long.parseLong(beforeTimestamp);
+            long id = Long.parseLong(beforeId);
+            where.append(" AND (" + Messages.TIMESTAMP + " < " + timestamp +
+                " OR (" + Messages.TIMESTAMP + " = " + timestamp +
+                " AND " + Messages._ID + " < " + id + "))");
+        }
+
+        where.append(" ORDER BY " + Messages.PAGED_INVERTED_SORT_ORDER +
+            " LIMIT " + limit + ")");
+        return where.toString();
+    }
+
+    /**
+     * Builds the query for a page of search results. Matches are split in
+     * windows of {@link #SEARCH_WINDOW} messages (most recent first) and
+     * ranked by relevance within each window, so only a bounded number of
+     * matches is ranked. A page never spans two windows: it can be shorter
+     * than the requested limit, and only an empty page means no more results.
+     * The only parameter is the match pattern.
+     */
+    static String buildSearchQuery(int offset, int limit) {
+        int windowStart = (offset / SEARCH_WINDOW) * SEARCH_WINDOW;
+        int windowOffset = offset - windowStart;
+        limit = Math.min(limit, SEARCH_WINDOW - windowOffset);
+
+        return "SELECT " +
+            TABLE_FULLTEXT + ".rowid AS " + Messages._ID + ", " +
+            TABLE_FULLTEXT + ".thread_id AS " + Fulltext.THREAD_ID + ", " +
+            TABLE_THREADS + ".peer AS " + Fulltext.PEER + ", " +
+            TABLE_FULLTEXT + ".content AS " + Fulltext.CONTENT + ", " +
+            "snippet(" + TABLE_FULLTEXT + ", '" + Fulltext.SNIPPET_START + "', '" +
+                Fulltext.SNIPPET_END + "', '\u2026') AS " + Fulltext.SNIPPET +
+            " FROM " + TABLE_FULLTEXT + " JOIN " + TABLE_THREADS +
+            " ON " + TABLE_THREADS + "._id = " + TABLE_FULLTEXT + ".thread_id" +
+            " WHERE " + TABLE_FULLTEXT + ".content MATCH ?1 AND " + TABLE_FULLTEXT + ".rowid IN (" +
+                // page of the ranked window
+                "SELECT id FROM (" +
+                    // window of matches
+                    "SELECT " + TABLE_FULLTEXT + ".rowid AS id, " + SEARCH_RANK + " AS rank" +
+                    " FROM " + TABLE_FULLTEXT + " WHERE " + TABLE_FULLTEXT + ".content MATCH ?1" +
+                    " ORDER BY " + TABLE_FULLTEXT + ".rowid DESC" +
+                    " LIMIT " + SEARCH_WINDOW + " OFFSET " + windowStart +
+                ") ORDER BY rank DESC, id DESC LIMIT " + limit + " OFFSET " + windowOffset +
+            ") ORDER BY " + SEARCH_RANK + " DESC, " + TABLE_FULLTEXT + ".rowid DESC";
+    }
+
     @Override
-    public synchronized Uri insert(Uri uri, ContentValues initialValues) {
-        // only messages and requests virtual table can be inserted
-        int match = sUriMatcher.match(uri);
-        if (match != MESSAGES && match != REQUESTS) { throw new IllegalArgumentException("Unknown URI " + uri); }
+    public Uri insert(final Uri uri, final ContentValues initialValues) {
+        // only messages, media and requests virtual table can be inserted
+        final int match = sUriMatcher.match(uri);
+        if (match != MESSAGES && match != REQUESTS && match != MEDIA) { throw new IllegalArgumentException("Unknown URI " + uri); }
         if (initialValues == null) { throw new IllegalArgumentException("No data"); }
 
+        if (match == MEDIA) {
+            return mWriter.execute(new GroupCommitWriter.Operation<Uri>() {
+                public Uri execute(SQLiteDatabase db, List<Uri> notifications) {
+                    return insertMedia(db, initialValues);
+                }
+            });
+        }
+
+        return mWriter.execute(new GroupCommitWriter.Operation<Uri>() {
+            public Uri execute(SQLiteDatabase db, List<Uri> notifications) {
+                return insertMessage(db, uri, match, initialValues, notifications);
+            }
+        });
+    }
+
+    private Uri insertMessage(SQLiteDatabase db, Uri uri, int match, ContentValues initialValues, List<Uri> notifications) {
         // if this column is present, we'll insert the thread only
         String draft = initialValues.getAsString(Threads.DRAFT);
 
         ContentValues values = new ContentValues(initialValues);
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        boolean success = false;
-        List<Uri> notifications = new ArrayList<Uri>();
+        // we need to know if there previously was a pending request
+        // so we can decide if we have to fire a notification or not
+        boolean requestExists = false;
+        if (match == REQUESTS) {
+            requestExists = isRequestPending(db, initialValues.getAsString(CommonColumns.PEER));
+        }
 
-        try {
-            beginTransaction(db);
+        // create the thread first
+        long threadId = updateThreads(db, values, notifications, match == REQUESTS);
 
-            // we need to know if there previously was a pending request
-            // so we can decide if we have to fire a notification or not
-            boolean requestExists = false;
-            if (match == REQUESTS) {
-                requestExists = isRequestPending(db, initialValues.getAsString(CommonColumns.PEER));
+        if (draft != null || match == REQUESTS) {
+            // notify thread change
+            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+            // notify conversation change
+            notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+
+            // request only - return conversation
+            if (match == REQUESTS && !requestExists)
+                return ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId);
+
+            // draft only - no uri
+            else
+                return null;
+
+        }
+
+        values.put(Messages.THREAD_ID, threadId);
+
+        // insert the new message now!
+        long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+
+        /*
+         * this will be useful one day perhaps :)
+        long rowId = 0;
+        try {
+            rowId = db.insert(TABLE_MESSAGES, null, values);
+        }
+        catch (SQLiteConstraintException e) {
+            // unique constraint is on msg_id, direction
+            // already stored message, skip it and return uri
+            Cursor c = null;
+            try {
+                c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+                    SELECTION_STORED_MESSAGE,
+                    new String[] {
+                        values.getAsString(Messages.MESSAGE_ID),
+                        values.getAsString(Messages.DIRECTION)
+                    }, null, null, null, "1");
+                if (c.moveToFirst()) {
+                    rowId = c.getLong(0);
+                    return ContentUris.withAppendedId(uri, rowId);
+                }
+            }
+            finally {
+                try {
+                    c.close();
+                }
+                catch (Exception eClose) {
+                    // ignore exception
+                }
             }
 
-            // create the thread first
-            long threadId = updateThreads(db, values, notifications, match == REQUESTS);
+            // message not found (WHAT???)
+            throw e;
+        }
+        */
+
+        if (rowId > 0) {
+            // fulltext table will be updated by the indexer
+            mIndexer.schedule();
+
+            Uri msgUri = ContentUris.withAppendedId(uri, rowId);
+            notifications.add(msgUri);
 
-            if (draft != null || match == REQUESTS) {
-                // notify thread change
-                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                // notify conversation change
-                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+            // notify thread change
+            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+            // notify conversation change
+            notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
 
-                success = setTransactionSuccessful(db);
+            return msgUri;
+        }
 
-                // request only - return conversation
-                if (match == REQUESTS && !requestExists)
-                    return ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId);
+        throw new SQLException("Failed to insert row into " + uri);
+    }
 
-                // draft only - no uri
-                else
-                    return null;
+    /**
+     * Registers a media file. If a file with the same hash is already
+     * registered, the existing one is returned: the caller is expected to
+     * use its location. The timestamp is refreshed in both cases, so the
+     * file is not collected before a message references it.
+     */
+    private Uri insertMedia(SQLiteDatabase db, ContentValues initialValues) {
+        String hash = initialValues.getAsString(Media.HASH);
+        long now = System.currentTimeMillis();
 
+        Cursor c = db.query(TABLE_MEDIA, new String[] { Media._ID },
+            Media.HASH + " = ?", new String[] { hash }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                long id = c.getLong(0);
+                ContentValues values = new ContentValues(2);
+                values.put(Media.TIMESTAMP, now);
+                String fetchUrl = initialValues.getAsString(Media.FETCH_URL);
+                if (fetchUrl != null)
+                    values.put(Media.FETCH_URL, fetchUrl);
+                db.update(TABLE_MEDIA, values, Media._ID + " = " + id, null);
+                return ContentUris.withAppendedId(Media.CONTENT_URI, id);
             }
+        }
+        finally {
+            c.close();
+        }
 
-            values.put(Messages.THREAD_ID, threadId);
+        ContentValues values = new ContentValues(initialValues);
+        // references are counted by triggers only
+        values.remove(Media.REFCOUNT);
+        values.put(Media.TIMESTAMP, now);
+        long id = db.insertOrThrow(TABLE_MEDIA, null, values);
+        return ContentUris.withAppendedId(Media.CONTENT_URI, id);
+    }
 
-            // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+    /**
+     * Inserts a batch of messages in a single transaction.
+     * Messages are grouped by peer: each thread is updated only once with
+     * the latest message of the batch, and all inserts are done through
+     * compiled statements. Duplicate messages are skipped.
+     * Change notifications are sent once for the whole batch.
+     */
+    @Override
+    public int bulkInsert(final Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != MESSAGES)
+            return super.bulkInsert(uri, values);
+
+        // group messages by peer, keeping the original order
+        final Map<String, List<ContentValues>> peers = new LinkedHashMap<String, List<ContentValues>>();
+        for (ContentValues v : values) {
+            if (v == null) { throw new IllegalArgumentException("No data"); }
+            if (v.containsKey(Threads.DRAFT)) { throw new IllegalArgumentException("Drafts are not supported in batch mode"); }
+
+            String peer = v.getAsString(CommonColumns.PEER);
+            List<ContentValues> list = peers.get(peer);
+            if (list == null) {
+                list = new ArrayList<ContentValues>();
+                peers.put(peer, list);
+            }
+            list.add(v);
+        }
 
-            /*
-             * this will be useful one day perhaps :)
-            long rowId = 0;
-            try {
-                rowId = db.insert(TABLE_MESSAGES, null, values);
+        return mWriter.execute(new GroupCommitWriter.Operation<Integer>() {
+            public Integer execute(SQLiteDatabase db, List<Uri> notifications) {
+                return insertMessages(db, uri, peers, notifications);
             }
-            catch (SQLiteConstraintException e) {
-                // unique constraint is on msg_id, direction
-                // already stored message, skip it and return uri
-                Cursor c = null;
-                try {
-                    c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
-                        Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
-                        new String[] {
-                            values.getAsString(Messages.MESSAGE_ID),
-                            values.getAsString(Messages.DIRECTION)
-                        }, null, null, null, "1");
-                    if (c.moveToFirst()) {
-                        rowId = c.getLong(0);
-                        return ContentUris.withAppendedId(uri, rowId);
-                    }
+        });
+    }
+
+    private int insertMessages(SQLiteDatabase db, Uri uri, Map<String, List<ContentValues>> peers, List<Uri> notifications) {
+        Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        int count = 0;
+
+        try {
+            for (List<ContentValues> list : peers.values()) {
+                ContentValues last = list.get(list.size() - 1);
+
+                // counters triggers need the thread to exist before inserting
+                boolean created = false;
+                long threadId = queryThreadId(db, last.getAsString(CommonColumns.PEER));
+                if (threadId < 0) {
+                    threadId = updateThreads(db, last, notifications, false);
+                    created = true;
                 }
-                finally {
+
+                ContentValues latest = null;
+                int inserted = 0;
+
+                for (ContentValues v : list) {
+                    ContentValues msg = new ContentValues(v);
+                    msg.put(Messages.THREAD_ID, threadId);
+
                     try {
-                        c.close();
+                        executeInsert(db, TABLE_MESSAGES, msg, statements);
                     }
-                    catch (Exception eClose) {
-                        // ignore exception
+                    catch (SQLiteConstraintException e) {
+                        // duplicated message, skip it
+                        continue;
                     }
-                }
 
-                // message not found (WHAT???)
-                throw e;
-            }
-            */
-
-            if (rowId > 0) {
-                // update fulltext table
-                byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
-                Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
-                if (content != null && content.length > 0 && (encrypted == null || !encrypted.booleanValue())) {
-                    updateFulltext(db, rowId, threadId, content);
+                    latest = v;
+                    inserted++;
                 }
 
-                Uri msgUri = ContentUris.withAppendedId(uri, rowId);
-                notifications.add(msgUri);
+                if (inserted > 0) {
+                    // update the thread just once with the latest message inserted
+                    // (a new thread was created with the last message already)
+                    if (!created || latest != last) {
+                        ContentValues thread = new ContentValues(latest);
+                        thread.put(Messages.THREAD_ID, threadId);
+                        updateThreads(db, thread, notifications, false);
+                    }
 
-                // notify thread change
-                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                // notify conversation change
-                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+                    // notify thread change
+                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                    // notify conversation change
+                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+                    count += inserted;
+                }
+            }
 
-                success = setTransactionSuccessful(db);
-                return msgUri;
+            // a single notification for all the messages
+            if (count > 0) {
+                notifications.add(uri);
+                // fulltext table will be updated by the indexer
+                mIndexer.schedule();
             }
 
-            throw new SQLException("Failed to insert row into " + uri);
+            return count;
         }
         finally {
-            endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            for (SQLiteStatement stm : statements.values())
+                stm.close();
+        }
+    }
+
+    /**
+     * Inserts a row through a compiled statement, reusing statements already
+     * compiled for the same set of columns.
+     * @return the new row id
+     */
+    private long executeInsert(SQLiteDatabase db, String table, ContentValues values, Map<String, SQLiteStatement> statements) {
+        // sort columns so the same set always produces the same statement
+        TreeMap<String, Object> columns = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> e : values.valueSet())
+            columns.put(e.getKey(), e.getValue());
+
+        String key = columns.keySet().toString();
+        SQLiteStatement stm = statements.get(key);
+        if (stm == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(table)
+                .append(" (");
+            StringBuilder params = new StringBuilder();
+            for (String column : columns.keySet()) {
+                if (params.length() > 0) {
+                    sql.append(',');
+                    params.append(',');
+                }
+                sql.append('"').append(column).append('"');
+                params.append('?');
+            }
+            sql.append(") VALUES (").append(params).append(')');
+
+            stm = db.compileStatement(sql.toString());
+            statements.put(key, stm);
+        }
+
+        stm.clearBindings();
+        int i = 1;
+        for (Object value : columns.values())
+            DatabaseUtils.bindObjectToProgram(stm, i++, value);
+
+        long rowId = stm.executeInsert();
+        if (rowId < 0)
+            throw new SQLException("Failed to insert row into " + table);
+        return rowId;
+    }
+
+    /**
+     * Applies all operations in a single transaction, sending change
+     * notifications only once at the end of the batch.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        try {
+            // nested operations will be executed inline by the writer thread
+            return mWriter.execute(new GroupCommitWriter.Operation<ContentProviderResult[]>() {
+                public ContentProviderResult[] execute(SQLiteDatabase db, List<Uri> notifications) {
+                    try {
+                        return MessagesProvider.super.applyBatch(operations);
+                    }
+                    catch (OperationApplicationException e) {
+                        throw new BatchFailedException(e);
+                    }
+                }
+            });
+        }
+        catch (BatchFailedException e) {
+            throw (OperationApplicationException) e.getCause();
+        }
+    }
+
+    /** Used to carry a batch failure out of the writer thread. */
+    private static final class BatchFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BatchFailedException(OperationApplicationException cause) {
+            super(cause);
         }
     }
 
@@ -565,6 +1172,17 @@ public class MessagesProvider extends ContentProvider {
      * A thread is created for the given message if not found.
      * @return the thread id
      */
+    /** Returns the id of the thread with the given peer, or -1 if none. */
+    private static long queryThreadId(SQLiteDatabase db, String peer) {
+        Cursor c = db.query(TABLE_THREADS, new String[] { Threads._ID }, "peer = ?", new String[] { peer }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        }
+        finally {
+            c.close();
+        }
+    }
+
     private long updateThreads(SQLiteDatabase db, ContentValues initialValues, List<Uri> notifications, boolean requestOnly) {
         ContentValues values = new ContentValues();
         String peer = initialValues.getAsString(CommonColumns.PEER);
@@ -641,7 +1259,7 @@ public class MessagesProvider extends ContentProvider {
     }
 
     @Override
-    public synchronized int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    public int update(final Uri uri, final ContentValues values, String selection, String[] selectionArgs) {
         if (values == null) { throw new IllegalArgumentException("No data"); }
 
         String table;
@@ -703,123 +1321,94 @@ public class MessagesProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        List<Uri> notifications = new ArrayList<Uri>();
-        boolean success = false;
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        try {
-            beginTransaction(db);
-
-            // retrieve old data for notifying.
-            // This was done because of the update call could make the old where
-            // condition not working any more.
-            String[] msgIdList = null;
-            if (table.equals(TABLE_MESSAGES)) {
-                // preserve a list of the matching messages for notification and
-                // fulltext update later
-                Cursor old = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
-                        where, args, null, null, null);
-                msgIdList = new String[old.getCount()];
-                int i = 0;
-                while (old.moveToNext()) {
-                    msgIdList[i] = old.getString(0);
-                    i++;
-                }
+        final String fTable = table;
+        final String fWhere = where;
+        final String[] fArgs = args;
+        final boolean fRequestOnly = requestOnly;
+        return mWriter.execute(new GroupCommitWriter.Operation<Integer>() {
+            public Integer execute(SQLiteDatabase db, List<Uri> notifications) {
+                return update(db, uri, fTable, values, fWhere, fArgs, fRequestOnly, notifications);
+            }
+        });
+    }
 
-                old.close();
+    private int update(SQLiteDatabase db, Uri uri, String table, ContentValues values,
+            String where, String[] args, boolean requestOnly, List<Uri> notifications) {
+        // retrieve old data for notifying.
+        // This was done because of the update call could make the old where
+        // condition not working any more.
+        String[] msgIdList = null;
+        if (table.equals(TABLE_MESSAGES)) {
+            // preserve a list of the matching messages for notification
+            Cursor old = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+                    where, args, null, null, null);
+            msgIdList = new String[old.getCount()];
+            int i = 0;
+            while (old.moveToNext()) {
+                msgIdList[i] = old.getString(0);
+                i++;
             }
 
-            int rows = db.update(table, values, where, args);
+            old.close();
+        }
 
-            // notify change only if rows are actually affected
-            if (rows > 0) {
-                if (requestOnly)
-                    uri = Threads.CONTENT_URI;
+        int rows = db.update(table, values, where, args);
 
-                notifications.add(uri);
+        // notify change only if rows are actually affected
+        if (rows > 0) {
+            if (requestOnly)
+                uri = Threads.CONTENT_URI;
 
-                if (table.equals(TABLE_MESSAGES)) {
-                    // update fulltext only if content actually changed
-                    boolean doUpdateFulltext;
-                    String[] projection;
-
-                    byte[] oldContent = values.getAsByteArray(Messages.BODY_CONTENT);
-                    if (oldContent != null) {
-                        doUpdateFulltext = true;
-                        projection = new String[] { Messages.THREAD_ID, Messages._ID,
-                                Messages.DIRECTION, Messages.ENCRYPTED,
-                                Messages.BODY_CONTENT };
-                    }
-                    else {
-                        doUpdateFulltext = false;
-                        projection = new String[] { Messages.THREAD_ID };
-                    }
+            notifications.add(uri);
 
-                    // build new IN where condition
-                    if (msgIdList.length > 0) {
-                        StringBuilder whereBuilder = new StringBuilder(Messages._ID + " IN (?");
-                        for (int i = 1; i < msgIdList.length; i++)
-                            whereBuilder.append(",?");
-                        whereBuilder.append(")");
+            if (table.equals(TABLE_MESSAGES)) {
+                // fulltext table will be updated by the indexer (if content changed)
+                if (values.containsKey(Messages.BODY_CONTENT) || values.containsKey(Messages.ENCRYPTED))
+                    mIndexer.schedule();
 
-                        Cursor c = db.query(TABLE_MESSAGES, projection,
-                                whereBuilder.toString(), msgIdList, null, null, null);
+                String[] projection = new String[] { Messages.THREAD_ID };
 
-                        while (c.moveToNext()) {
-                            long threadId = c.getLong(0);
-                            updateThreadInfo(db, threadId, notifications);
+                // build new IN where condition
+                if (msgIdList.length > 0) {
+                    StringBuilder whereBuilder = new StringBuilder(Messages._ID + " IN (?");
+                    for (int i = 1; i < msgIdList.length; i++)
+                        whereBuilder.append(",?");
+                    whereBuilder.append(")");
 
-                            // update fulltext if necessary
-                            if (doUpdateFulltext) {
-                                int direction = c.getInt(2);
-                                int encrypted = c.getInt(3);
-                                if ((direction == Messages.DIRECTION_IN) ? (encrypted == 0) : true)
-                                    updateFulltext(db, c.getLong(1), threadId, c.getBlob(4));
-                            }
-                        }
+                    Cursor c = db.query(TABLE_MESSAGES, projection,
+                            whereBuilder.toString(), msgIdList, null, null, null);
 
-                        c.close();
+                    // update each thread only once
+                    Set<Long> threads = new HashSet<Long>();
+                    while (c.moveToNext()) {
+                        long threadId = c.getLong(0);
+                        if (threads.add(threadId))
+                            updateThreadInfo(db, threadId, notifications);
                     }
+
+                    c.close();
                 }
+            }
 
-                // delete thread if no messages are found
-                else if (requestOnly) {
+            // delete thread if no messages are found
+            else if (requestOnly) {
 
-                    Cursor th = db.query(TABLE_THREADS, new String[] { Threads.COUNT },
-                            where, args, null, null, null);
+                Cursor th = db.query(TABLE_THREADS, new String[] { Threads.COUNT },
+                        where, args, null, null, null);
 
-                    if (th.moveToFirst() && th.getInt(0) == 0)
-                        db.delete(TABLE_THREADS, where, args);
+                if (th.moveToFirst() && th.getInt(0) == 0)
+                    db.delete(TABLE_THREADS, where, args);
 
-                    th.close();
+                th.close();
 
-                }
             }
-
-            success = setTransactionSuccessful(db);
-            return rows;
         }
-        finally {
-            endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
-        }
-    }
 
-    private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content) {
-        // use the binary content converted to string
-        String text = new String(content);
-
-        ContentValues fulltext = new ContentValues();
-        fulltext.put(Fulltext._ID, id);
-        fulltext.put(Fulltext.THREAD_ID, threadId);
-        fulltext.put(Fulltext.CONTENT, text);
-        db.replace(TABLE_FULLTEXT, null, fulltext);
+        return rows;
     }
 
     @Override
-    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+    public int delete(final Uri uri, String selection, String[] selectionArgs) {
         String table;
         String where;
         String[] args;
@@ -865,49 +1454,54 @@ public class MessagesProvider extends ContentProvider {
                 args = new String[] { uri.getLastPathSegment() };
                 break;
 
+            case MEDIA:
+                table = TABLE_MEDIA;
+                where = selection;
+                args = selectionArgs;
+                break;
+
             // special case: conversations
             case CONVERSATIONS_ID: {
-                int rows = deleteConversation(uri);
-                if (rows > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
-                    // first of all, notify conversation
-                    cr.notifyChange(uri, null);
-                    // then notify thread itself
-                    long threadId = ContentUris.parseId(uri);
-                    cr.notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), null);
-                }
+                int rows = mWriter.execute(new GroupCommitWriter.Operation<Integer>() {
+                    public Integer execute(SQLiteDatabase db, List<Uri> notifications) {
+                        long threadId = ContentUris.parseId(uri);
+                        int rows = deleteConversation(db, threadId);
+                        if (rows > 0) {
+                            // first of all, notify conversation
+                            notifications.add(uri);
+                            // then notify thread itself
+                            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                        }
+                        return rows;
+                    }
+                });
+                if (rows > 0)
+                    collectMedia();
                 return rows;
                 // END :)
             }
 
             // special case: delete all content
             case CONVERSATIONS_ALL_ID: {
-                SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-                boolean success = false;
-                int num = 0;
-                try {
-                    beginTransaction(db);
-                    // rows count will be conversations
-                    num = db.delete(TABLE_THREADS, null, null);
-                    db.delete(TABLE_MESSAGES, null, null);
-                    // update fulltext
-                    db.delete(TABLE_FULLTEXT, null, null);
-
-                    // set transaction successful
-                    success = setTransactionSuccessful(db);
-                }
-                finally {
-                    endTransaction(db, success);
-                }
-
-                if (num > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
-                    // notify conversations and threads
-                    cr.notifyChange(uri, null);
-                    cr.notifyChange(Threads.CONTENT_URI, null);
-                }
+                int num = mWriter.execute(new GroupCommitWriter.Operation<Integer>() {
+                    public Integer execute(SQLiteDatabase db, List<Uri> notifications) {
+                        // rows count will be conversations
+                        int num = db.delete(TABLE_THREADS, null, null);
+                        db.delete(TABLE_MESSAGES, null, null);
+                        // update fulltext (faster than going through the indexer)
+                        db.delete(TABLE_FULLTEXT, null, null);
+                        db.delete(FulltextIndexer.TABLE_LOG, null, null);
+
+                        if (num > 0) {
+                            // notify conversations and threads
+                            notifications.add(uri);
+                            notifications.add(Threads.CONTENT_URI);
+                        }
 
+                        return num;
+                    }
+                });
+                collectMedia();
                 return num;
             }
 
@@ -915,95 +1509,112 @@ public class MessagesProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        int rows = 0;
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        boolean success = false;
-        List<Uri> notifications = new ArrayList<Uri>();
-        try {
-            // let's begin this big transaction :S
-            beginTransaction(db);
+        final String fTable = table;
+        final String fWhere = where;
+        final String[] fArgs = args;
+        int rows = mWriter.execute(new GroupCommitWriter.Operation<Integer>() {
+            public Integer execute(SQLiteDatabase db, List<Uri> notifications) {
+                return delete(db, uri, fTable, fWhere, fArgs, notifications);
+            }
+        });
 
-            long threadId = -1;
-            if (table.equals(TABLE_MESSAGES)) {
-                // retrieve the thread id for later use by updateThreadInfo(), and
-                // also update fulltext table
-                Cursor c = db.query(TABLE_MESSAGES, new String[] {
-                        Messages.THREAD_ID,
-                        Messages._ID,
-                        Messages.DIRECTION,
-                        Messages.ENCRYPTED
-                    },
-                    where, args, null, null, null);
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        // FIXME this way we'll only get one threadId...
-                        threadId = c.getLong(0);
-
-                        // update fulltext
-                        int direction = c.getInt(2);
-                        int encrypted = c.getInt(3);
-                        if ((direction == Messages.DIRECTION_IN) ? (encrypted == 0) : true)
-                            db.delete(TABLE_FULLTEXT, Fulltext._ID + " = " + c.getLong(1), null);
-                    }
+        if (rows > 0 && table.equals(TABLE_MESSAGES))
+            collectMedia();
+        return rows;
+    }
 
-                    c.close();
-                }
+    /**
+     * Deletes media files not referenced by any message.
+     * Files are deleted after their rows have been committed, so a rolled
+     * back transaction can't leave messages pointing to deleted files.
+     */
+    private void collectMedia() {
+        List<String> files = mWriter.execute(new GroupCommitWriter.Operation<List<String>>() {
+            public List<String> execute(SQLiteDatabase db, List<Uri> notifications) {
+                return deleteUnreferencedMedia(db, System.currentTimeMillis() - MEDIA_GRACE_TIME);
             }
+        });
 
-            // DELETE!
-            rows = db.delete(table, where, args);
+        for (String path : files) {
+            File file = new File(path);
+            if (file.exists() && !file.delete())
+                Log.w(TAG, "unable to delete media " + path);
+        }
 
-            // notify change only if rows are actually affected
-            if (rows > 0)
-                notifications.add(uri);
+        if (files.size() > 0)
+            Log.v(TAG, "deleted " + files.size() + " unreferenced media files");
+    }
 
-            if (table.equals(TABLE_MESSAGES)) {
-                // check for empty threads
-                if (deleteEmptyThreads(db) > 0)
-                    notifications.add(Threads.CONTENT_URI);
-                // update thread with latest info and status
-                if (threadId > 0) {
-                    updateThreadInfo(db, threadId, notifications);
-                }
-                else
-                    Log.e(TAG, "unable to update thread metadata (threadId not found)");
-                // change notifications get triggered by previous method calls
-            }
+    private List<String> deleteUnreferencedMedia(SQLiteDatabase db, long olderThan) {
+        List<String> files = new ArrayList<String>();
+        String where = Media.REFCOUNT + " <= 0 AND " + Media.TIMESTAMP + " < " + olderThan;
 
-            success = setTransactionSuccessful(db);
+        Cursor c = db.query(TABLE_MEDIA, new String[] { Media.LOCATION },
+            where, null, null, null, null);
+        try {
+            while (c.moveToNext())
+                files.add(c.getString(0));
         }
         finally {
-            endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            c.close();
         }
 
-        return rows;
+        if (files.size() > 0)
+            db.delete(TABLE_MEDIA, where, null);
+        return files;
     }
 
-    private int deleteConversation(Uri uri) {
-        long threadId = ContentUris.parseId(uri);
-        if (threadId > 0) {
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            boolean success = false;
-            try {
-                int num = 0;
+    private int delete(SQLiteDatabase db, Uri uri, String table, String where, String[] args, List<Uri> notifications) {
+        long threadId = -1;
+        if (table.equals(TABLE_MESSAGES)) {
+            // retrieve the thread id for later use by updateThreadInfo()
+            // (fulltext table will be updated by the indexer)
+            Cursor c = db.query(TABLE_MESSAGES, new String[] {
+                    Messages.THREAD_ID,
+                },
+                where, args, null, null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    // FIXME this way we'll only get one threadId...
+                    threadId = c.getLong(0);
+                }
 
-                beginTransaction(db);
-                num = db.delete(TABLE_THREADS, Threads._ID + " = " + threadId, null);
-                num += db.delete(TABLE_MESSAGES, Messages.THREAD_ID + " = " + threadId, null);
-                // update fulltext
-                db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
+                c.close();
+            }
+        }
 
-                // set transaction successful
-                success = setTransactionSuccessful(db);
+        // DELETE!
+        int rows = db.delete(table, where, args);
 
-                return num;
-            }
-            finally {
-                endTransaction(db, success);
+        // notify change only if rows are actually affected
+        if (rows > 0)
+            notifications.add(uri);
+
+        if (table.equals(TABLE_MESSAGES)) {
+            if (rows > 0)
+                mIndexer.schedule();
+            // check for empty threads
+            if (deleteEmptyThreads(db) > 0)
+                notifications.add(Threads.CONTENT_URI);
+            // update thread with latest info and status
+            if (threadId > 0) {
+                updateThreadInfo(db, threadId, notifications);
             }
+            else
+                Log.e(TAG, "unable to update thread metadata (threadId not found)");
+            // change notifications get triggered by previous method calls
+        }
+
+        return rows;
+    }
+
+    private int deleteConversation(SQLiteDatabase db, long threadId) {
+        if (threadId > 0) {
+            int num = db.delete(TABLE_THREADS, Threads._ID + " = " + threadId, null);
+            num += db.delete(TABLE_MESSAGES, Messages.THREAD_ID + " = " + threadId, null);
+            // fulltext table will be updated by the indexer
+            mIndexer.schedule();
+            return num;
         }
 
         return -1;
@@ -1019,8 +1630,8 @@ public class MessagesProvider extends ContentProvider {
                 Messages.BODY_MIME,
                 Messages.ATTACHMENT_MIME,
                 Messages.TIMESTAMP,
-            }, Messages.THREAD_ID + " = ?", new String[] { String.valueOf(threadId) },
-            null, null, Messages.INVERTED_SORT_ORDER, "1");
+            }, SELECTION_THREAD, new String[] { String.valueOf(threadId) },
+            null, null, Messages.PAGED_INVERTED_SORT_ORDER, "1");
 
         int rc = -1;
         if (c != null) {
@@ -1068,30 +1679,6 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
-    /* Transactions compatibility layer */
-
-    @TargetApi(11)
-    private void beginTransaction(SQLiteDatabase db) {
-        if (android.os.Build.VERSION.SDK_INT >= 11)
-            db.beginTransactionNonExclusive();
-        else
-            // this is because API < 11 doesn't have beginTransactionNonExclusive()
-            db.execSQL("BEGIN IMMEDIATE");
-    }
-
-    private boolean setTransactionSuccessful(SQLiteDatabase db) {
-        if (android.os.Build.VERSION.SDK_INT >= 11)
-            db.setTransactionSuccessful();
-        return true;
-    }
-
-    private void endTransaction(SQLiteDatabase db, boolean success) {
-        if (android.os.Build.VERSION.SDK_INT >= 11)
-            db.endTransaction();
-        else
-            db.execSQL(success ? "COMMIT" : "ROLLBACK");
-    }
-
     public static boolean deleteDatabase(Context ctx) {
         try {
             ContentResolver c = ctx.getContentResolver();
@@ -1121,9 +1708,7 @@ public class MessagesProvider extends ContentProvider {
         values.put(Messages.UNREAD, Boolean.FALSE);
         values.put(Messages.NEW, Boolean.FALSE);
         return c.update(Messages.CONTENT_URI, values,
-                Messages.THREAD_ID + " = ? AND " +
-                Messages.UNREAD + " <> 0 AND " +
-                Messages.DIRECTION + " = " + Messages.DIRECTION_IN,
+                SELECTION_THREAD_UNREAD,
                 new String[] { String.valueOf(id) });
     }
 
@@ -1137,9 +1722,7 @@ public class MessagesProvider extends ContentProvider {
         ContentValues values = new ContentValues(1);
         values.put(Messages.NEW, Boolean.FALSE);
         return c.update(Messages.CONTENT_URI, values,
-                Messages.NEW + " <> 0 AND " +
-                Messages.DIRECTION + " = " + Messages.DIRECTION_IN,
-                null);
+                SELECTION_NEW_INCOMING, null);
     }
 
     public static int getThreadUnreadCount(Context context, long id) {
@@ -1254,6 +1837,7 @@ public class MessagesProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, "conversations/#", CONVERSATIONS_ID);
         sUriMatcher.addURI(AUTHORITY, TABLE_FULLTEXT, FULLTEXT_ID);
         sUriMatcher.addURI(AUTHORITY, "requests", REQUESTS);
+        sUriMatcher.addURI(AUTHORITY, TABLE_MEDIA, MEDIA);
 
         messagesProjectionMap = new HashMap<String, String>();
         messagesProjectionMap.put(Messages._ID, Messages._ID);
@@ -1300,9 +1884,5 @@ public class MessagesProvider extends ContentProvider {
         threadsProjectionMap.put(Threads.ENCRYPTED, Threads.ENCRYPTED);
         threadsProjectionMap.put(Threads.DRAFT, Threads.DRAFT);
         threadsProjectionMap.put(Threads.REQUEST_STATUS, Threads.REQUEST_STATUS);
-
-        fulltextProjectionMap = new HashMap<String, String>();
-        fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
-        fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
     }
 }
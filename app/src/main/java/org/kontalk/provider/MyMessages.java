@@ -78,13 +78,47 @@ public final class MyMessages {
                     + MessagesProvider.AUTHORITY + "/messages/" + Uri.encode(msgId));
         }
 
+        /**
+         * Full text search. Results are ranked by relevance and have these
+         * columns: message id, thread id, peer, content and snippet.
+         */
         public static final class Fulltext implements BaseColumns {
             public static final Uri CONTENT_URI = Uri.parse("content://"
                     + MessagesProvider.AUTHORITY + "/fulltext");
 
+            /** Search pattern (full text query syntax). */
+            public static final String QUERY_PARAM_PATTERN = "pattern";
+            /** Maximum number of results to return. */
+            public static final String QUERY_PARAM_LIMIT = "limit";
+            /** Number of results to skip. */
+            public static final String QUERY_PARAM_OFFSET = "offset";
+
             public static final String _ID = "rowid";
             public static final String THREAD_ID = "thread_id";
             public static final String CONTENT = "content";
+            /** Peer of the thread (search results only). */
+            public static final String PEER = "peer";
+            /** Matching text with marked terms (search results only). */
+            public static final String SNIPPET = "snippet";
+
+            /** Marks the start of a matched term in a snippet. */
+            public static final char SNIPPET_START = '\u0002';
+            /** Marks the end of a matched term in a snippet. */
+            public static final char SNIPPET_END = '\u0003';
+
+            /**
+             * Builds a search {@link Uri} for a page of results.
+             * @param pattern the search pattern
+             * @param limit maximum number of results
+             * @param offset number of results already loaded
+             */
+            public static Uri getSearchUri(String pattern, int limit, int offset) {
+                return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_PATTERN, pattern)
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAM_OFFSET, String.valueOf(offset))
+                    .build();
+            }
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -112,6 +146,10 @@ public final class MyMessages {
         // not DESC here because the listview is reverse-stacked
         public static final String DEFAULT_SORT_ORDER = _ID;
         public static final String INVERTED_SORT_ORDER = _ID + " DESC";
+        /** Sort order for conversations, paged or not (keyset is timestamp, _id). */
+        public static final String PAGED_SORT_ORDER = TIMESTAMP + ", " + _ID;
+        /** Inverted sort order for conversations (latest message first). */
+        public static final String PAGED_INVERTED_SORT_ORDER = TIMESTAMP + " DESC, " + _ID + " DESC";
     }
 
     /** Threads are just for conversations metadata. */
@@ -136,6 +174,32 @@ public final class MyMessages {
         public static final class Conversations implements BaseColumns {
             public static final Uri CONTENT_URI = Uri
                 .parse("content://" + MessagesProvider.AUTHORITY + "/conversations");
+
+            /** Maximum number of messages to return (most recent first). */
+            public static final String QUERY_PARAM_LIMIT = "limit";
+            /** Return only messages older than this timestamp (requires {@link #QUERY_PARAM_BEFORE_ID}). */
+            public static final String QUERY_PARAM_BEFORE_TIMESTAMP = "before_timestamp";
+            /** Message id to break ties on {@link #QUERY_PARAM_BEFORE_TIMESTAMP}. */
+            public static final String QUERY_PARAM_BEFORE_ID = "before_id";
+
+            /**
+             * Builds a conversation {@link Uri} for a page of messages.
+             * Messages are returned in chronological order.
+             * @param threadId the thread id
+             * @param limit maximum number of messages
+             * @param beforeTimestamp timestamp of the oldest message already loaded
+             * @param beforeId id of the oldest message already loaded, or 0 for the most recent page
+             */
+            public static Uri getPageUri(long threadId, int limit, long beforeTimestamp, long beforeId) {
+                Uri.Builder b = CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(threadId))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit));
+                if (beforeId > 0) {
+                    b.appendQueryParameter(QUERY_PARAM_BEFORE_TIMESTAMP, String.valueOf(beforeTimestamp))
+                        .appendQueryParameter(QUERY_PARAM_BEFORE_ID, String.valueOf(beforeId));
+                }
+                return b.build();
+            }
         }
 
         /** Request represents a presence subscription request. */
@@ -167,4 +231,28 @@ public final class MyMessages {
         public static final String DEFAULT_SORT_ORDER = "timestamp DESC";
         public static final String INVERTED_SORT_ORDER = "timestamp";
     }
+
+    /**
+     * Media files shared by messages, stored by content hash.
+     * Reference counts are maintained by the provider from the preview path
+     * and local URI of messages.
+     */
+    public static final class Media implements BaseColumns {
+        private Media() {}
+
+        public static final Uri CONTENT_URI = Uri.parse("content://"
+                + MessagesProvider.AUTHORITY + "/media");
+
+        /** SHA-1 of the content (hex). */
+        public static final String HASH = "hash";
+        /** Absolute path of the file. */
+        public static final String LOCATION = "location";
+        /** URL the content was downloaded from, if any. */
+        public static final String FETCH_URL = "fetch_url";
+        public static final String LENGTH = "length";
+        /** Number of messages referencing the file. */
+        public static final String REFCOUNT = "refcount";
+        /** Time the file was last stored or looked up. */
+        public static final String TIMESTAMP = "timestamp";
+    }
 }
@@ -0,0 +1,214 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Memoized phone number normalization and hashing.
+ * Entries are valid for a single region code and dial prefix: the caller
+ * is responsible for loading and storing entries for the right ones.
+ * Numbers that can't be normalized are cached too.
+ * @author Daniele Ricci
+ */
+class NumberCache {
+    private static final String TAG = NumberCache.class.getSimpleName();
+
+    /** Minimum number of numbers to normalize for using more threads. */
+    public static final int PARALLEL_THRESHOLD = 200;
+
+    /** Converts a phone number to E.164 format. Must be thread safe. */
+    public interface Normalizer {
+        String normalize(String number) throws Exception;
+    }
+
+    /** A normalized number. */
+    static final class Entry {
+        final String number;
+        final String hash;
+
+        Entry(String number, String hash) {
+            this.number = number;
+            this.hash = hash;
+        }
+    }
+
+    /** Placeholder for numbers that can't be normalized. */
+    private static final Entry INVALID = new Entry(null, null);
+
+    private final Normalizer mNormalizer;
+
+    /** All known numbers. */
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    /** Numbers normalized since creation (to be stored). */
+    private final Map<String, Entry> mAdded = new HashMap<String, Entry>();
+    /** Numbers requested since creation. */
+    private final Map<String, Entry> mUsed = new HashMap<String, Entry>();
+
+    private int mHits;
+    private int mMisses;
+
+    public NumberCache(Normalizer normalizer) {
+        mNormalizer = normalizer;
+    }
+
+    /**
+     * Adds a stored entry.
+     * @param number normalized number, null if it couldn't be normalized
+     */
+    public void put(String raw, String number, String hash) {
+        mEntries.put(raw, (number != null) ? new Entry(number, hash) : INVALID);
+    }
+
+    /**
+     * Returns the normalized number and its hash, normalizing it if needed.
+     * @return the entry, or null if the number can't be normalized
+     */
+    public Entry get(String raw) {
+        Entry e = mEntries.get(raw);
+        if (e != null) {
+            mHits++;
+        }
+        else {
+            mMisses++;
+            e = normalize(raw);
+            mEntries.put(raw, e);
+            mAdded.put(raw, e);
+        }
+        mUsed.put(raw, e);
+        return (e != INVALID) ? e : null;
+    }
+
+    private Entry normalize(String raw) {
+        try {
+            String number = mNormalizer.normalize(raw);
+            return new Entry(number, MessageUtils.sha1(number));
+        }
+        catch (Exception e) {
+            Log.e(TAG, "unable to normalize number: " + raw + " - skipping", e);
+            return INVALID;
+        }
+    }
+
+    /**
+     * Normalizes all the given numbers not already cached, using the given
+     * number of threads if there are enough of them (e.g. on first sync).
+     */
+    public void prefetch(Collection<String> raws, int threads) {
+        final List<String> missing = new ArrayList<String>();
+        for (String raw : new LinkedHashSet<String>(raws)) {
+            if (!mEntries.containsKey(raw))
+                missing.add(raw);
+        }
+
+        if (threads < 2 || missing.size() < PARALLEL_THRESHOLD)
+            return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "NumberCache-" + mCount.incrementAndGet());
+            }
+        });
+
+        try {
+            List<Future<Entry[]>> results = new ArrayList<Future<Entry[]>>(threads);
+            int size = (missing.size() + threads - 1) / threads;
+            for (int i = 0; i < missing.size(); i += size) {
+                final List<String> chunk = missing.subList(i, Math.min(i + size, missing.size()));
+                results.add(executor.submit(new Callable<Entry[]>() {
+                    public Entry[] call() {
+                        Entry[] entries = new Entry[chunk.size()];
+                        for (int j = 0; j < entries.length; j++)
+                            entries[j] = normalize(chunk.get(j));
+                        return entries;
+                    }
+                }));
+            }
+
+            int i = 0;
+            for (Future<Entry[]> result : results) {
+                for (Entry e : result.get()) {
+                    String raw = missing.get(i++);
+                    mEntries.put(raw, e);
+                    mAdded.put(raw, e);
+                }
+            }
+            mMisses += missing.size();
+        }
+        catch (InterruptedException e) {
+            // numbers will be normalized when needed
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // numbers will be normalized when needed
+            Log.w(TAG, "parallel normalization failed", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Returns the entries normalized since creation (null number if invalid). */
+    public Map<String, Entry> getAdded() {
+        return mAdded;
+    }
+
+    /** Returns the entries requested since creation (null number if invalid). */
+    public Map<String, Entry> getUsed() {
+        return mUsed;
+    }
+
+    /** Returns the number of cached entries. */
+    public int size() {
+        return mEntries.size();
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+
+/**
+ * A bounded cache of parsed public keys.
+ * Keys are cached by JID (trusted and current key separately); parsed key
+ * rings are shared by fingerprint, so the same key is parsed only once.
+ * Users without a key are cached too.
+ * Every invalidation increments a generation counter: a key read from the
+ * database before an invalidation is not cached, since it might be stale.
+ * @author Daniele Ricci
+ */
+class PublicKeyCache {
+
+    /** Default maximum number of users. */
+    public static final int DEFAULT_SIZE = 64;
+
+    /** A cached key (ring is null if the user has no key). */
+    static final class Entry {
+        final String fingerprint;
+        final PGPPublicKeyRing ring;
+
+        Entry(String fingerprint, PGPPublicKeyRing ring) {
+            this.fingerprint = fingerprint;
+            this.ring = ring;
+        }
+    }
+
+    private final int mMaxSize;
+
+    /** Cached keys by JID (access order). */
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    /** Incremented on every invalidation. */
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    public PublicKeyCache(final int maxSize) {
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    private static String key(String jid, boolean trusted) {
+        return trusted ? ("t:" + jid) : ("u:" + jid);
+    }
+
+    /** Returns the cached entry for a user, or null if not cached. */
+    public synchronized Entry get(String jid, boolean trusted) {
+        Entry e = mEntries.get(key(jid, trusted));
+        if (e != null)
+            mHits++;
+        else
+            mMisses++;
+        return e;
+    }
+
+    /** Returns an already parsed key ring with the given fingerprint. */
+    public synchronized PGPPublicKeyRing getByFingerprint(String fingerprint) {
+        if (fingerprint != null) {
+            for (Entry e : mEntries.values()) {
+                if (e.ring != null && fingerprint.equalsIgnoreCase(e.fingerprint))
+                    return e.ring;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the current generation, to be read before loading a key. */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a key loaded when the cache was at the given generation.
+     * @return false if the cache was invalidated meanwhile (key not cached)
+     */
+    public synchronized boolean put(String jid, boolean trusted, String fingerprint,
+            PGPPublicKeyRing ring, long generation) {
+        if (generation != mGeneration)
+            return false;
+
+        mEntries.put(key(jid, trusted), new Entry(fingerprint, ring));
+        return true;
+    }
+
+    /** Removes both keys of a user. */
+    public synchronized void invalidate(String jid) {
+        mGeneration++;
+        mEntries.remove(key(jid, true));
+        mEntries.remove(key(jid, false));
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+}
@@ -19,7 +19,13 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.jxmpp.util.XmppStringUtils;
 import org.spongycastle.openpgp.PGPException;
@@ -33,6 +39,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
@@ -40,10 +47,12 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.kontalk.BuildConfig;
@@ -54,7 +63,6 @@ import org.kontalk.client.EndpointServer;
 import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGP;
-import org.kontalk.crypto.PGPCoder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Keys;
@@ -68,11 +76,13 @@ import org.kontalk.util.XMPPUtils;
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 10;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
     private static final String TABLE_KEYS = "keys";
+    private static final String TABLE_RAW_CONTACTS = "raw_contacts";
+    private static final String TABLE_NUMBERS = "numbers";
 
     private static final int USERS = 1;
     private static final int USERS_JID = 2;
@@ -81,9 +91,44 @@ public class UsersProvider extends ContentProvider {
 
     private DatabaseHelper dbHelper;
     private static final UriMatcher sUriMatcher;
+
+    /** Parsed public keys cache. */
+    private static final PublicKeyCache sKeyCache = new PublicKeyCache(PublicKeyCache.DEFAULT_SIZE);
+    /** Ready to use coders. */
+    private static final CoderPool sCoderPool = new CoderPool(CoderPool.DEFAULT_SIZE);
     private static HashMap<String, String> usersProjectionMap;
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    /** A full resync is done at least this often (e.g. for changes in visible groups). */
+    private static final long FULL_RESYNC_INTERVAL = 86400000;
+
+    /** Maximum number of ids in a SQL IN clause. */
+    private static final int MAX_CHUNK_SIZE = 500;
+
+    /** Matches identical rows of the users tables. */
+    private static String sameUser(String a, String b) {
+        StringBuilder where = new StringBuilder(a + "._id = " + b + "._id");
+        for (String column : new String[] { "hash", "number", "display_name", "jid",
+                "lookup_key", "contact_id", "registered", "status", "last_seen",
+                "public_key", "fingerprint", "blocked", "raw_contact_id" }) {
+            where.append(" AND ").append(a).append('.').append(column)
+                .append(" IS ").append(b).append('.').append(column);
+        }
+        return where.toString();
+    }
+
+    /**
+     * Copies the offline table over the users table, writing only the
+     * rows that actually changed.
+     */
+    static final String[] COMMIT_OFFLINE = {
+        "DELETE FROM " + TABLE_USERS + " WHERE NOT EXISTS (SELECT 1 FROM " +
+            TABLE_USERS_OFFLINE + " o WHERE " + sameUser("o", TABLE_USERS) + ")",
+        "INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE +
+            " o WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_USERS + " WHERE " +
+            sameUser("o", TABLE_USERS) + ")",
+    };
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
         private static final String CREATE_TABLE_USERS = "(" +
             "_id INTEGER PRIMARY KEY," +
             "hash TEXT NOT NULL UNIQUE," +
@@ -97,7 +142,8 @@ public class UsersProvider extends ContentProvider {
             "last_seen INTEGER," +
             "public_key BLOB," +
             "fingerprint TEXT," +
-            "blocked INTEGER NOT NULL DEFAULT 0" +
+            "blocked INTEGER NOT NULL DEFAULT 0," +
+            "raw_contact_id INTEGER" +
             ")";
 
         /** This table will contain all the users in contact list .*/
@@ -117,11 +163,71 @@ public class UsersProvider extends ContentProvider {
         private static final String SCHEMA_KEYS =
             "CREATE TABLE " + TABLE_KEYS + " " + CREATE_TABLE_KEYS;
 
+        /**
+         * Raw contacts as of the last resync, one row for each phone number
+         * (or one row with no hash for raw contacts without numbers).
+         */
+        private static final String SCHEMA_RAW_CONTACTS =
+            "CREATE TABLE " + TABLE_RAW_CONTACTS + " (" +
+            "raw_contact_id INTEGER NOT NULL," +
+            "version INTEGER NOT NULL," +
+            "contact_id INTEGER," +
+            "hash TEXT" +
+            ")";
+
+        /**
+         * Normalized phone numbers and their hashes (number is null for
+         * invalid numbers). Rows are valid only for their region and dial
+         * prefix (empty string if not set).
+         */
+        private static final String SCHEMA_NUMBERS =
+            "CREATE TABLE " + TABLE_NUMBERS + " (" +
+            "raw TEXT NOT NULL," +
+            "region TEXT NOT NULL," +
+            "dial_prefix TEXT NOT NULL," +
+            "number TEXT," +
+            "hash TEXT," +
+            "PRIMARY KEY (raw, region, dial_prefix)" +
+            ")";
+
+        private static final String SCHEMA_RAW_CONTACTS_ID_IDX =
+            "CREATE INDEX raw_contacts_id_idx ON " + TABLE_RAW_CONTACTS + " (raw_contact_id)";
+        private static final String SCHEMA_RAW_CONTACTS_HASH_IDX =
+            "CREATE INDEX raw_contacts_hash_idx ON " + TABLE_RAW_CONTACTS + " (hash)";
+        private static final String SCHEMA_USERS_OFFLINE_RAW_CONTACT_IDX =
+            "CREATE INDEX users_offline_raw_contact_idx ON " + TABLE_USERS_OFFLINE + " (raw_contact_id)";
+
+        static final String[] SCHEMA_CREATE = {
+            SCHEMA_USERS,
+            SCHEMA_USERS_OFFLINE,
+            SCHEMA_KEYS,
+            SCHEMA_RAW_CONTACTS,
+            SCHEMA_RAW_CONTACTS_ID_IDX,
+            SCHEMA_RAW_CONTACTS_HASH_IDX,
+            SCHEMA_USERS_OFFLINE_RAW_CONTACT_IDX,
+            SCHEMA_NUMBERS,
+        };
+
         private static final String[] SCHEMA_UPGRADE_V7 = {
             SCHEMA_KEYS,
             "INSERT INTO " + TABLE_KEYS + " SELECT jid, public_key, fingerprint FROM " + TABLE_USERS,
         };
 
+        /** Track raw contacts for incremental resync (next resync will be a full one). */
+        private static final String[] SCHEMA_UPGRADE_V8 = {
+            "ALTER TABLE " + TABLE_USERS + " ADD COLUMN raw_contact_id INTEGER",
+            "ALTER TABLE " + TABLE_USERS_OFFLINE + " ADD COLUMN raw_contact_id INTEGER",
+            SCHEMA_RAW_CONTACTS,
+            SCHEMA_RAW_CONTACTS_ID_IDX,
+            SCHEMA_RAW_CONTACTS_HASH_IDX,
+            SCHEMA_USERS_OFFLINE_RAW_CONTACT_IDX,
+        };
+
+        /** Normalized numbers cache. */
+        private static final String[] SCHEMA_UPGRADE_V9 = {
+            SCHEMA_NUMBERS,
+        };
+
         // any upgrade - just replace the table
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -130,6 +236,13 @@ public class UsersProvider extends ContentProvider {
             SCHEMA_USERS_OFFLINE,
             "DROP TABLE IF EXISTS " + TABLE_KEYS,
             SCHEMA_KEYS,
+            "DROP TABLE IF EXISTS " + TABLE_RAW_CONTACTS,
+            SCHEMA_RAW_CONTACTS,
+            SCHEMA_RAW_CONTACTS_ID_IDX,
+            SCHEMA_RAW_CONTACTS_HASH_IDX,
+            SCHEMA_USERS_OFFLINE_RAW_CONTACT_IDX,
+            "DROP TABLE IF EXISTS " + TABLE_NUMBERS,
+            SCHEMA_NUMBERS,
         };
 
         private Context mContext;
@@ -146,9 +259,8 @@ public class UsersProvider extends ContentProvider {
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL(SCHEMA_USERS);
-            db.execSQL(SCHEMA_USERS_OFFLINE);
-            db.execSQL(SCHEMA_KEYS);
+            for (String sql : SCHEMA_CREATE)
+                db.execSQL(sql);
             mNew = true;
         }
 
@@ -159,6 +271,14 @@ public class UsersProvider extends ContentProvider {
                     // create keys table and trust anyone
                     for (String sql : SCHEMA_UPGRADE_V7)
                         db.execSQL(sql);
+                    // fall through
+                case 8:
+                    for (String sql : SCHEMA_UPGRADE_V8)
+                        db.execSQL(sql);
+                    // fall through
+                case 9:
+                    for (String sql : SCHEMA_UPGRADE_V9)
+                        db.execSQL(sql);
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
@@ -322,8 +442,10 @@ public class UsersProvider extends ContentProvider {
         boolean commit = Boolean.parseBoolean(uri.getQueryParameter(Users.COMMIT));
 
         if (isResync) {
-            if (!bootstrap || dbHelper.isNew())
+            if (!bootstrap || dbHelper.isNew()) {
+                invalidateAllKeys();
                 return resync(commit);
+            }
             return 0;
         }
 
@@ -345,6 +467,7 @@ public class UsersProvider extends ContentProvider {
 
     private int updateUser(ContentValues values, boolean offline, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        invalidateKeys(values, selection, selectionArgs);
 
         int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, values, selection, selectionArgs);
         if (rc == 0) {
@@ -367,10 +490,42 @@ public class UsersProvider extends ContentProvider {
         return db.update(TABLE_KEYS, values, selection, selectionArgs);
     }
 
-    /** Triggers a complete resync of the users database. */
+    /**
+     * Drops cached keys that might be affected by a write to the users table
+     * (e.g. keys received through presence or sync).
+     */
+    private static void invalidateKeys(ContentValues values, String selection, String[] selectionArgs) {
+        if (!values.containsKey(Users.PUBLIC_KEY))
+            return;
+
+        String jid = values.getAsString(Users.JID);
+        if (jid == null && selection != null && selectionArgs != null && selectionArgs.length == 1 &&
+                selection.replace(" ", "").equals(Users.JID + "=?"))
+            jid = selectionArgs[0];
+
+        if (jid != null)
+            invalidateKey(jid);
+        else
+            invalidateAllKeys();
+    }
+
+    /**
+     * Drops the cached keys of a user. Pooled coders are dropped too, since
+     * they might hold the old key or its trust level.
+     */
+    private static void invalidateKey(String jid) {
+        sKeyCache.invalidate(jid);
+        sCoderPool.clear();
+    }
+
+    /** Drops all cached keys and pooled coders. */
+    private static void invalidateAllKeys() {
+        sKeyCache.clear();
+        sCoderPool.clear();
+    }
+
+    /** Triggers a resync of the users database. */
     private int resync(boolean commit) {
-        Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         // begin transaction
@@ -379,9 +534,13 @@ public class UsersProvider extends ContentProvider {
 
         if (commit) {
             try {
-                // copy contents from offline
-                db.execSQL("DELETE FROM " + TABLE_USERS);
-                db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
+                // apply changes from offline
+                long rows = 0;
+                for (String sql : COMMIT_OFFLINE) {
+                    db.execSQL(sql);
+                    rows += DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+                }
+                Log.d(SyncAdapter.TAG, "users table committed (" + rows + " rows written)");
                 // time to invalidate contacts cache
                 Contact.invalidate();
                 success = setTransactionSuccessful(db);
@@ -397,48 +556,475 @@ public class UsersProvider extends ContentProvider {
             return 0;
         }
         else {
+            Context context = getContext();
+            String signature = getSyncSignature(context);
             int count = 0;
 
-            // delete old users content
             try {
-                db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE);
+                long start = SystemClock.elapsedRealtime();
+                // region is the same for all numbers
+                final String region = NumberValidator.getRegionCode(context,
+                    Authenticator.getDefaultAccountName(context));
+                String dialPrefix = Preferences.getDialPrefix(context);
+                NumberCache numbers = loadNumberCache(db, new NumberCache.Normalizer() {
+                    public String normalize(String number) throws Exception {
+                        return NumberValidator.fixNumber(number, region, 0);
+                    }
+                }, region, dialPrefix);
+
+                Map<Long, long[]> current = queryRawContacts(context);
+                Map<Long, long[]> previous = loadRawContacts(db);
+
+                // raw contacts to be processed again (null: all of them)
+                Set<Long> changed = null;
+                if (current != null && !previous.isEmpty() &&
+                        signature.equals(Preferences.getContactsSyncSignature(context))) {
+                    changed = diffRawContacts(previous, current);
+                    // too many changes: full resync is faster
+                    if (changed.size() > current.size() / 2)
+                        changed = null;
+                }
+
+                if (changed == null)
+                    count = resyncAll(db, context, numbers, current);
+                else
+                    count = resyncChanged(db, context, numbers, current, changed);
+
+                saveNumberCache(db, numbers, region, dialPrefix, changed == null);
+
+                Log.d(SyncAdapter.TAG, ((changed == null) ? "full" : "incremental") +
+                    " users resync: " + ((changed == null) ? "all" : String.valueOf(changed.size())) +
+                    " raw contacts processed, " + count + " rows written in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms (numbers cache: " +
+                    numbers.getHitCount() + " hits, " + numbers.getMissCount() + " misses)");
+
+                success = setTransactionSuccessful(db);
             }
-            catch (SQLException e) {
-                // table might not exist - create it! (shouldn't happen since version 4)
-                db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
+            finally {
+                endTransaction(db, success);
             }
 
-            // we are trying to be fast here
-            SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
-                " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint)" +
-                " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            if (success)
+                Preferences.setContactsSyncSignature(context, signature);
+            return count;
+        }
+    }
 
-            Cursor phones = null;
-            String dialPrefix = Preferences.getDialPrefix(context);
-            int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+    /**
+     * Loads the normalized numbers cache for the given region and dial
+     * prefix. Entries for other regions or dial prefixes are deleted.
+     */
+    private static NumberCache loadNumberCache(SQLiteDatabase db, NumberCache.Normalizer normalizer,
+            String region, String dialPrefix) {
+        String[] args = { region != null ? region : "", dialPrefix != null ? dialPrefix : "" };
+        db.delete(TABLE_NUMBERS, "region <> ? OR dial_prefix <> ?", args);
+
+        NumberCache cache = new NumberCache(normalizer);
+        Cursor c = db.rawQuery("SELECT raw, number, hash FROM " + TABLE_NUMBERS +
+            " WHERE region = ? AND dial_prefix = ?", args);
+        try {
+            while (c.moveToNext())
+                cache.put(c.getString(0), c.getString(1), c.getString(2));
+        }
+        finally {
+            c.close();
+        }
+        return cache;
+    }
 
-            try {
-                String where = !Preferences.getSyncInvisibleContacts(context) ?
-                    ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
-                    "";
-
-                // query for phone numbers
-                phones = cr.query(Phone.CONTENT_URI,
-                    new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
-                    where + " (" +
-                    // this will filter out RawContacts from Kontalk
-                    RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
-                    RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
-                    new String[] {
-                        Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
-                    }, null);
+    /**
+     * Stores the numbers normalized during a resync.
+     * @param full true to keep only the numbers used (after a full resync)
+     */
+    private static void saveNumberCache(SQLiteDatabase db, NumberCache cache,
+            String region, String dialPrefix, boolean full) {
+        if (full)
+            db.execSQL("DELETE FROM " + TABLE_NUMBERS);
+
+        Map<String, NumberCache.Entry> entries = full ? cache.getUsed() : cache.getAdded();
+        SQLiteStatement stm = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NUMBERS +
+            " (raw, region, dial_prefix, number, hash) VALUES(?, ?, ?, ?, ?)");
+        try {
+            for (Map.Entry<String, NumberCache.Entry> e : entries.entrySet()) {
+                NumberCache.Entry entry = e.getValue();
+                stm.clearBindings();
+                stm.bindString(1, e.getKey());
+                stm.bindString(2, region != null ? region : "");
+                stm.bindString(3, dialPrefix != null ? dialPrefix : "");
+                if (entry.number != null) {
+                    stm.bindString(4, entry.number);
+                    stm.bindString(5, entry.hash);
+                }
+                else {
+                    stm.bindNull(4);
+                    stm.bindNull(5);
+                }
+                stm.executeInsert();
+            }
+        }
+        finally {
+            stm.close();
+        }
+    }
 
-                if (phones != null) {
+    /**
+     * Returns a string identifying all the settings affecting the users
+     * table contents: if any of them changes, a full resync is needed.
+     */
+    private static String getSyncSignature(Context context) {
+        String domain;
+        try {
+            domain = XMPPUtils.createLocalJID(context, "");
+        }
+        catch (IllegalArgumentException e) {
+            domain = null;
+        }
+
+        return Preferences.getDialPrefix(context) + "|" +
+            Preferences.getSyncInvisibleContacts(context) + "|" +
+            Authenticator.getDefaultAccountName(context) + "|" +
+            domain + "|" +
+            // changes when a full resync is due
+            (System.currentTimeMillis() / FULL_RESYNC_INTERVAL);
+    }
+
+    /**
+     * Queries version and contact of all raw contacts not created by us.
+     * @return raw contacts by id, or null if the query failed
+     */
+    private static Map<Long, long[]> queryRawContacts(Context context) {
+        Cursor c = context.getContentResolver().query(RawContacts.CONTENT_URI,
+            new String[] { RawContacts._ID, RawContacts.VERSION, RawContacts.CONTACT_ID },
+            RawContacts.DELETED + "=0 AND (" +
+            RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+            RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
+            new String[] {
+                Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
+            }, null);
+
+        if (c == null)
+            return null;
+
+        Map<Long, long[]> rawContacts = new HashMap<Long, long[]>(c.getCount());
+        try {
+            while (c.moveToNext())
+                rawContacts.put(c.getLong(0), new long[] { c.getLong(1), c.getLong(2) });
+        }
+        finally {
+            c.close();
+        }
+        return rawContacts;
+    }
+
+    /** Loads version and contact of raw contacts as of the last resync. */
+    private static Map<Long, long[]> loadRawContacts(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT raw_contact_id, version, contact_id FROM " +
+            TABLE_RAW_CONTACTS + " GROUP BY raw_contact_id", null);
+
+        Map<Long, long[]> rawContacts = new HashMap<Long, long[]>(c.getCount());
+        try {
+            while (c.moveToNext())
+                rawContacts.put(c.getLong(0), new long[] { c.getLong(1), c.getLong(2) });
+        }
+        finally {
+            c.close();
+        }
+        return rawContacts;
+    }
+
+    /**
+     * Returns the raw contacts added, modified (or moved to another contact)
+     * or deleted since the last resync.
+     */
+    static Set<Long> diffRawContacts(Map<Long, long[]> previous, Map<Long, long[]> current) {
+        Set<Long> changed = new HashSet<Long>();
+        for (Map.Entry<Long, long[]> e : current.entrySet()) {
+            long[] old = previous.get(e.getKey());
+            if (old == null || old[0] != e.getValue()[0] || old[1] != e.getValue()[1])
+                changed.add(e.getKey());
+        }
+        for (Long id : previous.keySet()) {
+            if (!current.containsKey(id))
+                changed.add(id);
+        }
+        return changed;
+    }
+
+    /**
+     * Rebuilds the offline table from scratch.
+     * @param current raw contacts to track for the next resync (may be null)
+     * @return number of rows written
+     */
+    private int resyncAll(SQLiteDatabase db, Context context, NumberCache numbers, Map<Long, long[]> current) {
+        // delete old users content
+        try {
+            db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE);
+        }
+        catch (SQLException e) {
+            // table might not exist - create it! (shouldn't happen since version 4)
+            db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
+        }
+        db.execSQL("DELETE FROM " + TABLE_RAW_CONTACTS);
+
+        String where = !Preferences.getSyncInvisibleContacts(context) ?
+            ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
+            "";
+
+        Set<Long> tracked = (current != null) ? current.keySet() : Collections.<Long>emptySet();
+        return insertPhones(db, context, numbers, where, current, tracked) +
+            insertUntracked(db, context, numbers);
+    }
+
+    /**
+     * Updates the offline table with the given changed raw contacts only.
+     * @return number of rows written
+     */
+    private int resyncChanged(SQLiteDatabase db, Context context, NumberCache numbers,
+            Map<Long, long[]> current, Set<Long> changed) {
+        int count = 0;
+
+        // numbers of changed contacts might be shared with unchanged ones
+        Set<Long> process = new HashSet<Long>(changed);
+        for (List<Long> chunk : chunks(changed)) {
+            Cursor c = db.rawQuery("SELECT DISTINCT s.raw_contact_id FROM " + TABLE_RAW_CONTACTS + " s, " +
+                TABLE_RAW_CONTACTS + " r WHERE r.raw_contact_id IN (" + TextUtils.join(",", chunk) + ")" +
+                " AND s.hash = r.hash AND s.raw_contact_id <> r.raw_contact_id", null);
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                if (current.containsKey(id))
+                    process.add(id);
+            }
+            c.close();
+        }
+
+        for (List<Long> chunk : chunks(process)) {
+            String ids = TextUtils.join(",", chunk);
+            db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE + " WHERE raw_contact_id IN (" + ids + ")");
+            count += DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+            db.execSQL("DELETE FROM " + TABLE_RAW_CONTACTS + " WHERE raw_contact_id IN (" + ids + ")");
+        }
+
+        // SIM contacts and our own number are always rebuilt
+        db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE + " WHERE raw_contact_id IS NULL");
+        count += DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+
+        // registration data of unchanged contacts is kept: the sync will
+        // update it and clear it for users not registered any more
+
+        String visible = !Preferences.getSyncInvisibleContacts(context) ?
+            ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
+            "";
+
+        Set<Long> tracked = new HashSet<Long>(process);
+        tracked.retainAll(current.keySet());
+        for (List<Long> chunk : chunks(tracked)) {
+            String where = visible + Phone.RAW_CONTACT_ID + " IN (" + TextUtils.join(",", chunk) + ") AND ";
+            count += insertPhones(db, context, numbers, where, current, new HashSet<Long>(chunk));
+        }
+
+        return count + insertUntracked(db, context, numbers);
+    }
+
+    /** Splits a set of ids in chunks small enough for a SQL IN clause. */
+    private static List<List<Long>> chunks(Set<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<List<Long>>();
+        List<Long> chunk = null;
+        for (Long id : ids) {
+            if (chunk == null || chunk.size() >= MAX_CHUNK_SIZE) {
+                chunk = new ArrayList<Long>(MAX_CHUNK_SIZE);
+                chunks.add(chunk);
+            }
+            chunk.add(id);
+        }
+        return chunks;
+    }
+
+    /**
+     * Inserts phone numbers from the contacts provider into the offline table.
+     * Numbers not cached yet are normalized in parallel if there are many
+     * of them (e.g. first sync).
+     * @param where selection for phone numbers (must end with AND)
+     * @param current raw contacts version and contact (may be null)
+     * @param tracked raw contacts to track for the next resync
+     * @return number of rows written
+     */
+    private int insertPhones(SQLiteDatabase db, Context context, NumberCache numbers, String where,
+            Map<Long, long[]> current, Set<Long> tracked) {
+        int count = 0;
+
+        // we are trying to be fast here
+        SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
+            " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint, raw_contact_id)" +
+            " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement state = db.compileStatement("INSERT INTO " + TABLE_RAW_CONTACTS +
+            " (raw_contact_id, version, contact_id, hash) VALUES(?, ?, ?, ?)");
+
+        Cursor phones = null;
+        String dialPrefix = Preferences.getDialPrefix(context);
+        int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+        Set<Long> found = new HashSet<Long>();
+
+        try {
+            // query for phone numbers
+            phones = context.getContentResolver().query(Phone.CONTENT_URI,
+                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, Phone.RAW_CONTACT_ID },
+                where + " (" +
+                // this will filter out RawContacts from Kontalk
+                RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+                RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
+                new String[] {
+                    Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
+                }, null);
+
+            if (phones != null) {
+                if (phones.getCount() >= NumberCache.PARALLEL_THRESHOLD) {
+                    List<String> raws = new ArrayList<String>(phones.getCount());
                     while (phones.moveToNext()) {
                         String number = phones.getString(0);
-                        String name = phones.getString(1);
+                        if (number != null) {
+                            if (dialPrefix != null && number.startsWith(dialPrefix))
+                                number = number.substring(dialPrefixLen);
+                            if (number.length() >= 4)
+                                raws.add(number);
+                        }
+                    }
+                    numbers.prefetch(raws, Runtime.getRuntime().availableProcessors());
+                    phones.moveToPosition(-1);
+                }
+
+                while (phones.moveToNext()) {
+                    String number = phones.getString(0);
+                    String name = phones.getString(1);
+                    long rawContactId = phones.getLong(4);
+
+                    // buggy provider - skip entry
+                    if (name == null || number == null)
+                        continue;
+
+                    // remove dial prefix first
+                    if (dialPrefix != null && number.startsWith(dialPrefix))
+                        number = number.substring(dialPrefixLen);
+
+                    // a phone number with less than 4 digits???
+                    if (number.length() < 4)
+                        continue;
+
+                    // fix number
+                    NumberCache.Entry fixed = numbers.get(number);
+                    // skip invalid number
+                    if (fixed == null)
+                        continue;
+
+                    number = fixed.number;
+                    String hash = fixed.hash;
+                    try {
+                        stm.clearBindings();
+                        stm.bindString(1, hash);
+                        stm.bindString(2, number);
+                        stm.bindString(3, XMPPUtils.createLocalJID(getContext(), hash));
+                        stm.bindString(4, name);
+                        stm.bindString(5, phones.getString(2));
+                        stm.bindLong(6, phones.getLong(3));
+                        stm.bindLong(7, 0);
+                        stm.bindNull(8);
+                        stm.bindNull(9);
+                        stm.bindLong(10, rawContactId);
+                        stm.executeInsert();
+                        count++;
+                    }
+                    catch (IllegalArgumentException iae) {
+                        Log.w(SyncAdapter.TAG, "doing sync with no server?");
+                    }
+                    catch (SQLiteConstraintException sqe) {
+                        // skip duplicate number
+                    }
+
+                    // track the number even if duplicated
+                    if (current != null && tracked.contains(rawContactId)) {
+                        insertRawContact(state, rawContactId, current.get(rawContactId), hash);
+                        found.add(rawContactId);
+                    }
+                }
+            }
+            else {
+                Log.e(SyncAdapter.TAG, "query to contacts failed!");
+            }
+
+            // track raw contacts without numbers too
+            if (current != null) {
+                for (Long rawContactId : tracked) {
+                    if (!found.contains(rawContactId))
+                        insertRawContact(state, rawContactId, current.get(rawContactId), null);
+                }
+            }
+        }
+        finally {
+            if (phones != null)
+                phones.close();
+            stm.close();
+            state.close();
+        }
 
-                        // buggy provider - skip entry
+        return count;
+    }
+
+    private static void insertRawContact(SQLiteStatement stm, long rawContactId, long[] data, String hash) {
+        stm.clearBindings();
+        stm.bindLong(1, rawContactId);
+        stm.bindLong(2, data[0]);
+        stm.bindLong(3, data[1]);
+        if (hash != null)
+            stm.bindString(4, hash);
+        else
+            stm.bindNull(4);
+        stm.executeInsert();
+    }
+
+    /**
+     * Inserts entries not tracked by raw contact (SIM contacts and our own
+     * number) into the offline table.
+     * @return number of rows written
+     */
+    private int insertUntracked(SQLiteDatabase db, Context context, NumberCache numbers) {
+        int count = 0;
+
+        SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
+            " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint)" +
+            " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+        Cursor phones = null;
+        String dialPrefix = Preferences.getDialPrefix(context);
+        int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+
+        try {
+            if (Preferences.getSyncSIMContacts(getContext())) {
+                // query for SIM contacts
+                // column selection doesn't work because of a bug in Android
+                // TODO this is a bit unclear...
+                try {
+                    phones = context.getContentResolver().query(Uri.parse("content://icc/adn/"),
+                        null, null, null, null);
+                }
+                catch (Exception e) {
+                    /*
+                    On some phones:
+                    java.lang.NullPointerException
+                        at android.os.Parcel.readException(Parcel.java:1431)
+                        at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:185)
+                        at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:137)
+                        at android.content.ContentProviderProxy.query(ContentProviderNative.java:366)
+                        at android.content.ContentResolver.query(ContentResolver.java:372)
+                        at android.content.ContentResolver.query(ContentResolver.java:315)
+                     */
+                    Log.w(SyncAdapter.TAG, "unable to retrieve SIM contacts", e);
+                    phones = null;
+                }
+
+                if (phones != null) {
+                    while (phones.moveToNext()) {
+                        String name = phones.getString(phones.getColumnIndex("name"));
+                        String number = phones.getString(phones.getColumnIndex("number"));
+                        // buggy firmware - skip entry
                         if (name == null || number == null)
                             continue;
 
@@ -451,26 +1037,22 @@ public class UsersProvider extends ContentProvider {
                             continue;
 
                         // fix number
-                        try {
-                            number = NumberValidator.fixNumber(context, number,
-                                Authenticator.getDefaultAccountName(context), 0);
-                        }
-                        catch (Exception e) {
-                            Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                            // skip number
+                        NumberCache.Entry fixed = numbers.get(number);
+                        // skip invalid number
+                        if (fixed == null)
                             continue;
-                        }
 
+                        number = fixed.number;
                         try {
-                            String hash = MessageUtils.sha1(number);
+                            String hash = fixed.hash;
 
                             stm.clearBindings();
                             stm.bindString(1, hash);
                             stm.bindString(2, number);
                             stm.bindString(3, XMPPUtils.createLocalJID(getContext(), hash));
                             stm.bindString(4, name);
-                            stm.bindString(5, phones.getString(2));
-                            stm.bindLong(6, phones.getLong(3));
+                            stm.bindNull(5);
+                            stm.bindLong(6, phones.getLong(phones.getColumnIndex(BaseColumns._ID)));
                             stm.bindLong(7, 0);
                             stm.bindNull(8);
                             stm.bindNull(9);
@@ -484,144 +1066,61 @@ public class UsersProvider extends ContentProvider {
                             // skip duplicate number
                         }
                     }
-
-                    phones.close();
-                }
-                else {
-                    Log.e(SyncAdapter.TAG, "query to contacts failed!");
-                }
-
-                if (Preferences.getSyncSIMContacts(getContext())) {
-                    // query for SIM contacts
-                    // column selection doesn't work because of a bug in Android
-                    // TODO this is a bit unclear...
-                    try {
-                        phones = cr.query(Uri.parse("content://icc/adn/"),
-                            null, null, null, null);
-                    }
-                    catch (Exception e) {
-                        /*
-                        On some phones:
-                        java.lang.NullPointerException
-                            at android.os.Parcel.readException(Parcel.java:1431)
-                            at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:185)
-                            at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:137)
-                            at android.content.ContentProviderProxy.query(ContentProviderNative.java:366)
-                            at android.content.ContentResolver.query(ContentResolver.java:372)
-                            at android.content.ContentResolver.query(ContentResolver.java:315)
-                         */
-                        Log.w(SyncAdapter.TAG, "unable to retrieve SIM contacts", e);
-                        phones = null;
-                    }
-
-                    if (phones != null) {
-                        while (phones.moveToNext()) {
-                            String name = phones.getString(phones.getColumnIndex("name"));
-                            String number = phones.getString(phones.getColumnIndex("number"));
-                            // buggy firmware - skip entry
-                            if (name == null || number == null)
-                                continue;
-
-                            // remove dial prefix first
-                            if (dialPrefix != null && number.startsWith(dialPrefix))
-                                number = number.substring(dialPrefixLen);
-
-                            // a phone number with less than 4 digits???
-                            if (number.length() < 4)
-                                continue;
-
-                            // fix number
-                            try {
-                                number = NumberValidator.fixNumber(context, number,
-                                        Authenticator.getDefaultAccountName(context), 0);
-                            }
-                            catch (Exception e) {
-                                Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                                // skip number
-                                continue;
-                            }
-
-                            try {
-                                String hash = MessageUtils.sha1(number);
-
-                                stm.clearBindings();
-                                stm.bindString(1, hash);
-                                stm.bindString(2, number);
-                                stm.bindString(3, XMPPUtils.createLocalJID(getContext(), hash));
-                                stm.bindString(4, name);
-                                stm.bindNull(5);
-                                stm.bindLong(6, phones.getLong(phones.getColumnIndex(BaseColumns._ID)));
-                                stm.bindLong(7, 0);
-                                stm.bindNull(8);
-                                stm.bindNull(9);
-                                stm.executeInsert();
-                                count++;
-                            }
-                            catch (IllegalArgumentException iae) {
-                                Log.w(SyncAdapter.TAG, "doing sync with no server?");
-                            }
-                            catch (SQLiteConstraintException sqe) {
-                                // skip duplicate number
-                            }
-                        }
-                    }
-                }
-
-                // try to add account number with display name
-                String ownNumber = Authenticator.getDefaultAccountName(getContext());
-                String ownName = Authenticator.getDefaultDisplayName(getContext());
-                String fingerprint = null;
-                byte[] publicKeyData = null;
-                try {
-                    PersonalKey myKey = ((Kontalk) getContext().getApplicationContext())
-                        .getPersonalKey();
-                    if (myKey != null) {
-                        fingerprint = myKey.getFingerprint();
-                        publicKeyData = myKey.getEncodedPublicKeyRing();
-                    }
                 }
-                catch (Exception e) {
-                    Log.w(SyncAdapter.TAG, "unable to load personal key", e);
-                }
-                try {
-                    String hash = MessageUtils.sha1(ownNumber);
+            }
 
-                    stm.clearBindings();
-                    stm.bindString(1, hash);
-                    stm.bindString(2, ownNumber);
-                    stm.bindString(3, XMPPUtils.createLocalJID(getContext(), hash));
-                    stm.bindString(4, ownName);
-                    stm.bindNull(5);
-                    stm.bindNull(6);
-                    stm.bindLong(7, 1);
-                    if (fingerprint != null)
-                        stm.bindString(8, fingerprint);
-                    else
-                        stm.bindNull(8);
-                    if (publicKeyData != null)
-                        stm.bindBlob(9, publicKeyData);
-                    else
-                        stm.bindNull(9);
-                    stm.executeInsert();
-                    count++;
-                }
-                catch (IllegalArgumentException iae) {
-                    Log.w(SyncAdapter.TAG, "doing sync with no server?");
-                }
-                catch (SQLiteConstraintException sqe) {
-                    // skip duplicate number
+            // try to add account number with display name
+            String ownNumber = Authenticator.getDefaultAccountName(getContext());
+            String ownName = Authenticator.getDefaultDisplayName(getContext());
+            String fingerprint = null;
+            byte[] publicKeyData = null;
+            try {
+                PersonalKey myKey = ((Kontalk) getContext().getApplicationContext())
+                    .getPersonalKey();
+                if (myKey != null) {
+                    fingerprint = myKey.getFingerprint();
+                    publicKeyData = myKey.getEncodedPublicKeyRing();
                 }
-
-                success = setTransactionSuccessful(db);
             }
-            finally {
-                endTransaction(db, success);
-                if (phones != null)
-                    phones.close();
-                stm.close();
+            catch (Exception e) {
+                Log.w(SyncAdapter.TAG, "unable to load personal key", e);
+            }
+            try {
+                String hash = MessageUtils.sha1(ownNumber);
+
+                stm.clearBindings();
+                stm.bindString(1, hash);
+                stm.bindString(2, ownNumber);
+                stm.bindString(3, XMPPUtils.createLocalJID(getContext(), hash));
+                stm.bindString(4, ownName);
+                stm.bindNull(5);
+                stm.bindNull(6);
+                stm.bindLong(7, 1);
+                if (fingerprint != null)
+                    stm.bindString(8, fingerprint);
+                else
+                    stm.bindNull(8);
+                if (publicKeyData != null)
+                    stm.bindBlob(9, publicKeyData);
+                else
+                    stm.bindNull(9);
+                stm.executeInsert();
+                count++;
+            }
+            catch (IllegalArgumentException iae) {
+                Log.w(SyncAdapter.TAG, "doing sync with no server?");
+            }
+            catch (SQLiteConstraintException sqe) {
+                // skip duplicate number
             }
-            return count;
         }
+        finally {
+            if (phones != null)
+                phones.close();
+            stm.close();
+        }
+
+        return count;
     }
 
     @Override
@@ -646,6 +1145,7 @@ public class UsersProvider extends ContentProvider {
 
     private Uri insertUser(ContentValues values, boolean offline, boolean discardName) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        invalidateKeys(values, null, null);
 
         String table = offline ? TABLE_USERS_OFFLINE : TABLE_USERS;
         long id = 0;
@@ -732,37 +1232,73 @@ public class UsersProvider extends ContentProvider {
             keys[i] = ring;
         }
 
-        return new PGPCoder(server, key, keys);
+        return sCoderPool.getEncryptCoder(server, key, keys);
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
     public static Coder getDecryptCoder(Context context, EndpointServer server, PersonalKey key, String sender) {
         PGPPublicKeyRing senderKey = getPublicKey(context, sender, true);
-        return new PGPCoder(server, key, senderKey);
+        return sCoderPool.getDecryptCoder(server, key, senderKey);
     }
 
     /** Retrieves the trusted public key for a user. */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, boolean trusted) {
+        PublicKeyCache.Entry cached = sKeyCache.get(jid, trusted);
+        if (cached != null)
+            return cached.ring;
+
+        // keys invalidated while we are reading must not be cached
+        long generation = sKeyCache.getGeneration();
+
         byte[] keydata = null;
+        String fingerprint = null;
         ContentResolver res = context.getContentResolver();
         Cursor c = res.query(Users.CONTENT_URI.buildUpon()
-            .appendPath(jid).build(), new String[] { trusted ?
-                Keys.TRUSTED_PUBLIC_KEY : Users.PUBLIC_KEY },
-            null, null, null);
+            .appendPath(jid).build(), new String[] {
+                trusted ? Keys.TRUSTED_PUBLIC_KEY : Users.PUBLIC_KEY,
+                trusted ? Keys.TRUSTED_FINGERPRINT : Users.FINGERPRINT,
+            }, null, null, null);
 
-        if (c.moveToFirst())
+        if (c.moveToFirst()) {
             keydata = c.getBlob(0);
+            fingerprint = c.getString(1);
+        }
 
         c.close();
 
-        try {
-            return PGP.readPublicKeyring(keydata);
-        }
-        catch (Exception e) {
-            // ignored
+        // same key might have been already parsed for another entry
+        PGPPublicKeyRing ring = sKeyCache.getByFingerprint(fingerprint);
+        if (ring == null && keydata != null) {
+            try {
+                ring = PGP.readPublicKeyring(keydata);
+            }
+            catch (Exception e) {
+                // ignored
+            }
         }
 
-        return null;
+        sKeyCache.put(jid, trusted, fingerprint, ring, generation);
+        return ring;
+    }
+
+    /** Returns the number of public key lookups served from cache. */
+    public static long getKeyCacheHitCount() {
+        return sKeyCache.getHitCount();
+    }
+
+    /** Returns the number of public key lookups that needed a query. */
+    public static long getKeyCacheMissCount() {
+        return sKeyCache.getMissCount();
+    }
+
+    /** Returns the number of coder requests served from the pool. */
+    public static long getCoderPoolHitCount() {
+        return sCoderPool.getHitCount();
+    }
+
+    /** Returns the number of coders created. */
+    public static long getCoderPoolMissCount() {
+        return sCoderPool.getMissCount();
     }
 
     /** Retrieves the last seen timestamp for a user. */
@@ -798,6 +1334,7 @@ public class UsersProvider extends ContentProvider {
         values.put(Users.PUBLIC_KEY, keydata);
         context.getContentResolver().update(Users.CONTENT_URI,
             values, Users.JID + "=?", new String[]{jid});
+        invalidateKey(jid);
     }
 
     /** Marks the given user fingerprint as trusted. */
@@ -807,6 +1344,7 @@ public class UsersProvider extends ContentProvider {
         context.getContentResolver().insert(Keys.CONTENT_URI.buildUpon()
             .appendQueryParameter(Keys.TRUST, "true")
             .build(), values);
+        invalidateKey(jid);
     }
 
     /** Trusts a user public key if trusted fingerprint matches the given key. */
@@ -818,6 +1356,7 @@ public class UsersProvider extends ContentProvider {
         context.getContentResolver().update(Keys.CONTENT_URI,
             values, Keys.JID + "=? AND " + Keys.FINGERPRINT + "=?",
             new String[] { jid, fingerprint });
+        invalidateKey(jid);
     }
 
     public static void setBlockStatus(Context context, String jid, boolean blocked) {
@@ -24,26 +24,24 @@ package org.kontalk.service;
  */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.security.PrivateKey;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -62,8 +60,10 @@ import org.kontalk.ui.ConversationList;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.StepTimer;
+import org.kontalk.util.TransferThrottle;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_ERROR;
@@ -73,36 +73,35 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are run concurrently by the {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<String, Long>();
+    /** Scheduler key prefix for downloads. */
+    private static final String KEY_PREFIX = "download:";
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
 
+    /** Attachment length (used for scheduling). Use with ACTION_DOWNLOAD_URL. */
+    public static final String EXTRA_LENGTH = "org.kontalk.download.LENGTH";
+
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the download currently being processed
     private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
     private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
 
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
-
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+    /** Downloads queued or running, by URL. */
+    private final Map<String, DownloadTask> mTasks = new LinkedHashMap<String, DownloadTask>();
+    private int mLastStartId;
 
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
@@ -110,102 +109,81 @@ public class DownloadService extends IntentService implements DownloadListener {
         if (mNotificationManager == null)
             mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
-        if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
-            final Uri uri = intent.getData();
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    onDownloadAbort(uri);
-                }
-            }).start();
+        synchronized (mTasks) {
+            mLastStartId = startId;
         }
 
-        return super.onStartCommand(intent, flags, startId);
-    }
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = intent.getAction();
+        String action = intent != null ? intent.getAction() : null;
 
         if (ACTION_DOWNLOAD_URL.equals(action)) {
             onDownloadURL(intent.getData(), intent.getExtras());
         }
+        else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
+            onDownloadAbort(intent.getData());
+        }
+
+        stopIfIdle();
+        return START_NOT_STICKY;
     }
 
     private void onDownloadURL(Uri uri, Bundle args) {
         String url = uri.toString();
 
         // check if download has already been queued
-        if (sQueue.get(url) != null) return;
-
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
-
-        if (mDownloadClient == null) {
-            PersonalKey key;
-            PrivateKey privateKey;
-            try {
-                key = ((Kontalk) getApplication()).getPersonalKey();
-                privateKey = key.getBridgePrivateKey();
-            }
-            catch (Exception e) {
-                // TODO i18n :)
-                errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
-                return;
-            }
-
-            mDownloadClient = new ClientHTTPConnection(this,
-                privateKey, key.getBridgeCertificate());
+        if (isQueued(url)) return;
+
+        DownloadTask task = new DownloadTask(url,
+            args.getLong(CompositeMessage.MSG_ID, 0),
+            args.getString(CompositeMessage.MSG_SENDER),
+            args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false));
+
+        synchronized (mTasks) {
+            if (mTasks.containsKey(url)) return;
+            mTasks.put(url, task);
+            // notify user about download immediately
+            if (mCurrentNotification == null)
+                startForeground();
         }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
-                return;
-            }
-
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
-
-            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
-            mPeer = args.getString(CompositeMessage.MSG_SENDER);
-            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
+        if (!TransferScheduler.getInstance().submit(KEY_PREFIX + url, task.mPeer,
+                args.getLong(EXTRA_LENGTH, 0), task))
+            finished(task);
+    }
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, this);
+    private void onDownloadAbort(Uri uri) {
+        String url = uri.toString();
+        DownloadTask task;
+        synchronized (mTasks) {
+            task = mTasks.get(url);
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        if (task != null) {
+            task.mCanceled = true;
+            // removed from queue - will never be processed
+            if (TransferScheduler.getInstance().cancel(KEY_PREFIX + url))
+                finished(task);
         }
-        finally {
-            sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
+    }
+
+    /** Called when a download has been processed (or removed from the queue). */
+    void finished(DownloadTask task) {
+        synchronized (mTasks) {
+            mTasks.remove(task.mUrl);
         }
+        stopIfIdle();
     }
 
-    private void onDownloadAbort(Uri uri) {
-        String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
-            // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
+    private void stopIfIdle() {
+        synchronized (mTasks) {
+            if (mTasks.isEmpty()) {
+                stopForeground();
+                stopSelfResult(mLastStartId);
             }
-            // remove from queue - will never be processed
-            else
-                sQueue.remove(url);
         }
     }
 
-    public void startForeground(long totalBytes) {
+    private void startForeground() {
         Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
         // FIXME this intent should actually open the ComposeMessage activity
@@ -220,8 +198,9 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        // we don't know the content length yet, start an interminate progress
+        foregroundNotification(-1);
+        mUpdateTimer.reset();
         startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
     }
 
@@ -233,130 +212,32 @@ public class DownloadService extends IntentService implements DownloadListener {
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
     }
 
-    @Override
-    public void start(String url, File destination, long length) {
-        mUpdateTimer.reset();
-        startForeground(length);
-    }
-
-    @Override
-    public void completed(String url, String mime, File destination) {
-        Uri uri = Uri.fromFile(destination);
-
-        ContentValues values = null;
-
-        // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                EndpointServer server = Preferences.getEndpointServer(this);
-                PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = UsersProvider.getDecryptCoder(this, server, key, mPeer);
-                if (coder != null) {
-                    in = new FileInputStream(destination);
-
-                    File outFile = new File(destination + ".new");
-                    out = new FileOutputStream(outFile);
-                    List<DecryptException> errors = new LinkedList<DecryptException>();
-                    coder.decryptFile(in, true, out, errors);
-
-                    // TODO process errors
-
-                    // delete old file and rename the decrypted one
-                    destination.delete();
-                    outFile.renameTo(destination);
-
-                    // save this for later
-                    values = new ContentValues(3);
-                    values.put(Messages.ATTACHMENT_ENCRYPTED, false);
-                    values.put(Messages.ATTACHMENT_LENGTH, destination.length());
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "decryption failed!", e);
-                errorNotification(getString(R.string.notify_ticker_download_error),
-                    // TODO i18n
-                    "Decryption failed.");
+    /** Updates the progress notification with the progress of all downloads. */
+    void updateProgress(boolean force) {
+        synchronized (mTasks) {
+            if (mCurrentNotification == null || !(force || mUpdateTimer.isStep()))
                 return;
-            }
-            finally {
-                try {
-                    in.close();
-                }
-                catch (Exception e) {
-                    // ignored
-                }
-                try {
-                    out.close();
-                }
-                catch (Exception e) {
-                    // ignored
+
+            long total = 0;
+            long bytes = 0;
+            for (DownloadTask task : mTasks.values()) {
+                if (task.mTotalBytes > 0) {
+                    total += task.mTotalBytes;
+                    bytes += Math.min(task.mBytes, task.mTotalBytes);
                 }
             }
-        }
 
-        // update messages.localUri
-        if (values == null)
-            values = new ContentValues(1);
-        values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
-        getContentResolver().update(ContentUris
-            .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
-
-        // stop foreground
-        stopForeground();
-
-        // notify only if conversation is not open
-        if (!mPeer.equals(MessagingNotification.getPaused())) {
-
-            // detect mime type if not available
-            if (mime == null)
-                mime = getContentResolver().getType(uri);
-
-            // create intent for download complete notification
-            Intent i = new Intent(Intent.ACTION_VIEW);
-            i.setDataAndType(uri, mime);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
-
-            // create notification
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
-                .setSmallIcon(R.drawable.ic_stat_notify)
-                .setContentTitle(getString(R.string.notify_title_download_completed))
-                .setContentText(getString(R.string.notify_text_download_completed))
-                .setTicker(getString(R.string.notify_ticker_download_completed))
-                .setContentIntent(pi)
-                .setAutoCancel(true);
-
-            // notify!!
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+            foregroundNotification(total > 0 ? (int) ((100 * bytes) / total) : -1);
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
         }
     }
 
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
-    }
-
     private void errorNotification(String ticker, String text) {
         // create intent for download error notification
         Intent i = new Intent(this, ConversationList.class);
@@ -377,17 +258,200 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-        }
+    public static boolean isQueued(String url) {
+        return TransferScheduler.getInstance().isQueued(KEY_PREFIX + url);
     }
 
-    public static boolean isQueued(String url) {
-        return sQueue.containsKey(url);
+    /** A single download. */
+    private final class DownloadTask implements TransferScheduler.Transfer, DownloadListener {
+        final String mUrl;
+        final long mMessageId;
+        final String mPeer;
+        final boolean mEncrypted;
+
+        /** Verification errors (null if not decrypted). */
+        private List<DecryptException> mDecryptErrors;
+
+        private volatile ClientHTTPConnection mDownloadClient;
+        volatile boolean mCanceled;
+        volatile long mTotalBytes;
+        volatile long mBytes;
+
+        DownloadTask(String url, long messageId, String peer, boolean encrypted) {
+            mUrl = url;
+            mMessageId = messageId;
+            mPeer = peer;
+            mEncrypted = encrypted;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!mCanceled) {
+                    // network might have changed while queued
+                    TransferThrottle.update(DownloadService.this);
+                    download();
+                }
+            }
+            finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCanceled = true;
+            ClientHTTPConnection client = mDownloadClient;
+            if (client != null)
+                client.abort();
+        }
+
+        private void download() {
+            PersonalKey key;
+            PrivateKey privateKey;
+            try {
+                key = ((Kontalk) getApplication()).getPersonalKey();
+                privateKey = key.getBridgePrivateKey();
+            }
+            catch (Exception e) {
+                // TODO i18n :)
+                errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
+                return;
+            }
+
+            mDownloadClient = new ClientHTTPConnection(DownloadService.this,
+                privateKey, key.getBridgeCertificate());
+            // canceled while creating the client
+            if (mCanceled)
+                return;
+
+            try {
+                // check if external storage is available
+                if (!MediaStorage.isExternalStorageAvailable()) {
+                    errorNotification(getString(R.string.notify_ticker_external_storage),
+                        getString(R.string.notify_text_external_storage));
+                    return;
+                }
+
+                // make sure storage directory is present
+                MediaStorage.MEDIA_ROOT.mkdirs();
+
+                // already downloaded by another message (encrypted
+                // attachments must be downloaded to verify them)
+                if (!mEncrypted) {
+                    File stored = MediaStorage.getStoredMedia(DownloadService.this, mUrl);
+                    if (stored != null) {
+                        Log.v(TAG, "media already downloaded: " + stored);
+                        completed(mUrl, null, stored);
+                        return;
+                    }
+                }
+
+                Coder coder = null;
+                if (mEncrypted) {
+                    try {
+                        EndpointServer server = Preferences.getEndpointServer(DownloadService.this);
+                        coder = UsersProvider.getDecryptCoder(DownloadService.this, server, key, mPeer);
+                    }
+                    catch (Exception e) {
+                        // file will be stored encrypted
+                        Log.e(TAG, "unable to decrypt attachment", e);
+                    }
+                }
+
+                // download content
+                if (coder != null) {
+                    // decrypt while downloading
+                    mDecryptErrors = new LinkedList<DecryptException>();
+                    mDownloadClient.downloadAutofilename(mUrl, MediaStorage.MEDIA_ROOT,
+                        coder, mDecryptErrors, this);
+                }
+                else {
+                    mDownloadClient.downloadAutofilename(mUrl, MediaStorage.MEDIA_ROOT, this);
+                }
+            }
+            catch (Exception e) {
+                error(mUrl, null, e);
+            }
+        }
+
+        @Override
+        public void start(String url, File destination, long length) {
+            mTotalBytes = length;
+            updateProgress(true);
+        }
+
+        @Override
+        public void completed(String url, String mime, File destination) {
+            // store by content so the same media is kept only once
+            try {
+                destination = MediaStorage.storeMedia(DownloadService.this, destination, url);
+            }
+            catch (IOException e) {
+                Log.w(TAG, "unable to store media by content", e);
+            }
+
+            Uri uri = Uri.fromFile(destination);
+
+            ContentValues values = null;
+
+            // file was decrypted while downloading
+            if (mEncrypted && mDecryptErrors != null) {
+                values = new ContentValues(4);
+                values.put(Messages.ATTACHMENT_ENCRYPTED, false);
+                values.put(Messages.ATTACHMENT_LENGTH, destination.length());
+                values.put(Messages.ATTACHMENT_SECURITY_FLAGS, MessageUtils
+                    .getSecurityFlags(mDecryptErrors, Coder.SECURITY_BASIC));
+            }
+
+            // update messages.localUri
+            if (values == null)
+                values = new ContentValues(1);
+            values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
+            getContentResolver().update(ContentUris
+                .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
+
+            // notify only if conversation is not open
+            if (!mPeer.equals(MessagingNotification.getPaused())) {
+
+                // detect mime type if not available
+                if (mime == null)
+                    mime = getContentResolver().getType(uri);
+
+                // create intent for download complete notification
+                Intent i = new Intent(Intent.ACTION_VIEW);
+                i.setDataAndType(uri, mime);
+                i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+                    NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
+
+                // create notification
+                NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
+                    .setSmallIcon(R.drawable.ic_stat_notify)
+                    .setContentTitle(getString(R.string.notify_title_download_completed))
+                    .setContentText(getString(R.string.notify_text_download_completed))
+                    .setTicker(getString(R.string.notify_ticker_download_completed))
+                    .setContentIntent(pi)
+                    .setAutoCancel(true);
+
+                // notify!!
+                mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+            }
+        }
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            Log.e(TAG, "download error", exc);
+            if (!mCanceled)
+                errorNotification(getString(R.string.notify_ticker_download_error),
+                    getString(R.string.notify_text_download_error));
+        }
+
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            mBytes = bytes;
+            updateProgress(bytes >= mTotalBytes);
+        }
     }
+
 }
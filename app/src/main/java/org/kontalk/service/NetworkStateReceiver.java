@@ -22,6 +22,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.service.msgcenter.AdaptiveServerPingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.TransferThrottle;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -75,6 +76,8 @@ public class NetworkStateReceiver extends BroadcastReceiver {
             final NetworkInfo info = cm.getActiveNetworkInfo();
             if (info != null) {
                 Log.w(TAG, "network state changed!");
+                // apply transfer policies for the new network
+                TransferThrottle.update(context);
 
                 if (info.getType() == ConnectivityManager.TYPE_MOBILE &&
                         !shouldReconnect(context)) {
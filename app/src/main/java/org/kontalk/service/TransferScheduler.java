@@ -0,0 +1,295 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.ui.MessagingNotification;
+
+
+/**
+ * Runs attachment transfers on a limited number of concurrent slots.
+ * When a slot is free, pending transfers for the conversation being viewed
+ * go first, then the smallest ones. The size of a transfer counts less the
+ * longer it waits, so large transfers are not delayed forever.
+ * @author Daniele Ricci
+ */
+class TransferScheduler {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Default number of concurrent transfers. */
+    public static final int DEFAULT_SLOTS = 2;
+    /** The size of a transfer is halved after waiting this long. */
+    public static final long AGING_TIME = 10000;
+
+    /** A transfer to be run by the scheduler. */
+    public interface Transfer {
+        /** Runs the transfer (called on a worker thread). */
+        void run();
+
+        /** Stops the transfer (might be called from any thread). */
+        void cancel();
+    }
+
+    /** Metrics of a completed transfer. */
+    public static final class Metrics {
+        public final String key;
+        public final long length;
+        /** Time spent waiting for a slot, in milliseconds. */
+        public final long queueWait;
+        /** Running time, in milliseconds. */
+        public final long duration;
+
+        Metrics(String key, long length, long queueWait, long duration) {
+            this.key = key;
+            this.length = length;
+            this.queueWait = queueWait;
+            this.duration = duration;
+        }
+
+        /** Returns the throughput in bytes per second. */
+        public long getThroughput() {
+            return (duration > 0) ? length * 1000 / duration : 0;
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + length + " bytes, waited " + queueWait + " ms, took " +
+                duration + " ms (" + getThroughput() / 1024 + " KB/s)";
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final String peer;
+        final long length;
+        final Transfer transfer;
+        final long submitted;
+        long started;
+
+        Entry(String key, String peer, long length, Transfer transfer, long submitted) {
+            this.key = key;
+            this.peer = peer;
+            this.length = length;
+            this.transfer = transfer;
+            this.submitted = submitted;
+        }
+    }
+
+    private static TransferScheduler sInstance;
+
+    private final ExecutorService mExecutor;
+    private int mSlots;
+
+    /** Pending transfers in submission order. */
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+    private final Map<String, Entry> mRunning = new HashMap<String, Entry>();
+
+    /* Statistics. */
+    private long mCompleted;
+    private long mTotalWait;
+    private long mMaxWait;
+    private long mTotalBytes;
+    private long mTotalTime;
+
+    public TransferScheduler(int slots) {
+        mSlots = slots;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Transfer-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /** Returns the scheduler shared by upload and download services. */
+    public static synchronized TransferScheduler getInstance() {
+        if (sInstance == null)
+            sInstance = new TransferScheduler(DEFAULT_SLOTS);
+        return sInstance;
+    }
+
+    /** Returns the current time in milliseconds (monotonic, used for aging and metrics). */
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Sets the number of concurrent transfers. */
+    public void setSlots(int slots) {
+        synchronized (this) {
+            mSlots = Math.max(1, slots);
+        }
+        dispatch();
+    }
+
+    /**
+     * Queues a transfer.
+     * @param key transfer identifier
+     * @param peer the user the transfer is for
+     * @param length transfer size (0 if unknown)
+     * @return false if a transfer with the same key is already queued
+     */
+    public boolean submit(String key, String peer, long length, Transfer transfer) {
+        synchronized (this) {
+            if (mPending.containsKey(key) || mRunning.containsKey(key))
+                return false;
+            mPending.put(key, new Entry(key, peer, length, transfer, now()));
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Cancels a transfer. A pending transfer is removed from the queue,
+     * a running transfer is stopped.
+     * @return true if the transfer was pending
+     */
+    public boolean cancel(String key) {
+        Entry entry;
+        synchronized (this) {
+            if (mPending.remove(key) != null)
+                return true;
+            entry = mRunning.get(key);
+        }
+        if (entry != null)
+            entry.transfer.cancel();
+        return false;
+    }
+
+    public synchronized boolean isQueued(String key) {
+        return mPending.containsKey(key) || mRunning.containsKey(key);
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    /** Returns the peer of the conversation being viewed (null if none). */
+    protected String getForegroundPeer() {
+        return MessagingNotification.getPaused();
+    }
+
+    /** Starts pending transfers while there are free slots. */
+    private void dispatch() {
+        String foreground = getForegroundPeer();
+
+        synchronized (this) {
+            while (mRunning.size() < mSlots && mPending.size() > 0) {
+                final Entry entry = next(foreground);
+                mPending.remove(entry.key);
+                mRunning.put(entry.key, entry);
+
+                entry.started = now();
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            entry.transfer.run();
+                        }
+                        catch (RuntimeException e) {
+                            Log.e(TAG, "transfer error", e);
+                        }
+                        finally {
+                            completed(entry);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /** Returns the pending transfer that should run next. */
+    private Entry next(String foreground) {
+        long now = now();
+        Entry best = null;
+        double bestSize = 0;
+
+        Iterator<Entry> entries = mPending.values().iterator();
+        while (entries.hasNext()) {
+            Entry e = entries.next();
+            boolean open = foreground != null && foreground.equals(e.peer);
+            boolean bestOpen = best != null && foreground != null && foreground.equals(best.peer);
+            double size = e.length / (1.0 + (double) (now - e.submitted) / AGING_TIME);
+
+            // earlier transfers win ties
+            if (best == null || (open && !bestOpen) || (open == bestOpen && size < bestSize)) {
+                best = e;
+                bestSize = size;
+            }
+        }
+        return best;
+    }
+
+    private void completed(Entry entry) {
+        Metrics metrics = new Metrics(entry.key, entry.length,
+            entry.started - entry.submitted, now() - entry.started);
+        Log.v(TAG, "transfer completed: " + metrics);
+
+        synchronized (this) {
+            mRunning.remove(entry.key);
+            mCompleted++;
+            mTotalWait += metrics.queueWait;
+            mMaxWait = Math.max(mMaxWait, metrics.queueWait);
+            mTotalBytes += metrics.length;
+            mTotalTime += metrics.duration;
+        }
+        dispatch();
+    }
+
+    /** Returns the number of completed transfers. */
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /** Returns the average time spent waiting for a slot. */
+    public synchronized long getAverageQueueWait() {
+        return (mCompleted > 0) ? mTotalWait / mCompleted : 0;
+    }
+
+    /** Returns the maximum time spent waiting for a slot. */
+    public synchronized long getMaxQueueWait() {
+        return mMaxWait;
+    }
+
+    /** Returns the average throughput of completed transfers in bytes per second. */
+    public synchronized long getAverageThroughput() {
+        return (mTotalTime > 0) ? mTotalBytes * 1000 / mTotalTime : 0;
+    }
+
+}
@@ -41,28 +41,30 @@ import org.kontalk.upload.KontalkBoxUploadConnection;
 import org.kontalk.upload.UploadConnection;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.StepTimer;
+import org.kontalk.util.TransferThrottle;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 
 /**
  * Attachment upload service.
- * TODO implement multiple concurrent uploads
+ * Uploads are run concurrently by the {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class UploadService extends IntentService implements ProgressListener {
+public class UploadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate uploads. */
-    private static final Map<String, Long> queue = new LinkedHashMap<String, Long>();
+    /** Scheduler key prefix for uploads. */
+    private static final String KEY_PREFIX = "upload:";
 
     public static final String ACTION_UPLOAD = "org.kontalk.action.UPLOAD";
     public static final String ACTION_UPLOAD_ABORT = "org.kontalk.action.UPLOAD_ABORT";
@@ -88,19 +90,17 @@ public class UploadService extends IntentService implements ProgressListener {
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the upload currently being processed
     private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
     private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
 
-    private long mMessageId;
-    private UploadConnection mConn;
-    private boolean mCanceled;
-    private File mCompressed;
+    /** Uploads queued or running, by file Uri. */
+    private final Map<String, UploadTask> mTasks = new LinkedHashMap<String, UploadTask>();
+    private int mLastStartId;
 
-    public UploadService() {
-        super(UploadService.class.getSimpleName());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
@@ -108,123 +108,97 @@ public class UploadService extends IntentService implements ProgressListener {
         if (mNotificationManager == null)
             mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
-        if (ACTION_UPLOAD_ABORT.equals(intent.getAction())) {
+        synchronized (mTasks) {
+            mLastStartId = startId;
+        }
+
+        String action = intent != null ? intent.getAction() : null;
+
+        if (ACTION_UPLOAD.equals(action)) {
+            onUpload(intent);
+        }
+        else if (ACTION_UPLOAD_ABORT.equals(action)) {
             String filename = intent.getData().toString();
-            // TODO check for race conditions on queue
-            Long msgId = queue.get(filename);
-            if (msgId != null) {
-                // interrupt worker if running
-                if (msgId.longValue() == mMessageId) {
-                    mConn.abort();
-                    mCanceled = true;
-                }
-                // remove from queue - will never be processed
-                else
-                    queue.remove(filename);
+            UploadTask task;
+            synchronized (mTasks) {
+                task = mTasks.get(filename);
+            }
+
+            if (task != null) {
+                task.mCanceled = true;
+                // removed from queue - will never be processed
+                if (TransferScheduler.getInstance().cancel(KEY_PREFIX + filename))
+                    finished(task);
             }
-            return START_NOT_STICKY;
         }
 
-        return super.onStartCommand(intent, flags, startId);
+        stopIfIdle();
+        return START_NOT_STICKY;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // check for unknown action
-        if (!ACTION_UPLOAD.equals(intent.getAction())) return;
-
+    private void onUpload(Intent intent) {
         // local file to upload
         Uri file = intent.getData();
         String filename = file.toString();
-        // message database id
-        long databaseId = intent.getLongExtra(EXTRA_DATABASE_ID, 0);
-        // message id
-        String msgId = intent.getStringExtra(EXTRA_MESSAGE_ID);
-        // url to post to
-        String url = intent.getStringExtra(EXTRA_POST_URL);
-        // user to send message to
-        String to = intent.getStringExtra(EXTRA_USER);
-        // media mime type
-        String mime = intent.getStringExtra(EXTRA_MIME);
-        // preview file path
-        String previewPath = intent.getStringExtra(EXTRA_PREVIEW_PATH);
-        // encryption flag
-        boolean encrypt = intent.getBooleanExtra(EXTRA_ENCRYPT, false);
-        // compress ratio
-        int compress = intent.getIntExtra(EXTRA_COMPRESS, 0);
 
-        // check if upload has already been queued
-        if (queue.get(filename) != null) return;
+        UploadTask task = new UploadTask(file,
+            // message database id
+            intent.getLongExtra(EXTRA_DATABASE_ID, 0),
+            // message id
+            intent.getStringExtra(EXTRA_MESSAGE_ID),
+            // url to post to
+            intent.getStringExtra(EXTRA_POST_URL),
+            // user to send message to
+            intent.getStringExtra(EXTRA_USER),
+            // media mime type
+            intent.getStringExtra(EXTRA_MIME),
+            // preview file path
+            intent.getStringExtra(EXTRA_PREVIEW_PATH),
+            // encryption flag
+            intent.getBooleanExtra(EXTRA_ENCRYPT, false),
+            // compress ratio
+            intent.getIntExtra(EXTRA_COMPRESS, 0));
 
-        try {
+        // check if upload has already been queued
+        synchronized (mTasks) {
+            if (mTasks.containsKey(filename)) return;
+            mTasks.put(filename, task);
             // notify user about upload immediately
-            long length = MediaStorage.getLength(this, file);
-            Log.v(TAG, "file size is " + length + " bytes");
-
-            mTotalBytes = length;
-            startForeground(0);
-
-            mCanceled = false;
-
-            // compress data if needed
-            if (compress > 0) {
-                if (mime.startsWith("image/")) {
-                    try {
-                        mCompressed = MediaStorage
-                            .resizeImage(this, file, databaseId, compress);
-                        mTotalBytes = length = mCompressed.length();
-                        file = Uri.fromFile(mCompressed);
-                    }
-                    catch (Exception e) {
-                        Log.w(TAG, "error compressing image", e);
-                        // what to do now? Should we warn the user or just go on?
-                        // or maybe just a Toast notification?
-                    }
-                }
-            }
-
-            if (mConn == null) {
-                PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
-                // TODO used class here should be decided by the caller
-                mConn = new KontalkBoxUploadConnection(this, url,
-                    key.getBridgePrivateKey(), key.getBridgeCertificate());
-            }
-
-            mMessageId = databaseId;
-            queue.put(filename, mMessageId);
-
-            // upload content
-            String mediaUrl = mConn.upload(file, mime, encrypt, to, this);
-            Log.d(TAG, "uploaded with media URL: " + mediaUrl);
-
-            // update message fetch_url
-            MessagesProvider.uploaded(this, databaseId, mediaUrl);
-
-            // send message with fetch url to server
-            MessageCenterService.sendUploadedMedia(this, to, mime, file, length,
-                previewPath, mediaUrl, encrypt, databaseId, msgId);
+            if (mCurrentNotification == null)
+                startForeground();
+        }
 
-            // end operations
-            completed();
+        long length;
+        try {
+            length = MediaStorage.getLength(this, file);
         }
         catch (Exception e) {
-            error(url, null, e);
+            // will be scheduled as a small file
+            length = 0;
         }
-        finally {
-            queue.remove(filename);
-            mMessageId = 0;
-            try {
-                // delete compressed file (if any)
-                mCompressed.delete();
-            }
-            catch (Exception e) {
-                // ignored
+
+        if (!TransferScheduler.getInstance().submit(KEY_PREFIX + filename, task.mTo, length, task))
+            finished(task);
+    }
+
+    /** Called when an upload has been processed (or removed from the queue). */
+    void finished(UploadTask task) {
+        synchronized (mTasks) {
+            mTasks.remove(task.mFile.toString());
+        }
+        stopIfIdle();
+    }
+
+    private void stopIfIdle() {
+        synchronized (mTasks) {
+            if (mTasks.isEmpty()) {
+                stopForeground();
+                stopSelfResult(mLastStartId);
             }
-            mCompressed = null;
         }
     }
 
-    public void startForeground(long totalBytes) {
+    private void startForeground() {
         Log.d(TAG, "starting foreground progress notification");
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
@@ -241,8 +215,9 @@ public class UploadService extends IntentService implements ProgressListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        // we don't know the content length yet, start an interminate progress
+        foregroundNotification(-1);
+        mUpdateTimer.reset();
         startForeground(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
     }
 
@@ -254,32 +229,31 @@ public class UploadService extends IntentService implements ProgressListener {
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
     }
 
-    @Override
-    public void start(UploadConnection conn) {
-        mUpdateTimer.reset();
-        startForeground(mTotalBytes);
-    }
-
-    public void completed() {
-        stopForeground();
-
-        // upload completed - no need for notification
-
-        // TODO broadcast upload completed intent
-    }
+    /** Updates the progress notification with the progress of all uploads. */
+    void updateProgress(boolean force) {
+        synchronized (mTasks) {
+            if (mCurrentNotification == null || !(force || mUpdateTimer.isStep()))
+                return;
+
+            long total = 0;
+            long bytes = 0;
+            for (UploadTask task : mTasks.values()) {
+                if (task.mTotalBytes > 0) {
+                    total += task.mTotalBytes;
+                    // encrypted data might be a little bigger than the original file
+                    bytes += Math.min(task.mBytes, task.mTotalBytes);
+                }
+            }
 
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "upload error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_upload_error),
-                getString(R.string.notify_text_upload_error));
+            foregroundNotification(total > 0 ? (int) ((100 * bytes) / total) : -1);
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
+        }
     }
 
     private void errorNotification(String ticker, String text) {
@@ -303,23 +277,143 @@ public class UploadService extends IntentService implements ProgressListener {
         mNotificationManager.notify(NOTIFICATION_ID_UPLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(UploadConnection conn, long bytes) {
-        if (mCanceled || !MessagesProvider.exists(this, mMessageId)) {
-            Log.v(TAG, "upload canceled or message deleted - aborting");
-            mConn.abort();
+    public static boolean isQueued(String url) {
+        return TransferScheduler.getInstance().isQueued(KEY_PREFIX + url);
+    }
+
+    /** A single upload. */
+    private final class UploadTask implements TransferScheduler.Transfer, ProgressListener {
+        final Uri mFile;
+        final long mDatabaseId;
+        final String mMsgId;
+        final String mUrl;
+        final String mTo;
+        final String mMime;
+        final String mPreviewPath;
+        final boolean mEncrypt;
+        final int mCompress;
+
+        private volatile UploadConnection mConn;
+        volatile boolean mCanceled;
+        volatile long mTotalBytes;
+        volatile long mBytes;
+
+        UploadTask(Uri file, long databaseId, String msgId, String url, String to,
+                String mime, String previewPath, boolean encrypt, int compress) {
+            mFile = file;
+            mDatabaseId = databaseId;
+            mMsgId = msgId;
+            mUrl = url;
+            mTo = to;
+            mMime = mime;
+            mPreviewPath = previewPath;
+            mEncrypt = encrypt;
+            mCompress = compress;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!mCanceled) {
+                    // network might have changed while queued
+                    TransferThrottle.update(UploadService.this);
+                    upload();
+                }
+            }
+            finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
             mCanceled = true;
+            UploadConnection conn = mConn;
+            if (conn != null)
+                conn.abort();
         }
 
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int)((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
+        private void upload() {
+            Uri file = mFile;
+            File compressed = null;
+            try {
+                long length = MediaStorage.getLength(UploadService.this, file);
+                Log.v(TAG, "file size is " + length + " bytes");
+                mTotalBytes = length;
+
+                // compress data if needed
+                if (mCompress > 0) {
+                    if (mMime.startsWith("image/")) {
+                        try {
+                            compressed = MediaStorage
+                                .resizeImage(UploadService.this, file, mDatabaseId, mCompress);
+                            mTotalBytes = length = compressed.length();
+                            file = Uri.fromFile(compressed);
+                        }
+                        catch (Exception e) {
+                            Log.w(TAG, "error compressing image", e);
+                            // what to do now? Should we warn the user or just go on?
+                            // or maybe just a Toast notification?
+                        }
+                    }
+                }
+
+                PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
+                // TODO used class here should be decided by the caller
+                mConn = new KontalkBoxUploadConnection(UploadService.this, mUrl,
+                    key.getBridgePrivateKey(), key.getBridgeCertificate());
+                // canceled while preparing the upload
+                if (mCanceled)
+                    return;
+
+                // upload content
+                String mediaUrl = mConn.upload(file, mMime, mEncrypt, mTo, this);
+                Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+
+                // update message fetch_url
+                MessagesProvider.uploaded(UploadService.this, mDatabaseId, mediaUrl);
+
+                // send message with fetch url to server
+                MessageCenterService.sendUploadedMedia(UploadService.this, mTo, mMime, file, length,
+                    mPreviewPath, mediaUrl, mEncrypt, mDatabaseId, mMsgId);
+
+                // upload completed - no need for notification
+
+                // TODO broadcast upload completed intent
+            }
+            catch (Exception e) {
+                error(e);
+            }
+            finally {
+                // delete compressed file (if any)
+                if (compressed != null)
+                    compressed.delete();
+            }
         }
-    }
 
-    public static boolean isQueued(String url) {
-        return queue.containsKey(url);
+        private void error(Throwable exc) {
+            Log.e(TAG, "upload error", exc);
+            if (!mCanceled)
+                errorNotification(getString(R.string.notify_ticker_upload_error),
+                    getString(R.string.notify_text_upload_error));
+        }
+
+        @Override
+        public void start(UploadConnection conn) {
+            updateProgress(true);
+        }
+
+        @Override
+        public void progress(UploadConnection conn, long bytes) {
+            if (mCanceled || !MessagesProvider.exists(UploadService.this, mDatabaseId)) {
+                Log.v(TAG, "upload canceled or message deleted - aborting");
+                conn.abort();
+                mCanceled = true;
+            }
+
+            mBytes = bytes;
+            updateProgress(bytes >= mTotalBytes);
+        }
     }
+
 }
@@ -20,6 +20,7 @@ package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jivesoftware.smack.PacketListener;
@@ -160,9 +161,14 @@ abstract class MessageCenterPacketListener implements PacketListener {
             instance.pushRegister();
     }
 
-    protected Map<String, Long> getWaitingReceiptList() {
+    protected ReceiptTracker getReceiptTracker() {
         MessageCenterService instance = mInstance.get();
-        return (instance != null) ? instance.mWaitingReceipt : null;
+        return (instance != null) ? instance.mReceipts : null;
+    }
+
+    protected OrderedExecutor getIncomingPipeline() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mIncoming : null;
     }
 
     protected Uri incoming(CompositeMessage msg) {
@@ -173,6 +179,14 @@ abstract class MessageCenterPacketListener implements PacketListener {
         return null;
     }
 
+    protected Uri[] incoming(List<CompositeMessage> messages) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            return instance.incoming(messages);
+
+        return null;
+    }
+
     protected IdleConnectionHandler getIdleHandler() {
         MessageCenterService instance = mInstance.get();
         return (instance != null) ? instance.mIdleHandler: null;
@@ -24,9 +24,11 @@ import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipInputStream;
 
 import org.jivesoftware.smack.AbstractXMPPConnection;
@@ -110,6 +112,7 @@ import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.TextComponent;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
@@ -124,6 +127,7 @@ import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
+import org.kontalk.util.TransferThrottle;
 
 
 /**
@@ -297,6 +301,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private static final int FAST_PING_TIMEOUT = 3000;
     /** Minimal interval between connection tests (5 mins). */
     private static final int MIN_TEST_INTERVAL = 5*60*1000;
+    /** Maximum time to wait for incoming messages being decrypted when quitting. */
+    private static final int INCOMING_FLUSH_TIMEOUT = 5000;
 
     static final IPushListener sPushListener = PushServiceManager.getDefaultListener();
 
@@ -329,18 +335,47 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Roster store. */
     private SQLiteRosterStore mRosterStore;
 
+    /** Message listener (kept for flushing delayed messages). */
+    private MessageListener mMessageListener;
+
     /** Service handler. */
     Handler mHandler;
 
     /** Idle handler. */
     IdleConnectionHandler mIdleHandler;
+    /** Outgoing messages pipeline. */
+    private MessageSender mSender;
+    /** Incoming messages pipeline. */
+    OrderedExecutor mIncoming;
     /** Inactive state flag (for CSI). */
     private boolean mInactive;
     /** Timestamp of last use of {@link #ACTION_TEST}. */
     private long mLastTest;
 
-    /** Messages waiting for server receipt (packetId: internalStorageId). */
-    Map<String, Long> mWaitingReceipt = new HashMap<String, Long>();
+    /** Messages waiting for server receipt. */
+    final ReceiptTracker mReceipts = new ReceiptTracker();
+    /** True if the receipt expiry task has been scheduled. */
+    private final AtomicBoolean mReceiptExpiryScheduled = new AtomicBoolean();
+
+    /** Gives up waiting for stale receipts. */
+    private final Runnable mReceiptExpiryTask = new Runnable() {
+        public void run() {
+            int count = mReceipts.expire(ReceiptTracker.DEFAULT_TIMEOUT);
+            if (count > 0) {
+                Log.v(TAG, count + " receipts not received, giving up");
+                // release the holds of the expired messages
+                IdleConnectionHandler idleHandler = mIdleHandler;
+                if (idleHandler != null) {
+                    for (int i = 0; i < count; i++)
+                        idleHandler.release();
+                }
+            }
+
+            mReceiptExpiryScheduled.set(false);
+            if (mReceipts.getOutstandingCount() > 0)
+                scheduleReceiptExpiry();
+        }
+    };
 
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
@@ -543,6 +578,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         mIdleHandler = new IdleConnectionHandler(this, thread.getLooper());
         mHandler = new Handler();
+
+        mSender = new MessageSender(MessageSender.getDefaultPoolSize(),
+            MessageSender.DEFAULT_CAPACITY);
+        mIncoming = new OrderedExecutor("MessageReceiver",
+            MessageSender.getDefaultPoolSize(), OrderedExecutor.DEFAULT_CAPACITY);
     }
 
     void sendPacket(Stanza packet) {
@@ -557,6 +597,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // reset idler if requested
         if (bumpIdle) mIdleHandler.reset();
 
+        // slow down attachment transfers while chatting
+        if (packet instanceof org.jivesoftware.smack.packet.Message)
+            TransferThrottle.onMessage((org.jivesoftware.smack.packet.Message) packet);
+
         if (mConnection != null) {
             try {
                 mConnection.sendStanza(packet);
@@ -588,14 +632,27 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void onDestroy() {
         Log.d(TAG, "destroying message center");
+        // discard messages still in the pipeline
+        mSender.shutdown();
         quit(false);
         // deactivate ping manager
         AdaptiveServerPingManager.onDestroy();
         // destroy roster store
         mRosterStore.onDestroy();
+        // stop incoming pipeline (already flushed by quit)
+        mIncoming.shutdown();
     }
 
     private synchronized void quit(boolean restarting) {
+        // store any delayed message still waiting in the batch
+        if (mMessageListener != null) {
+            // wait for messages still being decrypted
+            if (!mIncoming.awaitIdle(INCOMING_FLUSH_TIMEOUT))
+                Log.w(TAG, "timeout waiting for incoming messages");
+            mMessageListener.flushIncoming();
+            mMessageListener = null;
+        }
+
         if (!restarting) {
             // quit the idle handler
             mIdleHandler.quit();
@@ -976,7 +1033,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService.isServiceAvailable();
             // reset waiting messages
-            mWaitingReceipt.clear();
+            mReceipts.clear();
 
             mInactive = false;
 
@@ -1072,7 +1129,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncStanzaListener(new RosterMatchListener(this), filter);
 
         filter = new StanzaTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addSyncStanzaListener(new MessageListener(this), filter);
+        mMessageListener = new MessageListener(this);
+        connection.addSyncStanzaListener(mMessageListener, filter);
 
         filter = new StanzaTypeFilter(LastActivity.class);
         connection.addAsyncStanzaListener(new LastActivityListener(this), filter);
@@ -1213,26 +1271,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * receiving upload info (non-media messages will be filtered out)
      */
     void resendPendingMessages(boolean retrying) {
-        StringBuilder filter = new StringBuilder()
-            .append(Messages.DIRECTION)
-            .append('=')
-            .append(Messages.DIRECTION_OUT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_SENT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_RECEIVED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_NOTDELIVERED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_PENDING);
+        StringBuilder filter = new StringBuilder(MessagesProvider.SELECTION_PENDING_MESSAGES);
 
         // filter out non-media non-uploaded messages
         if (retrying) filter
@@ -1321,8 +1360,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 Messages.MESSAGE_ID,
                 Messages.PEER,
             },
-            Messages.DIRECTION + " = " + Messages.DIRECTION_IN + " AND " +
-            Messages.STATUS + " = " + Messages.STATUS_INCOMING,
+            MessagesProvider.SELECTION_PENDING_RECEIPTS,
             null, Messages._ID);
 
         while (c.moveToNext()) {
@@ -1560,13 +1598,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             return;
         }
 
-        // check if message is already pending
         long msgId = data.getLong("org.kontalk.message.msgId");
-        if (mWaitingReceipt.containsValue(msgId)) {
-            Log.v(TAG, "message already queued and waiting - dropping");
-            return;
-        }
-
         String id = data.getString("org.kontalk.message.packetId");
 
         boolean encrypt = data.getBoolean("org.kontalk.message.encrypt");
@@ -1608,6 +1640,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // hold on to message center while we send the message
             mIdleHandler.hold();
 
+            // standalone messages don't wait for a receipt
+            boolean tracked = (msgId > 0 &&
+                !data.getBoolean("org.kontalk.message.standalone", false));
+            if (tracked) {
+                // a resent message replaces its previous stanza
+                int replaced = mReceipts.add(id, msgId);
+                for (int i = 0; i < replaced; i++)
+                    mIdleHandler.release();
+                scheduleReceiptExpiry();
+            }
+
             // message stanza
             org.jivesoftware.smack.packet.Message m = new org.jivesoftware.smack.packet.Message();
             m.setType(org.jivesoftware.smack.packet.Message.Type.chat);
@@ -1615,13 +1658,49 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             // set message id
             m.setStanzaId(id);
-            if (msgId > 0)
-                mWaitingReceipt.put(id, msgId);
 
             String body = data.getString("org.kontalk.message.body");
             if (body != null)
                 m.setBody(body);
 
+            // encryption and sending will be done by the pipeline
+            OutgoingMessage task = new OutgoingMessage(data, m, key, msgId, encrypt, tracked);
+            if (!mSender.submit(to, task))
+                task.abort();
+        }
+    }
+
+    /**
+     * An outgoing message in the pipeline.
+     * The stanza is created by {@link #sendMessage(Bundle)}; preview
+     * generation and encryption are done in the worker threads, sending in
+     * the sender thread.
+     */
+    private final class OutgoingMessage implements MessageSender.Task {
+        private final Bundle mData;
+        private final PersonalKey mKey;
+        private final long mMsgId;
+        private final boolean mEncrypt;
+        /** True if the message is in {@link #mReceipts}: its hold is released with the entry. */
+        private final boolean mTracked;
+        private org.jivesoftware.smack.packet.Message mMessage;
+
+        public OutgoingMessage(Bundle data, org.jivesoftware.smack.packet.Message message,
+                PersonalKey key, long msgId, boolean encrypt, boolean tracked) {
+            mData = data;
+            mMessage = message;
+            mKey = key;
+            mMsgId = msgId;
+            mEncrypt = encrypt;
+            mTracked = tracked;
+        }
+
+        public boolean encrypt() {
+            Bundle data = mData;
+            org.jivesoftware.smack.packet.Message m = mMessage;
+            String to = m.getTo();
+            String body = m.getBody();
+            String mime = data.getString("org.kontalk.message.mime");
             String fetchUrl = data.getString("org.kontalk.message.fetch.url");
 
             // generate preview if needed
@@ -1632,7 +1711,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 if (!previewPath.isFile()) {
                     Uri previewUri = Uri.parse(_previewUri);
                     try {
-                        MediaStorage.cacheThumbnail(this, previewUri, previewPath, true);
+                        MediaStorage.cacheThumbnail(MessageCenterService.this, previewUri, previewPath, true);
                     }
                     catch (IOException e) {
                         Log.w(TAG, "unable to generate preview for media", e);
@@ -1642,25 +1721,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 m.addExtension(new BitsOfBinary(MediaStorage.THUMBNAIL_MIME_NETWORK, previewPath));
             }
 
-            ChatState chatState;
-            try {
-                chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
-            }
-            catch (Exception e) {
-                chatState = null;
-            }
-
             // add download url if present
             if (fetchUrl != null) {
                 // in this case we will need the length too
                 long length = data.getLong("org.kontalk.message.length");
-                m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
+                m.addExtension(new OutOfBandData(fetchUrl, mime, length, mEncrypt));
             }
 
-            if (encrypt) {
+            if (mEncrypt) {
                 byte[] toMessage = null;
                 try {
-                    Coder coder = UsersProvider.getEncryptCoder(this, mServer, key, new String[] { to });
+                    Coder coder = UsersProvider.getEncryptCoder(MessageCenterService.this,
+                        mServer, mKey, new String[] { to });
                     if (coder != null) {
 
                         // no extensions, create a simple text version to save space
@@ -1690,18 +1762,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
                 catch (IllegalArgumentException noPublicKey) {
                     // warn user: message will be not sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_no_public_key,
-                            Toast.LENGTH_LONG).show();
-                    }
+                    warnUser(to, R.string.warn_no_public_key);
                 }
 
                 catch (GeneralSecurityException e) {
                     // warn user: message will not be sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_encryption_failed,
-                            Toast.LENGTH_LONG).show();
-                    }
+                    warnUser(to, R.string.warn_encryption_failed);
                 }
 
                 if (toMessage == null) {
@@ -1709,16 +1775,29 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     ContentValues values = new ContentValues(1);
                     values.put(Messages.STATUS, Messages.STATUS_PENDING);
                     getContentResolver().update(ContentUris.withAppendedId
-                            (Messages.CONTENT_URI, msgId), values, null, null);
+                            (Messages.CONTENT_URI, mMsgId), values, null, null);
 
-                    // do not send the message
-                    if (msgId > 0)
-                        mWaitingReceipt.remove(id);
-                    mIdleHandler.release();
-                    return;
+                    // do not send the message (the pipeline will abort it)
+                    return false;
                 }
             }
 
+            mMessage = m;
+            return true;
+        }
+
+        public void send() {
+            Bundle data = mData;
+            org.jivesoftware.smack.packet.Message m = mMessage;
+
+            ChatState chatState;
+            try {
+                chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
+            }
+            catch (Exception e) {
+                chatState = null;
+            }
+
             // message server id
             String serverId = data.getString("org.kontalk.message.ack");
             boolean ackRequest = !data.getBoolean("org.kontalk.message.standalone", false);
@@ -1739,20 +1818,46 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             sendPacket(m);
 
-            // no ack request, release message center immediately
-            if (!ackRequest)
-                mIdleHandler.release();
+            // not waiting for a receipt, release message center immediately
+            if (!mTracked)
+                releaseIdle();
+        }
+
+        /** Gives up on the message. */
+        public void abort() {
+            // the entry might have already expired or been replaced
+            if (!mTracked || mReceipts.remove(mMessage.getStanzaId()) > 0)
+                releaseIdle();
+        }
+
+        private void releaseIdle() {
+            IdleConnectionHandler idleHandler = mIdleHandler;
+            if (idleHandler != null)
+                idleHandler.release();
+        }
+
+        private void warnUser(final String to, final int textId) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
+                        Toast.makeText(MessageCenterService.this, textId,
+                            Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
         }
     }
 
-    /** Process an incoming message. */
-    Uri incoming(CompositeMessage msg) {
-        final String sender = msg.getSender(true);
+    private void scheduleReceiptExpiry() {
+        if (mReceiptExpiryScheduled.compareAndSet(false, true))
+            mHandler.postDelayed(mReceiptExpiryTask, ReceiptTracker.DEFAULT_TIMEOUT);
+    }
 
-        // save to local storage
+    /** Builds the content values for storing an incoming message. */
+    private ContentValues prepareIncoming(CompositeMessage msg) {
         ContentValues values = new ContentValues();
         values.put(Messages.MESSAGE_ID, msg.getId());
-        values.put(Messages.PEER, sender);
+        values.put(Messages.PEER, msg.getSender(true));
 
         MessageUtils.fillContentValues(values, msg);
 
@@ -1761,6 +1866,15 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         values.put(Messages.NEW, true);
         values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
         values.put(Messages.TIMESTAMP, System.currentTimeMillis());
+        return values;
+    }
+
+    /** Process an incoming message. */
+    Uri incoming(CompositeMessage msg) {
+        final String sender = msg.getSender(true);
+
+        // save to local storage
+        ContentValues values = prepareIncoming(msg);
 
         Uri msgUri = null;
         try {
@@ -1787,6 +1901,71 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return msgUri;
     }
 
+    /**
+     * Process a batch of incoming messages (e.g. the offline messages
+     * backlog) with a single provider transaction.
+     * @return the message URIs, in the same order of the given messages
+     */
+    Uri[] incoming(List<CompositeMessage> messages) {
+        ContentValues[] values = new ContentValues[messages.size()];
+        final Set<String> senders = new HashSet<String>();
+        for (int i = 0; i < values.length; i++) {
+            CompositeMessage msg = messages.get(i);
+            values[i] = prepareIncoming(msg);
+            senders.add(msg.getSender(true));
+        }
+
+        int count = getContentResolver().bulkInsert(Messages.CONTENT_URI, values);
+
+        // retrieve storage ids for all messages at once
+        Uri[] uris = new Uri[values.length];
+        if (count > 0) {
+            Map<String, Long> ids = new HashMap<String, Long>(values.length);
+            StringBuilder where = new StringBuilder(Messages.DIRECTION)
+                .append('=').append(Messages.DIRECTION_IN)
+                .append(" AND ").append(Messages.MESSAGE_ID).append(" IN (");
+            String[] args = new String[values.length];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = messages.get(i).getId();
+                where.append(i == 0 ? "?" : ",?");
+            }
+            where.append(')');
+
+            Cursor c = getContentResolver().query(Messages.CONTENT_URI,
+                new String[] { Messages._ID, Messages.MESSAGE_ID },
+                where.toString(), args, null);
+            while (c.moveToNext())
+                ids.put(c.getString(1), c.getLong(0));
+            c.close();
+
+            for (int i = 0; i < uris.length; i++) {
+                Long id = ids.get(args[i]);
+                if (id != null)
+                    uris[i] = ContentUris.withAppendedId(Messages.CONTENT_URI, id);
+            }
+        }
+
+        // mark senders as registered in the users database
+        final Context context = getApplicationContext();
+        new Thread(new Runnable() {
+            public void run() {
+                for (String sender : senders)
+                    UsersProvider.markRegistered(context, sender);
+            }
+        }).start();
+
+        // fire notification only if messages were actually inserted to database
+        if (count > 0) {
+            String paused = MessagingNotification.getPaused();
+            if (senders.size() > 1 || !senders.iterator().next().equalsIgnoreCase(paused)) {
+                // update notifications (delayed)
+                MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
+            }
+        }
+
+        return uris;
+    }
+
     /** Returns the first available upload service post URL. */
     private String getUploadService() {
         if (mUploadServices != null && mUploadServices.size() > 0) {
@@ -24,8 +24,9 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Map;
+import java.util.List;
 
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Stanza;
@@ -34,6 +35,7 @@ import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
 import org.jivesoftware.smackx.delay.packet.DelayInformation;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
+import org.jxmpp.util.XmppStringUtils;
 
 import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.E2EEncryption;
@@ -47,8 +49,10 @@ import org.kontalk.message.RawComponent;
 import org.kontalk.message.TextComponent;
 import org.kontalk.message.VCardComponent;
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.service.msgcenter.MessageCenterService.IdleConnectionHandler;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.TransferThrottle;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -60,6 +64,9 @@ import android.util.Log;
 
 /**
  * Packet listener for message stanzas.
+ * Incoming messages are decrypted in parallel by the incoming pipeline of
+ * the message center and stored in order for each sender, so the connection
+ * can keep reading stanzas while processing a long offline backlog.
  * @author Daniele Ricci
  */
 class MessageListener extends MessageCenterPacketListener {
@@ -67,17 +74,35 @@ class MessageListener extends MessageCenterPacketListener {
     private static final String selectionOutgoing = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT;
     private static final String selectionIngoing = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
 
+    /** Maximum number of delayed messages stored in a single batch. */
+    private static final int MAX_BATCH_SIZE = 50;
+    /** How long to wait for more delayed messages before storing a batch. */
+    private static final int BATCH_DELAY = 500;
+
+    /** Delayed (offline) messages waiting to be stored. */
+    private final List<CompositeMessage> mPendingMessages = new ArrayList<CompositeMessage>();
+    /** Senders of pending messages requesting a receipt, by message. */
+    private final List<String> mPendingReceipts = new ArrayList<String>();
+
+    private final Runnable mFlushTask = new Runnable() {
+        public void run() {
+            flushIncoming();
+        }
+    };
+
     public MessageListener(MessageCenterService instance) {
         super(instance);
     }
 
     @Override
     public void processPacket(Stanza packet) {
-        Map<String, Long> waitingReceipt = getWaitingReceiptList();
+        ReceiptTracker receipts = getReceiptTracker();
 
         org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
 
         if (m.getType() == org.jivesoftware.smack.packet.Message.Type.chat) {
+            TransferThrottle.onMessage(m);
+
             Intent i = new Intent(ACTION_MESSAGE);
             String from = m.getFrom();
 
@@ -120,239 +145,399 @@ class MessageListener extends MessageCenterPacketListener {
 
             // delivery receipt
             if (deliveryReceipt != null) {
-                synchronized (waitingReceipt) {
-                    String id = m.getStanzaId();
-                    Long _msgId = waitingReceipt.get(id);
-                    long msgId = (_msgId != null) ? _msgId : 0;
-                    ContentResolver cr = getContext().getContentResolver();
-
-                    // message has been delivered: check if we have previously stored the server id
-                    if (msgId > 0) {
-                        ContentValues values = new ContentValues(3);
-                        values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
-                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                        cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                            values, selectionOutgoing, null);
-
-                        waitingReceipt.remove(id);
-                    }
-                    else {
-                        // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                        Uri msg = Messages.getUri(deliveryReceipt.getId());
-                        ContentValues values = new ContentValues(2);
-                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                        cr.update(msg, values, selectionOutgoing, null);
-                    }
+                String id = m.getStanzaId();
+                long msgId = receipts.received(id);
+                ContentResolver cr = getContext().getContentResolver();
+
+                // message has been delivered: check if we have previously stored the server id
+                if (msgId > 0) {
+                    ContentValues values = new ContentValues(3);
+                    values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
+                    values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                    values.put(Messages.STATUS_CHANGED, serverTimestamp);
+                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                        values, selectionOutgoing, null);
+                }
+                else {
+                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                    Uri msg = Messages.getUri(deliveryReceipt.getId());
+                    ContentValues values = new ContentValues(2);
+                    values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                    values.put(Messages.STATUS_CHANGED, serverTimestamp);
+                    cr.update(msg, values, selectionOutgoing, null);
                 }
             }
 
             // incoming message
             else {
-                String msgId = m.getStanzaId();
-                if (msgId == null)
-                    msgId = MessageUtils.messageId();
-
-                String body = m.getBody();
-
-                // create message
-                CompositeMessage msg = new CompositeMessage(
-                        getContext(),
-                        msgId,
-                        serverTimestamp,
-                        from,
-                        false,
-                        Coder.SECURITY_CLEARTEXT
-                    );
-
-                ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
-
-                if (_encrypted != null && _encrypted instanceof E2EEncryption) {
-                    E2EEncryption mEnc = (E2EEncryption) _encrypted;
-                    byte[] encryptedData = mEnc.getData();
-
-                    // encrypted message
-                    msg.setEncrypted(true);
-                    msg.setSecurityFlags(Coder.SECURITY_BASIC);
-
-                    if (encryptedData != null) {
-
-                        // decrypt message
-                        try {
-                            MessageUtils.decryptMessage(getContext(),
-                                    getServer(), msg, encryptedData);
-                        }
-
-                        catch (Exception exc) {
-                            Log.e(MessageCenterService.TAG, "decryption failed", exc);
-
-                            // raw component for encrypted data
-                            // reuse security flags
-                            msg.clearComponents();
-                            msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
-                        }
-
-                    }
+                // decryption and storage will happen in the incoming pipeline
+                enqueue(from, new IncomingMessage(m, from, stamp != null, serverTimestamp));
+            }
+        }
+
+        // error message
+        else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
+            final org.jivesoftware.smack.packet.Message error = m;
+            // errors might refer to messages still in the pipeline
+            enqueue(m.getFrom(), new OrderedExecutor.Job() {
+                public void process() {
                 }
 
-                else {
+                public void complete(RuntimeException e) {
+                    processError(error);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a job in the incoming pipeline, so that it will be completed
+     * after any other message from the same sender. If the pipeline is not
+     * available, the job is run immediately.
+     */
+    private void enqueue(String from, OrderedExecutor.Job job) {
+        OrderedExecutor pipeline = getIncomingPipeline();
+        String key = (from != null) ? XmppStringUtils.parseBareJid(from) : null;
+        if (pipeline == null || !pipeline.submit(key, job)) {
+            RuntimeException error = null;
+            try {
+                job.process();
+            }
+            catch (RuntimeException e) {
+                Log.e(MessageCenterService.TAG, "error processing message", e);
+                error = e;
+            }
+            job.complete(error);
+        }
+    }
 
-                    // use message body
-                    if (body != null)
-                        msg.addComponent(new TextComponent(body));
+    /** An incoming message: decrypted in parallel, stored in order. */
+    private final class IncomingMessage implements OrderedExecutor.Job {
+        private final org.jivesoftware.smack.packet.Message mStanza;
+        private final String mFrom;
+        private final boolean mDelayed;
+        private final long mServerTimestamp;
+
+        private CompositeMessage mMessage;
+
+        public IncomingMessage(org.jivesoftware.smack.packet.Message stanza,
+                String from, boolean delayed, long serverTimestamp) {
+            mStanza = stanza;
+            mFrom = from;
+            mDelayed = delayed;
+            mServerTimestamp = serverTimestamp;
+        }
 
-                }
+        public void process() {
+            mMessage = parseMessage(mStanza, mFrom, mServerTimestamp);
+        }
 
-                // TODO duplicated code (MessageUtils#decryptMessage)
-
-                // out of band data
-                ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
-                if (_media != null && _media instanceof OutOfBandData) {
-                    File previewFile = null;
-
-                    OutOfBandData media = (OutOfBandData) _media;
-                    String mime = media.getMime();
-                    String fetchUrl = media.getUrl();
-                    long length = media.getLength();
-                    boolean encrypted = media.isEncrypted();
-
-                    // bits-of-binary for preview
-                    ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
-                    if (_preview != null && _preview instanceof BitsOfBinary) {
-                        BitsOfBinary preview = (BitsOfBinary) _preview;
-                        String previewMime = preview.getType();
-                        if (previewMime == null)
-                            previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
-
-                        String filename = null;
-
-                        if (ImageComponent.supportsMimeType(mime)) {
-                            filename = ImageComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        else if (VCardComponent.supportsMimeType(mime)) {
-                            filename = VCardComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        try {
-                            if (filename != null) previewFile =
-                                MediaStorage.writeInternalMedia(getContext(),
-                                    filename, preview.getContents());
-                        }
-                        catch (IOException e) {
-                            Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
-                        }
-                    }
-
-                    MessageComponent<?> attachment = null;
-
-                    if (ImageComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (VCardComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new VCardComponent(previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (AudioComponent.supportsMimeType(mime)) {
-                        attachment = new AudioComponent(mime, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    // TODO other types
-
-                    if (attachment != null)
-                        msg.addComponent(attachment);
-
-                    // add a dummy body if none was found
-                    /*
-                    if (body == null) {
-                        msg.addComponent(new TextComponent(CompositeMessage
-                            .getSampleTextContent((Class<? extends MessageComponent<?>>)
-                                attachment.getClass(), mime)));
-                    }
-                    */
+        public void complete(RuntimeException error) {
+            if (error != null) {
+                // message could not be parsed: store it as it came, still acknowledging it
+                Log.w(MessageCenterService.TAG, "storing unparsed message " + mStanza.getStanzaId());
+                mMessage = parseRawMessage(mStanza, mFrom, mServerTimestamp);
+            }
 
-                }
+            boolean receiptRequest = mStanza.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+
+            if (mDelayed) {
+                // delayed message (probably from the offline storage)
+                // store it later together with the rest of the backlog
+                queueIncoming(mMessage, receiptRequest ? mFrom : null);
+            }
+            else {
+                // keep messages in order
+                flushIncoming();
 
-                Uri msgUri = incoming(msg);
+                Uri msgUri = incoming(mMessage);
 
-                if (m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE)) {
+                if (receiptRequest) {
                     // send ack :)
-                    sendReceipt(msgUri, msgId, from, waitingReceipt);
+                    sendReceipt(msgUri, mMessage.getId(), mFrom, getReceiptTracker());
                 }
-
             }
         }
+    }
 
-        // error message
-        else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
-            DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
+    /** Builds (and decrypts) a message from an incoming stanza. */
+    private CompositeMessage parseMessage(org.jivesoftware.smack.packet.Message m,
+            String from, long serverTimestamp) {
+        String msgId = m.getStanzaId();
+        if (msgId == null)
+            msgId = MessageUtils.messageId();
+
+        String body = m.getBody();
+
+        // create message
+        CompositeMessage msg = new CompositeMessage(
+                getContext(),
+                msgId,
+                serverTimestamp,
+                from,
+                false,
+                Coder.SECURITY_CLEARTEXT
+            );
+
+        ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+
+        if (_encrypted != null && _encrypted instanceof E2EEncryption) {
+            E2EEncryption mEnc = (E2EEncryption) _encrypted;
+            byte[] encryptedData = mEnc.getData();
+
+            // encrypted message
+            msg.setEncrypted(true);
+            msg.setSecurityFlags(Coder.SECURITY_BASIC);
+
+            if (encryptedData != null) {
+
+                // decrypt message
+                try {
+                    MessageUtils.decryptMessage(getContext(),
+                            getServer(), msg, encryptedData);
+                }
+
+                catch (Exception exc) {
+                    Log.e(MessageCenterService.TAG, "decryption failed", exc);
+
+                    // raw component for encrypted data
+                    // reuse security flags
+                    msg.clearComponents();
+                    msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
+                }
 
-            // delivery receipt error
-            if (deliveryReceipt != null) {
-                // mark indicated message as incoming and try again
-                Uri msg = Messages.getUri(deliveryReceipt.getId());
-                ContentValues values = new ContentValues(2);
-                values.put(Messages.STATUS, Messages.STATUS_INCOMING);
-                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                getContext().getContentResolver()
-                    .update(msg, values, selectionIngoing, null);
-
-                // send receipt again
-                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), waitingReceipt);
             }
+        }
 
-            synchronized (waitingReceipt) {
-                String id = m.getStanzaId();
-                Long _msgId = waitingReceipt.get(id);
-                long msgId = (_msgId != null) ? _msgId : 0;
-                ContentResolver cr = getContext().getContentResolver();
+        else {
 
-                // message has been rejected: mark as error
-                if (msgId > 0) {
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                        values, selectionOutgoing, null);
+            // use message body
+            if (body != null)
+                msg.addComponent(new TextComponent(body));
 
-                    waitingReceipt.remove(id);
+        }
 
-                    // we can now release the message center. Hopefully
-                    // there will be one hold and one matching release.
-                    getIdleHandler().release();
+        // TODO duplicated code (MessageUtils#decryptMessage)
+
+        // out of band data
+        ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+        if (_media != null && _media instanceof OutOfBandData) {
+            File previewFile = null;
+
+            OutOfBandData media = (OutOfBandData) _media;
+            String mime = media.getMime();
+            String fetchUrl = media.getUrl();
+            long length = media.getLength();
+            boolean encrypted = media.isEncrypted();
+
+            // bits-of-binary for preview
+            ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
+            if (_preview != null && _preview instanceof BitsOfBinary) {
+                BitsOfBinary preview = (BitsOfBinary) _preview;
+                String previewMime = preview.getType();
+                if (previewMime == null)
+                    previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
+
+                try {
+                    // previews are shared by all messages with the same one
+                    if (ImageComponent.supportsMimeType(mime) || VCardComponent.supportsMimeType(mime))
+                        previewFile = MediaStorage.storeInternalMedia(getContext(),
+                            preview.getContents(), previewMime);
                 }
-                else if (id != null) {
-                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                    Uri msg = Messages.getUri(id);
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(msg, values, selectionOutgoing, null);
+                catch (IOException e) {
+                    Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
                 }
             }
+
+            MessageComponent<?> attachment = null;
+
+            if (ImageComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            else if (VCardComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new VCardComponent(previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            else if (AudioComponent.supportsMimeType(mime)) {
+                attachment = new AudioComponent(mime, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            // TODO other types
+
+            if (attachment != null)
+                msg.addComponent(attachment);
+
+            // add a dummy body if none was found
+            /*
+            if (body == null) {
+                msg.addComponent(new TextComponent(CompositeMessage
+                    .getSampleTextContent((Class<? extends MessageComponent<?>>)
+                        attachment.getClass(), mime)));
+            }
+            */
+
+        }
+
+        return msg;
+    }
+
+    /**
+     * Builds a message with the raw contents of a stanza that could not be
+     * parsed, flagged as invalid data.
+     */
+    private CompositeMessage parseRawMessage(org.jivesoftware.smack.packet.Message m,
+            String from, long serverTimestamp) {
+        String msgId = m.getStanzaId();
+        if (msgId == null)
+            msgId = MessageUtils.messageId();
+
+        CompositeMessage msg = new CompositeMessage(
+                getContext(),
+                msgId,
+                serverTimestamp,
+                from,
+                false,
+                Coder.SECURITY_ERROR_INVALID_DATA
+            );
+
+        ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+        byte[] encryptedData = (_encrypted instanceof E2EEncryption) ?
+            ((E2EEncryption) _encrypted).getData() : null;
+
+        if (encryptedData != null) {
+            // raw component for encrypted data, as if decryption failed
+            msg.setEncrypted(true);
+            msg.setSecurityFlags(Coder.SECURITY_BASIC | Coder.SECURITY_ERROR_INVALID_DATA);
+            msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
+        }
+        else if (m.getBody() != null) {
+            msg.addComponent(new TextComponent(m.getBody()));
+        }
+
+        return msg;
+    }
+
+    /** Processes an error message. */
+    private void processError(org.jivesoftware.smack.packet.Message m) {
+        ReceiptTracker receipts = getReceiptTracker();
+
+        // errors might refer to messages still waiting to be stored
+        flushIncoming();
+
+        DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
+
+        // delivery receipt error
+        if (deliveryReceipt != null) {
+            // mark indicated message as incoming and try again
+            Uri msg = Messages.getUri(deliveryReceipt.getId());
+            ContentValues values = new ContentValues(2);
+            values.put(Messages.STATUS, Messages.STATUS_INCOMING);
+            values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+            getContext().getContentResolver()
+                .update(msg, values, selectionIngoing, null);
+
+            // send receipt again
+            sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), receipts);
+        }
+
+        String id = m.getStanzaId();
+        long msgId = receipts.remove(id);
+        ContentResolver cr = getContext().getContentResolver();
+
+        // message has been rejected: mark as error
+        if (msgId > 0) {
+            ContentValues values = new ContentValues(2);
+            values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+            values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+            cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                values, selectionOutgoing, null);
+
+            // we can now release the message center. Hopefully
+            // there will be one hold and one matching release.
+            getIdleHandler().release();
+        }
+        else if (id != null) {
+            // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+            Uri msg = Messages.getUri(id);
+            ContentValues values = new ContentValues(2);
+            values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+            values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+            cr.update(msg, values, selectionOutgoing, null);
+        }
+    }
+
+    /** Queues a delayed message for batch storage. */
+    private void queueIncoming(CompositeMessage msg, String receiptTo) {
+        boolean flush;
+        synchronized (mPendingMessages) {
+            mPendingMessages.add(msg);
+            mPendingReceipts.add(receiptTo);
+            flush = mPendingMessages.size() >= MAX_BATCH_SIZE;
+        }
+
+        if (flush) {
+            flushIncoming();
+        }
+        else {
+            // wait for more messages
+            IdleConnectionHandler handler = getIdleHandler();
+            if (handler != null) {
+                handler.removeCallbacks(mFlushTask);
+                handler.postDelayed(mFlushTask, BATCH_DELAY);
+            }
+        }
+    }
+
+    /** Stores all pending delayed messages in a single batch. */
+    synchronized void flushIncoming() {
+        List<CompositeMessage> messages;
+        List<String> receiptsTo;
+        synchronized (mPendingMessages) {
+            if (mPendingMessages.size() == 0)
+                return;
+
+            messages = new ArrayList<CompositeMessage>(mPendingMessages);
+            receiptsTo = new ArrayList<String>(mPendingReceipts);
+            mPendingMessages.clear();
+            mPendingReceipts.clear();
+        }
+
+        Uri[] uris = incoming(messages);
+        if (uris == null)
+            return;
+
+        ReceiptTracker receipts = getReceiptTracker();
+        for (int i = 0; i < uris.length; i++) {
+            String from = receiptsTo.get(i);
+            if (from != null) {
+                // send ack :)
+                sendReceipt(uris[i], messages.get(i).getId(), from, receipts);
+            }
         }
     }
 
-    private void sendReceipt(Uri msgUri, String msgId, String from, Map<String, Long> waitingReceipt) {
+    private void sendReceipt(Uri msgUri, String msgId, String from, ReceiptTracker receipts) {
         DeliveryReceipt receipt = new DeliveryReceipt(msgId);
         org.jivesoftware.smack.packet.Message ack =
             new org.jivesoftware.smack.packet.Message(from,
                 org.jivesoftware.smack.packet.Message.Type.chat);
         ack.addExtension(receipt);
 
+        // will mark this message as confirmed
         if (msgUri != null) {
             // hold on to message center
-            getIdleHandler().hold();
-            // will mark this message as confirmed
-            long storageId = ContentUris.parseId(msgUri);
-            waitingReceipt.put(ack.getStanzaId(), storageId);
+            IdleConnectionHandler handler = getIdleHandler();
+            handler.hold();
+            // a receipt sent again replaces the previous one
+            int replaced = receipts.add(ack.getStanzaId(), ContentUris.parseId(msgUri));
+            for (int i = 0; i < replaced; i++)
+                handler.release();
         }
         sendPacket(ack);
     }
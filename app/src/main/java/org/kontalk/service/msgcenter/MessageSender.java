@@ -0,0 +1,308 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Outgoing messages pipeline.
+ * Messages are created by the caller and then processed in two stages: a
+ * small pool of worker threads does the expensive work (preview generation,
+ * encryption), then a single sender thread sends them in the order they left
+ * the first stage. Serialization is not a stage of its own: stanzas are
+ * serialized by the connection writer thread when they are sent.
+ * Messages for the same peer are encrypted one at a time in submission
+ * order, while messages for different peers are encrypted in parallel; a
+ * peer can encrypt its next message while the previous one is being sent.
+ * The number of messages in the stages is bounded; callers never block:
+ * other messages wait in their peer backlog until there is room.
+ * @author Daniele Ricci
+ */
+class MessageSender {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Maximum number of messages in the stages. */
+    public static final int DEFAULT_CAPACITY = 50;
+
+    /** A message processed by the pipeline. */
+    public interface Task {
+        /**
+         * Runs the expensive stages (e.g. preview generation, encryption).
+         * @return false to abort the message ({@link #abort()} will be called)
+         */
+        boolean encrypt();
+
+        /** Sends the message. */
+        void send();
+
+        /** Gives up on the message, releasing anything held for it. */
+        void abort();
+    }
+
+    private final ExecutorService mEncryptor;
+    private final ExecutorService mSender;
+    private final Semaphore mSlots;
+
+    /**
+     * Tasks by peer, the first one being processed if the peer is active.
+     * A peer is in this map while it has some task to encrypt.
+     */
+    private final Map<String, Queue<Task>> mQueues = new HashMap<String, Queue<Task>>();
+    /** Peers with a task in the first stage. */
+    private final Set<String> mActive = new HashSet<String>();
+    /** Peers with a task being encrypted by a worker. */
+    private final Set<String> mRunning = new HashSet<String>();
+    /** Peers waiting for room in the stages, in order of arrival. */
+    private final Set<String> mWaiting = new LinkedHashSet<String>();
+    private boolean mShutdown;
+
+    public MessageSender(int threads, int capacity) {
+        mEncryptor = Executors.newFixedThreadPool(threads, new WorkerFactory("MessageEncryptor-"));
+        mSender = Executors.newSingleThreadExecutor(new WorkerFactory("MessageSender-"));
+        mSlots = new Semaphore(capacity);
+    }
+
+    /** Returns the default number of worker threads for this device. */
+    public static int getDefaultPoolSize() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Queues a message for the given peer. Never blocks.
+     * @return false if the pipeline has been shut down
+     */
+    public boolean submit(String peer, Task task) {
+        String key = (peer != null) ? peer : "";
+
+        synchronized (mQueues) {
+            if (mShutdown)
+                return false;
+
+            Queue<Task> queue = mQueues.get(key);
+            if (queue == null) {
+                queue = new LinkedList<Task>();
+                mQueues.put(key, queue);
+            }
+            queue.add(task);
+
+            // no other message for this peer: wait for room
+            if (!mActive.contains(key))
+                mWaiting.add(key);
+        }
+
+        dispatch();
+        return true;
+    }
+
+    /** Starts waiting peers while there is room in the stages. */
+    private void dispatch() {
+        List<String> start = new LinkedList<String>();
+        synchronized (mQueues) {
+            Iterator<String> peers = mWaiting.iterator();
+            while (!mShutdown && peers.hasNext() && mSlots.tryAcquire()) {
+                String peer = peers.next();
+                peers.remove();
+                mActive.add(peer);
+                start.add(peer);
+            }
+        }
+
+        for (String peer : start)
+            schedule(peer);
+    }
+
+    /** First stage: encrypts the next task of a peer, then gives room to other peers. */
+    private void encryptNext(String peer) {
+        Task task;
+        synchronized (mQueues) {
+            // task already aborted by shutdown
+            if (mShutdown)
+                return;
+
+            Queue<Task> queue = mQueues.get(peer);
+            task = (queue != null) ? queue.peek() : null;
+            if (task == null)
+                return;
+            mRunning.add(peer);
+        }
+
+        boolean encrypted = false;
+        try {
+            encrypted = task.encrypt();
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "error preparing message", e);
+        }
+
+        // hand over to the sender before the next task of this peer is encrypted
+        if (encrypted)
+            encrypted = enqueueSend(task);
+
+        if (!encrypted)
+            abort(task);
+
+        synchronized (mQueues) {
+            mRunning.remove(peer);
+            mActive.remove(peer);
+            Queue<Task> queue = mQueues.get(peer);
+            if (queue == null)
+                return;
+
+            queue.poll();
+            if (queue.isEmpty())
+                mQueues.remove(peer);
+            else
+                // go back waiting so other peers get their turn
+                mWaiting.add(peer);
+        }
+
+        dispatch();
+    }
+
+    private boolean enqueueSend(Task task) {
+        try {
+            mSender.execute(new SendJob(task));
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            Log.v(TAG, "message pipeline is shut down");
+            return false;
+        }
+    }
+
+    /** Second stage: sends an encrypted task. */
+    private void send(Task task) {
+        try {
+            task.send();
+            mSlots.release();
+            dispatch();
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "error sending message", e);
+            abort(task);
+        }
+    }
+
+    /** Aborts a task in the stages, giving its room to the next one. */
+    private void abort(Task task) {
+        abortTask(task);
+        mSlots.release();
+        dispatch();
+    }
+
+    private static void abortTask(Task task) {
+        try {
+            task.abort();
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "error aborting message", e);
+        }
+    }
+
+    /** Aborts all pending messages and stops the workers. */
+    public void shutdown() {
+        List<Task> aborted = new LinkedList<Task>();
+        synchronized (mQueues) {
+            mShutdown = true;
+            mEncryptor.shutdownNow();
+
+            for (Map.Entry<String, Queue<Task>> e : mQueues.entrySet()) {
+                Queue<Task> queue = e.getValue();
+                // a task being encrypted will be aborted by its worker
+                if (mRunning.contains(e.getKey()))
+                    queue.poll();
+                aborted.addAll(queue);
+            }
+            mQueues.clear();
+            mActive.clear();
+            mWaiting.clear();
+        }
+
+        // encrypted messages waiting to be sent
+        for (Runnable job : mSender.shutdownNow())
+            aborted.add(((SendJob) job).task);
+
+        for (Task task : aborted)
+            abortTask(task);
+    }
+
+    private void schedule(final String peer) {
+        try {
+            mEncryptor.execute(new Runnable() {
+                public void run() {
+                    encryptNext(peer);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // tasks are aborted by shutdown
+            Log.v(TAG, "message pipeline is shut down");
+        }
+    }
+
+    private final class SendJob implements Runnable {
+        final Task task;
+
+        SendJob(Task task) {
+            this.task = task;
+        }
+
+        public void run() {
+            send(task);
+        }
+    }
+
+    /** Creates background priority worker threads. */
+    private static final class WorkerFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public WorkerFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mPrefix + mCount.incrementAndGet());
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Processes jobs in parallel while completing them in submission order.
+ * Jobs are grouped by key (e.g. the sender of a message): the expensive part
+ * of a job runs on a pool of worker threads as soon as a thread is
+ * available, but jobs with the same key are completed one at a time and in
+ * the same order they were submitted. The number of jobs in the pipeline is
+ * bounded: callers will block until there is room for a new job.
+ * @author Daniele Ricci
+ */
+class OrderedExecutor {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Default maximum number of jobs in the pipeline. */
+    public static final int DEFAULT_CAPACITY = 100;
+
+    /** A job processed by the pipeline. */
+    public interface Job {
+        /** Runs the expensive part of the job. Called from any worker thread. */
+        void process();
+
+        /**
+         * Completes the job. Called in submission order for the job key,
+         * even if {@link #process()} failed.
+         * @param error the exception thrown by {@link #process()}, or null
+         */
+        void complete(RuntimeException error);
+    }
+
+    private static final class Slot {
+        final Job job;
+        /** Access is guarded by the queues lock. */
+        boolean done;
+        RuntimeException error;
+
+        Slot(Job job) {
+            this.job = job;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final Semaphore mSlots;
+    private final int mCapacity;
+
+    /** Jobs by key, in submission order. A key is here while it has some job. */
+    private final Map<String, Queue<Slot>> mQueues = new HashMap<String, Queue<Slot>>();
+    /** Keys being completed by some thread. */
+    private final Set<String> mCompleting = new HashSet<String>();
+
+    public OrderedExecutor(final String name, int threads, int capacity) {
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + "-" + mCount.incrementAndGet());
+            }
+        });
+        mCapacity = capacity;
+        mSlots = new Semaphore(capacity);
+    }
+
+    /**
+     * Queues a job, blocking if the pipeline is full.
+     * @return false if the pipeline has been shut down
+     */
+    public boolean submit(String key, Job job) {
+        final String queueKey = (key != null) ? key : "";
+        final Slot slot = new Slot(job);
+
+        mSlots.acquireUninterruptibly();
+
+        synchronized (mQueues) {
+            Queue<Slot> queue = mQueues.get(queueKey);
+            if (queue == null) {
+                queue = new LinkedList<Slot>();
+                mQueues.put(queueKey, queue);
+            }
+            queue.add(slot);
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    process(queueKey, slot);
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            Log.v(TAG, "pipeline is shut down");
+            synchronized (mQueues) {
+                Queue<Slot> queue = mQueues.get(queueKey);
+                if (queue != null && queue.remove(slot)) {
+                    if (queue.isEmpty())
+                        mQueues.remove(queueKey);
+                    mSlots.release();
+                }
+            }
+            return false;
+        }
+    }
+
+    private void process(String key, Slot slot) {
+        RuntimeException error = null;
+        try {
+            slot.job.process();
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "error processing job", e);
+            error = e;
+        }
+
+        synchronized (mQueues) {
+            slot.done = true;
+            slot.error = error;
+            // another thread is completing jobs for this key: it will pick this one too
+            if (!mCompleting.add(key))
+                return;
+        }
+
+        completeReady(key);
+    }
+
+    /** Completes all processed jobs at the head of a key queue. */
+    private void completeReady(String key) {
+        while (true) {
+            Slot head;
+            synchronized (mQueues) {
+                Queue<Slot> queue = mQueues.get(key);
+                head = (queue != null) ? queue.peek() : null;
+                if (head == null || !head.done) {
+                    mCompleting.remove(key);
+                    return;
+                }
+
+                queue.poll();
+                if (queue.isEmpty())
+                    mQueues.remove(key);
+            }
+
+            try {
+                head.job.complete(head.error);
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "error completing job", e);
+            }
+            finally {
+                mSlots.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for all queued jobs to be completed.
+     * @return false if the timeout expired first
+     */
+    public boolean awaitIdle(long timeout) {
+        try {
+            if (mSlots.tryAcquire(mCapacity, timeout, TimeUnit.MILLISECONDS)) {
+                mSlots.release(mCapacity);
+                return true;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /** Discards all pending jobs and stops the workers. */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        synchronized (mQueues) {
+            for (Queue<Slot> queue : mQueues.values())
+                mSlots.release(queue.size());
+            mQueues.clear();
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+
+/**
+ * Tracks stanzas waiting for a server receipt.
+ * Entries can be looked up both by stanza id and by message database id.
+ * @author Daniele Ricci
+ */
+class ReceiptTracker {
+
+    /** Default time after which a receipt is not waited for anymore. */
+    public static final long DEFAULT_TIMEOUT = 120000;
+
+    private static final class Entry {
+        final String stanzaId;
+        final long databaseId;
+        final long timestamp;
+
+        Entry(String stanzaId, long databaseId) {
+            this.stanzaId = stanzaId;
+            this.databaseId = databaseId;
+            this.timestamp = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> mByStanza = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<Long, Entry> mByDatabase = new ConcurrentHashMap<Long, Entry>();
+
+    /* Statistics. */
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+
+    /**
+     * Starts waiting for a receipt. A message already being waited for
+     * (e.g. it is being resent) is re-keyed to the new stanza id.
+     * @return the number of entries replaced by the new one
+     */
+    public int add(String stanzaId, long databaseId) {
+        Entry entry = new Entry(stanzaId, databaseId);
+        int replaced = 0;
+
+        Entry old = mByDatabase.put(databaseId, entry);
+        if (old != null && mByStanza.remove(old.stanzaId, old))
+            replaced++;
+
+        old = mByStanza.put(stanzaId, entry);
+        // same stanza id reused for another message
+        if (old != null && mByDatabase.remove(old.databaseId, old))
+            replaced++;
+        return replaced;
+    }
+
+    /**
+     * Stops waiting for a receipt because it has been received.
+     * @return the database id of the message, or 0 if not found
+     */
+    public long received(String stanzaId) {
+        Entry entry = removeEntry(stanzaId);
+        if (entry == null)
+            return 0;
+
+        long latency = SystemClock.elapsedRealtime() - entry.timestamp;
+        mReceived.incrementAndGet();
+        mTotalLatency.addAndGet(latency);
+        long max;
+        do {
+            max = mMaxLatency.get();
+        } while (latency > max && !mMaxLatency.compareAndSet(max, latency));
+
+        return entry.databaseId;
+    }
+
+    /**
+     * Stops waiting for a receipt (e.g. the message will not be sent).
+     * @return the database id of the message, or 0 if not found
+     */
+    public long remove(String stanzaId) {
+        Entry entry = removeEntry(stanzaId);
+        return (entry != null) ? entry.databaseId : 0;
+    }
+
+    private Entry removeEntry(String stanzaId) {
+        if (stanzaId == null)
+            return null;
+
+        Entry entry = mByStanza.remove(stanzaId);
+        if (entry != null)
+            mByDatabase.remove(entry.databaseId, entry);
+        return entry;
+    }
+
+    /**
+     * Removes entries older than the given timeout.
+     * @return the number of expired entries
+     */
+    public int expire(long timeout) {
+        long limit = SystemClock.elapsedRealtime() - timeout;
+        int count = 0;
+
+        Iterator<Entry> entries = mByStanza.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.timestamp < limit && mByStanza.remove(entry.stanzaId, entry)) {
+                mByDatabase.remove(entry.databaseId, entry);
+                count++;
+            }
+        }
+
+        mExpired.addAndGet(count);
+        return count;
+    }
+
+    public void clear() {
+        mByStanza.clear();
+        mByDatabase.clear();
+    }
+
+    /** Returns the number of receipts being waited for. */
+    public int getOutstandingCount() {
+        return mByStanza.size();
+    }
+
+    /** Returns the number of receipts received so far. */
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /** Returns the number of receipts that were never received. */
+    public long getExpiredCount() {
+        return mExpired.get();
+    }
+
+    /** Returns the average receipt latency in milliseconds. */
+    public long getAverageLatency() {
+        long count = mReceived.get();
+        return (count > 0) ? mTotalLatency.get() / count : 0;
+    }
+
+    /** Returns the maximum receipt latency in milliseconds. */
+    public long getMaxLatency() {
+        return mMaxLatency.get();
+    }
+
+}
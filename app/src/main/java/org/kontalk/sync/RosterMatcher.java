@@ -0,0 +1,270 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+
+/**
+ * Roster match requests for a list of JIDs.
+ * JIDs are split in chunks and only a few chunks are requested at a time.
+ * Chunks not answered in time (or answered with an error) are requested
+ * again a few times, then they are given up: results of the other chunks
+ * are still available.
+ * Time is given by the caller (e.g. {@link android.os.SystemClock#elapsedRealtime()}).
+ * @author Daniele Ricci
+ */
+class RosterMatcher {
+
+    /** Default max number of JIDs in a roster match request. */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    /** Default max number of requests waiting for a reply. */
+    public static final int DEFAULT_WINDOW = 3;
+    /** Default time to wait for a reply. */
+    public static final long DEFAULT_TIMEOUT = 20000;
+    /** Default number of retries for each chunk. */
+    public static final int DEFAULT_RETRIES = 2;
+
+    /** Sends roster match requests. */
+    public interface Requester {
+        void requestRosterMatch(String id, List<String> jids);
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SENT = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+
+    private static final class Chunk {
+        final List<String> jids;
+        int state = STATE_PENDING;
+        /** Current request id. */
+        String id;
+        int retries;
+        /** Time of the first request. */
+        long started;
+        /** Time of the current request. */
+        long sent;
+        /** Time to get a reply (including retries), -1 if not done. */
+        long time = -1;
+        String[] matched;
+
+        Chunk(List<String> jids) {
+            this.jids = jids;
+        }
+    }
+
+    private final Requester mRequester;
+    private final int mWindow;
+    private final long mTimeout;
+    private final int mMaxRetries;
+
+    private final String mIdPrefix = StringUtils.randomString(6);
+    private int mIdCount;
+
+    private final List<Chunk> mChunks;
+    /** Chunks by request id (including ids of previous requests). */
+    private final Map<String, Chunk> mIds = new HashMap<String, Chunk>();
+    /** Chunks waiting for a reply. */
+    private final List<Chunk> mSent = new LinkedList<Chunk>();
+    /** Index of the next chunk to be requested. */
+    private int mNext;
+
+    private boolean mStarted;
+    private int mDone;
+    private int mFailed;
+    private int mRetries;
+
+    public RosterMatcher(List<String> jids, int chunkSize, int window, long timeout, int maxRetries, Requester requester) {
+        mRequester = requester;
+        mWindow = window;
+        mTimeout = timeout;
+        mMaxRetries = maxRetries;
+
+        mChunks = new ArrayList<Chunk>((jids.size() + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < jids.size(); i += chunkSize)
+            mChunks.add(new Chunk(jids.subList(i, Math.min(i + chunkSize, jids.size()))));
+    }
+
+    /**
+     * Starts requesting chunks. If already started (e.g. after a
+     * reconnection), chunks waiting for a reply are requested again
+     * without counting as retries.
+     */
+    public synchronized void start(long now) {
+        if (mStarted) {
+            for (Chunk chunk : mSent)
+                send(chunk, now);
+        }
+        else {
+            mStarted = true;
+        }
+        fill(now);
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Handles a roster match reply.
+     * Late replies to requests sent again (or given up) are accepted too.
+     * @return true if the reply was for a chunk waiting for it
+     */
+    public synchronized boolean onResult(String id, String[] matched, long now) {
+        Chunk chunk = mIds.get(id);
+        if (chunk == null || chunk.state == STATE_DONE)
+            return false;
+
+        if (chunk.state == STATE_FAILED)
+            mFailed--;
+        else
+            mSent.remove(chunk);
+
+        chunk.state = STATE_DONE;
+        chunk.time = now - chunk.started;
+        chunk.matched = matched;
+        mDone++;
+
+        fill(now);
+        return true;
+    }
+
+    /**
+     * Handles an error reply: the chunk is requested again immediately.
+     * @return true if the reply was for a chunk waiting for it
+     */
+    public synchronized boolean onError(String id, long now) {
+        Chunk chunk = mIds.get(id);
+        if (chunk == null || chunk.state != STATE_SENT || !id.equals(chunk.id))
+            return false;
+
+        retry(chunk, now);
+        fill(now);
+        return true;
+    }
+
+    /** Requests again (or gives up) chunks not answered in time. */
+    public synchronized void expire(long now) {
+        for (Chunk chunk : new ArrayList<Chunk>(mSent)) {
+            if (now - chunk.sent >= mTimeout)
+                retry(chunk, now);
+        }
+        fill(now);
+    }
+
+    private void retry(Chunk chunk, long now) {
+        if (chunk.retries < mMaxRetries) {
+            chunk.retries++;
+            mRetries++;
+            send(chunk, now);
+        }
+        else {
+            mSent.remove(chunk);
+            chunk.state = STATE_FAILED;
+            mFailed++;
+        }
+    }
+
+    /** Requests pending chunks until the window is full. */
+    private void fill(long now) {
+        while (mSent.size() < mWindow && mNext < mChunks.size()) {
+            Chunk chunk = mChunks.get(mNext++);
+            chunk.started = now;
+            mSent.add(chunk);
+            send(chunk, now);
+        }
+    }
+
+    private void send(Chunk chunk, long now) {
+        chunk.state = STATE_SENT;
+        chunk.id = mIdPrefix + (mIdCount++);
+        chunk.sent = now;
+        mIds.put(chunk.id, chunk);
+        mRequester.requestRosterMatch(chunk.id, chunk.jids);
+    }
+
+    /** Returns true if all chunks have been answered or given up. */
+    public synchronized boolean isDone() {
+        return mStarted && (mDone + mFailed) == mChunks.size();
+    }
+
+    /** Returns the time of the next request timeout, or -1 if not waiting for any reply. */
+    public synchronized long getNextTimeout() {
+        long next = -1;
+        for (Chunk chunk : mSent) {
+            long timeout = chunk.sent + mTimeout;
+            if (next < 0 || timeout < next)
+                next = timeout;
+        }
+        return next;
+    }
+
+    /** Returns the number of requests waiting for a reply. */
+    public synchronized int getInFlightCount() {
+        return mSent.size();
+    }
+
+    /** Returns the matched JIDs of all answered chunks. */
+    public synchronized List<String> getMatched() {
+        List<String> matched = new ArrayList<String>();
+        for (Chunk chunk : mChunks) {
+            if (chunk.matched != null)
+                Collections.addAll(matched, chunk.matched);
+        }
+        return matched;
+    }
+
+    /** Returns the JIDs of the chunks given up. */
+    public synchronized List<String> getFailed() {
+        List<String> failed = new ArrayList<String>();
+        for (Chunk chunk : mChunks) {
+            if (chunk.state == STATE_FAILED)
+                failed.addAll(chunk.jids);
+        }
+        return failed;
+    }
+
+    public synchronized int getChunkCount() {
+        return mChunks.size();
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized int getRetryCount() {
+        return mRetries;
+    }
+
+    /** Returns the time each chunk took to be answered (-1 if not answered). */
+    public synchronized long[] getChunkTimes() {
+        long[] times = new long[mChunks.size()];
+        for (int i = 0; i < times.length; i++)
+            times[i] = mChunks.get(i).time;
+        return times;
+    }
+
+}
@@ -21,8 +21,10 @@ package org.kontalk.sync;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
@@ -42,6 +44,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
@@ -51,7 +54,6 @@ import android.util.Log;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.R;
-import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.PGP;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Users;
@@ -68,6 +70,8 @@ public class Syncer {
 
     // max time to wait for network response
     private static final int MAX_WAIT_TIME = 60000;
+    // how often request timeouts are checked
+    private static final int EXPIRE_INTERVAL = 1000;
 
     /** {@link Data} column for the display name. */
     public static final String DATA_COLUMN_DISPLAY_NAME = Data.DATA1;
@@ -89,7 +93,7 @@ public class Syncer {
     private volatile boolean mCanceled;
     private final Context mContext;
 
-    private final static class PresenceItem {
+    final static class PresenceItem {
         public String from;
         public String status;
         public long timestamp;
@@ -99,30 +103,40 @@ public class Syncer {
     }
 
     // FIXME this class should handle most recent/available presence stanzas
-    private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
-        /** Max number of items in a roster match request. */
-        private static final int MAX_ROSTER_MATCH_SIZE = 500;
-
+    static final class PresenceBroadcastReceiver extends BroadcastReceiver {
         private List<PresenceItem> response;
         private final WeakReference<Syncer> notifyTo;
 
-        private final List<String> jidList;
-        private int rosterParts = -1;
-        private String[] iq;
+        private final RosterMatcher matcher;
+        /** Users registered as of the last sync. */
+        private final Set<String> registered;
         private String presenceId;
 
         private int presenceCount;
         private int pubkeyCount;
-        private int rosterCount;
         private boolean blocklistReceived;
 
-        public PresenceBroadcastReceiver(List<String> jidList, Syncer notifyTo) {
+        /** Time of the connection request or of the presence data request. */
+        private long waitStarted;
+        private volatile boolean finished;
+
+        public PresenceBroadcastReceiver(List<String> jidList, Set<String> registered, Syncer notifyTo, long now) {
             this.notifyTo = new WeakReference<Syncer>(notifyTo);
-            this.jidList = jidList;
+            this.registered = registered;
+            this.matcher = new RosterMatcher(jidList, RosterMatcher.DEFAULT_CHUNK_SIZE,
+                RosterMatcher.DEFAULT_WINDOW, RosterMatcher.DEFAULT_TIMEOUT,
+                RosterMatcher.DEFAULT_RETRIES, new RosterMatcher.Requester() {
+                    public void requestRosterMatch(String id, List<String> jids) {
+                        Syncer w = PresenceBroadcastReceiver.this.notifyTo.get();
+                        if (w != null)
+                            w.requestRosterMatch(id, jids);
+                    }
+                });
+            this.waitStarted = now;
         }
 
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public synchronized void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
             if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
@@ -158,51 +172,10 @@ public class Syncer {
 
             // roster match result received
             else if (MessageCenterService.ACTION_ROSTER_MATCH.equals(action)) {
-                String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                for (String iqId : iq) {
-                    if (iqId.equals(id)) {
-                        // decrease roster parts counter
-                        rosterParts--;
-
-                        String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
-                        if (list != null) {
-                            rosterCount += list.length;
-                            if (response == null) {
-                                // prepare list to be filled in with presence data
-                                response = new ArrayList<PresenceItem>(rosterCount);
-                            }
-                            for (String jid : list) {
-                                PresenceItem p = new PresenceItem();
-                                p.from = jid;
-                                response.add(p);
-                            }
-                        }
-
-                        if (rosterParts <= 0) {
-                            // all roster parts received
-
-                            if (rosterCount == 0 && blocklistReceived) {
-                                // no roster elements
-                                finish();
-                            }
-                            else {
-                                Syncer w = notifyTo.get();
-                                if (w != null) {
-                                    // request presence data for the whole roster
-                                    presenceId = StringUtils.randomString(6);
-                                    w.requestPresenceData(presenceId);
-                                    // request public keys for the whole roster
-                                    w.requestPublicKeys();
-                                    // request block list
-                                    w.requestBlocklist();
-                                }
-                            }
-                        }
-
-                        // no need to continue
-                        break;
-                    }
-                }
+                onRosterMatch(intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID),
+                    intent.getStringExtra(MessageCenterService.EXTRA_TYPE),
+                    intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST),
+                    SystemClock.elapsedRealtime());
             }
 
             else if (MessageCenterService.ACTION_PUBLICKEY.equals(action)) {
@@ -229,59 +202,161 @@ public class Syncer {
             }
 
             else if (MessageCenterService.ACTION_BLOCKLIST.equals(action)) {
-                blocklistReceived = true;
+                // blocklist might be broadcast on connection
+                if (response != null) {
+                    blocklistReceived = true;
 
-                String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
-                if (list != null) {
+                    String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
+                    if (list != null) {
 
-                    for (String jid : list) {
-                        // see if bare JID is present in roster response
-                        String compare = XmppStringUtils.parseBareJid(jid);
-                        for (PresenceItem item : response) {
-                            if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                                item.blocked = true;
+                        for (String jid : list) {
+                            // see if bare JID is present in roster response
+                            String compare = XmppStringUtils.parseBareJid(jid);
+                            for (PresenceItem item : response) {
+                                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
+                                    item.blocked = true;
 
-                                break;
+                                    break;
+                                }
                             }
                         }
+
                     }
 
+                    // done with presence data and blocklist
+                    if (pubkeyCount >= presenceCount)
+                        finish();
                 }
+            }
+
+            // connected! Retry...
+            else if (MessageCenterService.ACTION_CONNECTED.equals(action)) {
+                onConnected(SystemClock.elapsedRealtime());
+            }
+        }
 
-                // done with presence data and blocklist
-                if (pubkeyCount >= presenceCount)
+        /** Handles a roster match reply (an error reply if type is "error"). */
+        synchronized void onRosterMatch(String id, String type, String[] jids, long now) {
+            if (response == null) {
+                boolean found;
+                if ("error".equals(type))
+                    found = matcher.onError(id, now);
+                else
+                    found = matcher.onResult(id, jids, now);
+
+                if (found)
+                    checkRosterMatch(now);
+            }
+        }
+
+        synchronized void onConnected(long now) {
+            if (response == null) {
+                // request a roster match (again for requests lost while disconnected)
+                matcher.start(now);
+                checkRosterMatch(now);
+            }
+        }
+
+        /**
+         * Called periodically to handle timeouts.
+         * Roster match requests not answered in time are retried; if presence
+         * data doesn't arrive in time, data received so far will be used.
+         */
+        public synchronized void expire(long now) {
+            if (finished)
+                return;
+
+            if (!matcher.isStarted()) {
+                if (now - waitStarted >= MAX_WAIT_TIME) {
+                    Log.w(TAG, "no connection - giving up");
                     finish();
+                }
+            }
+            else if (response == null) {
+                matcher.expire(now);
+                checkRosterMatch(now);
+            }
+            else if (now - waitStarted >= MAX_WAIT_TIME) {
+                Log.w(TAG, "presence data timeout (" + presenceCount + " presences, " +
+                    pubkeyCount + " public keys, blocklist " +
+                    (blocklistReceived ? "" : "not ") + "received)");
+                finish();
+            }
+        }
+
+        /** Requests presence data if all roster match chunks are done. */
+        private void checkRosterMatch(long now) {
+            if (response != null || !matcher.isDone())
+                return;
+
+            List<String> matched = matcher.getMatched();
+            List<String> failed = matcher.getFailed();
+            logRosterMatch(failed.size());
+
+            // keep users registered as of the last sync for chunks given up
+            for (String jid : failed) {
+                if (registered.contains(jid))
+                    matched.add(jid);
             }
 
-            // connected! Retry...
-            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && rosterParts <= 0) {
+            // prepare list to be filled in with presence data
+            response = new ArrayList<PresenceItem>(matched.size());
+            for (String jid : matched) {
+                PresenceItem p = new PresenceItem();
+                p.from = jid;
+                response.add(p);
+            }
+
+            if (response.size() == 0) {
+                // no roster elements
+                finish();
+            }
+            else {
                 Syncer w = notifyTo.get();
                 if (w != null) {
-                    // request a roster match
-                    rosterParts = getRosterParts(jidList);
-                    iq = new String[rosterParts];
-                    for (int i = 0; i < rosterParts; i++) {
-                        int end = (i+1)*MAX_ROSTER_MATCH_SIZE;
-                        if (end >= jidList.size())
-                            end = jidList.size();
-                        List<String> slice = jidList.subList(i*MAX_ROSTER_MATCH_SIZE, end);
-
-                        iq[i] = StringUtils.randomString(6);
-                        w.requestRosterMatch(iq[i], slice);
-                    }
+                    waitStarted = now;
+                    // request presence data for the whole roster
+                    presenceId = StringUtils.randomString(6);
+                    w.requestPresenceData(presenceId);
+                    // request public keys for the whole roster
+                    w.requestPublicKeys();
+                    // request block list
+                    w.requestBlocklist();
                 }
             }
         }
 
-        private int getRosterParts(List<String> jidList) {
-            return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
+        private void logRosterMatch(int failedJids) {
+            long[] times = matcher.getChunkTimes();
+            long total = 0, max = 0;
+            int count = 0;
+            for (int i = 0; i < times.length; i++) {
+                if (BuildConfig.DEBUG)
+                    Log.v(TAG, "roster match chunk " + (i + 1) + "/" + times.length + ": " +
+                        ((times[i] >= 0) ? (times[i] + " ms") : "failed"));
+                if (times[i] >= 0) {
+                    total += times[i];
+                    max = Math.max(max, times[i]);
+                    count++;
+                }
+            }
+
+            Log.d(TAG, "roster match: " + times.length + " chunks, " +
+                matcher.getRetryCount() + " retries, " +
+                matcher.getFailedCount() + " failed (" + failedJids + " users), " +
+                "average " + ((count > 0) ? total / count : 0) + " ms, max " + max + " ms");
+        }
+
+        public boolean isFinished() {
+            return finished;
         }
 
-        public List<PresenceItem> getResponse() {
-            return (rosterCount >= 0) ? response : null;
+        public synchronized List<PresenceItem> getResponse() {
+            return response;
         }
 
         private void finish() {
+            finished = true;
             Syncer w = notifyTo.get();
             if (w != null) {
                 synchronized (w) {
@@ -375,15 +450,7 @@ public class Syncer {
             if (number.length() < 4)
                 continue;
 
-            // fix number
-            try {
-                number = NumberValidator.fixNumber(mContext, number, account.name, 0);
-            }
-            catch (Exception e) {
-                Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
-                // skip number
-                continue;
-            }
+            // number was already normalized by the users provider
 
             // avoid to send duplicates to server
             if (lookupNumbers.put(jid, new RawPhoneNumberEntry(lookupKey, number, jid)) == null)
@@ -412,7 +479,9 @@ public class Syncer {
                 .getInstance(mContext);
 
             // register presence broadcast receiver
-            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(jidList, this);
+            Set<String> registered = queryRegistered(usersProvider);
+            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(jidList,
+                registered, this, SystemClock.elapsedRealtime());
             IntentFilter f = new IntentFilter();
             f.addAction(MessageCenterService.ACTION_PRESENCE);
             f.addAction(MessageCenterService.ACTION_ROSTER_MATCH);
@@ -425,16 +494,19 @@ public class Syncer {
             MessageCenterService.requestConnectionStatus(mContext);
 
             // wait for the service to complete its job
-            synchronized (this) {
-                // wait for connection
-                try {
-                    wait(MAX_WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    // simulate canceled operation
-                    mCanceled = true;
+            try {
+                while (!receiver.isFinished() && !mCanceled) {
+                    synchronized (this) {
+                        if (!receiver.isFinished())
+                            wait(EXPIRE_INTERVAL);
+                    }
+                    receiver.expire(SystemClock.elapsedRealtime());
                 }
             }
+            catch (InterruptedException e) {
+                // simulate canceled operation
+                mCanceled = true;
+            }
 
             lbm.unregisterReceiver(receiver);
 
@@ -516,6 +588,12 @@ public class Syncer {
                     }
                 }
 
+                // users not registered any more
+                Set<String> unregistered = new HashSet<String>(registered);
+                for (PresenceItem entry : res)
+                    unregistered.remove(entry.from);
+                clearRegistered(usersProvider, unregistered);
+
                 try {
                     if (operations.size() > 0)
                         provider.applyBatch(operations);
@@ -548,6 +626,46 @@ public class Syncer {
         }
     }
 
+    /** Returns the users registered as of the last sync. */
+    private Set<String> queryRegistered(ContentProviderClient usersProvider) {
+        Set<String> registered = new HashSet<String>();
+        Cursor c = null;
+        try {
+            c = usersProvider.query(Users.CONTENT_URI, new String[] { Users.JID },
+                Users.REGISTERED + " <> 0", null, null);
+            while (c.moveToNext())
+                registered.add(c.getString(0));
+        }
+        catch (RemoteException e) {
+            Log.w(TAG, "error querying users database", e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+        return registered;
+    }
+
+    /** Clears registration data of the given users in the offline table. */
+    private void clearRegistered(ContentProviderClient usersProvider, Set<String> jids) {
+        ContentValues values = new ContentValues(6);
+        values.put(Users.REGISTERED, 0);
+        values.putNull(Users.STATUS);
+        values.putNull(Users.LAST_SEEN);
+        values.putNull(Users.PUBLIC_KEY);
+        values.putNull(Users.FINGERPRINT);
+        values.put(Users.BLOCKED, 0);
+        for (String jid : jids) {
+            try {
+                usersProvider.update(Users.CONTENT_URI_OFFLINE, values,
+                    Users.JID + " = ?", new String[] { jid });
+            }
+            catch (RemoteException e) {
+                Log.e(TAG, "error updating users database", e);
+            }
+        }
+    }
+
     private void commit(ContentProviderClient usersProvider, SyncResult syncResult) {
         // commit users table
         Uri uri = Users.CONTENT_URI.buildUpon()
@@ -565,7 +683,7 @@ public class Syncer {
         }
     }
 
-    private void requestRosterMatch(String id, List<String> list) {
+    void requestRosterMatch(String id, List<String> list) {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_ROSTER_MATCH);
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, id);
@@ -573,7 +691,7 @@ public class Syncer {
         mContext.startService(i);
     }
 
-    private void requestPresenceData(String id) {
+    void requestPresenceData(String id) {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_PRESENCE);
         i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.probe.toString());
@@ -581,14 +699,14 @@ public class Syncer {
         mContext.startService(i);
     }
 
-    private void requestPublicKeys() {
+    void requestPublicKeys() {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_PUBLICKEY);
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, IQ_PACKET_ID);
         mContext.startService(i);
     }
 
-    private void requestBlocklist() {
+    void requestBlocklist() {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_BLOCKLIST);
         mContext.startService(i);
@@ -88,6 +88,7 @@ import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -155,6 +156,10 @@ public class ComposeMessageFragment extends ListFragment implements
 
     private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
     private static final int CONVERSATION_QUERY_TOKEN = 8721;
+    private static final int MESSAGE_PAGE_QUERY_TOKEN = 8722;
+
+    /** Number of messages loaded at a time. */
+    private static final int MESSAGE_PAGE_SIZE = 50;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = Activity.RESULT_FIRST_USER + 1;
     private static final int SELECT_ATTACHMENT_CONTACT = Activity.RESULT_FIRST_USER + 2;
@@ -173,6 +178,12 @@ public class ComposeMessageFragment extends ListFragment implements
 
     private MessageListQueryHandler mQueryHandler;
     private MessageListAdapter mListAdapter;
+    /** Number of messages requested by the last list query (0: no limit). */
+    private int mPageLimit;
+    /** True if there might be older messages to load. */
+    private boolean mHasOlderMessages;
+    /** True while a page of older messages is being loaded. */
+    private boolean mLoadingOlder;
     private EditText mTextEntry;
     private View mSendButton;
     private TextView mStatusText;
@@ -266,6 +277,17 @@ public class ComposeMessageFragment extends ListFragment implements
         list.setFastScrollEnabled(true);
         registerForContextMenu(list);
 
+        // load older messages when reaching the top of the list
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == 0 && totalItemCount > 0)
+                    loadOlderMessages();
+            }
+        });
+
         // footer (for tablet presence status)
         mStatusText = (TextView) getView().findViewById(R.id.status_text);
 
@@ -770,6 +792,7 @@ public class ComposeMessageFragment extends ListFragment implements
             i.putExtra(CompositeMessage.MSG_ID, msg.getDatabaseId());
             i.putExtra(CompositeMessage.MSG_SENDER, msg.getSender());
             i.putExtra(CompositeMessage.MSG_ENCRYPTED, attachment.getSecurityFlags() != Coder.SECURITY_CLEARTEXT);
+            i.putExtra(DownloadService.EXTRA_LENGTH, attachment.getLength());
             i.setData(Uri.parse(attachment.getFetchUrl()));
             getActivity().startService(i);
         }
@@ -1317,8 +1340,24 @@ public class ComposeMessageFragment extends ListFragment implements
             if (progress)
                 getActivity().setProgressBarIndeterminateVisibility(true);
 
-            CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-                    threadId);
+            // a pending older page would not match the new list
+            mQueryHandler.cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
+            mLoadingOlder = false;
+
+            Bundle args = myArguments();
+            if (args != null && args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) > 0) {
+                // we need to scroll to a specific message: load everything
+                mPageLimit = 0;
+                CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId);
+            }
+            else {
+                // reload as many messages as we are currently showing
+                mPageLimit = Math.max(MESSAGE_PAGE_SIZE,
+                    mListAdapter != null ? mListAdapter.getCount() : 0);
+                CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId, mPageLimit, 0, 0);
+            }
 
             if (reloadConversation)
                 Conversation.startQuery(mQueryHandler,
@@ -2316,7 +2355,9 @@ public class ComposeMessageFragment extends ListFragment implements
 
         // be sure to cancel all queries
         mQueryHandler.cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
         mQueryHandler.cancelOperation(CONVERSATION_QUERY_TOKEN);
+        mLoadingOlder = false;
     }
 
     @Override
@@ -2389,6 +2430,21 @@ public class ComposeMessageFragment extends ListFragment implements
         }
     }
 
+    /** Starts loading the page of messages before the oldest loaded one. */
+    private void loadOlderMessages() {
+        if (!mHasOlderMessages || mLoadingOlder || mListAdapter == null)
+            return;
+
+        Cursor c = mListAdapter.getCursor();
+        if (c == null || !c.moveToFirst())
+            return;
+
+        mLoadingOlder = true;
+        CompositeMessage.startQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN, threadId,
+            MESSAGE_PAGE_SIZE, c.getLong(CompositeMessage.COLUMN_TIMESTAMP),
+            c.getLong(CompositeMessage.COLUMN_ID));
+    }
+
     /** The conversation list query handler. */
     // TODO convert to static class and use a weak reference to the context
     private final class MessageListQueryHandler extends AsyncQueryHandler {
@@ -2405,8 +2461,15 @@ public class ComposeMessageFragment extends ListFragment implements
                     cursor.close();
 
                 Log.e(TAG, "query aborted or error!");
-                unregisterPeerObserver();
-                mListAdapter.changeCursor(null);
+                mLoadingOlder = false;
+                if (token == MESSAGE_PAGE_QUERY_TOKEN) {
+                    // keep the messages already loaded
+                    mHasOlderMessages = false;
+                }
+                else {
+                    unregisterPeerObserver();
+                    mListAdapter.changeCursor(null);
+                }
                 return;
             }
 
@@ -2450,6 +2513,7 @@ public class ComposeMessageFragment extends ListFragment implements
                             }
                         }
 
+                        mHasOlderMessages = mPageLimit > 0 && cursor.getCount() >= mPageLimit;
                         mListAdapter.changeCursor(cursor);
                         if (newSelectionPos > 0)
                             getListView().setSelection(newSelectionPos);
@@ -2460,6 +2524,28 @@ public class ComposeMessageFragment extends ListFragment implements
 
                     break;
 
+                case MESSAGE_PAGE_QUERY_TOKEN: {
+                    mLoadingOlder = false;
+                    int count = cursor.getCount();
+                    mHasOlderMessages = count >= MESSAGE_PAGE_SIZE;
+
+                    if (count > 0) {
+                        // keep the currently visible message in place
+                        ListView list = getListView();
+                        int position = list.getFirstVisiblePosition();
+                        View first = list.getChildAt(0);
+                        int top = (first != null) ? first.getTop() : 0;
+
+                        mListAdapter.addOlderPage(cursor);
+                        list.setSelectionFromTop(position + count, top);
+                    }
+                    else {
+                        cursor.close();
+                    }
+
+                    break;
+                }
+
                 case CONVERSATION_QUERY_TOKEN:
                     if (cursor.moveToFirst()) {
                         mConversation = Conversation.createFromCursor(
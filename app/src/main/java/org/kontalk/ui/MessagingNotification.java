@@ -94,8 +94,7 @@ public class MessagingNotification {
     };
 
     private static final String MESSAGES_UNREAD_SELECTION =
-        CommonColumns.NEW + " <> 0 AND " +
-        CommonColumns.DIRECTION + " = " + Messages.DIRECTION_IN;
+        MessagesProvider.SELECTION_NEW_INCOMING;
 
     /** Pending delayed notification update flag. */
     private static volatile boolean sPending;
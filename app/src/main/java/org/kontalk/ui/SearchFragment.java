@@ -24,6 +24,8 @@ import org.kontalk.ui.adapter.SearchListAdapter;
 import org.kontalk.ui.view.SearchListItem;
 
 import android.app.Activity;
+import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
@@ -31,6 +33,7 @@ import android.support.v4.app.ListFragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 
 
@@ -40,9 +43,24 @@ import android.widget.ListView;
  */
 public class SearchFragment extends ListFragment {
 
-    private Cursor mCursor;
+    /** Number of results loaded at a time. */
+    private static final int PAGE_SIZE = 30;
+
+    private static final int FIRST_PAGE_QUERY_TOKEN = 8730;
+    private static final int NEXT_PAGE_QUERY_TOKEN = 8731;
+
     private String mQuery;
     private SearchListAdapter mListAdapter;
+    private SearchQueryHandler mQueryHandler;
+
+    /** Incremented on every new query, results of older queries are dropped. */
+    private int mQueryCount;
+    /** Number of results loaded so far. */
+    private int mLoadedCount;
+    /** True if all results have been loaded. */
+    private boolean mLastPage;
+    /** True while a page is being loaded. */
+    private boolean mLoading;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -54,6 +72,33 @@ public class SearchFragment extends ListFragment {
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        // load more results when reaching the end of the list
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount)
+                    loadNextPage();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mQueryHandler != null) {
+            mQueryHandler.cancelOperation(FIRST_PAGE_QUERY_TOKEN);
+            mQueryHandler.cancelOperation(NEXT_PAGE_QUERY_TOKEN);
+        }
+        if (mListAdapter != null)
+            mListAdapter.changeCursor(null);
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         SearchListItem item = (SearchListItem) v;
@@ -70,12 +115,82 @@ public class SearchFragment extends ListFragment {
 
         Activity parent = getActivity();
         if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            getActivity().startManagingCursor(mCursor);
+            if (mQueryHandler == null)
+                mQueryHandler = new SearchQueryHandler(parent.getContentResolver());
+            else
+                mQueryHandler.cancelOperation(NEXT_PAGE_QUERY_TOKEN);
+
+            mQueryCount++;
+            mLoading = true;
+            mQueryHandler.startQuery(FIRST_PAGE_QUERY_TOKEN, mQueryCount,
+                SearchItem.getUri(mQuery, PAGE_SIZE, 0), null, null, null, null);
+        }
+    }
+
+    private void loadNextPage() {
+        if (mLastPage || mLoading || mListAdapter == null || mQueryHandler == null)
+            return;
+
+        mLoading = true;
+        mQueryHandler.startQuery(NEXT_PAGE_QUERY_TOKEN, mQueryCount,
+            SearchItem.getUri(mQuery, PAGE_SIZE, mLoadedCount), null, null, null, null);
+    }
+
+    private void onFirstPage(Cursor cursor) {
+        mLoadedCount = (cursor != null) ? cursor.getCount() : 0;
+        mLastPage = (mLoadedCount == 0);
+
+        // previous results will be closed
+        if (mListAdapter != null)
+            mListAdapter.changeCursor(null);
+
+        mListAdapter = new SearchListAdapter(getActivity(), null);
+        mListAdapter.changeCursor(cursor);
+        // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
+        setListAdapter(mListAdapter);
+    }
+
+    private void onNextPage(Cursor cursor) {
+        int count = (cursor != null) ? cursor.getCount() : 0;
+        if (count > 0) {
+            mLoadedCount += count;
+            mListAdapter.addPage(cursor);
+        }
+        else {
+            // a page can be shorter than requested, only an empty one is the last
+            mLastPage = true;
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    /**
+     * Runs search queries in the background.
+     */
+    private final class SearchQueryHandler extends AsyncQueryHandler {
+        public SearchQueryHandler(ContentResolver contentResolver) {
+            super(contentResolver);
+        }
 
-            mListAdapter = new SearchListAdapter(parent, mCursor);
-            // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
-            setListAdapter(mListAdapter);
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            // results of a previous query or fragment gone
+            if (((Integer) cookie) != mQueryCount || getActivity() == null) {
+                if (cursor != null)
+                    cursor.close();
+                return;
+            }
+
+            mLoading = false;
+            switch (token) {
+                case FIRST_PAGE_QUERY_TOKEN:
+                    onFirstPage(cursor);
+                    break;
+
+                case NEXT_PAGE_QUERY_TOKEN:
+                    onNextPage(cursor);
+                    break;
+            }
         }
     }
 
@@ -18,6 +18,8 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import org.kontalk.R;
@@ -30,6 +32,8 @@ import org.kontalk.ui.view.MessageListItem;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -49,6 +53,9 @@ public class MessageListAdapter extends CursorAdapter {
     private Contact mContact;
     private AudioPlayerControl mAudioPlayerControl;
 
+    /** Loaded pages of messages, oldest first. */
+    private final List<PageCursor> mPages = new ArrayList<PageCursor>();
+
     public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
@@ -90,6 +97,59 @@ public class MessageListAdapter extends CursorAdapter {
         return mFactory.inflate(R.layout.message_list_item, parent, false);
     }
 
+    /**
+     * Replaces all loaded pages with the given cursor.
+     * Previous pages are closed.
+     */
+    @Override
+    public void changeCursor(Cursor cursor) {
+        List<PageCursor> old = new ArrayList<PageCursor>(mPages);
+        mPages.clear();
+
+        if (cursor != null) {
+            PageCursor page = new PageCursor(cursor);
+            mPages.add(page);
+            super.changeCursor(page);
+        }
+        else {
+            super.changeCursor(null);
+        }
+
+        for (PageCursor page : old)
+            page.release();
+    }
+
+    /**
+     * Adds a page of older messages on top of the loaded ones.
+     * The cursor will be closed together with the other pages.
+     */
+    public void addOlderPage(Cursor cursor) {
+        if (mPages.isEmpty()) {
+            changeCursor(cursor);
+            return;
+        }
+
+        mPages.add(0, new PageCursor(cursor));
+        // the previous merged cursor will be closed, but not its pages
+        super.changeCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+    }
+
+    /** A page of messages that can be closed only by the adapter. */
+    private static final class PageCursor extends CursorWrapper {
+        public PageCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public void close() {
+            // pages are released by the adapter
+        }
+
+        public void release() {
+            super.close();
+        }
+    }
+
     public interface OnContentChangedListener {
         void onContentChanged(MessageListAdapter adapter);
     }
@@ -18,6 +18,9 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
 import org.kontalk.ui.SearchActivity;
@@ -25,6 +28,8 @@ import org.kontalk.ui.view.SearchListItem;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -39,6 +44,9 @@ public class SearchListAdapter extends CursorAdapter {
     private final LayoutInflater mFactory;
     private OnContentChangedListener mOnContentChangedListener;
 
+    /** Loaded pages of results, most relevant first. */
+    private final List<PageCursor> mPages = new ArrayList<PageCursor>();
+
     public SearchListAdapter(Context context, Cursor cursor) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
@@ -61,6 +69,59 @@ public class SearchListAdapter extends CursorAdapter {
         return mFactory.inflate(R.layout.search_list_item, parent, false);
     }
 
+    /**
+     * Replaces all loaded pages with the given cursor.
+     * Previous pages are closed.
+     */
+    @Override
+    public void changeCursor(Cursor cursor) {
+        List<PageCursor> old = new ArrayList<PageCursor>(mPages);
+        mPages.clear();
+
+        if (cursor != null) {
+            PageCursor page = new PageCursor(cursor);
+            mPages.add(page);
+            super.changeCursor(page);
+        }
+        else {
+            super.changeCursor(null);
+        }
+
+        for (PageCursor page : old)
+            page.release();
+    }
+
+    /**
+     * Adds a page of less relevant results after the loaded ones.
+     * The cursor will be closed together with the other pages.
+     */
+    public void addPage(Cursor cursor) {
+        if (mPages.isEmpty()) {
+            changeCursor(cursor);
+            return;
+        }
+
+        mPages.add(new PageCursor(cursor));
+        // the previous merged cursor will be closed, but not its pages
+        super.changeCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+    }
+
+    /** A page of results that can be closed only by the adapter. */
+    private static final class PageCursor extends CursorWrapper {
+        public PageCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public void close() {
+            // pages are released by the adapter
+        }
+
+        public void release() {
+            super.close();
+        }
+    }
+
     public interface OnContentChangedListener {
         void onContentChanged(SearchListAdapter adapter);
     }
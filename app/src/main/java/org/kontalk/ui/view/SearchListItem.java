@@ -20,8 +20,13 @@ package org.kontalk.ui.view;
 
 import org.kontalk.data.Contact;
 import org.kontalk.data.SearchItem;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
 
 import android.content.Context;
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.StyleSpan;
 import android.util.AttributeSet;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
@@ -65,7 +70,30 @@ public class SearchListItem extends RelativeLayout {
             name = found.getUserId();
 
         mText1.setText(name);
-        mText2.setText(found.getText());
+        String snippet = found.getSnippet();
+        mText2.setText((snippet != null) ? formatSnippet(snippet) : found.getText());
+    }
+
+    /** Replaces snippet markers with bold text. */
+    private static CharSequence formatSnippet(String snippet) {
+        SpannableStringBuilder buf = new SpannableStringBuilder();
+        int start = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == Fulltext.SNIPPET_START) {
+                start = buf.length();
+            }
+            else if (c == Fulltext.SNIPPET_END) {
+                if (start >= 0)
+                    buf.setSpan(new StyleSpan(Typeface.BOLD), start, buf.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                start = -1;
+            }
+            else {
+                buf.append(c);
+            }
+        }
+        return buf;
     }
 
     public final void unbind() {
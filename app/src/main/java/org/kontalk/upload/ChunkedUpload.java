@@ -0,0 +1,350 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Properties;
+
+import org.kontalk.service.ProgressListener;
+import org.kontalk.util.RateLimiter;
+
+
+/**
+ * Resumable upload of a file in fixed size parts.
+ * The upload session is created once and saved to a state file; each part
+ * is sent at its offset and retried on failure after asking the server how
+ * much data it has received. An interrupted upload can be resumed later,
+ * even after a restart, as long as the server keeps the session.
+ * @author Daniele Ricci
+ */
+public class ChunkedUpload {
+
+    /** Default part size. */
+    public static final int DEFAULT_PART_SIZE = 256 * 1024;
+    /** Default number of retries for a part. */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    /** Default delay before retrying. */
+    public static final long DEFAULT_RETRY_DELAY = 1000;
+
+    /** Upload protocol implementation. */
+    public interface Connector {
+        /**
+         * Creates an upload session.
+         * @return the session URL
+         */
+        String create(long length) throws IOException;
+
+        /**
+         * Returns the amount of data received by the server.
+         * @throws SessionExpiredException if the session doesn't exist anymore
+         */
+        long getOffset(String session) throws IOException;
+
+        /**
+         * Sends a part.
+         * @return the amount of data received by the server
+         * @throws SessionExpiredException if the session doesn't exist anymore
+         */
+        long send(String session, long offset, InputStream data, long length) throws IOException;
+
+        /**
+         * Returns the URL for fetching the uploaded file, as provided by
+         * the server once all data has been received.
+         * @throws SessionExpiredException if the session doesn't exist anymore
+         */
+        String getFetchUrl(String session) throws IOException;
+    }
+
+    /** Thrown when the server doesn't know an upload session. */
+    public static class SessionExpiredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SessionExpiredException(String detail) {
+            super(detail);
+        }
+    }
+
+    private final Connector mConnector;
+    private final File mData;
+    private final File mStateFile;
+    private final UploadConnection mConn;
+    private final ProgressListener mListener;
+
+    private int mPartSize = DEFAULT_PART_SIZE;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mRetryDelay = DEFAULT_RETRY_DELAY;
+    private RateLimiter mLimiter;
+
+    private volatile boolean mAborted;
+    /** Total bytes sent, including retransmissions. */
+    private long mSentBytes;
+
+    /**
+     * Creates a new upload.
+     * @param data file to upload
+     * @param stateFile upload session state file
+     */
+    public ChunkedUpload(Connector connector, File data, File stateFile,
+            UploadConnection conn, ProgressListener listener) {
+        mConnector = connector;
+        mData = data;
+        mStateFile = stateFile;
+        mConn = conn;
+        mListener = listener;
+    }
+
+    public void setPartSize(int partSize) {
+        mPartSize = partSize;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        mRetryDelay = retryDelay;
+    }
+
+    /** Limits the transfer rate. */
+    public void setRateLimiter(RateLimiter limiter) {
+        mLimiter = limiter;
+    }
+
+    /** Returns the bytes sent so far, including retransmitted data. */
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    /**
+     * Uploads the file, resuming a previous session if possible.
+     * @return the URL for fetching the uploaded file
+     */
+    public String upload() throws IOException {
+        long length = mData.length();
+
+        String session = null;
+        long offset = 0;
+
+        Properties state = loadState();
+        if (state != null && String.valueOf(length).equals(state.getProperty("length"))) {
+            try {
+                offset = mConnector.getOffset(state.getProperty("session"));
+                session = state.getProperty("session");
+            }
+            catch (SessionExpiredException e) {
+                // start over
+            }
+        }
+
+        if (session == null) {
+            session = mConnector.create(length);
+            offset = 0;
+            saveState(session, length);
+        }
+
+        mListener.start(mConn);
+        mListener.progress(mConn, offset);
+
+        int retries = 0;
+        while (offset < length) {
+            if (mAborted)
+                throw new InterruptedIOException("upload aborted");
+
+            long partLength = Math.min(mPartSize, length - offset);
+            try {
+                long received = sendPart(session, offset, partLength);
+                if (received <= offset)
+                    throw new IOException("no data received by server");
+
+                offset = received;
+                retries = 0;
+            }
+            catch (InterruptedIOException e) {
+                throw e;
+            }
+            catch (IOException e) {
+                if (mAborted || ++retries > mMaxRetries)
+                    throw e;
+
+                try {
+                    Thread.sleep(mRetryDelay);
+                }
+                catch (InterruptedException ie) {
+                    throw new InterruptedIOException("upload interrupted");
+                }
+
+                try {
+                    // the server might have received part of the data
+                    offset = mConnector.getOffset(session);
+                }
+                catch (SessionExpiredException se) {
+                    session = mConnector.create(length);
+                    offset = 0;
+                    saveState(session, length);
+                }
+                catch (InterruptedIOException ie) {
+                    throw ie;
+                }
+                catch (IOException ie) {
+                    // try again from the same offset
+                }
+            }
+        }
+
+        // keep the session until we know the fetch URL
+        String url = mConnector.getFetchUrl(session);
+        mStateFile.delete();
+        return url;
+    }
+
+    /** Stops the upload, keeping the session for resuming later. */
+    public void abort() {
+        mAborted = true;
+    }
+
+    /** Deletes the saved session. */
+    public void discard() {
+        mStateFile.delete();
+    }
+
+    private long sendPart(String session, long offset, long length) throws IOException {
+        FileInputStream file = new FileInputStream(mData);
+        try {
+            file.getChannel().position(offset);
+            return mConnector.send(session, offset,
+                new PartInputStream(file, offset, length), length);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private Properties loadState() {
+        if (!mStateFile.isFile())
+            return null;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mStateFile);
+            Properties p = new Properties();
+            p.load(in);
+            return p.getProperty("session") != null ? p : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private void saveState(String session, long length) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("session", session);
+        p.setProperty("length", String.valueOf(length));
+
+        FileOutputStream out = new FileOutputStream(mStateFile);
+        try {
+            p.store(out, null);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Reads a part of the file and reports progress. */
+    private final class PartInputStream extends FilterInputStream {
+        private final long mOffset;
+        private final long mLength;
+        private long mRead;
+
+        PartInputStream(InputStream in, long offset, long length) {
+            super(in);
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRead >= mLength)
+                return -1;
+
+            int b = super.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mAborted)
+                throw new InterruptedIOException("upload aborted");
+            if (mRead >= mLength)
+                return -1;
+
+            int count = super.read(b, off, (int) Math.min(len, mLength - mRead));
+            if (count > 0)
+                publishProgress(count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip not supported");
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mLength - mRead);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // file is closed by the upload
+        }
+
+        private void publishProgress(int add) throws IOException {
+            if (mLimiter != null)
+                mLimiter.acquire(add);
+
+            mRead += add;
+            mSentBytes += add;
+            mListener.progress(mConn, mOffset + mRead);
+        }
+    }
+
+}
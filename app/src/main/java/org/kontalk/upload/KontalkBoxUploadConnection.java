@@ -23,17 +23,25 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.List;
 
+import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpOptions;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.ClientPNames;
@@ -43,6 +51,7 @@ import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.SingleClientConnManager;
 import org.apache.http.params.BasicHttpParams;
@@ -53,6 +62,8 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Environment;
+import android.util.Base64;
+import android.util.Log;
 
 import org.kontalk.Kontalk;
 import org.kontalk.client.ClientHTTPConnection;
@@ -61,8 +72,11 @@ import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.ProgressListener;
+import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.ProgressEncryptingEntity;
 import org.kontalk.util.ProgressInputStreamEntity;
+import org.kontalk.util.TransferThrottle;
 
 
 /**
@@ -79,6 +93,24 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     /** Message flags header. */
     private static final String HEADER_MESSAGE_FLAGS = "X-Message-Flags";
 
+    /** Resumable upload protocol (tus) headers. */
+    private static final String HEADER_TUS_RESUMABLE = "Tus-Resumable";
+    private static final String HEADER_TUS_VERSION = "Tus-Version";
+    private static final String HEADER_TUS_EXTENSION = "Tus-Extension";
+    private static final String HEADER_UPLOAD_LENGTH = "Upload-Length";
+    private static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+    private static final String HEADER_UPLOAD_METADATA = "Upload-Metadata";
+    private static final String TUS_VERSION = "1.0.0";
+
+    /** Files smaller than this are uploaded with a single request. */
+    private static final long CHUNKED_THRESHOLD = 512 * 1024;
+    /** Upload sessions not used for this long are deleted. */
+    private static final long SESSION_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+    /** Upload sessions directory (in the cache directory). */
+    private static final String SESSION_DIR = "uploads";
+    /** Length of a SHA-1 digest in hex. */
+    private static final int DIGEST_LENGTH = 40;
+
     protected final Context mContext;
 
     protected HttpRequestBase currentRequest;
@@ -89,6 +121,13 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     private final String mBaseUrl;
 
+    /** True if the server supports resumable uploads (null if unknown). */
+    private Boolean mResumable;
+    /** True if the server rejected an upload without content length. */
+    private boolean mChunkedPostRejected;
+    private volatile ChunkedUpload mChunkedUpload;
+    private volatile boolean mAborted;
+
     public KontalkBoxUploadConnection(Context context, String url,
             PrivateKey privateKey, X509Certificate bridgeCert) {
         mContext = context;
@@ -99,14 +138,21 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     @Override
     public void abort() {
-        if (currentRequest != null)
-            currentRequest.abort();
+        mAborted = true;
+        ChunkedUpload upload = mChunkedUpload;
+        if (upload != null)
+            upload.abort();
+
+        HttpRequestBase req = currentRequest;
+        if (req != null)
+            req.abort();
     }
 
     @Override
     public String upload(Uri uri, String mime, boolean encrypt, String to, ProgressListener listener)
             throws IOException {
 
+        mAborted = false;
         HttpResponse response = null;
         InputStream inMessage = null;
         try {
@@ -115,43 +161,58 @@ public class KontalkBoxUploadConnection implements UploadConnection {
             long inLength = stat.getLength();
             stat.close();
 
-            inMessage = mContext.getContentResolver().openInputStream(uri);
-
-            boolean encrypted = false;
+            Coder coder = null;
             // check if we have to encrypt the message
             if (encrypt) {
                 PersonalKey key = ((Kontalk)mContext.getApplicationContext()).getPersonalKey();
                 EndpointServer server = Preferences.getEndpointServer(mContext);
-                Coder coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
-                if (coder != null) {
-                    // create a temporary file to store encrypted data
-                    File temp = File.createTempFile("media", null, mContext.getCacheDir());
-                    FileOutputStream out = new FileOutputStream(temp);
-
-                    coder.encryptFile(inMessage, out);
-                    // close original file and encrypted file
-                    inMessage.close();
-                    out.close();
-
-                    // open the encrypted file
-                    inMessage = new FileInputStream(temp);
-                    inLength = temp.length();
-                    encrypted = true;
-
-                    // delete the encrypted file
-                    // it will stay until all streams are closed
-                    temp.delete();
-                }
+                coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
+            }
+
+            // large files are uploaded in parts so they can be resumed
+            if (inLength >= CHUNKED_THRESHOLD && isResumableSupported())
+                return uploadChunked(uri, mime, inLength, coder, to, listener);
+
+            inMessage = mContext.getContentResolver().openInputStream(uri);
+
+            if (coder != null && !mChunkedPostRejected) {
+                // data will be encrypted while uploading (chunked request)
+                currentRequest = prepareEncryptedMessage(listener,
+                    mime, inMessage, coder);
+                response = execute(currentRequest);
+                if (!isChunkedPostRejected(response))
+                    return getUploadUrl(response);
+
+                // server wants the content length: fall back to encrypting first
+                Log.w(TAG, "server rejected chunked upload: " + response.getStatusLine());
+                mChunkedPostRejected = true;
+                consume(response);
+                response = null;
+                inMessage.close();
+                inMessage = mContext.getContentResolver().openInputStream(uri);
+            }
+
+            boolean encrypted = false;
+            if (coder != null) {
+                // create a temporary file to store encrypted data
+                File temp = File.createTempFile("media", null, mContext.getCacheDir());
+                encrypt(inMessage, coder, temp);
+
+                // open the encrypted file
+                inMessage = new FileInputStream(temp);
+                inLength = temp.length();
+                encrypted = true;
+
+                // delete the encrypted file
+                // it will stay until all streams are closed
+                temp.delete();
             }
 
             // http request!
             currentRequest = prepareMessage(listener,
                 mime, inMessage, inLength, encrypted);
             response = execute(currentRequest);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
-                throw new HttpException(response.getStatusLine().getReasonPhrase());
-
-            return EntityUtils.toString(response.getEntity());
+            return getUploadUrl(response);
         }
         catch (Exception e) {
             throw innerException("upload error", e);
@@ -173,6 +234,226 @@ public class KontalkBoxUploadConnection implements UploadConnection {
         }
     }
 
+    /** Returns the fetch URL of an uploaded file. */
+    private static String getUploadUrl(HttpResponse response) throws Exception {
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+            throw new HttpException(response.getStatusLine().getReasonPhrase());
+
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    /** Returns true if the server does not accept requests without a content length. */
+    private static boolean isChunkedPostRejected(HttpResponse response) {
+        int status = response.getStatusLine().getStatusCode();
+        return status == HttpStatus.SC_LENGTH_REQUIRED ||
+            status == HttpStatus.SC_NOT_IMPLEMENTED;
+    }
+
+    /** Checks if the server supports the resumable upload protocol. */
+    private boolean isResumableSupported() {
+        if (mResumable == null) {
+            HttpResponse response = null;
+            try {
+                currentRequest = new HttpOptions(mBaseUrl);
+                response = execute(currentRequest);
+                Header version = response.getFirstHeader(HEADER_TUS_VERSION);
+                Header extension = response.getFirstHeader(HEADER_TUS_EXTENSION);
+                mResumable = version != null && version.getValue().contains(TUS_VERSION) &&
+                    extension != null && extension.getValue().contains("creation");
+            }
+            catch (IOException e) {
+                // try again next time
+                Log.w(TAG, "unable to query upload server capabilities", e);
+                return false;
+            }
+            finally {
+                currentRequest = null;
+                consume(response);
+            }
+        }
+        return mResumable;
+    }
+
+    /**
+     * Uploads a file in parts, resuming a previous upload if possible.
+     * Data that is not a local file or needs to be encrypted is first copied
+     * to the cache, since parts must be the same when resuming.
+     */
+    private String uploadChunked(Uri uri, String mime, long length, Coder coder,
+            String to, ProgressListener listener) throws Exception {
+
+        File dir = new File(mContext.getCacheDir(), SESSION_DIR);
+        dir.mkdirs();
+        purgeSessions(dir);
+
+        File file = "file".equals(uri.getScheme()) ? new File(uri.getPath()) : null;
+        // key on the content instead of the file: a regenerated file (e.g. a
+        // compressed image) with the same data can still be resumed
+        String key = MessageUtils.sha1(digest(dir, uri, length) + "|" + mime + "|" +
+            (coder != null ? to : "") + "|" + length);
+        File stateFile = new File(dir, key + ".state");
+
+        File data;
+        boolean copy = (coder != null || file == null);
+        if (copy) {
+            data = new File(dir, key + ".data");
+            if (!data.isFile()) {
+                // a new copy will be different
+                stateFile.delete();
+                // an interrupted copy must not be found by the next attempt
+                File temp = new File(data.getPath() + ".new");
+                writeData(uri, coder, temp);
+                if (!temp.renameTo(data)) {
+                    temp.delete();
+                    throw new IOException("unable to store upload data");
+                }
+            }
+        }
+        else {
+            data = file;
+        }
+
+        ChunkedUpload upload = new ChunkedUpload(new ResumableConnector(mime, coder != null),
+            data, stateFile, this, listener);
+        upload.setRateLimiter(TransferThrottle.getUploadLimiter());
+        mChunkedUpload = upload;
+        try {
+            String url = upload.upload();
+            Log.v(TAG, "uploaded " + upload.getSentBytes() + " bytes for " + data.length());
+            if (copy)
+                data.delete();
+            return url;
+        }
+        catch (IOException e) {
+            if (mAborted) {
+                upload.discard();
+                if (copy)
+                    data.delete();
+            }
+            throw e;
+        }
+        finally {
+            mChunkedUpload = null;
+        }
+    }
+
+    /**
+     * Returns the SHA-1 digest of some content, in hex. The digest is stored
+     * with the upload sessions, so retries don't read the content again.
+     */
+    private String digest(File dir, Uri uri, long length) throws Exception {
+        String id = uri + "|" + length;
+        if ("file".equals(uri.getScheme()))
+            id += "|" + new File(uri.getPath()).lastModified();
+        File digestFile = new File(dir, MessageUtils.sha1(id) + ".digest");
+
+        if (digestFile.isFile()) {
+            InputStream in = new FileInputStream(digestFile);
+            try {
+                String digest = MessageUtils.readFully(in, DIGEST_LENGTH).toString();
+                if (digest.length() == DIGEST_LENGTH)
+                    return digest;
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        String digest = digest(uri);
+        File temp = new File(digestFile.getPath() + ".new");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(digest.getBytes());
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(digestFile))
+            temp.delete();
+        return digest;
+    }
+
+    /** Returns the SHA-1 digest of some content, in hex. */
+    private String digest(Uri uri) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        InputStream in = mContext.getContentResolver().openInputStream(uri);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                md.update(buf, 0, len);
+        }
+        finally {
+            in.close();
+        }
+        return MessageUtils.bytesToHex(md.digest());
+    }
+
+    /** Copies (and encrypts) data to be uploaded. */
+    private void writeData(Uri uri, Coder coder, File data) throws Exception {
+        InputStream in = mContext.getContentResolver().openInputStream(uri);
+        if (coder != null) {
+            encrypt(in, coder, data);
+            return;
+        }
+
+        OutputStream out = new FileOutputStream(data);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                out.write(buf, 0, len);
+        }
+        catch (Exception e) {
+            out.close();
+            data.delete();
+            throw e;
+        }
+        finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /** Encrypts data to a file, closing the input stream. */
+    private static void encrypt(InputStream in, Coder coder, File data) throws Exception {
+        OutputStream out = new FileOutputStream(data);
+        try {
+            coder.encryptFile(in, out);
+        }
+        catch (Exception e) {
+            out.close();
+            data.delete();
+            throw e;
+        }
+        finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /** Deletes old upload sessions. */
+    private static void purgeSessions(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            long limit = System.currentTimeMillis() - SESSION_MAX_AGE;
+            for (File f : files) {
+                if (f.lastModified() < limit)
+                    f.delete();
+            }
+        }
+    }
+
+    private static void consume(HttpResponse response) {
+        try {
+            if (response != null && response.getEntity() != null)
+                response.getEntity().consumeContent();
+        }
+        catch (IOException e) {
+            // ignore
+        }
+    }
+
     private IOException innerException(String detail, Throwable cause) {
         IOException ie = new IOException(detail);
         ie.initCause(cause);
@@ -219,6 +500,148 @@ public class KontalkBoxUploadConnection implements UploadConnection {
         return req;
     }
 
+    /** A message posting method that encrypts data while sending it. */
+    private HttpRequestBase prepareEncryptedMessage(ProgressListener listener,
+        String mime, InputStream data, Coder coder)
+            throws IOException {
+
+        HttpPost req = (HttpPost) prepare(null, mime, null, true);
+        req.setEntity(new ProgressEncryptingEntity(data, coder, this, listener));
+        req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
+
+        return req;
+    }
+
+    /** Resumable upload protocol client (tus 1.0). */
+    private final class ResumableConnector implements ChunkedUpload.Connector {
+        private final String mMime;
+        private final boolean mEncrypted;
+
+        ResumableConnector(String mime, boolean encrypted) {
+            mMime = mime;
+            mEncrypted = encrypted;
+        }
+
+        public String create(long length) throws IOException {
+            HttpPost req = new HttpPost(mBaseUrl);
+            req.setHeader(HEADER_TUS_RESUMABLE, TUS_VERSION);
+            req.setHeader(HEADER_UPLOAD_LENGTH, String.valueOf(length));
+
+            StringBuilder metadata = new StringBuilder("filetype ")
+                .append(encodeMetadata(mMime != null ? mMime : "application/octet-stream"));
+            if (mEncrypted) {
+                metadata.append(",flags ").append(encodeMetadata("encrypted"));
+                req.setHeader(HEADER_MESSAGE_FLAGS, "encrypted");
+            }
+            req.setHeader(HEADER_UPLOAD_METADATA, metadata.toString());
+
+            HttpResponse response = executeResumable(req);
+            try {
+                int code = response.getStatusLine().getStatusCode();
+                Header location = response.getFirstHeader("Location");
+                if (code != HttpStatus.SC_CREATED || location == null)
+                    throw new IOException("invalid response: " + code);
+
+                return URI.create(mBaseUrl).resolve(location.getValue()).toString();
+            }
+            finally {
+                consume(response);
+            }
+        }
+
+        public long getOffset(String session) throws IOException {
+            HttpHead req = new HttpHead(session);
+            req.setHeader(HEADER_TUS_RESUMABLE, TUS_VERSION);
+            return parseOffset(executeResumable(req));
+        }
+
+        public long send(String session, long offset, InputStream data, long length)
+                throws IOException {
+            HttpPatch req = new HttpPatch(session);
+            req.setHeader(HEADER_TUS_RESUMABLE, TUS_VERSION);
+            req.setHeader(HEADER_UPLOAD_OFFSET, String.valueOf(offset));
+            InputStreamEntity entity = new InputStreamEntity(data, length);
+            entity.setContentType("application/offset+octet-stream");
+            req.setEntity(entity);
+            return parseOffset(executeResumable(req));
+        }
+
+        public String getFetchUrl(String session) throws IOException {
+            HttpGet req = new HttpGet(session);
+            req.setHeader(HEADER_TUS_RESUMABLE, TUS_VERSION);
+            HttpResponse response = executeResumable(req);
+            try {
+                int code = response.getStatusLine().getStatusCode();
+                if (code == HttpStatus.SC_NOT_FOUND || code == HttpStatus.SC_GONE)
+                    throw new ChunkedUpload.SessionExpiredException("upload session expired");
+                if (code != HttpStatus.SC_OK)
+                    throw new IOException("invalid response: " + code);
+
+                // same as a single request upload: fetch URL is the response body
+                return EntityUtils.toString(response.getEntity()).trim();
+            }
+            finally {
+                consume(response);
+            }
+        }
+
+        private HttpResponse executeResumable(HttpRequestBase req) throws IOException {
+            if (mAborted)
+                throw new InterruptedIOException("upload aborted");
+
+            currentRequest = req;
+            try {
+                return execute(req);
+            }
+            catch (IOException e) {
+                if (mAborted)
+                    throw new InterruptedIOException("upload aborted");
+                throw e;
+            }
+            finally {
+                currentRequest = null;
+            }
+        }
+
+        private long parseOffset(HttpResponse response) throws IOException {
+            try {
+                int code = response.getStatusLine().getStatusCode();
+                if (code == HttpStatus.SC_NOT_FOUND || code == HttpStatus.SC_GONE)
+                    throw new ChunkedUpload.SessionExpiredException("upload session expired");
+
+                Header offset = response.getFirstHeader(HEADER_UPLOAD_OFFSET);
+                if ((code != HttpStatus.SC_OK && code != HttpStatus.SC_NO_CONTENT) || offset == null)
+                    throw new IOException("invalid response: " + code);
+
+                try {
+                    return Long.parseLong(offset.getValue().trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("invalid upload offset: " + offset.getValue());
+                }
+            }
+            finally {
+                consume(response);
+            }
+        }
+    }
+
+    private static String encodeMetadata(String value) {
+        return Base64.encodeToString(value.getBytes(), Base64.NO_WRAP);
+    }
+
+    /** HTTP PATCH request (not available in this version of HttpClient). */
+    private static final class HttpPatch extends HttpEntityEnclosingRequestBase {
+        HttpPatch(String uri) {
+            setURI(URI.create(uri));
+        }
+
+        @Override
+        public String getMethod() {
+            return "PATCH";
+        }
+    }
+
     /**
      * Executes the given request.
      *
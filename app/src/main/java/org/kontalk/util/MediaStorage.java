@@ -19,16 +19,20 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetFileDescriptor;
@@ -44,6 +48,7 @@ import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import org.kontalk.Kontalk;
+import org.kontalk.provider.MyMessages.Media;
 
 
 /**
@@ -192,6 +197,143 @@ public abstract class MediaStorage {
         return f;
     }
 
+    /**
+     * Stores media content in the internal cache (e.g. a thumbnail).
+     * Files are named after their content hash: if the same content has
+     * already been stored, the existing file is returned.
+     */
+    public static File storeInternalMedia(Context context, byte[] contents, String mime) throws IOException {
+        String hash = MessageUtils.bytesToHex(sha1().digest(contents));
+        String ext = MimeTypeMap.getSingleton().getExtensionFromMimeType(mime);
+        File file = new File(context.getCacheDir(), ext != null ? hash + "." + ext : hash);
+
+        file = registerMedia(context, hash, file, null, contents.length);
+        // the cache might have been cleared
+        if (file.length() != contents.length) {
+            File temp = File.createTempFile(hash, null, file.getParentFile());
+            FileOutputStream fout = new FileOutputStream(temp);
+            try {
+                fout.write(contents);
+            }
+            finally {
+                fout.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("unable to store media " + file);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Stores a downloaded media file. The file is renamed after its content
+     * hash; if the same content has already been stored, the file is deleted
+     * and the existing one is returned.
+     * @param fetchUrl the URL the file was downloaded from
+     */
+    public static File storeMedia(Context context, File file, String fetchUrl) throws IOException {
+        MessageDigest md = sha1();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                md.update(buffer, 0, len);
+        }
+        finally {
+            in.close();
+        }
+
+        String hash = MessageUtils.bytesToHex(md.digest());
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String ext = (dot > 0) ? name.substring(dot) : "";
+        long length = file.length();
+
+        File stored = registerMedia(context, hash,
+            new File(file.getParentFile(), hash + ext), fetchUrl, length);
+
+        if (stored.equals(file))
+            return file;
+
+        if (stored.isFile() && stored.length() == length) {
+            // same content already stored
+            file.delete();
+            return stored;
+        }
+
+        // first copy or stored file was deleted
+        stored.getParentFile().mkdirs();
+        if (!file.renameTo(stored))
+            throw new IOException("unable to store media " + stored);
+        return stored;
+    }
+
+    /**
+     * Returns the stored media downloaded from the given URL.
+     * @return the file, or null if it was not downloaded or has been deleted
+     */
+    public static File getStoredMedia(Context context, String fetchUrl) {
+        String hash;
+        File file;
+        long length;
+        Cursor c = context.getContentResolver().query(Media.CONTENT_URI,
+            new String[] { Media.HASH, Media.LOCATION, Media.LENGTH },
+            Media.FETCH_URL + " = ?", new String[] { fetchUrl }, null);
+        try {
+            if (!c.moveToFirst())
+                return null;
+            hash = c.getString(0);
+            file = new File(c.getString(1));
+            length = c.getLong(2);
+        }
+        finally {
+            c.close();
+        }
+
+        if (!file.isFile() || file.length() != length)
+            return null;
+
+        // refresh so it won't be collected before being referenced
+        return registerMedia(context, hash, file, fetchUrl, length);
+    }
+
+    /**
+     * Registers a media file by hash.
+     * @return the file to be used: the given one or an already stored copy
+     */
+    private static File registerMedia(Context context, String hash, File file, String fetchUrl, long length) {
+        ContentResolver cr = context.getContentResolver();
+        ContentValues values = new ContentValues(4);
+        values.put(Media.HASH, hash);
+        values.put(Media.LOCATION, file.getAbsolutePath());
+        values.put(Media.FETCH_URL, fetchUrl);
+        values.put(Media.LENGTH, length);
+        cr.insert(Media.CONTENT_URI, values);
+
+        Cursor c = cr.query(Media.CONTENT_URI, new String[] { Media.LOCATION },
+            Media.HASH + " = ?", new String[] { hash }, null);
+        try {
+            if (c.moveToFirst())
+                return new File(c.getString(0));
+        }
+        finally {
+            c.close();
+        }
+
+        return file;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("no SHA-1 available", e);
+        }
+    }
+
     public static long getLength(Context context, Uri media) throws IOException {
         AssetFileDescriptor stat = null;
         try {
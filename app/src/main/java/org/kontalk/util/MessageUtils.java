@@ -522,6 +522,44 @@ public final class MessageUtils {
         return StringUtils.randomString(30);
     }
 
+    /** Adds the error flags for the given decryption errors to some security flags. */
+    public static int getSecurityFlags(List<DecryptException> errors, int securityFlags) {
+        for (DecryptException err : errors) {
+
+            int code = err.getCode();
+            switch (code) {
+
+                case DecryptException.DECRYPT_EXCEPTION_INTEGRITY_CHECK:
+                    securityFlags |= Coder.SECURITY_ERROR_INTEGRITY_CHECK;
+                    break;
+
+                case DecryptException.DECRYPT_EXCEPTION_VERIFICATION_FAILED:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_SIGNATURE;
+                    break;
+
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_DATA:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_DATA;
+                    break;
+
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_SENDER:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_SENDER;
+                    break;
+
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_RECIPIENT:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_RECIPIENT;
+                    break;
+
+                case DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP:
+                    securityFlags |= Coder.SECURITY_ERROR_INVALID_TIMESTAMP;
+                    break;
+
+            }
+
+        }
+
+        return securityFlags;
+    }
+
     /** Decrypts a message, modifying the object <b>in place</b>. */
     public static void decryptMessage(Context context, EndpointServer server, CompositeMessage msg) throws Exception {
         // encrypted messages have a single encrypted raw component
@@ -570,45 +608,8 @@ public final class MessageUtils {
             if (contentText != null)
                 msg.addComponent(new TextComponent(contentText));
 
-            if (errors.size() > 0) {
-
-                int securityFlags = msg.getSecurityFlags();
-
-                for (DecryptException err : errors) {
-
-                    int code = err.getCode();
-                    switch (code) {
-
-                        case DecryptException.DECRYPT_EXCEPTION_INTEGRITY_CHECK:
-                            securityFlags |= Coder.SECURITY_ERROR_INTEGRITY_CHECK;
-                            break;
-
-                        case DecryptException.DECRYPT_EXCEPTION_VERIFICATION_FAILED:
-                            securityFlags |= Coder.SECURITY_ERROR_INVALID_SIGNATURE;
-                            break;
-
-                        case DecryptException.DECRYPT_EXCEPTION_INVALID_DATA:
-                            securityFlags |= Coder.SECURITY_ERROR_INVALID_DATA;
-                            break;
-
-                        case DecryptException.DECRYPT_EXCEPTION_INVALID_SENDER:
-                            securityFlags |= Coder.SECURITY_ERROR_INVALID_SENDER;
-                            break;
-
-                        case DecryptException.DECRYPT_EXCEPTION_INVALID_RECIPIENT:
-                            securityFlags |= Coder.SECURITY_ERROR_INVALID_RECIPIENT;
-                            break;
-
-                        case DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP:
-                            securityFlags |= Coder.SECURITY_ERROR_INVALID_TIMESTAMP;
-                            break;
-
-                    }
-
-                }
-
-                msg.setSecurityFlags(securityFlags);
-            }
+            if (errors.size() > 0)
+                msg.setSecurityFlags(getSecurityFlags(errors, msg.getSecurityFlags()));
 
             msg.setEncrypted(false);
 
@@ -669,20 +670,11 @@ public final class MessageUtils {
                     if (previewMime == null)
                         previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
 
-                    String filename = null;
-
-                    if (ImageComponent.supportsMimeType(mime)) {
-                        filename = ImageComponent.buildMediaFilename(msg.getId(), previewMime);
-                    }
-
-                    else if (VCardComponent.supportsMimeType(mime)) {
-                        filename = VCardComponent.buildMediaFilename(msg.getId(), previewMime);
-                    }
-
                     try {
-                        if (filename != null) previewFile =
-                            MediaStorage.writeInternalMedia(context,
-                                filename, preview.getContents());
+                        // previews are shared by all messages with the same one
+                        if (ImageComponent.supportsMimeType(mime) || VCardComponent.supportsMimeType(mime))
+                            previewFile = MediaStorage.storeInternalMedia(context,
+                                preview.getContents(), previewMime);
                     }
                     catch (IOException e) {
                         Log.w(Kontalk.TAG, "error storing thumbnail", e);
@@ -223,6 +223,17 @@ public final class Preferences {
             .commit();
     }
 
+    /** Settings used by the last users resync (a change will force a full resync). */
+    public static String getContactsSyncSignature(Context context) {
+        return getString(context, "pref_contacts_sync_signature", null);
+    }
+
+    public static boolean setContactsSyncSignature(Context context, String signature) {
+        return sPreferences.edit()
+            .putString("pref_contacts_sync_signature", signature)
+            .commit();
+    }
+
     public static boolean setLastPushNotification(Context context, long timestamp) {
         return sPreferences.edit()
             .putLong("pref_last_push_notification", timestamp)
@@ -0,0 +1,181 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.GeneralSecurityException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import android.util.Log;
+
+import org.kontalk.crypto.Coder;
+import org.kontalk.service.ProgressListener;
+import org.kontalk.upload.UploadConnection;
+
+
+/**
+ * An entity that encrypts its content while it's being sent.
+ * The encrypted length is not known in advance, so the entity is sent with
+ * chunked transfer encoding. Progress is reported on encrypted bytes.
+ * As with any streaming entity, content can be consumed only once, either
+ * through {@link #writeTo(OutputStream)} or {@link #getContent()}.
+ * @author Daniele Ricci
+ */
+public class ProgressEncryptingEntity extends AbstractHttpEntity {
+    private static final String TAG = ProgressEncryptingEntity.class.getSimpleName();
+
+    /** Write buffer size (avoids reporting progress for every PGP packet). */
+    private static final int BUFFER_SIZE = 8192;
+
+    protected final InputStream mContent;
+    protected final Coder mCoder;
+    protected final UploadConnection mConn;
+    protected final ProgressListener mListener;
+
+    public ProgressEncryptingEntity(InputStream instream, Coder coder,
+            final UploadConnection conn, final ProgressListener listener) {
+        mContent = instream;
+        mCoder = coder;
+        mConn = conn;
+        mListener = listener;
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Returns the encrypted content. Encryption runs in a background thread
+     * writing to a pipe; an encryption error is thrown by the returned
+     * stream when the end of data is reached.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final PipedOutputStream pipe = new PipedOutputStream();
+        final EncryptedInputStream in = new EncryptedInputStream(new PipedInputStream(pipe));
+
+        new Thread(new Runnable() {
+            public void run() {
+                OutputStream out = new BufferedOutputStream(pipe, BUFFER_SIZE);
+                try {
+                    mCoder.encryptFile(mContent, out);
+                    out.flush();
+                }
+                catch (Exception e) {
+                    Log.w(TAG, "encryption error", e);
+                    in.setError(e);
+                }
+                finally {
+                    try {
+                        mContent.close();
+                    }
+                    catch (IOException e) {
+                        // ignore
+                    }
+                    try {
+                        pipe.close();
+                    }
+                    catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }, "ProgressEncryptingEntity").start();
+
+        return in;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        mListener.start(mConn);
+        OutputStream out = new BufferedOutputStream(new ProgressInputStreamEntity
+            .CountingOutputStream(outstream, mConn, mListener,
+                TransferThrottle.getUploadLimiter()), BUFFER_SIZE);
+        try {
+            mCoder.encryptFile(mContent, out);
+            out.flush();
+        }
+        catch (GeneralSecurityException e) {
+            IOException ie = new IOException("encryption error");
+            ie.initCause(e);
+            throw ie;
+        }
+        finally {
+            mContent.close();
+        }
+    }
+
+    /** Reading side of the encryption pipe: reports encryption errors at the end of data. */
+    private static final class EncryptedInputStream extends FilterInputStream {
+        private volatile Exception mError;
+
+        EncryptedInputStream(InputStream in) {
+            super(in);
+        }
+
+        void setError(Exception error) {
+            mError = error;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0)
+                checkError();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int len = super.read(buffer, offset, count);
+            if (len < 0)
+                checkError();
+            return len;
+        }
+
+        private void checkError() throws IOException {
+            Exception error = mError;
+            if (error != null) {
+                IOException ie = new IOException("encryption error");
+                ie.initCause(error);
+                throw ie;
+            }
+        }
+    }
+
+}
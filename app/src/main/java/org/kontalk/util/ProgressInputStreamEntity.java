@@ -42,37 +42,47 @@ public class ProgressInputStreamEntity extends InputStreamEntity {
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
         mListener.start(mConn);
-        super.writeTo(new CountingOutputStream(outstream, mConn, mListener));
+        super.writeTo(new CountingOutputStream(outstream, mConn, mListener,
+            TransferThrottle.getUploadLimiter()));
     }
 
-    private static final class CountingOutputStream extends FilterOutputStream {
+    /**
+     * Reports the number of bytes written so far to a {@link ProgressListener},
+     * limiting the write rate.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
 
         private final UploadConnection conn;
         private final ProgressListener listener;
+        private final RateLimiter limiter;
         private long transferred;
 
         public CountingOutputStream(OutputStream out, UploadConnection conn,
-            ProgressListener listener) {
+            ProgressListener listener, RateLimiter limiter) {
             super(out);
             this.listener = listener;
             this.conn = conn;
+            this.limiter = limiter;
             this.transferred = 0;
         }
 
         @Override
         public void write(byte[] buffer) throws IOException {
+            limiter.acquire(buffer.length);
             out.write(buffer);
             publishProgress(buffer.length);
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
+            limiter.acquire(len);
             out.write(b, off, len);
             publishProgress(len);
         }
 
         @Override
         public void write(int b) throws IOException {
+            limiter.acquire(1);
             out.write(b);
             publishProgress(1);
         }
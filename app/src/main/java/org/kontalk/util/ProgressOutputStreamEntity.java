@@ -19,13 +19,18 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.List;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.service.DownloadListener;
 
 
@@ -36,12 +41,28 @@ public class ProgressOutputStreamEntity implements HttpEntity {
     private final File mFile;
     private final DownloadListener mListener;
 
+    private final Coder mDecrypter;
+    private final List<DecryptException> mErrors;
+
     public ProgressOutputStreamEntity(HttpEntity parent,
             String url, File file, final DownloadListener listener) {
+        this(parent, url, file, null, null, listener);
+    }
+
+    /**
+     * Creates an entity that decrypts data while writing it.
+     * Progress is reported on received (encrypted) bytes.
+     * @param errors will be filled with verification errors
+     */
+    public ProgressOutputStreamEntity(HttpEntity parent,
+            String url, File file, Coder decrypter, List<DecryptException> errors,
+            final DownloadListener listener) {
         mParent = parent;
         mUrl = url;
         mFile = file;
         mListener = listener;
+        mDecrypter = decrypter;
+        mErrors = errors;
     }
 
     @Override
@@ -87,7 +108,23 @@ public class ProgressOutputStreamEntity implements HttpEntity {
     @Override
     public void writeTo(OutputStream outstream) throws IOException {
         mListener.start(mUrl, mFile, mParent.getContentLength());
-        mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
+        if (mDecrypter != null) {
+            InputStream in = new CountingInputStream(mParent.getContent(), mUrl, mFile, mListener);
+            try {
+                mDecrypter.decryptFile(in, true, outstream, mErrors);
+            }
+            catch (GeneralSecurityException e) {
+                IOException ie = new IOException("decryption error");
+                ie.initCause(e);
+                throw ie;
+            }
+            finally {
+                in.close();
+            }
+        }
+        else {
+            mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
+        }
         Header mime = mParent.getContentType();
         mListener.completed(mUrl, mime != null ? mime.getValue() : null, mFile);
     }
@@ -125,7 +162,56 @@ public class ProgressOutputStreamEntity implements HttpEntity {
             publishProgress(1);
         }
 
-        private void publishProgress(long add) {
+        private void publishProgress(long add) throws IOException {
+            // throttle after the fact: the data has already been received
+            TransferThrottle.getDownloadLimiter().acquire((int) add);
+            this.transferred += add;
+            this.listener.progress(url, file, this.transferred);
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final DownloadListener listener;
+        private final String url;
+        private final File file;
+        private long transferred;
+
+        public CountingInputStream(final InputStream in,
+                final String url, final File file, final DownloadListener listener) {
+            super(in);
+            this.url = url;
+            this.file = file;
+            this.listener = listener;
+            this.transferred = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0)
+                publishProgress(count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = in.skip(n);
+            if (count > 0)
+                publishProgress(count);
+            return count;
+        }
+
+        private void publishProgress(long add) throws IOException {
+            // throttle after the fact: the data has already been received
+            TransferThrottle.getDownloadLimiter().acquire((int) add);
             this.transferred += add;
             this.listener.progress(url, file, this.transferred);
         }
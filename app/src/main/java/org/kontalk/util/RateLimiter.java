@@ -0,0 +1,89 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.InterruptedIOException;
+
+
+/**
+ * A token bucket rate limiter shared by several streams.
+ * Callers take the tokens they need and wait for the bucket to refill if it
+ * goes empty, so the total rate of all callers is kept under the limit.
+ * @author Daniele Ricci
+ */
+public class RateLimiter {
+
+    /** Burst size as a fraction of the rate (a quarter of a second of traffic). */
+    private static final int BURST_DIVISOR = 4;
+    /** Minimum burst size. */
+    private static final long MIN_BURST = 16 * 1024;
+
+    private long mRate;
+    private double mTokens;
+    private long mTimestamp;
+
+    /** Creates a rate limiter (0 means unlimited). */
+    public RateLimiter(long bytesPerSecond) {
+        mRate = bytesPerSecond;
+        mTimestamp = System.nanoTime();
+    }
+
+    /** Sets the rate in bytes per second (0 means unlimited). */
+    public synchronized void setRate(long bytesPerSecond) {
+        mRate = bytesPerSecond;
+    }
+
+    /** Returns the current rate in bytes per second (0 means unlimited). */
+    protected synchronized long getRate() {
+        return mRate;
+    }
+
+    /** Waits until the given amount of bytes can be transferred. */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long rate = getRate();
+            if (rate <= 0) {
+                // unlimited: start with an empty bucket when limits apply again
+                mTokens = 0;
+                mTimestamp = now;
+                return;
+            }
+
+            long burst = Math.max(rate / BURST_DIVISOR, MIN_BURST);
+            mTokens = Math.min(burst, mTokens + (now - mTimestamp) * rate / 1e9);
+            mTimestamp = now;
+
+            // tokens can go negative: later callers will wait for them too
+            mTokens -= bytes;
+            wait = (mTokens < 0) ? (long) (-mTokens * 1000 / rate) : 0;
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("transfer interrupted");
+            }
+        }
+    }
+
+}
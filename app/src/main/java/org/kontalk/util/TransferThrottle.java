@@ -0,0 +1,150 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import org.jivesoftware.smack.packet.Message;
+
+
+/**
+ * Bandwidth policies for attachment transfers.
+ * Transfers are limited according to the class of the current network.
+ * While messages are being exchanged, transfers are slowed down further, so
+ * the link is not saturated and message latency stays low.
+ * @author Daniele Ricci
+ */
+public final class TransferThrottle {
+
+    public static final int NETWORK_UNMETERED = 0;
+    public static final int NETWORK_METERED = 1;
+    public static final int NETWORK_ROAMING = 2;
+
+    /** Time after the last message during which messaging is considered active. */
+    public static final long ACTIVITY_WINDOW = 5000;
+
+    /**
+     * Rates for each network class in bytes per second (0 means unlimited):
+     * idle download, active download, idle upload, active upload.
+     */
+    private static final long[][] POLICIES = {
+        // unmetered
+        { 0, 1024 * 1024, 0, 512 * 1024 },
+        // metered
+        { 0, 256 * 1024, 0, 64 * 1024 },
+        // roaming
+        { 128 * 1024, 32 * 1024, 64 * 1024, 16 * 1024 },
+    };
+
+    private static volatile int sNetworkClass = NETWORK_UNMETERED;
+    private static volatile long sLastActivity = Long.MIN_VALUE / 2;
+
+    private static final RateLimiter sDownload = new PolicyRateLimiter(0);
+    private static final RateLimiter sUpload = new PolicyRateLimiter(2);
+
+    private TransferThrottle() {
+    }
+
+    /** Rate limiter reading its rate from the current policy. */
+    private static final class PolicyRateLimiter extends RateLimiter {
+        private final int mIndex;
+
+        PolicyRateLimiter(int index) {
+            super(0);
+            mIndex = index;
+        }
+
+        @Override
+        protected long getRate() {
+            return TransferThrottle.getRate(mIndex);
+        }
+    }
+
+    static long getRate(int index) {
+        boolean active = System.nanoTime() / 1000000 - sLastActivity < ACTIVITY_WINDOW;
+        return POLICIES[sNetworkClass][index + (active ? 1 : 0)];
+    }
+
+    /** Returns the rate limiter shared by all downloads. */
+    public static RateLimiter getDownloadLimiter() {
+        return sDownload;
+    }
+
+    /** Returns the rate limiter shared by all uploads. */
+    public static RateLimiter getUploadLimiter() {
+        return sUpload;
+    }
+
+    /** Notifies that a message has been sent or received. */
+    public static void onMessagingActivity() {
+        sLastActivity = System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Notifies that a message stanza has been sent or received. Only chat
+     * messages with a body count as activity (not receipts or chat states).
+     */
+    public static void onMessage(Message m) {
+        if (m.getType() == Message.Type.chat && m.getBody() != null)
+            onMessagingActivity();
+    }
+
+    public static int getNetworkClass() {
+        return sNetworkClass;
+    }
+
+    public static void setNetworkClass(int networkClass) {
+        sNetworkClass = networkClass;
+    }
+
+    /** Detects the class of the current network. */
+    public static void update(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return;
+
+        if (info.isRoaming())
+            setNetworkClass(NETWORK_ROAMING);
+        else if (isMetered(connMgr, info))
+            setNetworkClass(NETWORK_METERED);
+        else
+            setNetworkClass(NETWORK_UNMETERED);
+    }
+
+    private static boolean isMetered(ConnectivityManager connMgr, NetworkInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            return isActiveNetworkMetered(connMgr);
+
+        return info.getType() != ConnectivityManager.TYPE_WIFI &&
+            info.getType() != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isActiveNetworkMetered(ConnectivityManager connMgr) {
+        return connMgr.isActiveNetworkMetered();
+    }
+
+}
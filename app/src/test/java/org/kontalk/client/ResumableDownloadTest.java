@@ -0,0 +1,527 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kontalk.service.DownloadListener;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Downloads files from a local HTTP server that drops connections, checking
+ * that downloads are resumed correctly and that only data lost in transit is
+ * downloaded again.
+ */
+public class ResumableDownloadTest {
+
+    private static final String FILENAME = "test.bin";
+
+    private TestServer mServer;
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestServer();
+        mDir = File.createTempFile("download", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        mServer.setContent(content(1024 * 1024, 1), "\"v1\"");
+        mServer.dropConnections(5, 100 * 1024);
+
+        TestListener listener = new TestListener();
+        ResumableDownload download = create(listener);
+        download.setRetryDelay(0);
+        download.start();
+        assertEquals(FILENAME, download.getFilename());
+        assertEquals("application/octet-stream", download.getMime());
+
+        File destination = new File(mDir, FILENAME);
+        download.download(destination);
+
+        assertContent(destination);
+        assertEquals(mServer.getContent().length, listener.mBytes);
+        assertEquals(6, mServer.getRequestCount());
+        assertFalse(new File(mDir, "part").exists());
+        assertFalse(new File(mDir, "part.state").exists());
+        assertWasted();
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        mServer.setContent(content(6 * 1024 * 1024, 2), "\"v1\"");
+        mServer.dropConnections(4, 512 * 1024);
+        mServer.setDelay(1);
+
+        TestListener listener = new TestListener();
+        ResumableDownload download = create(listener);
+        download.setRetryDelay(0);
+        download.setSegments(3);
+        download.start();
+
+        File destination = new File(mDir, FILENAME);
+        download.download(destination);
+
+        assertContent(destination);
+        assertEquals(mServer.getContent().length, listener.mBytes);
+        // first range, rest of first segment, 2 segments, 4 reconnections
+        assertEquals(8, mServer.getRequestCount());
+        assertTrue(mServer.getMaxConcurrency() > 1);
+        assertWasted();
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        mServer.setContent(content(3 * 1024 * 1024, 3), "\"v1\"");
+        mServer.dropConnections(1, 1536 * 1024);
+
+        // first attempt fails without retrying
+        ResumableDownload download = create(new TestListener());
+        download.setMaxRetries(0);
+        download.start();
+        File destination = new File(mDir, FILENAME);
+        try {
+            download.download(destination);
+            fail("download should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertFalse(destination.exists());
+        assertTrue(new File(mDir, "part.state").isFile());
+
+        // resume from saved state
+        TestListener listener = new TestListener();
+        download = create(listener);
+        download.start();
+        assertEquals(FILENAME, download.getFilename());
+        download.download(destination);
+
+        assertContent(destination);
+        assertEquals(mServer.getContent().length, listener.mBytes);
+        assertTrue(listener.mStartBytes > 0);
+        assertWasted();
+    }
+
+    /** A completed download that could not be moved is not downloaded again. */
+    @Test
+    public void testCompletedState() throws Exception {
+        mServer.setContent(content(1024 * 1024, 7), "\"v1\"");
+
+        // destination can't be replaced: data is downloaded but not moved
+        File destination = new File(mDir, FILENAME);
+        File blocker = new File(destination, "blocker");
+        assertTrue(blocker.mkdirs());
+        ResumableDownload download = create(new TestListener());
+        download.start();
+        try {
+            download.download(destination);
+            fail("download should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertTrue(new File(mDir, "part.state").isFile());
+        assertEquals(1, mServer.getRequestCount());
+
+        assertTrue(blocker.delete());
+        assertTrue(destination.delete());
+
+        TestListener listener = new TestListener();
+        download = create(listener);
+        download.start();
+        assertEquals(FILENAME, download.getFilename());
+        assertEquals(mServer.getContent().length, download.getLength());
+        download.download(destination);
+
+        assertContent(destination);
+        assertEquals(mServer.getContent().length, listener.mStartBytes);
+        assertEquals(1, mServer.getRequestCount());
+        assertFalse(new File(mDir, "part.state").exists());
+    }
+
+    @Test
+    public void testChangedContent() throws Exception {
+        mServer.setContent(content(2 * 1024 * 1024, 4), "\"v1\"");
+        mServer.dropConnections(1, 1536 * 1024);
+
+        ResumableDownload download = create(new TestListener());
+        download.setMaxRetries(0);
+        download.start();
+        File destination = new File(mDir, FILENAME);
+        try {
+            download.download(destination);
+            fail("download should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        // partial data must be discarded
+        mServer.setContent(content(1024 * 1024, 5), "\"v2\"");
+        download = create(new TestListener());
+        download.start();
+        download.download(destination);
+
+        assertContent(destination);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        byte[] content = content(1024 * 1024, 6);
+        mServer.setContent(content, "\"v1\"");
+        mServer.dropConnections(3, 200 * 1024);
+
+        Connector connector = new Connector(mServer.getUrl());
+        InputStream in = ResumableDownload.openStream(connector,
+            connector.open(0, -1, null), 3, 0);
+        byte[] data = new byte[content.length];
+        int pos = 0;
+        int len;
+        while ((len = in.read(data, pos, Math.min(8192, data.length - pos))) > 0)
+            pos += len;
+        assertEquals(-1, in.read());
+        in.close();
+
+        assertEquals(content.length, pos);
+        assertArrayEquals(content, data);
+        assertWasted();
+    }
+
+    private ResumableDownload create(DownloadListener listener) {
+        return new ResumableDownload(new Connector(mServer.getUrl()), mServer.getUrl(),
+            new File(mDir, "part"), new File(mDir, "part.state"), listener);
+    }
+
+    private void assertContent(File file) throws IOException {
+        byte[] content = mServer.getContent();
+        assertEquals(content.length, file.length());
+        byte[] data = new byte[content.length];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        assertArrayEquals(content, data);
+    }
+
+    private void assertWasted() {
+        long wasted = mServer.getBytesSent() - mServer.getContent().length;
+        // only data lost in transit should be downloaded again
+        assertTrue(wasted >= 0);
+        assertTrue(wasted < mServer.getContent().length / 10);
+    }
+
+    private static byte[] content(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static final class TestListener implements DownloadListener {
+        long mStartBytes = -1;
+        long mBytes;
+
+        public void start(String url, File destination, long length) {
+            mStartBytes = length;
+        }
+
+        public void progress(String url, File destination, long bytes) {
+            assertTrue(bytes > mBytes);
+            mBytes = bytes;
+        }
+
+        public void completed(String url, String mime, File destination) {
+        }
+
+        public void error(String url, File destination, Throwable exc) {
+        }
+    }
+
+    /** A connector using {@link HttpURLConnection}. */
+    private static final class Connector implements ResumableDownload.Connector {
+        private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+        private final String mUrl;
+
+        Connector(String url) {
+            mUrl = url;
+        }
+
+        public ResumableDownload.Response open(long start, long end, String validator)
+                throws IOException {
+            final HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            if (start > 0 || end >= 0) {
+                conn.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+                if (validator != null)
+                    conn.setRequestProperty("If-Range", validator);
+            }
+
+            int code = conn.getResponseCode();
+            long first = 0;
+            long total = conn.getContentLength();
+            long last = total - 1;
+            if (code == ResumableDownload.HTTP_PARTIAL_CONTENT) {
+                Matcher m = CONTENT_RANGE_PATTERN.matcher(conn.getHeaderField("Content-Range"));
+                assertTrue(m.matches());
+                first = Long.parseLong(m.group(1));
+                last = Long.parseLong(m.group(2));
+                total = Long.parseLong(m.group(3));
+            }
+            else if (code != ResumableDownload.HTTP_OK) {
+                conn.disconnect();
+                throw new IOException("invalid response: " + code);
+            }
+
+            String disp = conn.getHeaderField("Content-Disposition");
+            String name = disp != null ? disp.replaceAll(".*filename=\"([^\"]*)\".*", "$1") : null;
+
+            return new ResumableDownload.Response(code, first, last, total,
+                    conn.getHeaderField("ETag"), "bytes".equals(conn.getHeaderField("Accept-Ranges")),
+                    name, conn.getContentType(), conn.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    conn.disconnect();
+                }
+            };
+        }
+    }
+
+    /**
+     * A minimal HTTP server supporting ranged requests, which drops some
+     * connections after sending part of the data.
+     */
+    private static final class TestServer implements Runnable {
+        private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+        private final ServerSocket mSocket;
+        private final Thread mThread;
+
+        private volatile byte[] mContent;
+        private volatile String mEtag;
+
+        private final AtomicInteger mDrops = new AtomicInteger();
+        private volatile long mDropAfter;
+        private volatile long mDelay;
+
+        private final AtomicInteger mRequests = new AtomicInteger();
+        private final AtomicLong mBytesSent = new AtomicLong();
+        private final AtomicInteger mActive = new AtomicInteger();
+        private final AtomicInteger mMaxActive = new AtomicInteger();
+
+        TestServer() throws IOException {
+            mSocket = new ServerSocket(0);
+            mThread = new Thread(this);
+            mThread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/download/test";
+        }
+
+        void setContent(byte[] content, String etag) {
+            mContent = content;
+            mEtag = etag;
+        }
+
+        byte[] getContent() {
+            return mContent;
+        }
+
+        /** Drops the next connections after sending the given amount of bytes. */
+        void dropConnections(int count, long after) {
+            mDrops.set(count);
+            mDropAfter = after;
+        }
+
+        /** Simulates a slow link by pausing after every block of data. */
+        void setDelay(long delay) {
+            mDelay = delay;
+        }
+
+        int getRequestCount() {
+            return mRequests.get();
+        }
+
+        long getBytesSent() {
+            return mBytesSent.get();
+        }
+
+        int getMaxConcurrency() {
+            return mMaxActive.get();
+        }
+
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket s = mSocket.accept();
+                    new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                serve(s);
+                            }
+                            catch (IOException e) {
+                                // client went away
+                            }
+                            finally {
+                                try {
+                                    s.close();
+                                }
+                                catch (IOException e) {
+                                    // ignored
+                                }
+                            }
+                        }
+                    }).start();
+                }
+                catch (IOException e) {
+                    // server closed
+                }
+            }
+        }
+
+        private void serve(Socket s) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII"));
+            if (in.readLine() == null)
+                return;
+
+            String range = null;
+            String ifRange = null;
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                int sep = line.indexOf(':');
+                String name = line.substring(0, sep).trim();
+                String value = line.substring(sep + 1).trim();
+                if ("Range".equalsIgnoreCase(name))
+                    range = value;
+                else if ("If-Range".equalsIgnoreCase(name))
+                    ifRange = value;
+            }
+
+            byte[] content = mContent;
+            long start = 0;
+            long end = content.length - 1;
+            boolean partial = false;
+            if (range != null && (ifRange == null || ifRange.equals(mEtag))) {
+                Matcher m = RANGE_PATTERN.matcher(range);
+                if (m.matches()) {
+                    start = Long.parseLong(m.group(1));
+                    if (m.group(2).length() > 0)
+                        end = Math.min(end, Long.parseLong(m.group(2)));
+                    partial = true;
+                }
+            }
+
+            mRequests.incrementAndGet();
+            int active = mActive.incrementAndGet();
+            int max;
+            do {
+                max = mMaxActive.get();
+            } while (active > max && !mMaxActive.compareAndSet(max, active));
+
+            try {
+                long length = end - start + 1;
+                StringBuilder head = new StringBuilder();
+                head.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/octet-stream\r\n")
+                    .append("Content-Disposition: attachment; filename=\"").append(FILENAME).append("\"\r\n")
+                    .append("ETag: ").append(mEtag).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n")
+                    .append("Content-Length: ").append(length).append("\r\n")
+                    .append("Connection: close\r\n");
+                if (partial)
+                    head.append("Content-Range: bytes ").append(start).append('-')
+                        .append(end).append('/').append(content.length).append("\r\n");
+                head.append("\r\n");
+
+                OutputStream out = s.getOutputStream();
+                out.write(head.toString().getBytes("US-ASCII"));
+
+                // inject a disconnect
+                if (length > mDropAfter && mDrops.getAndDecrement() > 0)
+                    length = mDropAfter;
+
+                int pos = (int) start;
+                long left = length;
+                while (left > 0) {
+                    int len = (int) Math.min(8192, left);
+                    out.write(content, pos, len);
+                    mBytesSent.addAndGet(len);
+                    pos += len;
+                    left -= len;
+
+                    if (mDelay > 0) {
+                        try {
+                            Thread.sleep(mDelay);
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                out.flush();
+            }
+            finally {
+                mActive.decrementAndGet();
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.Date;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPCompressedDataGenerator;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.util.CPIMMessage;
+
+
+/**
+ * Measures the bytes allocated by {@link PGPCoder#encryptText} for each
+ * message, against the previous implementation which copied the whole
+ * CPIM text to a byte array and read it back through a stream.
+ * Not part of the unit tests (needs a HotSpot JVM for allocation
+ * counters): run it with <code>EncryptAllocationBenchmark [rounds]</code>.
+ */
+public class EncryptAllocationBenchmark {
+
+    private static final int BUFFER_SIZE = 1 << 8;
+    private static final int[] TEXT_LENGTHS = { 100, 1000, 10000 };
+
+    public static void main(String[] args) throws Exception {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+        com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mx.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        PersonalKey key = TestKeys.create("alice");
+        PGPPublicKeyRing[] recipients = { TestKeys.create("bob").getPublicKeyRing() };
+        PGPCoder coder = new PGPCoder(TestKeys.SERVER, key, recipients);
+
+        System.out.println("bytes allocated per encrypted message, " + rounds + " rounds:");
+        for (int length : TEXT_LENGTHS) {
+            StringBuilder b = new StringBuilder(length);
+            while (b.length() < length)
+                b.append("Short text message \u00e8 ");
+            String text = b.substring(0, length);
+
+            // warm up
+            for (int i = 0; i < rounds; i++) {
+                encryptCopy(TestKeys.SERVER, key, recipients, text);
+                coder.encryptText(text);
+            }
+
+            long start = mx.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < rounds; i++)
+                encryptCopy(TestKeys.SERVER, key, recipients, text);
+            long copied = (mx.getThreadAllocatedBytes(threadId) - start) / rounds;
+
+            start = mx.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < rounds; i++)
+                coder.encryptText(text);
+            long streamed = (mx.getThreadAllocatedBytes(threadId) - start) / rounds;
+
+            System.out.println("  " + length + " chars: copy " + copied + " bytes, stream " +
+                streamed + " bytes");
+        }
+    }
+
+    /** The previous implementation of {@link PGPCoder#encryptText}. */
+    private static byte[] encryptCopy(EndpointServer server, PersonalKey key,
+            PGPPublicKeyRing[] recipients, String text) throws Exception {
+
+        String from = key.getUserId(server.getNetwork());
+        StringBuilder to = new StringBuilder();
+        for (PGPPublicKeyRing rcpt : recipients)
+            to.append(PGP.getUserId(PGP.getMasterKey(rcpt), server.getNetwork()))
+                .append("; ");
+
+        CPIMMessage cpim = new CPIMMessage(from, to.toString(), new Date(), "text/plain", text);
+        byte[] plainText = cpim.toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
+
+        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+        encryptor.setWithIntegrityPacket(true);
+        encryptor.setSecureRandom(new SecureRandom());
+
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+        for (PGPPublicKeyRing rcpt : recipients)
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+
+        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
+                (new BcPGPContentSignerBuilder(key.getEncryptKeyPair()
+                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, key.getEncryptKeyPair().getPrivateKey());
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, key.getUserId(server.getNetwork()));
+        sigGen.setUnhashedSubpackets(spGen.generate());
+
+        sigGen.generateOnePassVersion(false)
+            .encode(compressedOut);
+
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(
+            compressedOut,
+            PGPLiteralData.BINARY,
+            "",
+            new Date(),
+            new byte[BUFFER_SIZE]);
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            literalOut.write(buf, 0, len);
+            sigGen.update(buf, 0, len);
+        }
+
+        in.close();
+        literalGen.close();
+        sigGen.generate().encode(compressedOut);
+        compGen.close();
+        encGen.close();
+
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+
+import org.kontalk.client.EndpointServer;
+
+
+/**
+ * Personal keys generated on the JVM, for tests and benchmarks.
+ */
+public final class TestKeys {
+
+    public static final EndpointServer SERVER =
+        new EndpointServer("kontalk.net", "beta.kontalk.net", EndpointServer.DEFAULT_PORT);
+
+    private static final String PASSPHRASE = "test";
+    private static final int KEY_LENGTH = 2048;
+
+    private TestKeys() {
+    }
+
+    /** Generates a personal key with a user ID on the test server network. */
+    public static PersonalKey create(String name) throws Exception {
+        PGP.registerProvider();
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", PGP.PROVIDER);
+        gen.initialize(KEY_LENGTH);
+        PGPKeyPair signKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), new Date());
+        PGPKeyPair encryptKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, gen.generateKeyPair(), new Date());
+
+        // store and load again to have the user ID on the key
+        PGP.PGPKeyPairRing ring = PGP.store(new PGP.PGPDecryptedKeyPairRing(signKp, encryptKp),
+            name + " <" + name + '@' + SERVER.getNetwork() + '>', PASSPHRASE);
+        return PersonalKey.load(ring.secretKey, ring.publicKey, PASSPHRASE, (X509Certificate) null);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TextEncoderTest {
+
+    private static final int BUFFER_SIZE = 1 << 8;
+    private static final int ROUNDS = 10000;
+
+    /** Discards all data (we only measure the encoding side). */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Test
+    public void testEncode() throws Exception {
+        StringBuilder text = new StringBuilder();
+        // make multi-byte sequences cross buffer boundaries
+        for (int i = 0; i < 300; i++)
+            text.append("a\u00e8\u20ac\ud83d\ude00");
+
+        for (CharSequence data : new CharSequence[] { "", "hello", text, text.toString() }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long count = new TextEncoder(BUFFER_SIZE).encode(data, out);
+            byte[] expected = data.toString().getBytes("UTF-8");
+            assertEquals(expected.length, count);
+            assertArrayEquals(expected, out.toByteArray());
+        }
+    }
+
+    /** Parts written one after another (e.g. CPIM headers and body) equal the whole text. */
+    @Test
+    public void testEncodeParts() throws Exception {
+        String[] parts = {
+            "Content-type: text/plain; charset=utf-8\n\n",
+            "<xmpp>", "\u00e8\u20ac\ud83d\ude00", "</xmpp>",
+        };
+        StringBuilder whole = new StringBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextEncoder encoder = new TextEncoder(BUFFER_SIZE);
+        long count = 0;
+        for (String part : parts) {
+            whole.append(part);
+            count += encoder.encode(part, out);
+        }
+        byte[] expected = whole.toString().getBytes("UTF-8");
+        assertEquals(expected.length, count);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        TextEncoder encoder = new TextEncoder(BUFFER_SIZE);
+        for (String data : new String[] { "first \u00e8", "second \u20ac" }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(data, out);
+            assertArrayEquals(data.getBytes("UTF-8"), out.toByteArray());
+        }
+    }
+
+    /** Streaming must allocate less than a full copy of the plain text. */
+    @Test
+    public void testAllocation() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+        if (!mx.isThreadAllocatedMemorySupported())
+            return;
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            b.append("Short text message \u00e8 ");
+        String text = b.toString();
+        long threadId = Thread.currentThread().getId();
+
+        TextEncoder encoder = new TextEncoder(BUFFER_SIZE);
+        byte[] buf = new byte[BUFFER_SIZE];
+        // warm up
+        for (int i = 0; i < ROUNDS; i++) {
+            encoder.encode(text, NULL_OUTPUT);
+            copy(text, buf);
+        }
+
+        long start = mx.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ROUNDS; i++)
+            copy(text, buf);
+        long copied = (mx.getThreadAllocatedBytes(threadId) - start) / ROUNDS;
+
+        start = mx.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ROUNDS; i++)
+            encoder.encode(text, NULL_OUTPUT);
+        long streamed = (mx.getThreadAllocatedBytes(threadId) - start) / ROUNDS;
+
+        assertTrue("streaming " + streamed + " bytes/message, copy " + copied + " bytes/message",
+            streamed < copied);
+    }
+
+    /** The old way: encode to a byte array, then read it through a stream. */
+    private static void copy(String text, byte[] buf) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(text.getBytes("UTF-8"));
+        while (in.read(buf) > 0)
+            NULL_OUTPUT.write(buf, 0, buf.length);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.crypto.TestKeys;
+
+
+/**
+ * Measures encrypt+sign throughput for short text messages, creating a
+ * new coder for each message as before the coder pool, and taking it
+ * from the pool. Keys are generated on the JVM.
+ * Not part of the unit tests: run it with
+ * <code>CoderPoolBenchmark [messages] [peers]</code>.
+ */
+public class CoderPoolBenchmark {
+
+    private static final String TEXT = "Hi! Are we still on for lunch tomorrow?";
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int peers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+        PersonalKey key = TestKeys.create("alice");
+        PGPPublicKeyRing[][] recipients = new PGPPublicKeyRing[peers][];
+        for (int i = 0; i < peers; i++)
+            recipients[i] = new PGPPublicKeyRing[] { TestKeys.create("peer" + i).getPublicKeyRing() };
+
+        // warm up
+        runNoPool(key, recipients, messages);
+        runPool(key, recipients, messages);
+
+        System.out.println("encrypt+sign, " + messages + " short messages to " + peers + " peers:");
+        for (int i = 0; i < RUNS; i++) {
+            long noPool = runNoPool(key, recipients, messages);
+            long pool = runPool(key, recipients, messages);
+            System.out.println("  no pool " + rate(messages, noPool) + " msg/s, pool " +
+                rate(messages, pool) + " msg/s");
+        }
+    }
+
+    private static long runNoPool(PersonalKey key, PGPPublicKeyRing[][] recipients, int messages)
+            throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            PGPCoder coder = new PGPCoder(TestKeys.SERVER, key, recipients[i % recipients.length]);
+            coder.encryptText(TEXT);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runPool(PersonalKey key, PGPPublicKeyRing[][] recipients, int messages)
+            throws Exception {
+        CoderPool pool = new CoderPool(CoderPool.DEFAULT_SIZE);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            PGPCoder coder = pool.getEncryptCoder(TestKeys.SERVER, key, recipients[i % recipients.length]);
+            coder.encryptText(TEXT);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long rate(int messages, long nanos) {
+        return messages * 1000000000L / Math.max(nanos, 1);
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks that the full text change log records the messages to be indexed
+ * and that pending changes are resolved against the current message data.
+ */
+public class FulltextIndexerTest {
+
+    private TestDatabase mDb;
+    private int mMessages;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+        mDb.execute(MessagesProvider.DatabaseHelper.SCHEMA_FULLTEXT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testChangeLog() throws Exception {
+        long text = insertMessage(0, "hello world", false);
+        long encrypted = insertMessage(0, "BEGIN PGP MESSAGE", true);
+        long outgoing = insertMessage(1, "see you", false);
+        insertMessage(0, null, false);
+        assertEquals(Arrays.asList(text, encrypted, outgoing), pending());
+
+        // encrypted message will be indexed after decryption
+        List<Long> indexable = new ArrayList<Long>();
+        Statement stm = mDb.getConnection().createStatement();
+        ResultSet rs = stm.executeQuery(FulltextIndexer.QUERY_PENDING);
+        while (rs.next()) {
+            if (rs.getInt(4) != 0)
+                indexable.add(rs.getLong(1));
+        }
+        stm.close();
+        assertEquals(Arrays.asList(text, outgoing), indexable);
+        mDb.execute("DELETE FROM fulltext_log");
+
+        // status changes are not logged
+        mDb.execute("UPDATE messages SET status = 5");
+        assertTrue(pending().isEmpty());
+
+        // decrypted message
+        mDb.execute("UPDATE messages SET body_content = 'secret', encrypted = 0 WHERE _id = " + encrypted);
+        assertEquals(Arrays.asList(encrypted), pending());
+
+        // deleted message must be removed from the index
+        mDb.execute("DELETE FROM messages WHERE _id = " + text);
+        assertEquals(Arrays.asList(text, encrypted), pending());
+        stm = mDb.getConnection().createStatement();
+        rs = stm.executeQuery(FulltextIndexer.QUERY_PENDING);
+        assertTrue(rs.next());
+        assertEquals(text, rs.getLong(1));
+        assertEquals(0, rs.getInt(4));
+        stm.close();
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        long text = insertMessage(0, "hello world", false);
+        mDb.execute("DELETE FROM fulltext_log");
+        // stale entry
+        mDb.execute("INSERT INTO fulltext (rowid, thread_id, content) VALUES (1000, 1, 'stale')");
+
+        for (String sql : FulltextIndexer.REBUILD)
+            mDb.execute(sql);
+        assertEquals(Arrays.asList(text, 1000L), pending());
+    }
+
+    private long insertMessage(int direction, String content, boolean encrypted) throws SQLException {
+        mMessages++;
+        PreparedStatement stm = mDb.getConnection().prepareStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, timestamp, body_content, encrypted) " +
+            "VALUES (1, ?, 'peer', ?, 0, ?, ?)");
+        stm.setString(1, "id" + mMessages);
+        stm.setInt(2, direction);
+        if (content != null)
+            stm.setBytes(3, content.getBytes());
+        else
+            stm.setNull(3, Types.BLOB);
+        stm.setInt(4, encrypted ? 1 : 0);
+        stm.executeUpdate();
+        stm.close();
+        return mDb.lastInsertRowId();
+    }
+
+    private List<Long> pending() throws SQLException {
+        return mDb.longsForQuery("SELECT message_id FROM fulltext_log ORDER BY message_id");
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Measures the time to the first page of full text search results.
+ * Not part of the unit tests: run it with
+ * <code>FulltextSearchBenchmark [messages]</code>.
+ */
+public class FulltextSearchBenchmark {
+
+    private static final String[] PATTERNS = { "\"he*\"", "\"wor*\"", "\"tomorrow\"" };
+
+    private static final int RUNS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+        TestDatabase db = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+        try {
+            db.execute(MessagesProvider.DatabaseHelper.SCHEMA_FULLTEXT);
+            db.execute("INSERT INTO threads (_id, msg_id, peer, direction, timestamp) " +
+                "VALUES (1, 'id', 'peer@example.com', 0, 0)");
+
+            Random random = new Random(1);
+            db.beginTransaction();
+            for (int i = 1; i <= messages; i++)
+                FulltextSearchTest.index(db, i, FulltextSearchTest.randomText(random, null));
+            db.endTransaction();
+
+            System.out.println("first page, " + messages + " messages:");
+            for (String pattern : PATTERNS) {
+                long[] times = new long[RUNS];
+                for (int i = 0; i < times.length; i++) {
+                    long start = System.nanoTime();
+                    FulltextSearchTest.search(db, pattern, 0, 30);
+                    times[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(times);
+                System.out.println("  " + pattern + ": p50 " + times[times.length / 2] / 1000 +
+                    " us, max " + times[times.length - 1] / 1000 + " us");
+            }
+        }
+        finally {
+            db.close();
+        }
+    }
+
+}
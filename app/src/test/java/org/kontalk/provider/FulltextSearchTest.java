@@ -0,0 +1,156 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks ranking, snippets and paging of full text search results.
+ */
+public class FulltextSearchTest {
+
+    private static final String[] WORDS = {
+        "hello", "help", "world", "word", "message", "meeting", "tomorrow",
+        "today", "where", "when", "what", "call", "later", "thanks", "okay",
+    };
+
+    private TestDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+        mDb.execute(MessagesProvider.DatabaseHelper.SCHEMA_FULLTEXT);
+        mDb.execute("INSERT INTO threads (_id, msg_id, peer, direction, timestamp) " +
+            "VALUES (1, 'id', 'peer@example.com', 0, 0)");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testRanking() throws Exception {
+        index(1, "hello world");
+        index(2, "hello hello there");
+        index(3, "nothing to see here");
+        index(4, "a much longer message that says hello only once, at the very end of it");
+
+        List<Long> ids = new ArrayList<Long>();
+        for (String[] row : search("\"hel*\"", 0, 30))
+            ids.add(Long.parseLong(row[0]));
+        assertEquals(Arrays.asList(2L, 1L, 4L), ids);
+    }
+
+    @Test
+    public void testSnippet() throws Exception {
+        index(1, "see you tomorrow");
+
+        List<String[]> rows = search("\"tom*\"", 0, 30);
+        assertEquals(1, rows.size());
+        assertEquals("peer@example.com", rows.get(0)[2]);
+        assertEquals("see you tomorrow", rows.get(0)[3]);
+        assertEquals("see you \u0002tomorrow\u0003", rows.get(0)[4]);
+    }
+
+    /** All results must be returned exactly once, across ranking windows. */
+    @Test
+    public void testPaging() throws Exception {
+        int count = MessagesProvider.SEARCH_WINDOW * 2 + 500;
+        Random random = new Random(1);
+        mDb.beginTransaction();
+        for (int i = 1; i <= count; i++)
+            index(i, randomText(random, "hello"));
+        mDb.endTransaction();
+
+        Set<String> found = new HashSet<String>();
+        int offset = 0;
+        while (true) {
+            List<String[]> page = search("\"hel*\"", offset, 30);
+            if (page.isEmpty())
+                break;
+            assertTrue(page.size() <= 30);
+            for (String[] row : page)
+                assertTrue("duplicate result " + row[0], found.add(row[0]));
+            offset += page.size();
+        }
+        assertEquals(count, found.size());
+    }
+
+    static String randomText(Random random, String required) {
+        StringBuilder text = new StringBuilder();
+        if (required != null)
+            text.append(required);
+        int words = 1 + random.nextInt(20);
+        for (int i = 0; i < words; i++) {
+            if (text.length() > 0)
+                text.append(' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private void index(long id, String content) throws SQLException {
+        index(mDb, id, content);
+    }
+
+    private List<String[]> search(String pattern, int offset, int limit) throws SQLException {
+        return search(mDb, pattern, offset, limit);
+    }
+
+    static void index(TestDatabase db, long id, String content) throws SQLException {
+        PreparedStatement stm = db.getConnection().prepareStatement("INSERT INTO fulltext " +
+            "(rowid, thread_id, content) VALUES (?, 1, ?)");
+        stm.setLong(1, id);
+        stm.setString(2, content);
+        stm.executeUpdate();
+        stm.close();
+    }
+
+    static List<String[]> search(TestDatabase db, String pattern, int offset, int limit) throws SQLException {
+        PreparedStatement stm = db.getConnection().prepareStatement(
+            MessagesProvider.buildSearchQuery(offset, limit));
+        stm.setString(1, pattern);
+        ResultSet rs = stm.executeQuery();
+        List<String[]> rows = new ArrayList<String[]>();
+        while (rs.next()) {
+            String[] row = new String[5];
+            for (int i = 0; i < row.length; i++)
+                row[i] = rs.getString(i + 1);
+            rows.add(row);
+        }
+        rs.close();
+        stm.close();
+        return rows;
+    }
+}
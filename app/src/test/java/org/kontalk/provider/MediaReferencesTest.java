@@ -0,0 +1,114 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks that media reference counts follow the messages referencing them
+ * through their preview path or local file URI.
+ */
+public class MediaReferencesTest {
+
+    private static final String PREVIEW = "/data/cache/0a1b.jpg";
+    private static final String MEDIA = "/sdcard/Kontalk/2c3d.jpg";
+
+    private TestDatabase mDb;
+    private int mMessages;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+        mDb.execute("INSERT INTO media (hash, location, timestamp) VALUES ('0a1b', '" + PREVIEW + "', 0)");
+        mDb.execute("INSERT INTO media (hash, location, timestamp) VALUES ('2c3d', '" + MEDIA + "', 0)");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testReferences() throws Exception {
+        // the same preview received in three conversations
+        for (int thread = 1; thread <= 3; thread++)
+            insertMessage(thread, PREVIEW);
+        // unrelated message
+        insertMessage(1, null);
+        assertEquals(3, refcount(PREVIEW));
+        assertEquals(0, refcount(MEDIA));
+
+        // media downloaded by two messages
+        mDb.execute("UPDATE messages SET att_local_uri = 'file://" + MEDIA + "' WHERE thread_id IN (1, 2) AND att_preview_path IS NOT NULL");
+        assertEquals(2, refcount(MEDIA));
+
+        // same value again: nothing changes
+        mDb.execute("UPDATE messages SET att_local_uri = 'file://" + MEDIA + "' WHERE thread_id = 1 AND att_preview_path IS NOT NULL");
+        assertEquals(2, refcount(MEDIA));
+
+        // non-file URIs can't reference stored media
+        mDb.execute("UPDATE messages SET att_local_uri = 'content://media/external/images/1' WHERE thread_id = 2");
+        assertEquals(1, refcount(MEDIA));
+        assertEquals(3, refcount(PREVIEW));
+
+        // delete a conversation
+        mDb.execute("DELETE FROM messages WHERE thread_id = 1");
+        assertEquals(2, refcount(PREVIEW));
+        assertEquals(0, refcount(MEDIA));
+
+        // delete everything
+        mDb.execute("DELETE FROM messages");
+        assertEquals(0, refcount(PREVIEW));
+        assertEquals(0, refcount(MEDIA));
+    }
+
+    /** Trigger lookups must use the location index. */
+    @Test
+    public void testNoFullScan() throws Exception {
+        String plan = mDb.explain("UPDATE media SET refcount = refcount + 1 " +
+            "WHERE location IN ('" + PREVIEW + "', CASE WHEN 'file://" + MEDIA + "' LIKE 'file://%' " +
+            "THEN substr('file://" + MEDIA + "', 8) END)");
+
+        assertFalse("full scan on media:\n" + plan,
+            plan.matches("(?s).*\\bSCAN (TABLE )?media\\b.*"));
+    }
+
+    private void insertMessage(long threadId, String preview) throws SQLException {
+        PreparedStatement insert = mDb.getConnection().prepareStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, timestamp, att_preview_path) VALUES (?, ?, 'peer', 0, 0, ?)");
+        insert.setLong(1, threadId);
+        insert.setString(2, "msg" + (++mMessages));
+        insert.setString(3, preview);
+        insert.executeUpdate();
+        insert.close();
+    }
+
+    private long refcount(String location) throws SQLException {
+        return mDb.longForQuery("SELECT IFNULL((SELECT refcount FROM media " +
+            "WHERE location = '" + location + "'), -1)");
+    }
+}
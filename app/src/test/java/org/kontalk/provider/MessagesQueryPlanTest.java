@@ -0,0 +1,189 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kontalk.provider.MyMessages.Messages;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks that queries on the messages table never degrade to a full scan,
+ * that threads are sorted by index and that reconnect-time resend queries
+ * only visit pending messages.
+ * Statements are built from the selections used by the provider, the
+ * message center and the notification code.
+ */
+public class MessagesQueryPlanTest {
+
+    static final String RESEND_MESSAGES_QUERY =
+        "SELECT _id, msg_id, peer FROM messages WHERE " +
+        MessagesProvider.SELECTION_PENDING_MESSAGES +
+        " ORDER BY " + Messages.DEFAULT_SORT_ORDER;
+    static final String RESEND_RECEIPTS_QUERY =
+        "SELECT _id, msg_id, peer FROM messages WHERE " +
+        MessagesProvider.SELECTION_PENDING_RECEIPTS +
+        " ORDER BY " + Messages.DEFAULT_SORT_ORDER;
+
+    /** Queries sorting a whole thread: the index must provide the order. */
+    private static final String[] THREAD_QUERIES = {
+        // MessagesProvider: conversation (search results)
+        "SELECT * FROM messages WHERE (" + Messages.THREAD_ID + "=1) " +
+            "ORDER BY " + Messages.PAGED_SORT_ORDER,
+        // MessagesProvider.updateThreadInfo
+        bind("SELECT msg_id, direction, status, body_content, body_mime, att_mime, timestamp " +
+            "FROM messages WHERE " + MessagesProvider.SELECTION_THREAD +
+            " ORDER BY " + Messages.PAGED_INVERTED_SORT_ORDER + " LIMIT 1", "1"),
+    };
+
+    private static final String[] QUERIES = {
+        // MessagesProvider: conversation page
+        "SELECT * FROM messages WHERE (" +
+            MessagesProvider.buildPageWhere(1, 50, "1000", "10") + ") " +
+            "ORDER BY " + Messages.PAGED_SORT_ORDER,
+        // MessagesProvider: already stored message
+        bind("SELECT _id FROM messages WHERE " +
+            MessagesProvider.SELECTION_STORED_MESSAGE + " LIMIT 1", "id", "1"),
+        // MessagesProvider.deleteConversation
+        bind("DELETE FROM messages WHERE " + MessagesProvider.SELECTION_THREAD, "1"),
+        // MessagesProvider.markThreadAsRead
+        bind("UPDATE messages SET unread = 0, \"new\" = 0 WHERE " +
+            MessagesProvider.SELECTION_THREAD_UNREAD, "1"),
+        // MessagesProvider.markAllThreadsAsOld
+        "UPDATE messages SET \"new\" = 0 WHERE " + MessagesProvider.SELECTION_NEW_INCOMING,
+        // MessagesProvider: counters reconcile
+        MessagesProvider.DatabaseHelper.RECONCILE_THREADS_COUNTERS,
+        // MessageCenterService.resendPendingMessages
+        RESEND_MESSAGES_QUERY,
+        // MessageCenterService.resendPendingReceipts
+        RESEND_RECEIPTS_QUERY,
+        // MessageAckListener: status change by message id
+        bind("UPDATE messages SET status = " + Messages.STATUS_SENT + " WHERE " +
+            Messages.MESSAGE_ID + " = ? AND (" +
+            MessagesProvider.SELECTION_OUTGOING_UNDELIVERED + ")", "id"),
+        // MessagingNotification.updateMessagesNotification
+        bind("SELECT thread_id, peer, body_content, att_mime, encrypted FROM messages " +
+            "WHERE " + MessagesProvider.SELECTION_NEW_INCOMING + " AND peer <> ? " +
+            "ORDER BY " + Messages.DEFAULT_SORT_ORDER, "peer"),
+    };
+
+    private TestDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testNoFullScan() throws Exception {
+        for (String[] queries : new String[][] { THREAD_QUERIES, QUERIES }) {
+            for (String sql : queries) {
+                String plan = mDb.explain(sql);
+                assertFalse("full scan on messages: " + sql + "\n" + plan,
+                    plan.matches("(?s).*\\bSCAN (TABLE )?messages\\b.*"));
+            }
+        }
+    }
+
+    /** Sorting a whole thread in a temporary table is as slow as a scan. */
+    @Test
+    public void testThreadOrder() throws Exception {
+        for (String sql : THREAD_QUERIES) {
+            String plan = mDb.explain(sql);
+            assertFalse("thread sorted in a temporary table: " + sql + "\n" + plan,
+                plan.contains("USE TEMP B-TREE"));
+        }
+    }
+
+    /** Resend queries must only visit pending messages. */
+    @Test
+    public void testResendPending() throws Exception {
+        insertMessages(mDb, 1000, 10);
+
+        for (String sql : new String[] { RESEND_MESSAGES_QUERY, RESEND_RECEIPTS_QUERY }) {
+            String plan = mDb.explain(sql);
+            assertTrue("status index not used: " + sql + "\n" + plan,
+                plan.contains("status_message (direction=? AND status=?)"));
+            assertEquals(5, mDb.count(sql));
+        }
+    }
+
+    /**
+     * Inserts delivered messages in 100 threads followed by pending
+     * messages and pending receipts (half each).
+     */
+    static void insertMessages(TestDatabase db, int delivered, int pending) throws SQLException {
+        db.beginTransaction();
+        PreparedStatement insert = db.getConnection().prepareStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, timestamp, status) VALUES (?, ?, 'peer', ?, ?, ?)");
+        try {
+            for (int i = 0; i < delivered; i++) {
+                boolean out = (i % 2) == 0;
+                insert.setInt(1, 1 + i % 100);
+                insert.setString(2, "old" + i);
+                insert.setInt(3, out ? Messages.DIRECTION_OUT : Messages.DIRECTION_IN);
+                insert.setLong(4, i);
+                insert.setInt(5, out ? Messages.STATUS_RECEIVED : Messages.STATUS_CONFIRMED);
+                insert.addBatch();
+            }
+            for (int i = 0; i < pending; i++) {
+                boolean out = (i % 2) == 0;
+                insert.setInt(1, 1);
+                insert.setString(2, "pending" + i);
+                insert.setInt(3, out ? Messages.DIRECTION_OUT : Messages.DIRECTION_IN);
+                insert.setLong(4, delivered + i);
+                insert.setInt(5, out ? Messages.STATUS_SENDING : Messages.STATUS_INCOMING);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        finally {
+            insert.close();
+        }
+        db.endTransaction();
+    }
+
+    /** Replaces statement parameters with the given (quoted) values. */
+    private static String bind(String sql, String... args) {
+        StringBuilder out = new StringBuilder();
+        int arg = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '?')
+                out.append('\'').append(args[arg++]).append('\'');
+            else
+                out.append(c);
+        }
+        if (arg != args.length)
+            throw new IllegalArgumentException("wrong number of arguments: " + sql);
+        return out.toString();
+    }
+}
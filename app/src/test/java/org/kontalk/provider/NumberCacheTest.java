@@ -0,0 +1,116 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks memoization and parallel normalization of the numbers cache.
+ * Numbers are "normalized" by a fake normalizer counting its calls.
+ */
+public class NumberCacheTest {
+
+    private static class FakeNormalizer implements NumberCache.Normalizer {
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String normalize(String number) throws Exception {
+            calls.incrementAndGet();
+            if (number.startsWith("x"))
+                throw new IllegalArgumentException("invalid number");
+            return "+39" + number;
+        }
+    }
+
+    @Test
+    public void testMemoization() {
+        FakeNormalizer normalizer = new FakeNormalizer();
+        NumberCache cache = new NumberCache(normalizer);
+
+        NumberCache.Entry e = cache.get("3331234567");
+        assertEquals("+393331234567", e.number);
+        assertEquals(40, e.hash.length());
+        assertSame(e, cache.get("3331234567"));
+        assertEquals(1, normalizer.calls.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // invalid numbers are cached too
+        assertNull(cache.get("x123"));
+        assertNull(cache.get("x123"));
+        assertEquals(2, normalizer.calls.get());
+
+        Map<String, NumberCache.Entry> added = cache.getAdded();
+        assertEquals(2, added.size());
+        assertNull(added.get("x123").number);
+    }
+
+    @Test
+    public void testStored() {
+        FakeNormalizer normalizer = new FakeNormalizer();
+        NumberCache cache = new NumberCache(normalizer);
+        cache.put("3331234567", "+393331234567", "hash");
+        cache.put("x123", null, null);
+
+        assertEquals("hash", cache.get("3331234567").hash);
+        assertNull(cache.get("x123"));
+        assertEquals(0, normalizer.calls.get());
+        assertTrue(cache.getAdded().isEmpty());
+        assertEquals(2, cache.getUsed().size());
+    }
+
+    @Test
+    public void testPrefetch() {
+        List<String> raws = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++)
+            raws.add(((i % 10) == 0 ? "x" : "") + (3330000000L + i));
+
+        FakeNormalizer sequentialNormalizer = new FakeNormalizer();
+        NumberCache sequential = new NumberCache(sequentialNormalizer);
+        for (String raw : raws)
+            sequential.get(raw);
+
+        FakeNormalizer parallelNormalizer = new FakeNormalizer();
+        NumberCache parallel = new NumberCache(parallelNormalizer);
+        parallel.prefetch(raws, 4);
+        assertEquals(raws.size(), parallelNormalizer.calls.get());
+
+        for (String raw : raws) {
+            NumberCache.Entry s = sequential.get(raw);
+            NumberCache.Entry p = parallel.get(raw);
+            if (s == null) {
+                assertNull(p);
+            }
+            else {
+                assertEquals(s.number, p.number);
+                assertEquals(s.hash, p.hash);
+            }
+        }
+        // everything was prefetched
+        assertEquals(raws.size(), parallelNormalizer.calls.get());
+        assertEquals(raws.size(), parallel.getAdded().size());
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PublicKeyCacheTest {
+
+    @Test
+    public void testPut() {
+        PublicKeyCache cache = new PublicKeyCache(PublicKeyCache.DEFAULT_SIZE);
+        assertNull(cache.get("alice@example.com", true));
+
+        assertTrue(cache.put("alice@example.com", true, "AAAA", null, cache.getGeneration()));
+        assertNotNull(cache.get("alice@example.com", true));
+        assertNull(cache.get("alice@example.com", false));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    /** A key read before an invalidation must not be cached. */
+    @Test
+    public void testInvalidatedWhileLoading() {
+        PublicKeyCache cache = new PublicKeyCache(PublicKeyCache.DEFAULT_SIZE);
+
+        long generation = cache.getGeneration();
+        // key is updated while the old one is being read
+        cache.invalidate("alice@example.com");
+        assertFalse(cache.put("alice@example.com", true, "AAAA", null, generation));
+        assertNull(cache.get("alice@example.com", true));
+
+        generation = cache.getGeneration();
+        cache.clear();
+        assertFalse(cache.put("alice@example.com", true, "AAAA", null, generation));
+        assertNull(cache.get("alice@example.com", true));
+
+        // next load is cached
+        assertTrue(cache.put("alice@example.com", true, "BBBB", null, cache.getGeneration()));
+        assertEquals("BBBB", cache.get("alice@example.com", true).fingerprint);
+    }
+
+    @Test
+    public void testEviction() {
+        PublicKeyCache cache = new PublicKeyCache(2);
+        cache.put("a", true, "A", null, cache.getGeneration());
+        cache.put("b", true, "B", null, cache.getGeneration());
+        // access a so that b is the eldest
+        assertNotNull(cache.get("a", true));
+        cache.put("c", true, "C", null, cache.getGeneration());
+        assertNull(cache.get("b", true));
+        assertNotNull(cache.get("a", true));
+        assertNotNull(cache.get("c", true));
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.util.Arrays;
+
+
+/**
+ * Measures the reconnect-time resend queries with many delivered messages
+ * and a few pending ones, against the old outgoing messages filter which
+ * could not use the status index.
+ * Not part of the unit tests: run it with
+ * <code>ResendPendingBenchmark [delivered messages] [pending messages]</code>.
+ */
+public class ResendPendingBenchmark {
+
+    /** Resend filter before the status index. */
+    private static final String OLD_RESEND_MESSAGES_QUERY =
+        "SELECT _id, msg_id, peer FROM messages WHERE direction=1 AND status<>4 AND status<>5 " +
+        "AND status<>7 AND status<>8 ORDER BY _id";
+
+    private static final int RUNS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int delivered = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int pending = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        TestDatabase db = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+        try {
+            MessagesQueryPlanTest.insertMessages(db, delivered, pending);
+
+            System.out.println("resend queries, " + delivered + " delivered messages, " +
+                pending + " pending:");
+            run(db, "old pending messages", OLD_RESEND_MESSAGES_QUERY);
+            run(db, "pending messages", MessagesQueryPlanTest.RESEND_MESSAGES_QUERY);
+            run(db, "pending receipts", MessagesQueryPlanTest.RESEND_RECEIPTS_QUERY);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private static void run(TestDatabase db, String name, String sql) throws Exception {
+        int rows = 0;
+        long[] times = new long[RUNS];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            rows = db.count(sql);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        System.out.println("  " + name + ": " + rows + " rows, p50 " + times[times.length / 2] / 1000 +
+            " us, max " + times[times.length - 1] / 1000 + " us");
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * An in-memory SQLite database for JVM tests, created with the given
+ * provider schema (through sqlite-jdbc).
+ */
+class TestDatabase {
+
+    private final Connection mConnection;
+
+    public TestDatabase(String[] schema) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        for (String sql : schema)
+            execute(sql);
+    }
+
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    /** Executes a statement, returning the number of rows changed. */
+    public int execute(String sql) throws SQLException {
+        Statement stm = mConnection.createStatement();
+        try {
+            stm.execute(sql);
+            return Math.max(stm.getUpdateCount(), 0);
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Returns the first column of the first row of a query. */
+    public long longForQuery(String sql) throws SQLException {
+        Statement stm = mConnection.createStatement();
+        try {
+            ResultSet rs = stm.executeQuery(sql);
+            rs.next();
+            return rs.getLong(1);
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Returns the first column of all the rows of a query. */
+    public List<Long> longsForQuery(String sql) throws SQLException {
+        Statement stm = mConnection.createStatement();
+        try {
+            ResultSet rs = stm.executeQuery(sql);
+            List<Long> values = new ArrayList<Long>();
+            while (rs.next())
+                values.add(rs.getLong(1));
+            return values;
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Returns the number of rows returned by a query. */
+    public int count(String sql) throws SQLException {
+        return (int) longForQuery("SELECT COUNT(*) FROM (" + sql + ")");
+    }
+
+    public long lastInsertRowId() throws SQLException {
+        return longForQuery("SELECT last_insert_rowid()");
+    }
+
+    /** Returns the query plan of a statement, one step per line. */
+    public String explain(String sql) throws SQLException {
+        Statement stm = mConnection.createStatement();
+        try {
+            ResultSet rs = stm.executeQuery("EXPLAIN QUERY PLAN " + sql);
+            StringBuilder plan = new StringBuilder();
+            while (rs.next())
+                plan.append(rs.getString("detail")).append('\n');
+            return plan.toString();
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Starts a transaction (commit with {@link #endTransaction()}). */
+    public void beginTransaction() throws SQLException {
+        mConnection.setAutoCommit(false);
+    }
+
+    public void endTransaction() throws SQLException {
+        mConnection.commit();
+        mConnection.setAutoCommit(true);
+    }
+
+    public void close() throws SQLException {
+        mConnection.close();
+    }
+
+}
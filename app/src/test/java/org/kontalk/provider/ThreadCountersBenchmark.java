@@ -0,0 +1,152 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * Measures message writes with incremental thread counters triggers
+ * against the old triggers recounting the whole thread on every change.
+ * Not part of the unit tests: run it with
+ * <code>ThreadCountersBenchmark [messages] [messages with old triggers]</code>.
+ * The old triggers are quadratic, so they run on fewer messages by default.
+ */
+public class ThreadCountersBenchmark {
+
+    private static final int THREADS = 2;
+
+    /** Triggers before incremental counters, for comparison. */
+    private static final String[] OLD_TRIGGERS = {
+        "DROP TRIGGER update_thread_on_insert",
+        "DROP TRIGGER update_thread_on_update",
+        "DROP TRIGGER update_thread_status_on_update",
+        "DROP TRIGGER update_thread_on_delete",
+        "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON messages BEGIN " +
+            recount("new") + "; " + latestStatus() + "; END",
+        "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON messages BEGIN " +
+            recount("new") + "; " + latestStatus() + "; END",
+        "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON messages BEGIN " +
+            recount("old") + "; END",
+    };
+
+    private static String recount(String row) {
+        String thread = row + ".thread_id";
+        return "UPDATE threads SET count = (SELECT COUNT(_id) FROM messages WHERE thread_id = " + thread + ") " +
+            "WHERE _id = " + thread + "; " +
+            "UPDATE threads SET unread = (SELECT COUNT(_id) FROM messages WHERE thread_id = " + thread +
+            " AND unread <> 0) WHERE _id = " + thread + "; " +
+            "UPDATE threads SET \"new\" = (SELECT COUNT(_id) FROM messages WHERE thread_id = " + thread +
+            " AND \"new\" <> 0) WHERE _id = " + thread;
+    }
+
+    private static String latestStatus() {
+        return "UPDATE threads SET status = (SELECT status FROM messages WHERE thread_id = new.thread_id " +
+            "ORDER BY timestamp DESC LIMIT 1) WHERE _id = new.thread_id";
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int oldMessages = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+
+        System.out.println("incremental triggers, " + messages + " messages:");
+        run(messages, false);
+        System.out.println("old triggers, " + oldMessages + " messages:");
+        run(oldMessages, true);
+    }
+
+    private static void run(int messages, boolean oldTriggers) throws Exception {
+        TestDatabase db = new TestDatabase(MessagesProvider.DatabaseHelper.SCHEMA_CREATE);
+        try {
+            if (oldTriggers) {
+                for (String sql : OLD_TRIGGERS)
+                    db.execute(sql);
+            }
+            for (int i = 1; i <= THREADS; i++)
+                db.execute("INSERT INTO threads (_id, msg_id, peer, direction, timestamp) " +
+                    "VALUES (" + i + ", 'id', 'peer" + i + "', 0, 0)");
+
+            long start = System.nanoTime();
+            db.beginTransaction();
+            insert(db, messages);
+            db.endTransaction();
+            report("insert", messages, start);
+
+            // bulk status update (e.g. messages delivered)
+            start = System.nanoTime();
+            db.beginTransaction();
+            int rows = db.execute("UPDATE messages SET status = 5 WHERE direction = 1");
+            db.endTransaction();
+            report("status update", rows, start);
+
+            // thread marked as read
+            start = System.nanoTime();
+            db.beginTransaction();
+            rows = db.execute("UPDATE messages SET unread = 0, \"new\" = 0 WHERE thread_id = 1 AND unread <> 0");
+            db.endTransaction();
+            report("mark as read", rows, start);
+
+            verify(db);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private static void insert(TestDatabase db, int messages) throws SQLException {
+        PreparedStatement stm = db.getConnection().prepareStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, unread, \"new\", timestamp, status) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        try {
+            for (int i = 0; i < messages; i++) {
+                int thread = 1 + (i % THREADS);
+                boolean in = (i % 2) == 0;
+                stm.setInt(1, thread);
+                stm.setString(2, "msg" + i);
+                stm.setString(3, "peer" + thread);
+                stm.setInt(4, in ? 0 : 1);
+                stm.setInt(5, in ? 1 : 0);
+                stm.setInt(6, in ? 1 : 0);
+                stm.setLong(7, i);
+                stm.setInt(8, in ? 0 : 1);
+                stm.executeUpdate();
+            }
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    /** Checks the counters against a full recount. */
+    private static void verify(TestDatabase db) throws SQLException {
+        int wrong = db.count("SELECT _id FROM threads WHERE " +
+            "count <> (SELECT COUNT(*) FROM messages WHERE thread_id = threads._id) OR " +
+            "unread <> (SELECT COUNT(*) FROM messages WHERE thread_id = threads._id AND unread <> 0) OR " +
+            "\"new\" <> (SELECT COUNT(*) FROM messages WHERE thread_id = threads._id AND \"new\" <> 0)");
+        if (wrong > 0)
+            throw new AssertionError(wrong + " threads with wrong counters");
+    }
+
+    private static void report(String operation, int rows, long start) {
+        long time = System.nanoTime() - start;
+        System.out.println("  " + operation + ": " + rows + " rows in " + time / 1000000 + " ms (" +
+            (time > 0 ? rows * 1000000000L / time : 0) + " rows/s)");
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.provider;
+
+import java.security.MessageDigest;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks incremental users resync on a synthetic 10k contacts address book:
+ * raw contact change detection and commit of the offline table.
+ * Reading the contacts provider is not covered.
+ */
+public class UsersResyncTest {
+
+    private static final int CONTACTS = 10000;
+
+    private TestDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = new TestDatabase(UsersProvider.DatabaseHelper.SCHEMA_CREATE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testDiffRawContacts() {
+        Map<Long, long[]> previous = addressBook();
+        Map<Long, long[]> current = addressBook();
+        assertTrue(UsersProvider.diffRawContacts(previous, current).isEmpty());
+
+        // edited
+        current.get(10L)[0]++;
+        // joined to another contact
+        current.get(20L)[1] = 5;
+        // deleted
+        current.remove(30L);
+        // added
+        current.put((long) CONTACTS + 1, new long[] { 1, CONTACTS + 1 });
+
+        Set<Long> expected = new HashSet<Long>();
+        expected.add(10L);
+        expected.add(20L);
+        expected.add(30L);
+        expected.add((long) CONTACTS + 1);
+        assertEquals(expected, UsersProvider.diffRawContacts(previous, current));
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            insertOffline(i, "name" + i);
+        assertEquals(3, commit());
+        assertEquals(3, count("users"));
+
+        // nothing changed
+        assertEquals(0, commit());
+
+        // one changed, one deleted, one added
+        mDb.execute("UPDATE users_offline SET display_name = 'changed' WHERE raw_contact_id = 1");
+        mDb.execute("DELETE FROM users_offline WHERE raw_contact_id = 2");
+        insertOffline(4, "name4");
+        // changed row is deleted and inserted again
+        assertEquals(4, commit());
+        assertEquals(3, count("users"));
+        assertEquals(1, count("users WHERE display_name = 'changed'"));
+        assertEquals(0, count("users WHERE raw_contact_id = 2"));
+
+        // rows written directly to the users table are replaced
+        mDb.execute("UPDATE users SET status = 'hello' WHERE raw_contact_id = 3");
+        assertEquals(2, commit());
+        assertEquals(0, count("users WHERE status IS NOT NULL"));
+    }
+
+    /** Only the rows of changed contacts are written on commit. */
+    @Test
+    public void testIncrementalCommit() throws Exception {
+        mDb.beginTransaction();
+        for (int i = 1; i <= CONTACTS; i++)
+            insertOffline(i, "name" + i);
+        assertEquals(CONTACTS, commit());
+        mDb.endTransaction();
+
+        // 20 contacts edited
+        Map<Long, long[]> previous = addressBook();
+        Map<Long, long[]> current = addressBook();
+        for (long id = 1; id <= CONTACTS; id += CONTACTS / 20)
+            current.get(id)[0]++;
+        Set<Long> changed = UsersProvider.diffRawContacts(previous, current);
+        assertEquals(20, changed.size());
+
+        mDb.beginTransaction();
+        for (Long id : changed) {
+            assertEquals(1, mDb.execute("DELETE FROM users_offline WHERE raw_contact_id = " + id));
+            insertOffline(id, "edited" + id);
+        }
+        // deleted and inserted again in the users table
+        assertEquals(20 * 2, commit());
+        mDb.endTransaction();
+
+        assertEquals(CONTACTS, count("users"));
+        assertEquals(20, count("users WHERE display_name LIKE 'edited%'"));
+    }
+
+    private static Map<Long, long[]> addressBook() {
+        Map<Long, long[]> contacts = new HashMap<Long, long[]>(CONTACTS);
+        for (long id = 1; id <= CONTACTS; id++)
+            contacts.put(id, new long[] { 1, id });
+        return contacts;
+    }
+
+    private void insertOffline(long rawContactId, String name) throws Exception {
+        String number = "+3933312" + (10000 + rawContactId);
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        StringBuilder hash = new StringBuilder();
+        for (byte b : md.digest(number.getBytes()))
+            hash.append(String.format("%02x", b));
+
+        PreparedStatement stm = mDb.getConnection().prepareStatement("INSERT INTO users_offline " +
+            "(hash, number, jid, display_name, lookup_key, contact_id, registered, raw_contact_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?, 0, ?)");
+        stm.setString(1, hash.toString());
+        stm.setString(2, number);
+        stm.setString(3, hash + "@example.com");
+        stm.setString(4, name);
+        stm.setString(5, "lookup" + rawContactId);
+        stm.setLong(6, rawContactId);
+        stm.setLong(7, rawContactId);
+        stm.executeUpdate();
+        stm.close();
+    }
+
+    private int commit() throws SQLException {
+        int rows = 0;
+        for (String sql : UsersProvider.COMMIT_OFFLINE)
+            rows += mDb.execute(sql);
+        return rows;
+    }
+
+    private int count(String from) throws SQLException {
+        return (int) mDb.longForQuery("SELECT COUNT(*) FROM " + from);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class TransferSchedulerTest {
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    /** Records start order and concurrency of transfers. */
+    private static final class Recorder {
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        TransferScheduler.Transfer transfer(final String name, final long duration,
+                final CountDownLatch done) {
+            return new TransferScheduler.Transfer() {
+                public void run() {
+                    started.add(name);
+                    int count = running.incrementAndGet();
+                    int max;
+                    do {
+                        max = maxRunning.get();
+                    } while (count > max && !maxRunning.compareAndSet(max, count));
+
+                    try {
+                        Thread.sleep(duration);
+                    }
+                    catch (InterruptedException e) {
+                        // canceled
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+
+                public void cancel() {
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1) {
+            @Override
+            protected String getForegroundPeer() {
+                return "open";
+            }
+        };
+        Recorder rec = new Recorder();
+        CountDownLatch done = new CountDownLatch(5);
+
+        // occupies the only slot while the others are queued
+        scheduler.submit("first", "peer", 100 * MB, rec.transfer("first", 200, done));
+        scheduler.submit("video", "peer", 100 * MB, rec.transfer("video", 10, done));
+        scheduler.submit("document", "peer", 2 * MB, rec.transfer("document", 10, done));
+        scheduler.submit("image", "peer", 50 * KB, rec.transfer("image", 10, done));
+        scheduler.submit("open", "open", 10 * MB, rec.transfer("open", 10, done));
+        assertEquals(4, scheduler.getPendingCount());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[first, open, image, document, video]", rec.started.toString());
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        final AtomicLong clock = new AtomicLong(1000);
+        TransferScheduler scheduler = new TransferScheduler(1) {
+            @Override
+            protected long now() {
+                return clock.get();
+            }
+        };
+        Recorder rec = new Recorder();
+        CountDownLatch done = new CountDownLatch(2);
+
+        // occupies the only slot until the others are queued
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit("first", null, 0, new TransferScheduler.Transfer() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+
+            public void cancel() {
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.submit("waiting", null, 70 * KB, rec.transfer("waiting", 10, done));
+        clock.addAndGet(2000);
+        // 70 KB waiting for 2 s count as 58 KB
+        scheduler.submit("new", null, 60 * KB, rec.transfer("new", 10, done));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[waiting, new]", rec.started.toString());
+    }
+
+    /** Without waiting, the smaller transfer goes first. */
+    @Test
+    public void testNoAging() throws Exception {
+        final AtomicLong clock = new AtomicLong(1000);
+        TransferScheduler scheduler = new TransferScheduler(1) {
+            @Override
+            protected long now() {
+                return clock.get();
+            }
+        };
+        Recorder rec = new Recorder();
+        CountDownLatch done = new CountDownLatch(3);
+
+        scheduler.submit("first", null, 0, rec.transfer("first", 200, done));
+        scheduler.submit("waiting", null, 70 * KB, rec.transfer("waiting", 10, done));
+        clock.addAndGet(1000);
+        // 70 KB waiting for 1 s count as 63 KB
+        scheduler.submit("new", null, 60 * KB, rec.transfer("new", 10, done));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[first, new, waiting]", rec.started.toString());
+    }
+
+    @Test
+    public void testSlots() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(3);
+        Recorder rec = new Recorder();
+        CountDownLatch done = new CountDownLatch(9);
+        for (int i = 0; i < 9; i++)
+            assertTrue(scheduler.submit("t" + i, null, KB, rec.transfer("t" + i, 50, done)));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, rec.maxRunning.get());
+        waitIdle(scheduler);
+        assertEquals(9, scheduler.getCompletedCount());
+        assertTrue(scheduler.getMaxQueueWait() >= 100);
+    }
+
+    @Test
+    public void testDuplicate() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1);
+        Recorder rec = new Recorder();
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(scheduler.submit("a", null, KB, rec.transfer("a", 100, done)));
+        assertFalse(scheduler.submit("a", null, KB, rec.transfer("a", 100, done)));
+        assertTrue(scheduler.isQueued("a"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitIdle(scheduler);
+        assertFalse(scheduler.isQueued("a"));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1);
+        final CountDownLatch canceled = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit("running", null, MB, new TransferScheduler.Transfer() {
+            public void run() {
+                started.countDown();
+                try {
+                    canceled.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+
+            public void cancel() {
+                canceled.countDown();
+            }
+        });
+        Recorder rec = new Recorder();
+        scheduler.submit("pending", null, KB, rec.transfer("pending", 10, new CountDownLatch(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // pending transfer is removed from the queue
+        assertTrue(scheduler.cancel("pending"));
+        assertFalse(scheduler.isQueued("pending"));
+        // running transfer is stopped
+        assertFalse(scheduler.cancel("running"));
+        assertTrue(canceled.await(1, TimeUnit.SECONDS));
+
+        waitIdle(scheduler);
+        assertTrue(rec.started.isEmpty());
+    }
+
+    /** Small transfers must not wait for a large transfer to complete. */
+    @Test
+    public void testSmallNotBlocked() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(TransferScheduler.DEFAULT_SLOTS);
+        Recorder rec = new Recorder();
+        final CountDownLatch small = new CountDownLatch(10);
+        CountDownLatch large = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        scheduler.submit("video", null, 100 * MB, rec.transfer("video", 1000, large));
+        for (int i = 0; i < 10; i++)
+            scheduler.submit("image" + i, null, 50 * KB, rec.transfer("image" + i, 20, small));
+
+        assertTrue(small.await(5, TimeUnit.SECONDS));
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertEquals(1, large.getCount());
+        assertTrue(large.await(5, TimeUnit.SECONDS));
+        waitIdle(scheduler);
+
+        assertTrue("images took " + elapsed + " ms", elapsed < 1000);
+        assertTrue(scheduler.getMaxQueueWait() < 1000);
+    }
+
+    private static void waitIdle(TransferScheduler scheduler) throws InterruptedException {
+        for (int i = 0; i < 100 && (scheduler.getRunningCount() > 0 || scheduler.getPendingCount() > 0); i++)
+            Thread.sleep(10);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Measures the wall-clock time to ingest an offline backlog: decrypting
+ * and storing each message on the connection thread, against the
+ * incoming pipeline. Decryption is simulated as in {@link OrderedExecutorTest}.
+ * Not part of the unit tests: run it with
+ * <code>IncomingBacklogBenchmark [messages] [senders] [threads]</code>.
+ */
+public class IncomingBacklogBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int senders = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) :
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        System.out.println("incoming backlog, " + messages + " messages from " +
+            senders + " senders:");
+
+        long[] serial = new long[RUNS];
+        long[] pipeline = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            serial[i] = runSerial(messages);
+            pipeline[i] = runPipeline(messages, senders, threads);
+        }
+        Arrays.sort(serial);
+        Arrays.sort(pipeline);
+
+        long serialMs = serial[RUNS / 2] / 1000000;
+        long pipelineMs = pipeline[RUNS / 2] / 1000000;
+        System.out.println("  connection thread: p50 " + serialMs + " ms");
+        System.out.println("  pipeline, " + threads + " threads: p50 " + pipelineMs + " ms (" +
+            (pipelineMs > 0 ? String.format("%.1f", (double) serialMs / pipelineMs) : "-") + "x)");
+    }
+
+    private static long runSerial(int messages) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            OrderedExecutorTest.decrypt(i);
+        return System.nanoTime() - start;
+    }
+
+    private static long runPipeline(int messages, int senders, int threads) {
+        final AtomicInteger stored = new AtomicInteger();
+        OrderedExecutor executor = new OrderedExecutor("benchmark", threads,
+            OrderedExecutor.DEFAULT_CAPACITY);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            final int seq = i;
+            executor.submit("user" + (i % senders) + "@kontalk.net", new OrderedExecutor.Job() {
+                public void process() {
+                    OrderedExecutorTest.decrypt(seq);
+                }
+
+                public void complete(RuntimeException error) {
+                    stored.incrementAndGet();
+                }
+            });
+        }
+        if (!executor.awaitIdle(600000))
+            throw new IllegalStateException("pipeline did not complete");
+        long time = System.nanoTime() - start;
+        executor.shutdown();
+
+        if (stored.get() != messages)
+            throw new IllegalStateException(stored.get() + " messages stored, expected " + messages);
+        return time;
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Replays an offline backlog through the incoming pipeline.
+ * Decryption is simulated with a CPU-bound task of similar cost.
+ */
+public class OrderedExecutorTest {
+
+    private static final int BACKLOG_SIZE = 500;
+    private static final int SENDERS = 8;
+    private static final int WORK_ROUNDS = 2000;
+
+    /** A backlog message: simulates decryption, then records storage order. */
+    private static final class BacklogJob implements OrderedExecutor.Job {
+        private final String mSender;
+        private final int mSequence;
+        private final Map<String, List<Integer>> mStored;
+        private byte[] mDigest;
+
+        BacklogJob(String sender, int sequence, Map<String, List<Integer>> stored) {
+            mSender = sender;
+            mSequence = sequence;
+            mStored = stored;
+        }
+
+        public void process() {
+            mDigest = decrypt(mSequence);
+        }
+
+        public void complete(RuntimeException error) {
+            assertNull(error);
+            assertNotNull(mDigest);
+            List<Integer> list = mStored.get(mSender);
+            synchronized (list) {
+                list.add(mSequence);
+            }
+        }
+    }
+
+    /** Simulates decryption of a backlog message. */
+    static byte[] decrypt(int seed) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] data = new byte[1024];
+            data[0] = (byte) seed;
+            for (int i = 0; i < WORK_ROUNDS; i++)
+                data = md.digest(data);
+            return data;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testBacklogOrder() throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        Map<String, List<Integer>> stored = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < SENDERS; i++)
+            stored.put("user" + i + "@kontalk.net", new ArrayList<Integer>());
+
+        OrderedExecutor executor = new OrderedExecutor("test", threads, OrderedExecutor.DEFAULT_CAPACITY);
+        for (int i = 0; i < BACKLOG_SIZE; i++) {
+            String sender = "user" + (i % SENDERS) + "@kontalk.net";
+            assertTrue(executor.submit(sender, new BacklogJob(sender, i, stored)));
+        }
+        assertTrue(executor.awaitIdle(60000));
+        executor.shutdown();
+
+        int total = 0;
+        for (List<Integer> list : stored.values()) {
+            List<Integer> sorted = new ArrayList<Integer>(list);
+            Collections.sort(sorted);
+            assertEquals(sorted, list);
+            total += list.size();
+        }
+        assertEquals(BACKLOG_SIZE, total);
+    }
+
+    @Test
+    public void testSingleSender() throws Exception {
+        final List<Integer> completed = new ArrayList<Integer>();
+        OrderedExecutor executor = new OrderedExecutor("test", 4, 10);
+        for (int i = 0; i < 100; i++) {
+            final int seq = i;
+            executor.submit("user@kontalk.net", new OrderedExecutor.Job() {
+                public void process() {
+                    // later messages finish first
+                    decrypt(100 - seq);
+                }
+
+                public void complete(RuntimeException error) {
+                    synchronized (completed) {
+                        completed.add(seq);
+                    }
+                }
+            });
+        }
+        assertTrue(executor.awaitIdle(60000));
+        executor.shutdown();
+
+        assertEquals(100, completed.size());
+        for (int i = 0; i < completed.size(); i++)
+            assertEquals(i, completed.get(i).intValue());
+    }
+
+    /** A failed job is still completed, in order, with its error. */
+    @Test
+    public void testProcessFailure() throws Exception {
+        final List<Integer> completed = new ArrayList<Integer>();
+        final List<Integer> failed = new ArrayList<Integer>();
+        OrderedExecutor executor = new OrderedExecutor("test", 4, 10);
+        for (int i = 0; i < 20; i++) {
+            final int seq = i;
+            executor.submit("user@kontalk.net", new OrderedExecutor.Job() {
+                public void process() {
+                    decrypt(20 - seq);
+                    if (seq % 5 == 0)
+                        throw new IllegalStateException("job " + seq);
+                }
+
+                public void complete(RuntimeException error) {
+                    synchronized (completed) {
+                        completed.add(seq);
+                        if (error != null) {
+                            assertEquals("job " + seq, error.getMessage());
+                            failed.add(seq);
+                        }
+                    }
+                }
+            });
+        }
+        assertTrue(executor.awaitIdle(60000));
+        executor.shutdown();
+
+        assertEquals(20, completed.size());
+        for (int i = 0; i < completed.size(); i++)
+            assertEquals(i, completed.get(i).intValue());
+        assertEquals(Arrays.asList(0, 5, 10, 15), failed);
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("test", 1, 10);
+        executor.shutdown();
+        assertFalse(executor.submit("user@kontalk.net", new OrderedExecutor.Job() {
+            public void process() {
+            }
+
+            public void complete(RuntimeException error) {
+            }
+        }));
+        assertTrue(executor.awaitIdle(1000));
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Runs roster matches against a simulated server dropping some replies.
+ * Time is simulated: each step is 100 ms and replies take 3 steps.
+ */
+public class RosterMatcherTest {
+
+    private static final int JIDS = 10000;
+    private static final int CHUNK_SIZE = 500;
+    private static final int WINDOW = 3;
+    private static final long TIMEOUT = 2000;
+    private static final int RETRIES = 2;
+
+    private static final long STEP = 100;
+    private static final int REPLY_STEPS = 3;
+
+    /** A server matching JIDs ending with 0, dropping some replies. */
+    private static class FakeServer implements RosterMatcher.Requester {
+        private static final class Request {
+            final String id;
+            final List<String> jids;
+            final long replyTime;
+
+            Request(String id, List<String> jids, long replyTime) {
+                this.id = id;
+                this.jids = jids;
+                this.replyTime = replyTime;
+            }
+        }
+
+        final Random random = new Random(42);
+        final Queue<Request> queue = new LinkedList<Request>();
+        /** Probability of dropping a reply. */
+        double dropRate;
+        /** JIDs whose requests are always dropped. */
+        Set<String> dead = new HashSet<String>();
+        long now;
+        int requests;
+        int maxInFlight;
+        RosterMatcher matcher;
+
+        public void requestRosterMatch(String id, List<String> jids) {
+            requests++;
+            maxInFlight = Math.max(maxInFlight, matcher.getInFlightCount());
+            if (random.nextDouble() < dropRate || dead.contains(jids.get(0)))
+                return;
+            queue.add(new Request(id, jids, now + REPLY_STEPS * STEP));
+        }
+
+        /** Delivers replies due until now. */
+        void deliver() {
+            while (!queue.isEmpty() && queue.peek().replyTime <= now) {
+                Request r = queue.poll();
+                List<String> matched = new ArrayList<String>();
+                for (String jid : r.jids) {
+                    if (jid.endsWith("0@kontalk.net"))
+                        matched.add(jid);
+                }
+                matcher.onResult(r.id, matched.toArray(new String[matched.size()]), now);
+            }
+        }
+
+        /** Runs until the matcher is done. */
+        long run() {
+            matcher.start(now);
+            while (!matcher.isDone()) {
+                now += STEP;
+                deliver();
+                matcher.expire(now);
+                assertTrue("roster match never ends", now < 3600000);
+            }
+            return now;
+        }
+    }
+
+    private static List<String> jids() {
+        List<String> jids = new ArrayList<String>(JIDS);
+        for (int i = 0; i < JIDS; i++)
+            jids.add(i + "@kontalk.net");
+        return jids;
+    }
+
+    private static FakeServer server(List<String> jids) {
+        FakeServer server = new FakeServer();
+        server.matcher = new RosterMatcher(jids, CHUNK_SIZE, WINDOW, TIMEOUT, RETRIES, server);
+        return server;
+    }
+
+    @Test
+    public void testNoLoss() {
+        FakeServer server = server(jids());
+        long time = server.run();
+
+        RosterMatcher matcher = server.matcher;
+        assertEquals(JIDS / CHUNK_SIZE, matcher.getChunkCount());
+        assertEquals(JIDS / 10, matcher.getMatched().size());
+        assertEquals(0, matcher.getRetryCount());
+        assertEquals(0, matcher.getFailedCount());
+        assertEquals(matcher.getChunkCount(), server.requests);
+        assertEquals(WINDOW, server.maxInFlight);
+        for (long t : matcher.getChunkTimes())
+            assertEquals(REPLY_STEPS * STEP, t);
+        // a full window of chunks answered every round trip
+        int rounds = (matcher.getChunkCount() + WINDOW - 1) / WINDOW;
+        assertEquals(rounds * REPLY_STEPS * STEP, time);
+    }
+
+    @Test
+    public void testDroppedReplies() {
+        FakeServer server = server(jids());
+        server.dropRate = 0.2;
+        server.run();
+
+        RosterMatcher matcher = server.matcher;
+        assertTrue(matcher.getRetryCount() > 0);
+        assertTrue(server.maxInFlight <= WINDOW);
+        // every chunk answered or given up after all retries
+        int failed = matcher.getFailedCount();
+        assertEquals(failed * CHUNK_SIZE, matcher.getFailed().size());
+        assertEquals((JIDS - failed * CHUNK_SIZE) / 10, matcher.getMatched().size());
+
+        // answered chunks took at most all retries and a round trip
+        int unanswered = 0;
+        for (long t : matcher.getChunkTimes()) {
+            if (t < 0)
+                unanswered++;
+            else
+                assertTrue("chunk time " + t, t <= RETRIES * TIMEOUT + REPLY_STEPS * STEP);
+        }
+        assertEquals(failed, unanswered);
+    }
+
+    @Test
+    public void testDeadChunk() {
+        List<String> jids = jids();
+        FakeServer server = server(jids);
+        // third chunk is never answered
+        server.dead.add(jids.get(2 * CHUNK_SIZE));
+        server.run();
+
+        RosterMatcher matcher = server.matcher;
+        assertEquals(1, matcher.getFailedCount());
+        assertEquals(RETRIES, matcher.getRetryCount());
+        assertEquals(jids.subList(2 * CHUNK_SIZE, 3 * CHUNK_SIZE), matcher.getFailed());
+        // other chunks are still matched
+        assertEquals((JIDS - CHUNK_SIZE) / 10, matcher.getMatched().size());
+        assertEquals(-1, matcher.getChunkTimes()[2]);
+    }
+
+    @Test
+    public void testLateReply() {
+        final List<String> ids = new ArrayList<String>();
+        RosterMatcher matcher = new RosterMatcher(jids().subList(0, 10), CHUNK_SIZE, WINDOW, TIMEOUT, RETRIES,
+            new RosterMatcher.Requester() {
+                public void requestRosterMatch(String id, List<String> jids) {
+                    ids.add(id);
+                }
+            });
+
+        matcher.start(0);
+        assertEquals(1, ids.size());
+        matcher.expire(TIMEOUT);
+        assertEquals(2, ids.size());
+        assertEquals(0, matcher.getNextTimeout() - 2 * TIMEOUT);
+
+        // reply to the first request
+        assertTrue(matcher.onResult(ids.get(0), new String[] { "0@kontalk.net" }, TIMEOUT + 10));
+        assertTrue(matcher.isDone());
+        assertEquals(TIMEOUT + 10, matcher.getChunkTimes()[0]);
+        // duplicate reply
+        assertFalse(matcher.onResult(ids.get(1), new String[0], TIMEOUT + 20));
+        assertEquals(1, matcher.getMatched().size());
+
+        // reconnection does not count as a retry
+        matcher = new RosterMatcher(jids().subList(0, 10), CHUNK_SIZE, WINDOW, TIMEOUT, RETRIES,
+            new RosterMatcher.Requester() {
+                public void requestRosterMatch(String id, List<String> jids) {
+                    ids.add(id);
+                }
+            });
+        matcher.start(0);
+        matcher.start(100);
+        assertEquals(0, matcher.getRetryCount());
+        assertEquals(1, matcher.getInFlightCount());
+        assertEquals(100 + TIMEOUT, matcher.getNextTimeout());
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Runs roster matches through the sync presence receiver against a
+ * simulated server dropping some replies and answering others with errors.
+ * Time is simulated: each step is one second and replies take one step.
+ */
+public class SyncerTest {
+
+    private static final int JIDS = 5000;
+    private static final int CHUNK_SIZE = RosterMatcher.DEFAULT_CHUNK_SIZE;
+    private static final long STEP = 1000;
+
+    /** Stands in for the message center, matching JIDs ending with 0. */
+    private static class FakeServer extends Syncer {
+        private static final class Reply {
+            final String id;
+            final String type;
+            final String[] jids;
+
+            Reply(String id, String type, String[] jids) {
+                this.id = id;
+                this.type = type;
+                this.jids = jids;
+            }
+        }
+
+        final Random random = new Random(42);
+        final Queue<Reply> queue = new LinkedList<Reply>();
+        /** Probability of dropping a reply. */
+        double dropRate;
+        /** Probability of an error reply. */
+        double errorRate;
+        /** JIDs whose requests are always dropped. */
+        final Set<String> dead = new HashSet<String>();
+        /** JIDs whose first request is answered with an error. */
+        final Set<String> failOnce = new HashSet<String>();
+        /** First JID of every chunk requested. */
+        final List<String> requested = new ArrayList<String>();
+        int errors;
+        String presenceId;
+
+        long now;
+        Syncer.PresenceBroadcastReceiver receiver;
+
+        FakeServer() {
+            super(null);
+        }
+
+        @Override
+        void requestRosterMatch(String id, List<String> jids) {
+            String first = jids.get(0);
+            requested.add(first);
+            if (dead.contains(first) || random.nextDouble() < dropRate)
+                return;
+
+            if (failOnce.remove(first) || random.nextDouble() < errorRate) {
+                errors++;
+                queue.add(new Reply(id, "error", null));
+                return;
+            }
+
+            List<String> matched = new ArrayList<String>();
+            for (String jid : jids) {
+                if (jid.endsWith("0@kontalk.net"))
+                    matched.add(jid);
+            }
+            queue.add(new Reply(id, "result", matched.toArray(new String[matched.size()])));
+        }
+
+        /** Presence data is never sent back. */
+        @Override
+        void requestPresenceData(String id) {
+            presenceId = id;
+        }
+
+        @Override
+        void requestPublicKeys() {
+        }
+
+        @Override
+        void requestBlocklist() {
+        }
+
+        /** Delivers the replies to the requests made so far. */
+        void deliver() {
+            for (int i = queue.size(); i > 0; i--) {
+                Reply r = queue.poll();
+                receiver.onRosterMatch(r.id, r.type, r.jids, now);
+            }
+        }
+
+        /** Connects and runs until the receiver gives up waiting for presence data. */
+        void run() {
+            if (requested.isEmpty())
+                receiver.onConnected(now);
+            while (!receiver.isFinished()) {
+                now += STEP;
+                deliver();
+                receiver.expire(now);
+                assertTrue("sync never ends", now < 3600000);
+            }
+        }
+    }
+
+    private static List<String> jids() {
+        List<String> jids = new ArrayList<String>(JIDS);
+        for (int i = 0; i < JIDS; i++)
+            jids.add(i + "@kontalk.net");
+        return jids;
+    }
+
+    private static FakeServer server(List<String> jids, Set<String> registered) {
+        FakeServer server = new FakeServer();
+        server.receiver = new Syncer.PresenceBroadcastReceiver(jids, registered, server, 0);
+        return server;
+    }
+
+    private static Set<String> response(FakeServer server) {
+        Set<String> jids = new HashSet<String>();
+        for (Syncer.PresenceItem item : server.receiver.getResponse())
+            assertTrue("duplicate " + item.from, jids.add(item.from));
+        return jids;
+    }
+
+    private static Set<String> matched(List<String> jids) {
+        Set<String> matched = new HashSet<String>();
+        for (String jid : jids) {
+            if (jid.endsWith("0@kontalk.net"))
+                matched.add(jid);
+        }
+        return matched;
+    }
+
+    /** An error reply makes the chunk to be requested again right away. */
+    @Test
+    public void testErrorReply() {
+        List<String> jids = jids();
+        FakeServer server = server(jids, new HashSet<String>());
+        server.failOnce.add(jids.get(0));
+
+        server.receiver.onConnected(0);
+        assertEquals(RosterMatcher.DEFAULT_WINDOW, server.queue.size());
+        server.now = 10;
+        server.deliver();
+        assertEquals(2, Collections.frequency(server.requested, jids.get(0)));
+
+        server.run();
+        assertEquals(1, server.errors);
+        assertEquals(JIDS / CHUNK_SIZE + 1, server.requested.size());
+        assertNotNull(server.presenceId);
+        assertEquals(matched(jids), response(server));
+    }
+
+    /** Users registered as of the last sync are kept if their chunk is never answered. */
+    @Test
+    public void testDeadChunk() {
+        List<String> jids = jids();
+        Set<String> registered = new HashSet<String>();
+        registered.add("10@kontalk.net");
+        registered.add(jids.get(CHUNK_SIZE + 1));
+        FakeServer server = server(jids, registered);
+        // second chunk is never answered
+        server.dead.add(jids.get(CHUNK_SIZE));
+        server.run();
+
+        assertEquals(RosterMatcher.DEFAULT_RETRIES + 1,
+            Collections.frequency(server.requested, jids.get(CHUNK_SIZE)));
+        assertEquals(JIDS / CHUNK_SIZE + RosterMatcher.DEFAULT_RETRIES, server.requested.size());
+        Set<String> expected = matched(jids);
+        expected.removeAll(matched(jids.subList(CHUNK_SIZE, 2 * CHUNK_SIZE)));
+        expected.add(jids.get(CHUNK_SIZE + 1));
+        assertEquals(expected, response(server));
+    }
+
+    @Test
+    public void testDroppedReplies() {
+        List<String> jids = jids();
+        FakeServer server = server(jids, new HashSet<String>());
+        server.dropRate = 0.3;
+        server.errorRate = 0.3;
+        server.run();
+
+        assertTrue(server.errors > 0);
+        assertTrue(server.requested.size() > JIDS / CHUNK_SIZE);
+        assertNotNull(server.presenceId);
+
+        // chunks given up are missing, all the others are complete
+        Set<String> response = response(server);
+        assertFalse(response.isEmpty());
+        for (int i = 0; i < JIDS; i += CHUNK_SIZE) {
+            Set<String> chunk = matched(jids.subList(i, i + CHUNK_SIZE));
+            if (response.containsAll(chunk))
+                continue;
+            for (String jid : chunk)
+                assertFalse(response.contains(jid));
+        }
+        assertTrue(matched(jids).containsAll(response));
+    }
+
+}
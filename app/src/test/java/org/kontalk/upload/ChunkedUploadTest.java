@@ -0,0 +1,538 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kontalk.service.ProgressListener;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Uploads files to a local server implementing a minimal resumable upload
+ * protocol over a flaky link, checking the result and the amount of
+ * retransmitted data.
+ */
+public class ChunkedUploadTest {
+
+    private static final int PART_SIZE = 256 * 1024;
+
+    private TestServer mServer;
+    private File mData;
+    private File mState;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestServer();
+        mData = File.createTempFile("upload", ".data");
+        mState = new File(mData.getPath() + ".state");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mData.delete();
+        mState.delete();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        byte[] content = write(2 * 1024 * 1024, 1);
+        mServer.dropConnections(4, 100 * 1024, true);
+
+        ChunkedUpload upload = create(new TestListener());
+        String url = upload.upload();
+
+        // fetch URL from the server, not the upload session
+        assertTrue(url, url.startsWith(mServer.getFetchUrl()));
+        assertArrayEquals(content, mServer.getData(url));
+        assertFalse(mState.exists());
+        assertRetransmitted(upload, content.length, 4);
+    }
+
+    @Test
+    public void testDiscardedParts() throws Exception {
+        byte[] content = write(2 * 1024 * 1024, 2);
+        // server doesn't keep incomplete parts
+        mServer.dropConnections(4, 200 * 1024, false);
+
+        ChunkedUpload upload = create(new TestListener());
+        String url = upload.upload();
+
+        assertArrayEquals(content, mServer.getData(url));
+        assertRetransmitted(upload, content.length, 4);
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        byte[] content = write(3 * 1024 * 1024, 3);
+        mServer.dropConnections(1, 512 * 1024, true);
+
+        // first attempt fails without retrying
+        ChunkedUpload upload = create(new TestListener());
+        upload.setPartSize(1024 * 1024);
+        upload.setMaxRetries(0);
+        try {
+            upload.upload();
+            fail("upload should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertTrue(mState.isFile());
+        long first = upload.getSentBytes();
+
+        // resume from saved session
+        TestListener listener = new TestListener();
+        upload = create(listener);
+        upload.setPartSize(1024 * 1024);
+        String url = upload.upload();
+
+        assertArrayEquals(content, mServer.getData(url));
+        assertEquals(1, mServer.getSessionCount());
+        assertTrue(listener.mFirst > 0);
+        assertEquals(content.length, listener.mBytes);
+        assertTrue(first + upload.getSentBytes() - content.length < 1024 * 1024);
+    }
+
+    /** All data was received but the fetch URL was not: resuming only asks for it. */
+    @Test
+    public void testResumeCompleted() throws Exception {
+        byte[] content = write(1024 * 1024, 5);
+        mServer.failFetchUrl(1);
+
+        ChunkedUpload upload = create(new TestListener());
+        upload.setMaxRetries(0);
+        try {
+            upload.upload();
+            fail("upload should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertTrue(mState.isFile());
+
+        upload = create(new TestListener());
+        String url = upload.upload();
+
+        assertArrayEquals(content, mServer.getData(url));
+        assertEquals(0, upload.getSentBytes());
+        assertEquals(1, mServer.getSessionCount());
+        assertFalse(mState.exists());
+    }
+
+    @Test
+    public void testExpiredSession() throws Exception {
+        byte[] content = write(1024 * 1024, 4);
+        mServer.dropConnections(1, 100 * 1024, true);
+
+        ChunkedUpload upload = create(new TestListener());
+        upload.setMaxRetries(0);
+        try {
+            upload.upload();
+            fail("upload should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        // session is gone: start over
+        mServer.expireSessions();
+        upload = create(new TestListener());
+        String url = upload.upload();
+
+        assertArrayEquals(content, mServer.getData(url));
+        assertEquals(content.length, upload.getSentBytes());
+    }
+
+    private ChunkedUpload create(ProgressListener listener) {
+        ChunkedUpload upload = new ChunkedUpload(new Connector(mServer.getUrl()),
+            mData, mState, null, listener);
+        upload.setPartSize(PART_SIZE);
+        upload.setRetryDelay(0);
+        return upload;
+    }
+
+    private byte[] write(int length, long seed) throws IOException {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(mData);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+        return data;
+    }
+
+    private void assertRetransmitted(ChunkedUpload upload, long length, int drops) {
+        long retransmitted = upload.getSentBytes() - length;
+        assertTrue(mServer.getBytesReceived() >= length);
+        // at most one part for every dropped connection
+        assertTrue(retransmitted >= 0);
+        assertTrue(retransmitted <= drops * PART_SIZE);
+    }
+
+    private static final class TestListener implements ProgressListener {
+        long mFirst = -1;
+        long mBytes;
+
+        public void start(UploadConnection conn) {
+        }
+
+        public void progress(UploadConnection conn, long bytes) {
+            if (mFirst < 0)
+                mFirst = bytes;
+            mBytes = bytes;
+        }
+    }
+
+    /** A connector using {@link HttpURLConnection}. */
+    private static final class Connector implements ChunkedUpload.Connector {
+        private final String mUrl;
+
+        Connector(String url) {
+            mUrl = url;
+        }
+
+        public String create(long length) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            try {
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Upload-Length", String.valueOf(length));
+                if (conn.getResponseCode() != 201)
+                    throw new IOException("invalid response: " + conn.getResponseCode());
+                return new URL(new URL(mUrl), conn.getHeaderField("Location")).toString();
+            }
+            finally {
+                conn.disconnect();
+            }
+        }
+
+        public long getOffset(String session) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(session).openConnection();
+            try {
+                conn.setRequestMethod("HEAD");
+                return parseOffset(conn);
+            }
+            finally {
+                conn.disconnect();
+            }
+        }
+
+        public long send(String session, long offset, InputStream data, long length)
+                throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(session).openConnection();
+            try {
+                // PATCH is not supported by HttpURLConnection
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+                conn.setRequestProperty("Upload-Offset", String.valueOf(offset));
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode((int) length);
+
+                OutputStream out = conn.getOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = data.read(buf)) > 0)
+                    out.write(buf, 0, len);
+                out.close();
+
+                return parseOffset(conn);
+            }
+            finally {
+                conn.disconnect();
+            }
+        }
+
+        public String getFetchUrl(String session) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(session).openConnection();
+            try {
+                int code = conn.getResponseCode();
+                if (code == 404)
+                    throw new ChunkedUpload.SessionExpiredException("session expired");
+                if (code != 200)
+                    throw new IOException("invalid response: " + code);
+
+                InputStream in = conn.getInputStream();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[1024];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    body.write(buf, 0, len);
+                return body.toString("US-ASCII");
+            }
+            finally {
+                conn.disconnect();
+            }
+        }
+
+        private long parseOffset(HttpURLConnection conn) throws IOException {
+            int code = conn.getResponseCode();
+            if (code == 404)
+                throw new ChunkedUpload.SessionExpiredException("session expired");
+            if (code != 200 && code != 204)
+                throw new IOException("invalid response: " + code);
+            return Long.parseLong(conn.getHeaderField("Upload-Offset"));
+        }
+    }
+
+    /**
+     * A minimal resumable upload server, which drops some connections
+     * after receiving part of the data.
+     */
+    private static final class TestServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final Map<String, ByteArrayOutputStream> mSessions =
+            new HashMap<String, ByteArrayOutputStream>();
+        private final Map<String, Long> mLengths = new HashMap<String, Long>();
+        private final AtomicInteger mSessionCount = new AtomicInteger();
+
+        private final AtomicInteger mDrops = new AtomicInteger();
+        private final AtomicInteger mFetchUrlFailures = new AtomicInteger();
+        private volatile long mDropAfter;
+        private volatile boolean mKeepPartial;
+
+        private final AtomicLong mBytesReceived = new AtomicLong();
+
+        TestServer() throws IOException {
+            mSocket = new ServerSocket(0);
+            new Thread(this).start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/upload";
+        }
+
+        /** Base URL for fetching uploaded files. */
+        String getFetchUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/files";
+        }
+
+        /** The next requests for the fetch URL will fail. */
+        void failFetchUrl(int count) {
+            mFetchUrlFailures.set(count);
+        }
+
+        /**
+         * Drops the next connections after receiving the given amount of bytes.
+         * @param keepPartial true to keep data received before dropping
+         */
+        void dropConnections(int count, long after, boolean keepPartial) {
+            mDrops.set(count);
+            mDropAfter = after;
+            mKeepPartial = keepPartial;
+        }
+
+        synchronized void expireSessions() {
+            mSessions.clear();
+            mLengths.clear();
+        }
+
+        /** Returns the data uploaded to a fetch URL. */
+        synchronized byte[] getData(String url) {
+            String path = "/upload" + url.substring(getFetchUrl().length());
+            ByteArrayOutputStream data = mSessions.get(path);
+            assertEquals(mLengths.get(path).longValue(), data.size());
+            return data.toByteArray();
+        }
+
+        int getSessionCount() {
+            return mSessionCount.get();
+        }
+
+        long getBytesReceived() {
+            return mBytesReceived.get();
+        }
+
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    Socket s = mSocket.accept();
+                    try {
+                        serve(s);
+                    }
+                    catch (IOException e) {
+                        // client went away
+                    }
+                    finally {
+                        s.close();
+                    }
+                }
+                catch (IOException e) {
+                    // server closed
+                }
+            }
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return (c < 0 && line.length() == 0) ? null : line.toString();
+        }
+
+        private void serve(Socket s) throws IOException {
+            InputStream in = s.getInputStream();
+            String request = readLine(in);
+            if (request == null)
+                return;
+
+            String[] parts = request.split(" ");
+            String method = parts[0];
+            String path = parts[1];
+
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int sep = line.indexOf(':');
+                headers.put(line.substring(0, sep).trim().toLowerCase(),
+                    line.substring(sep + 1).trim());
+            }
+            if ("PATCH".equals(headers.get("x-http-method-override")))
+                method = "PATCH";
+
+            OutputStream out = s.getOutputStream();
+            if ("POST".equals(method)) {
+                String id = path + "/" + mSessionCount.incrementAndGet();
+                synchronized (this) {
+                    mSessions.put(id, new ByteArrayOutputStream());
+                    mLengths.put(id, Long.parseLong(headers.get("upload-length")));
+                }
+                respond(out, "201 Created", "Location: " + id);
+            }
+            else if ("HEAD".equals(method)) {
+                synchronized (this) {
+                    ByteArrayOutputStream data = mSessions.get(path);
+                    if (data != null)
+                        respond(out, "200 OK", "Upload-Offset: " + data.size());
+                    else
+                        respond(out, "404 Not Found", null);
+                }
+            }
+            else if ("PATCH".equals(method)) {
+                long offset = Long.parseLong(headers.get("upload-offset"));
+                long length = Long.parseLong(headers.get("content-length"));
+                ByteArrayOutputStream data;
+                synchronized (this) {
+                    data = mSessions.get(path);
+                }
+                if (data == null) {
+                    respond(out, "404 Not Found", null);
+                    return;
+                }
+                if (data.size() != offset) {
+                    respond(out, "409 Conflict", null);
+                    return;
+                }
+
+                // inject a disconnect
+                boolean drop = length > mDropAfter && mDrops.getAndDecrement() > 0;
+                long limit = drop ? mDropAfter : length;
+
+                ByteArrayOutputStream part = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                long left = limit;
+                while (left > 0) {
+                    int len = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (len < 0)
+                        break;
+                    part.write(buf, 0, len);
+                    mBytesReceived.addAndGet(len);
+                    left -= len;
+                }
+
+                synchronized (this) {
+                    if (!drop || mKeepPartial)
+                        part.writeTo(data);
+                }
+
+                if (drop) {
+                    // reset the connection
+                    s.setSoLinger(true, 0);
+                    return;
+                }
+                respond(out, "204 No Content", "Upload-Offset: " + data.size());
+            }
+            else if ("GET".equals(method)) {
+                boolean complete;
+                synchronized (this) {
+                    ByteArrayOutputStream data = mSessions.get(path);
+                    if (data == null) {
+                        respond(out, "404 Not Found", null);
+                        return;
+                    }
+                    complete = data.size() == mLengths.get(path);
+                }
+                if (!complete || mFetchUrlFailures.getAndDecrement() > 0)
+                    respond(out, "409 Conflict", null);
+                else
+                    respond(out, "200 OK", null,
+                        getFetchUrl() + path.substring("/upload".length()));
+            }
+            else {
+                respond(out, "405 Method Not Allowed", null);
+            }
+        }
+
+        private void respond(OutputStream out, String status, String header) throws IOException {
+            respond(out, status, header, "");
+        }
+
+        private void respond(OutputStream out, String status, String header, String body)
+                throws IOException {
+            byte[] content = body.getBytes("US-ASCII");
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+            if (header != null)
+                head.append(header).append("\r\n");
+            head.append("Content-Length: ").append(content.length)
+                .append("\r\nConnection: close\r\n\r\n");
+            out.write(head.toString().getBytes("US-ASCII"));
+            out.write(content);
+            out.flush();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RateLimiterTest {
+
+    private static final int KB = 1024;
+
+    @After
+    public void tearDown() {
+        TransferThrottle.setNetworkClass(TransferThrottle.NETWORK_UNMETERED);
+    }
+
+    /** Transfers the given amount of data and returns the elapsed milliseconds. */
+    private static long transfer(RateLimiter limiter, long total, int chunk)
+            throws InterruptedIOException {
+        long start = System.nanoTime();
+        for (long sent = 0; sent < total; sent += chunk)
+            limiter.acquire(chunk);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void testRate() throws Exception {
+        // 256 KB/s, 64 KB burst: 512 KB must take at least ~1.75 seconds
+        RateLimiter limiter = new RateLimiter(256 * KB);
+        long elapsed = transfer(limiter, 512 * KB, 8 * KB);
+        assertTrue("too fast: " + elapsed, elapsed >= 1650);
+        assertTrue("too slow: " + elapsed, elapsed < 2500);
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        RateLimiter limiter = new RateLimiter(0);
+        long elapsed = transfer(limiter, 100 * 1024 * KB, 8 * KB);
+        assertTrue("unlimited transfer throttled: " + elapsed, elapsed < 500);
+    }
+
+    /** Concurrent transfers must share the same rate. */
+    @Test
+    public void testShared() throws Exception {
+        final RateLimiter limiter = new RateLimiter(256 * KB);
+        final AtomicLong failures = new AtomicLong();
+
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        transfer(limiter, 128 * KB, 8 * KB);
+                    }
+                    catch (InterruptedIOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(0, failures.get());
+        // 512 KB in total: same as a single transfer
+        assertTrue("too fast: " + elapsed, elapsed >= 1650);
+        assertTrue("too slow: " + elapsed, elapsed < 2500);
+    }
+
+    @Test
+    public void testRateChange() throws Exception {
+        RateLimiter limiter = new RateLimiter(0);
+        assertTrue(transfer(limiter, 10 * 1024 * KB, 8 * KB) < 500);
+
+        // limits apply from an empty bucket
+        limiter.setRate(128 * KB);
+        long elapsed = transfer(limiter, 128 * KB, 8 * KB);
+        assertTrue("too fast: " + elapsed, elapsed >= 900);
+
+        limiter.setRate(0);
+        assertTrue(transfer(limiter, 10 * 1024 * KB, 8 * KB) < 500);
+    }
+
+    @Test
+    public void testPolicies() throws Exception {
+        RateLimiter download = TransferThrottle.getDownloadLimiter();
+        RateLimiter upload = TransferThrottle.getUploadLimiter();
+
+        // unmetered and idle: unlimited
+        // (no messaging activity is recorded before this test)
+        TransferThrottle.setNetworkClass(TransferThrottle.NETWORK_UNMETERED);
+        assertEquals(0, download.getRate());
+        assertEquals(0, upload.getRate());
+
+        TransferThrottle.onMessagingActivity();
+        assertTrue(download.getRate() > 0);
+        assertTrue(upload.getRate() > 0);
+        assertTrue(upload.getRate() <= download.getRate());
+        long unmetered = download.getRate();
+
+        TransferThrottle.setNetworkClass(TransferThrottle.NETWORK_METERED);
+        assertTrue(download.getRate() < unmetered);
+
+        // roaming is always limited
+        TransferThrottle.setNetworkClass(TransferThrottle.NETWORK_ROAMING);
+        long active = download.getRate();
+        assertTrue(active > 0);
+        assertTrue(upload.getRate() > 0);
+        assertTrue(upload.getRate() < active);
+    }
+
+}